@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import org.glowroot.microbenchmarks.support.TimerWorthy;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// end-to-end transaction throughput with many producer threads spread across many transaction
+// names, so that the aggregation thread (as opposed to the transactions themselves) becomes the
+// bottleneck
+//
+// the number of aggregation threads is read from the agent config, so compare runs with
+// "advanced": { "aggregationThreads": N } in the glowroot config.json, e.g. 1, 2, 4 and 8
+//
+// when aggregation does not keep up, transactions are dropped from aggregation (cheaply) and
+// "not aggregating a transaction because of an excessive backlog" is logged, so results should
+// be read together with glowroot.log
+//
+// the aspects are loaded by the agent, so benchmarks.jar also needs to be copied into the plugins
+// directory next to glowroot.jar
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class AggregationBenchmark extends TransactionWorthy {
+
+    private static final int TRANSACTION_NAME_COUNT = 64;
+
+    private static final String[] transactionNames = new String[TRANSACTION_NAME_COUNT];
+
+    static {
+        for (int i = 0; i < TRANSACTION_NAME_COUNT; i++) {
+            transactionNames[i] = "transaction worthy " + i;
+        }
+    }
+
+    private TimerWorthy timerWorthy;
+
+    private int count;
+
+    @Setup
+    public void setup() {
+        timerWorthy = new TimerWorthy();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void producers1() {
+        execute();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void producers4() {
+        execute();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void producers16() {
+        execute();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void producers64() {
+        execute();
+    }
+
+    private void execute() {
+        doSomethingTransactionWorthy(transactionNames[count++ & (TRANSACTION_NAME_COUNT - 1)]);
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy(String transactionName) {
+        timerWorthy.doSomethingTimerWorthy();
+        timerWorthy.doSomethingTimerWorthyB();
+        timerWorthy.doSomethingTimerWorthy();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import org.glowroot.agent.util.CaptureTimeRingBuffer;
+import org.glowroot.agent.util.CaptureTimeRingBuffer.WaitStrategy;
+import org.glowroot.microbenchmarks.support.LinkedLockingQueue;
+
+// compares the Aggregator transaction queue against the prior linked list / queueLock structure,
+// producers are the benchmark threads, and a single consumer thread drains the queue
+//
+// needs to be run with -javaagent since CaptureTimeRingBuffer is loaded from the glowroot jar
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class AggregatorQueueBenchmark {
+
+    private static final int LIMIT = 1000;
+
+    private static final Object ELEMENT = new Object();
+
+    @Param
+    private QueueType queueType;
+
+    private LinkedLockingQueue linkedLockingQueue;
+    private CaptureTimeRingBuffer<Object> ringBuffer;
+
+    private volatile boolean closed;
+    private Thread consumer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        closed = false;
+        switch (queueType) {
+            case LINKED_LOCKING:
+                linkedLockingQueue = new LinkedLockingQueue(LIMIT);
+                break;
+            case RING_BUFFER_PARK:
+                ringBuffer = new SystemClockRingBuffer(LIMIT, WaitStrategy.PARK);
+                break;
+            case RING_BUFFER_SLEEP:
+                ringBuffer = new SystemClockRingBuffer(LIMIT, WaitStrategy.SLEEP);
+                break;
+        }
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    consume();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        closed = true;
+        if (ringBuffer != null) {
+            ringBuffer.close();
+        }
+        consumer.join();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long producers1() {
+        return add();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long producers4() {
+        return add();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long producers16() {
+        return add();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long producers64() {
+        return add();
+    }
+
+    private long add() {
+        if (queueType == QueueType.LINKED_LOCKING) {
+            return linkedLockingQueue.add(ELEMENT);
+        } else {
+            return ringBuffer.offer(ELEMENT);
+        }
+    }
+
+    private void consume() throws InterruptedException {
+        if (queueType == QueueType.LINKED_LOCKING) {
+            while (!closed) {
+                linkedLockingQueue.pollOne();
+            }
+        } else {
+            while (!closed) {
+                if (ringBuffer.poll() == null) {
+                    ringBuffer.await(1000);
+                }
+            }
+        }
+    }
+
+    public enum QueueType {
+        LINKED_LOCKING, RING_BUFFER_PARK, RING_BUFFER_SLEEP
+    }
+
+    private static class SystemClockRingBuffer extends CaptureTimeRingBuffer<Object> {
+
+        private SystemClockRingBuffer(int minCapacity, WaitStrategy waitStrategy) {
+            super(minCapacity, waitStrategy);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.weaving.GenericMessageSupplier;
+import org.glowroot.agent.weaving.MessageTemplate;
+
+// rendering of a config-based instrumentation trace entry message, with template paths evaluated
+// via generated accessor classes (compiled) vs via reflection
+//
+// MessageTemplate and GenericMessageSupplier are loaded from the -javaagent jar
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MessageTemplateBenchmark {
+
+    private static final String TEMPLATE =
+            "{{this.name}}.{{methodName}}(): {{0.customer.name}} ({{0.customer.id}}), {{0.total}}";
+
+    private MessageTemplate template;
+    private OrderService orderService;
+    private Order order;
+
+    @Setup
+    public void setup() throws Exception {
+        template = MessageTemplate.create(TEMPLATE,
+                OrderService.class.getMethod("placeOrder", Order.class));
+        orderService = new OrderService();
+        order = new Order(new Customer(12345, "Jane Doe"), 99.95);
+    }
+
+    @Benchmark
+    public String compiled() {
+        return render();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.messageTemplate.disableCompiledPaths=true")
+    public String reflective() {
+        return render();
+    }
+
+    private String render() {
+        return GenericMessageSupplier.create(template, orderService, "placeOrder", order)
+                .getMessageText();
+    }
+
+    public static class OrderService {
+
+        public String getName() {
+            return "orders";
+        }
+
+        public void placeOrder(@SuppressWarnings("unused") Order order) {}
+    }
+
+    public static class Order {
+
+        private final Customer customer;
+        private final double total;
+
+        private Order(Customer customer, double total) {
+            this.customer = customer;
+            this.total = total;
+        }
+
+        public Customer getCustomer() {
+            return customer;
+        }
+
+        public double getTotal() {
+            return total;
+        }
+    }
+
+    public static class Customer {
+
+        private final long id;
+        private final String name;
+
+        private Customer(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+}
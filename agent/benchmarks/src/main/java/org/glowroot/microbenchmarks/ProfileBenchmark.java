@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.MutableProfile.StackTraceCache;
+
+// merging of deep (Spring MVC on Tomcat) stack traces into a transaction profile, where successive
+// samples share the container and framework frames, and only differ in the application frames
+//
+// "incremental" is the merge used by agent Profile, "full" merges every frame from the root
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ProfileBenchmark {
+
+    private static final int SAMPLE_COUNT = 256;
+    private static final int CONTROLLER_COUNT = 50;
+
+    private StackTraceElement[][] samples;
+    private MutableProfile profile;
+    private StackTraceCache stackTraceCache;
+    private int count;
+
+    @Setup
+    public void setup() {
+        samples = new StackTraceElement[SAMPLE_COUNT][];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            samples[i] = createStackTrace(i);
+        }
+        profile = new MutableProfile();
+        stackTraceCache = new StackTraceCache();
+    }
+
+    @Benchmark
+    public void incremental() {
+        profile.merge(nextSample(), Thread.State.RUNNABLE, stackTraceCache);
+    }
+
+    @Benchmark
+    public void full() {
+        profile.merge(nextSample(), Thread.State.RUNNABLE, null);
+    }
+
+    // each sample has its own stack trace element instances, same as with ThreadInfo
+    private StackTraceElement[] nextSample() {
+        return samples[count++ & (SAMPLE_COUNT - 1)];
+    }
+
+    // same controller for a run of consecutive samples, similar to sampling a single request
+    //
+    // strings are interned, same as the strings in stack trace elements captured by the JVM
+    private static StackTraceElement[] createStackTrace(int sample) {
+        int controller = (sample / 8) % CONTROLLER_COUNT;
+        List<StackTraceElement> frames = Lists.newArrayList();
+        // leaf frames, which vary between every sample
+        for (int i = 0; i < 10; i++) {
+            frames.add(new StackTraceElement("com.example.repo.OrderRepository",
+                    ("find" + i).intern(), "OrderRepository.java", 100 + sample % 4));
+        }
+        for (int i = 0; i < 40; i++) {
+            frames.add(new StackTraceElement(
+                    "com.example.service.OrderService$$EnhancerBySpringCGLIB",
+                    ("invoke" + i).intern(), null, -1));
+        }
+        frames.add(new StackTraceElement(("com.example.web.Controller" + controller).intern(),
+                "handle", ("Controller" + controller + ".java").intern(), 42));
+        for (int i = 0; i < 120; i++) {
+            frames.add(new StackTraceElement(
+                    ("org.springframework.web.servlet.HandlerInterceptor" + i).intern(),
+                    "preHandle", ("HandlerInterceptor" + i + ".java").intern(), 60 + i));
+        }
+        frames.add(new StackTraceElement("org.springframework.web.servlet.DispatcherServlet",
+                "doDispatch", "DispatcherServlet.java", 967));
+        for (int i = 0; i < 100; i++) {
+            frames.add(new StackTraceElement(
+                    "org.springframework.web.filter.OncePerRequestFilter", "doFilter",
+                    "OncePerRequestFilter.java", 107));
+            frames.add(new StackTraceElement("org.apache.catalina.core.ApplicationFilterChain",
+                    "internalDoFilter", "ApplicationFilterChain.java", 193));
+        }
+        frames.add(new StackTraceElement(
+                "org.apache.tomcat.util.threads.TaskThread$WrappingRunnable", "run",
+                "TaskThread.java", 61));
+        frames.add(new StackTraceElement("java.lang.Thread", "run", "Thread.java", 745));
+        return frames.toArray(new StackTraceElement[frames.size()]);
+    }
+}
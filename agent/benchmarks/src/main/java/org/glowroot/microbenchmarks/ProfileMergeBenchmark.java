@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// merging of a day's worth of one-minute aggregate profiles (e.g. the 1-day view in central or the
+// 1-day rollup), this does not need the agent
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ProfileMergeBenchmark {
+
+    private static final int PROFILE_COUNT = 1440;
+    private static final int SAMPLES_PER_PROFILE = 100;
+    private static final int CALL_PATHS_PER_CONTROLLER = 16;
+
+    private List<Profile> profiles;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        profiles = Lists.newArrayList();
+        for (int i = 0; i < PROFILE_COUNT; i++) {
+            MutableProfile profile = new MutableProfile();
+            for (int j = 0; j < SAMPLES_PER_PROFILE; j++) {
+                profile.merge(createStackTrace(random), Thread.State.RUNNABLE, null);
+            }
+            profiles.add(profile.toProto());
+        }
+    }
+
+    @Benchmark
+    public MutableProfile merge() {
+        MutableProfile mergedProfile = new MutableProfile();
+        for (Profile profile : profiles) {
+            mergedProfile.merge(profile);
+        }
+        return mergedProfile;
+    }
+
+    @Benchmark
+    public String mergeAndWriteFlameGraph() throws Exception {
+        return merge().toFlameGraphJson();
+    }
+
+    // container and framework frames, followed by a skewed choice of request handlers, each with a
+    // number of different call paths
+    private static StackTraceElement[] createStackTrace(Random random) {
+        List<StackTraceElement> frames = Lists.newArrayList();
+        int controller = (int) Math.abs(random.nextGaussian() * 20);
+        int callPath = random.nextInt(CALL_PATHS_PER_CONTROLLER);
+        // call paths branch off from each other at different depths
+        Random callPathRandom = new Random(callPath);
+        int depth = 20 + callPathRandom.nextInt(30);
+        for (int i = 0; i < depth; i++) {
+            int method = i < callPath ? 0 : callPathRandom.nextInt(4);
+            frames.add(new StackTraceElement("com.example.service.Service" + controller,
+                    "call" + method, "Service" + controller + ".java", i));
+        }
+        frames.add(new StackTraceElement("com.example.web.Controller" + controller, "handle",
+                "Controller" + controller + ".java", 42));
+        for (int i = 0; i < 60; i++) {
+            frames.add(new StackTraceElement("org.springframework.web.servlet.Interceptor" + i,
+                    "preHandle", "Interceptor" + i + ".java", 60 + i));
+        }
+        for (int i = 0; i < 40; i++) {
+            frames.add(new StackTraceElement("org.apache.catalina.core.ApplicationFilterChain",
+                    "internalDoFilter", "ApplicationFilterChain.java", 193));
+        }
+        frames.add(new StackTraceElement("java.lang.Thread", "run", "Thread.java", 745));
+        return frames.toArray(new StackTraceElement[frames.size()]);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.agent.model.ThreadStatsComponent;
+
+// thread stats capture for a short transaction that completes before ThreadContentionSampler
+// runs, which is the start (constructor) and end (onComplete()) of the transaction
+//
+// unlike TransactionBenchmark, this does not need the agent jar attached via -javaagent
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ThreadStatsBenchmark {
+
+    @Setup
+    public void setup() {
+        // same as the agent
+        ManagementFactory.getThreadMXBean().setThreadContentionMonitoringEnabled(true);
+    }
+
+    @Benchmark
+    public ThreadStats eager() {
+        return execute();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.threadStats.contentionSamplingIntervalMillis=100")
+    public ThreadStats sampled() {
+        return execute();
+    }
+
+    private static ThreadStats execute() {
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(null);
+        threadStatsComponent.onComplete();
+        return threadStatsComponent.getThreadStats();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.TimerWorthy;
+import org.glowroot.microbenchmarks.support.TraceEntryWorthy;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// run with "-prof gc" and compare gc.alloc.rate.norm (bytes allocated per transaction) between
+// the unpooled and pooled benchmarks
+//
+// the aspects are loaded by the agent, so benchmarks.jar also needs to be copied into the plugins
+// directory next to glowroot.jar
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TransactionAllocationBenchmark extends TransactionWorthy {
+
+    private TraceEntryWorthy traceEntryWorthy;
+    private TimerWorthy timerWorthy;
+
+    @Setup
+    public void setup() {
+        traceEntryWorthy = new TraceEntryWorthy();
+        timerWorthy = new TimerWorthy();
+    }
+
+    @Benchmark
+    public void unpooled() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.objectPooling=true")
+    public void pooled() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() {
+        for (int i = 0; i < 10; i++) {
+            traceEntryWorthy.doSomethingTraceEntryWorthy();
+            timerWorthy.doSomethingTimerWorthy();
+            timerWorthy.doSomethingTimerWorthyB();
+        }
+    }
+}
@@ -19,6 +19,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Param;
@@ -45,6 +46,18 @@ public class TransactionBenchmark {
 
     @Benchmark
     public void execute() throws Exception {
+        executeInternal();
+    }
+
+    // compare with execute() to see the cost of capturing the starting blocked and waited times
+    // (ThreadMXBean.getThreadInfo()) for every transaction
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.threadStats.contentionSamplingIntervalMillis=100")
+    public void executeWithSampledThreadContention() throws Exception {
+        executeInternal();
+    }
+
+    private void executeInternal() throws Exception {
         switch (pointcutType) {
             case API:
                 transactionWorthy.doSomethingTransactionWorthy();
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+// copy of the linked list / queueLock structure that Aggregator used prior to
+// CaptureTimeRingBuffer, kept here as a baseline for AggregatorQueueBenchmark
+public class LinkedLockingQueue {
+
+    private final int limit;
+
+    private final PendingElement head = new PendingElement(null);
+    // tail is non-volatile since only accessed under lock
+    private PendingElement tail = head;
+    private final Object queueLock = new Object();
+    private int queueLength;
+
+    public LinkedLockingQueue(int limit) {
+        this.limit = limit;
+    }
+
+    public long add(Object element) {
+        PendingElement newTail = new PendingElement(element);
+        long captureTime;
+        synchronized (queueLock) {
+            captureTime = System.currentTimeMillis();
+            if (queueLength >= limit) {
+                return -1;
+            }
+            newTail.captureTime = captureTime;
+            tail.next = newTail;
+            tail = newTail;
+            queueLength++;
+        }
+        return captureTime;
+    }
+
+    // only called by the single consumer, returns false if queue was empty
+    public boolean pollOne() throws InterruptedException {
+        PendingElement pendingElement = head.next;
+        if (pendingElement == null) {
+            Thread.sleep(1);
+            return false;
+        }
+        synchronized (queueLock) {
+            PendingElement next = pendingElement.next;
+            head.next = next;
+            if (next == null) {
+                tail = head;
+            }
+            queueLength--;
+        }
+        return true;
+    }
+
+    private static class PendingElement {
+
+        private final Object element;
+        private volatile long captureTime;
+        private volatile PendingElement next;
+
+        private PendingElement(Object element) {
+            this.element = element;
+        }
+    }
+}
@@ -20,4 +20,6 @@ public class TransactionWorthy {
     public void doSomethingTransactionWorthy() throws Exception {}
 
     public void doSomethingTransactionWorthy2() {}
+
+    public void doSomethingTransactionWorthy(@SuppressWarnings("unused") String transactionName) {}
 }
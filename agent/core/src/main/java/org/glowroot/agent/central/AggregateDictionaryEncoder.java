@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import io.grpc.stub.StreamObserver;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+
+// replaces timer names and service call texts with indexes into a dictionary that is sent inline in
+// the aggregate stream, and replaces ordered raw histogram values with deltas
+//
+// transaction names are not dictionary encoded, since each transaction name is only sent once per
+// interval
+//
+// the dictionary is scoped to a single interval (same as shared query texts), since a connection
+// to a central collector cluster is load balanced across central collector nodes, and since
+// spooled intervals are replayed over a later connection
+class AggregateDictionaryEncoder {
+
+    private final StreamObserver<AggregateStreamMessage> requestObserver;
+
+    private final Map<String, Integer> dictionaryIndexes = Maps.newHashMap();
+
+    AggregateDictionaryEncoder(StreamObserver<AggregateStreamMessage> requestObserver) {
+        this.requestObserver = requestObserver;
+    }
+
+    private int encode(String value) {
+        Integer index = dictionaryIndexes.get(value);
+        if (index != null) {
+            return index;
+        }
+        index = dictionaryIndexes.size();
+        dictionaryIndexes.put(value, index);
+        requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                .setDictionaryEntry(value)
+                .build());
+        return index;
+    }
+
+    Aggregate encode(Aggregate aggregate) {
+        Aggregate.Builder builder = aggregate.toBuilder()
+                .clearMainThreadRootTimer()
+                .clearAuxThreadRootTimer()
+                .clearAsyncTimer()
+                .clearServiceCallsByType();
+        for (Aggregate.Timer timer : aggregate.getMainThreadRootTimerList()) {
+            builder.addMainThreadRootTimer(encode(timer));
+        }
+        for (Aggregate.Timer timer : aggregate.getAuxThreadRootTimerList()) {
+            builder.addAuxThreadRootTimer(encode(timer));
+        }
+        for (Aggregate.Timer timer : aggregate.getAsyncTimerList()) {
+            builder.addAsyncTimer(encode(timer));
+        }
+        for (Aggregate.ServiceCallsByType serviceCallsByType : aggregate
+                .getServiceCallsByTypeList()) {
+            Aggregate.ServiceCallsByType.Builder serviceCallsByTypeBuilder =
+                    serviceCallsByType.toBuilder().clearServiceCall();
+            for (Aggregate.ServiceCall serviceCall : serviceCallsByType.getServiceCallList()) {
+                serviceCallsByTypeBuilder.addServiceCall(serviceCall.toBuilder()
+                        .clearText()
+                        .setTextIndex(encode(serviceCall.getText())));
+            }
+            builder.addServiceCallsByType(serviceCallsByTypeBuilder);
+        }
+        Aggregate.Histogram histogram = aggregate.getDurationNanosHistogram();
+        List<Long> orderedRawValues = histogram.getOrderedRawValueList();
+        if (!orderedRawValues.isEmpty()) {
+            Aggregate.Histogram.Builder histogramBuilder =
+                    histogram.toBuilder().clearOrderedRawValue();
+            long priorValue = 0;
+            for (long value : orderedRawValues) {
+                histogramBuilder.addOrderedRawValueDelta(value - priorValue);
+                priorValue = value;
+            }
+            builder.setDurationNanosHistogram(histogramBuilder);
+        }
+        return builder.build();
+    }
+
+    private Aggregate.Timer encode(Aggregate.Timer timer) {
+        Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
+                .setNameIndex(encode(timer.getName()))
+                .setExtended(timer.getExtended())
+                .setTotalNanos(timer.getTotalNanos())
+                .setCount(timer.getCount());
+        for (Aggregate.Timer childTimer : timer.getChildTimerList()) {
+            builder.addChildTimer(encode(childTimer));
+        }
+        return builder.build();
+    }
+}
@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.central;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -24,19 +26,29 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.protobuf.AbstractMessage;
+import com.google.protobuf.Parser;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.central.CentralConnection.GrpcCall;
+import org.glowroot.agent.central.CentralConnection.SpoolReplayCallFactory;
+import org.glowroot.agent.central.CentralSpool.RecordType;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.agent.util.LazyPlatformMBeanServer;
+import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -69,21 +81,44 @@ public class CentralCollector implements Collector {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    private static final long SPOOL_MAX_SIZE_MB =
+            Long.getLong("glowroot.internal.central.spoolMaxSizeMb", 100);
+
+    // maximum number of spooled intervals (e.g. backlog after the central collector has been
+    // unreachable) that are replayed in a single call
+    private static final int SPOOL_REPLAY_BATCH_SIZE =
+            Integer.getInteger("glowroot.internal.central.spoolReplayBatchSize", 10);
+
+    // when non-zero, gauge values are held back and sent in a single call once they span this
+    // window, which reduces the number of calls to the central collector at the cost of delaying
+    // gauge values (and gauge alerts and agent heartbeats) by up to this window
+    private static final long GAUGE_BATCH_WINDOW_MILLIS =
+            Long.getLong("glowroot.internal.central.gaugeBatchWindowMillis", 0);
+
     private final String agentId;
     private final String agentRollupId;
     private final String collectorAddress;
     private final CentralConnection centralConnection;
     private final CollectorServiceStub collectorServiceStub;
     private final DownstreamServiceObserver downstreamServiceObserver;
+    private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
 
+    private final Object gaugeBatchLock = new Object();
+    @GuardedBy("gaugeBatchLock")
+    private final List<GaugeValue> pendingGaugeValues = Lists.newArrayList();
+
     private volatile int nextAggregateDelayMillis;
 
+    // older central collectors do not support these
+    private volatile boolean multiIntervalAggregateStream;
+    private volatile boolean aggregateDictionaryEncoding;
+
     public CentralCollector(Map<String, String> properties, String collectorAddress,
             LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
-            LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater)
-            throws Exception {
+            LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater,
+            LazyPlatformMBeanServer lazyPlatformMBeanServer) throws Exception {
 
         String agentId = properties.get("glowroot.agent.id");
         if (Strings.isNullOrEmpty(agentId)) {
@@ -125,6 +160,7 @@ public class CentralCollector implements Collector {
         downstreamServiceObserver = new DownstreamServiceObserver(centralConnection,
                 agentConfigUpdater, liveJvmService, liveWeavingService, liveTraceRepository,
                 agentId, inConnectionFailure, sharedQueryTextLimiter);
+        this.lazyPlatformMBeanServer = lazyPlatformMBeanServer;
     }
 
     @Override
@@ -136,6 +172,9 @@ public class CentralCollector implements Collector {
                 .setEnvironment(environment)
                 .setAgentConfig(agentConfig)
                 .build();
+        if (SPOOL_MAX_SIZE_MB > 0) {
+            initSpool(agentDir);
+        }
         centralConnection.callInit(new GrpcCall<InitResponse>() {
             @Override
             public void call(StreamObserver<InitResponse> responseObserver) {
@@ -147,6 +186,8 @@ public class CentralCollector implements Collector {
                 // startup logger info messages are never sent to the central collector
                 startupLogger.info("connected to the central collector {}, version {}",
                         collectorAddress, response.getGlowrootCentralVersion());
+                multiIntervalAggregateStream = response.getMultiIntervalAggregateStream();
+                aggregateDictionaryEncoding = response.getAggregateDictionaryEncoding();
                 if (response.hasAgentConfig()) {
                     try {
                         agentConfigUpdater.update(response.getAgentConfig());
@@ -168,15 +209,43 @@ public class CentralCollector implements Collector {
 
     @Override
     public void collectGaugeValues(List<GaugeValue> gaugeValues) {
+        final List<GaugeValue> batchedGaugeValues;
+        if (GAUGE_BATCH_WINDOW_MILLIS > 0) {
+            synchronized (gaugeBatchLock) {
+                pendingGaugeValues.addAll(gaugeValues);
+                if (pendingGaugeValues.isEmpty() || pendingGaugeValues
+                        .get(pendingGaugeValues.size() - 1).getCaptureTime()
+                        - pendingGaugeValues.get(0).getCaptureTime() < GAUGE_BATCH_WINDOW_MILLIS) {
+                    return;
+                }
+                batchedGaugeValues = ImmutableList.copyOf(pendingGaugeValues);
+                pendingGaugeValues.clear();
+            }
+        } else {
+            batchedGaugeValues = gaugeValues;
+        }
+        sendGaugeValues(batchedGaugeValues);
+    }
+
+    private void sendGaugeValues(final List<GaugeValue> batchedGaugeValues) {
         final GaugeValueMessage gaugeValueMessage = GaugeValueMessage.newBuilder()
                 .setAgentId(agentId)
-                .addAllGaugeValues(gaugeValues)
+                .addAllGaugeValues(batchedGaugeValues)
                 .build();
         centralConnection.callWithAFewRetries(new GrpcCall<EmptyMessage>() {
             @Override
             public void call(StreamObserver<EmptyMessage> responseObserver) {
                 collectorServiceStub.collectGaugeValues(gaugeValueMessage, responseObserver);
             }
+            @Override
+            boolean writeToSpool(CentralSpool spool) throws IOException {
+                if (!batchedGaugeValues.isEmpty()) {
+                    spool.append(RecordType.GAUGE_VALUES,
+                            batchedGaugeValues.get(0).getCaptureTime(),
+                            gaugeValueMessage.toByteArray());
+                }
+                return true;
+            }
         });
     }
 
@@ -214,6 +283,16 @@ public class CentralCollector implements Collector {
 
     @OnlyUsedByTests
     public void close() throws InterruptedException {
+        // send gauge values that are still held back in the current batch, since these would
+        // otherwise be lost (the call is written to the spool if it cannot be sent)
+        List<GaugeValue> batchedGaugeValues;
+        synchronized (gaugeBatchLock) {
+            batchedGaugeValues = ImmutableList.copyOf(pendingGaugeValues);
+            pendingGaugeValues.clear();
+        }
+        if (!batchedGaugeValues.isEmpty()) {
+            sendGaugeValues(batchedGaugeValues);
+        }
         downstreamServiceObserver.close();
         centralConnection.close();
     }
@@ -223,12 +302,33 @@ public class CentralCollector implements Collector {
         centralConnection.awaitClose();
     }
 
+    private void initSpool(File agentDir) {
+        CentralSpool spool;
+        try {
+            spool = new CentralSpool(new File(agentDir, "central-spool"),
+                    SPOOL_MAX_SIZE_MB * 1024 * 1024, Clock.systemClock());
+        } catch (IOException e) {
+            logger.warn("could not create spool for the central collector, data that cannot be"
+                    + " sent to the central collector will be dropped: {}", e.getMessage(), e);
+            return;
+        }
+        centralConnection.initSpool(spool, new SpoolReplayCallFactoryImpl());
+        lazyPlatformMBeanServer.lazyRegisterMBean(new CentralSpoolStats(spool),
+                "org.glowroot:type=CentralSpool");
+    }
+
     private class CollectAggregatesGrpcCall extends GrpcCall<AggregateResponseMessage> {
 
         private class AggregateVisitorImpl implements AggregateVisitor {
             private final StreamObserver<AggregateStreamMessage> requestObserver;
-            private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver) {
+            private final @Nullable AggregateDictionaryEncoder dictionaryEncoder;
+            private final List<String> fullTextSha1s;
+            private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver,
+                    @Nullable AggregateDictionaryEncoder dictionaryEncoder,
+                    List<String> fullTextSha1s) {
                 this.requestObserver = requestObserver;
+                this.dictionaryEncoder = dictionaryEncoder;
+                this.fullTextSha1s = fullTextSha1s;
             }
             @Override
             public void visitOverallAggregate(String transactionType,
@@ -244,6 +344,9 @@ public class CentralCollector implements Collector {
                             .setSharedQueryText(aggregateSharedQueryText)
                             .build());
                 }
+                if (dictionaryEncoder != null) {
+                    overallAggregate = dictionaryEncoder.encode(overallAggregate);
+                }
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
                         .setOverallAggregate(OverallAggregate.newBuilder()
                                 .setTransactionType(transactionType)
@@ -260,6 +363,9 @@ public class CentralCollector implements Collector {
                                     .buildAggregateSharedQueryText(sharedQueryText))
                             .build());
                 }
+                if (dictionaryEncoder != null) {
+                    transactionAggregate = dictionaryEncoder.encode(transactionAggregate);
+                }
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
                         .setTransactionAggregate(TransactionAggregate.newBuilder()
                                 .setTransactionType(transactionType)
@@ -278,17 +384,12 @@ public class CentralCollector implements Collector {
 
         @Override
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
-            final StreamObserver<AggregateStreamMessage> requestObserver =
+            StreamObserver<AggregateStreamMessage> requestObserver =
                     collectorServiceStub.collectAggregateStream(responseObserver);
-            requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                    .setStreamHeader(AggregateStreamHeader.newBuilder()
-                            .setAgentId(agentId)
-                            .setCaptureTime(aggregateReader.captureTime()))
-                    .build());
-            // need to clear in case this is a retry
-            fullTextSha1s.clear();
             try {
-                aggregateReader.accept(new AggregateVisitorImpl(requestObserver));
+                // need to clear in case this is a retry
+                fullTextSha1s.clear();
+                writeMessages(requestObserver, fullTextSha1s);
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 requestObserver.onError(t);
@@ -298,12 +399,36 @@ public class CentralCollector implements Collector {
         }
 
         @Override
-        public void doWithResponse(AggregateResponseMessage response) {
-            // Math.min is just for safety
-            nextAggregateDelayMillis = Math.min(response.getNextDelayMillis(), 30000);
-            for (String fullTextSha1 : fullTextSha1s) {
-                sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
+        boolean writeToSpool(CentralSpool spool) throws Exception {
+            SpoolingStreamObserver<AggregateStreamMessage> spoolingObserver =
+                    new SpoolingStreamObserver<AggregateStreamMessage>();
+            // the full text sha1s are read back from the spooled messages when they are replayed
+            writeMessages(spoolingObserver, Lists.<String>newArrayList());
+            spool.append(RecordType.AGGREGATES, aggregateReader.captureTime(),
+                    spoolingObserver.toByteArray());
+            return true;
+        }
+
+        private void writeMessages(StreamObserver<AggregateStreamMessage> requestObserver,
+                List<String> fullTextSha1s) throws Exception {
+            boolean dictionaryEncoded = aggregateDictionaryEncoding;
+            requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                    .setStreamHeader(AggregateStreamHeader.newBuilder()
+                            .setAgentId(agentId)
+                            .setCaptureTime(aggregateReader.captureTime())
+                            .setDictionaryEncoded(dictionaryEncoded))
+                    .build());
+            AggregateDictionaryEncoder dictionaryEncoder = null;
+            if (dictionaryEncoded) {
+                dictionaryEncoder = new AggregateDictionaryEncoder(requestObserver);
             }
+            aggregateReader.accept(
+                    new AggregateVisitorImpl(requestObserver, dictionaryEncoder, fullTextSha1s));
+        }
+
+        @Override
+        public void doWithResponse(AggregateResponseMessage response) {
+            onAggregateResponse(response, fullTextSha1s);
         }
     }
 
@@ -321,36 +446,208 @@ public class CentralCollector implements Collector {
         public void call(StreamObserver<EmptyMessage> responseObserver) {
             StreamObserver<TraceStreamMessage> requestObserver =
                     collectorServiceStub.collectTraceStream(responseObserver);
+            try {
+                // need to clear in case this is a retry
+                fullTextSha1s.clear();
+                writeMessages(requestObserver, fullTextSha1s);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                requestObserver.onError(t);
+                return;
+            }
+            requestObserver.onCompleted();
+        }
+
+        @Override
+        boolean writeToSpool(CentralSpool spool) throws Exception {
+            if (traceReader.partial()) {
+                // partial traces are live, and will be sent again (complete) once they finish
+                return false;
+            }
+            SpoolingStreamObserver<TraceStreamMessage> spoolingObserver =
+                    new SpoolingStreamObserver<TraceStreamMessage>();
+            // the full text sha1s are read back from the spooled messages when they are replayed
+            writeMessages(spoolingObserver, Lists.<String>newArrayList());
+            spool.append(RecordType.TRACE, traceReader.captureTime(),
+                    spoolingObserver.toByteArray());
+            return true;
+        }
+
+        private void writeMessages(StreamObserver<TraceStreamMessage> requestObserver,
+                List<String> fullTextSha1s) throws Exception {
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setStreamHeader(TraceStreamHeader.newBuilder()
                             .setAgentId(agentId)
                             .setTraceId(traceReader.traceId())
                             .setUpdate(traceReader.update()))
                     .build());
-            // need to clear in case this is a retry
-            fullTextSha1s.clear();
             TraceVisitorImpl traceVisitor = new TraceVisitorImpl(requestObserver, fullTextSha1s);
-            try {
-                traceReader.accept(traceVisitor);
-            } catch (Throwable t) {
-                logger.error(t.getMessage(), t);
-                requestObserver.onError(t);
-                return;
-            }
+            traceReader.accept(traceVisitor);
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setStreamCounts(TraceStreamCounts.newBuilder()
                             .setSharedQueryTextCount(traceVisitor.sharedQueryTextCount)
                             .setEntryCount(traceVisitor.entryCount))
                     .build());
-            requestObserver.onCompleted();
         }
 
         @Override
         public void doWithResponse(EmptyMessage response) {
-            for (String fullTextSha1 : fullTextSha1s) {
-                sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
+            onSuccessfullySent(fullTextSha1s);
+        }
+    }
+
+    private void onAggregateResponse(AggregateResponseMessage response,
+            List<String> fullTextSha1s) {
+        // Math.min is just for safety
+        nextAggregateDelayMillis = Math.min(response.getNextDelayMillis(), 30000);
+        onSuccessfullySent(fullTextSha1s);
+    }
+
+    private void onSuccessfullySent(List<String> fullTextSha1s) {
+        for (String fullTextSha1 : fullTextSha1s) {
+            sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
+        }
+    }
+
+    // replays the messages exactly as they were written to the spool, the central collector
+    // stores aggregates and traces by agent id and capture time / trace id, so replaying a call
+    // that had actually reached the central collector (e.g. response lost) is harmless
+    //
+    // responses to replayed calls are handled the same as responses to live calls
+    private class SpoolReplayCallFactoryImpl implements SpoolReplayCallFactory {
+
+        @Override
+        public int getMaxBatchSize(RecordType type) {
+            switch (type) {
+                case AGGREGATES:
+                    return multiIntervalAggregateStream ? SPOOL_REPLAY_BATCH_SIZE : 1;
+                case GAUGE_VALUES:
+                    return SPOOL_REPLAY_BATCH_SIZE;
+                default:
+                    return 1;
             }
         }
+
+        @Override
+        public GrpcCall<?> create(List<CentralSpool.Record> records) throws Exception {
+            CentralSpool.Record record = records.get(0);
+            switch (record.type()) {
+                case AGGREGATES:
+                    // each interval starts with its own stream header
+                    final List<AggregateStreamMessage> aggregateMessages = Lists.newArrayList();
+                    for (CentralSpool.Record aggregateRecord : records) {
+                        aggregateMessages.addAll(parseDelimited(aggregateRecord.payload(),
+                                AggregateStreamMessage.parser()));
+                    }
+                    final List<String> aggregateFullTextSha1s = Lists.newArrayList();
+                    for (AggregateStreamMessage message : aggregateMessages) {
+                        if (message.getMessageCase()
+                                == AggregateStreamMessage.MessageCase.SHARED_QUERY_TEXT) {
+                            addFullTextSha1(aggregateFullTextSha1s,
+                                    message.getSharedQueryText().getFullTextSha1());
+                        }
+                    }
+                    return new GrpcCall<AggregateResponseMessage>() {
+                        @Override
+                        void call(StreamObserver<AggregateResponseMessage> responseObserver) {
+                            replay(aggregateMessages,
+                                    collectorServiceStub.collectAggregateStream(responseObserver));
+                        }
+                        @Override
+                        void doWithResponse(AggregateResponseMessage response) {
+                            onAggregateResponse(response, aggregateFullTextSha1s);
+                        }
+                    };
+                case TRACE:
+                    final List<TraceStreamMessage> traceMessages =
+                            parseDelimited(record.payload(), TraceStreamMessage.parser());
+                    final List<String> traceFullTextSha1s = Lists.newArrayList();
+                    for (TraceStreamMessage message : traceMessages) {
+                        if (message.getMessageCase()
+                                == TraceStreamMessage.MessageCase.SHARED_QUERY_TEXT) {
+                            addFullTextSha1(traceFullTextSha1s,
+                                    message.getSharedQueryText().getFullTextSha1());
+                        }
+                    }
+                    return new GrpcCall<EmptyMessage>() {
+                        @Override
+                        void call(StreamObserver<EmptyMessage> responseObserver) {
+                            replay(traceMessages,
+                                    collectorServiceStub.collectTraceStream(responseObserver));
+                        }
+                        @Override
+                        void doWithResponse(EmptyMessage response) {
+                            onSuccessfullySent(traceFullTextSha1s);
+                        }
+                    };
+                case GAUGE_VALUES:
+                    GaugeValueMessage.Builder gaugeValueMessageBuilder =
+                            GaugeValueMessage.newBuilder();
+                    for (CentralSpool.Record gaugeValueRecord : records) {
+                        gaugeValueMessageBuilder.mergeFrom(gaugeValueRecord.payload());
+                    }
+                    final GaugeValueMessage gaugeValueMessage = gaugeValueMessageBuilder.build();
+                    return new GrpcCall<EmptyMessage>() {
+                        @Override
+                        void call(StreamObserver<EmptyMessage> responseObserver) {
+                            collectorServiceStub.collectGaugeValues(gaugeValueMessage,
+                                    responseObserver);
+                        }
+                    };
+                default:
+                    throw new IllegalStateException("Unexpected record type: " + record.type());
+            }
+        }
+
+        private <T extends AbstractMessage> List<T> parseDelimited(byte[] payload, Parser<T> parser)
+                throws IOException {
+            ByteArrayInputStream in = new ByteArrayInputStream(payload);
+            List<T> messages = Lists.newArrayList();
+            T message;
+            while ((message = parser.parseDelimitedFrom(in)) != null) {
+                messages.add(message);
+            }
+            return messages;
+        }
+
+        private void addFullTextSha1(List<String> fullTextSha1s, String fullTextSha1) {
+            if (!fullTextSha1.isEmpty()) {
+                fullTextSha1s.add(fullTextSha1);
+            }
+        }
+
+        private <T> void replay(List<T> messages, StreamObserver<T> requestObserver) {
+            for (T message : messages) {
+                requestObserver.onNext(message);
+            }
+            requestObserver.onCompleted();
+        }
+    }
+
+    private static class SpoolingStreamObserver<T extends AbstractMessage>
+            implements StreamObserver<T> {
+
+        private final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        @Override
+        public void onNext(T message) {
+            try {
+                message.writeDelimitedTo(baos);
+            } catch (IOException e) {
+                // ByteArrayOutputStream does not throw IOException
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+
+        private byte[] toByteArray() {
+            return baos.toByteArray();
+        }
     }
 
     private class TraceVisitorImpl implements TraceVisitor {
@@ -20,15 +20,19 @@ import java.net.URI;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.RateLimiter;
 import io.grpc.Attributes;
 import io.grpc.ManagedChannel;
 import io.grpc.NameResolver;
@@ -58,6 +62,9 @@ class CentralConnection {
     // back pressure on connection to the central collector
     private static final int PENDING_LIMIT = 100;
 
+    private static final double SPOOL_REPLAY_RATE = Double.parseDouble(
+            System.getProperty("glowroot.internal.central.spoolReplayRate", "10"));
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private final ThreadLocal<Boolean> suppressLogCollector = new ThreadLocal<Boolean>() {
         @Override
@@ -86,6 +93,13 @@ class CentralConnection {
     private final RateLimitedLogger connectionErrorLogger =
             new RateLimitedLogger(CentralConnection.class);
 
+    // spooled calls are replayed by this executor, one at a time (and rate limited) so that
+    // replaying a long outage does not overwhelm the central collector
+    private final ScheduledExecutorService spoolReplayExecutor;
+    private final RateLimiter spoolReplayRateLimiter = RateLimiter.create(SPOOL_REPLAY_RATE);
+
+    private volatile @Nullable CentralSpool spool;
+
     private volatile boolean initCallSucceeded;
     private volatile boolean closed;
 
@@ -103,9 +117,27 @@ class CentralConnection {
                 .build();
         retryExecutor = Executors.newSingleThreadScheduledExecutor(
                 ThreadFactories.create("Glowroot-Collector-Retry"));
+        spoolReplayExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactories.create("Glowroot-Collector-Spool-Replay"));
         this.inConnectionFailure = inConnectionFailure;
     }
 
+    // calls that cannot be sent to the central collector (after retrying) are written to the spool
+    // from this point on (as opposed to being dropped)
+    void initSpool(final CentralSpool spool, final SpoolReplayCallFactory spoolReplayCallFactory) {
+        this.spool = spool;
+        spoolReplayExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replaySpool(spool, spoolReplayCallFactory);
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }, 10, 10, SECONDS);
+    }
+
     boolean suppressLogCollector() {
         return suppressLogCollector.get();
     }
@@ -136,15 +168,22 @@ class CentralConnection {
             return;
         }
         if (inConnectionFailure.get()) {
+            writeToSpool(call);
             return;
         }
+        boolean backlogged;
         synchronized (backPressureLogger) {
-            if (pendingRequestCount >= PENDING_LIMIT) {
+            backlogged = pendingRequestCount >= PENDING_LIMIT;
+            if (!backlogged) {
+                pendingRequestCount++;
+            }
+        }
+        if (backlogged) {
+            if (!writeToSpool(call)) {
                 backPressureLogger.warn("not sending data to the central collector because of an"
                         + " excessive backlog of {} requests in progress", PENDING_LIMIT);
-                return;
             }
-            pendingRequestCount++;
+            return;
         }
         // TODO revisit retry/backoff after next grpc version
 
@@ -152,7 +191,7 @@ class CentralConnection {
         // data (though better to use central collector cluster)
         //
         // this cannot retry over too long a period since it retains memory of rpc message for
-        // that duration
+        // that duration (after which the call is written to the spool, if the call supports it)
         if (initialDelayMillis > 0) {
             retryExecutor.schedule(new Runnable() {
                 @Override
@@ -191,10 +230,93 @@ class CentralConnection {
         }
     }
 
+    // returns true if the call was written to the spool
+    private boolean writeToSpool(GrpcCall<?> call) {
+        CentralSpool spool = this.spool;
+        if (spool == null) {
+            return false;
+        }
+        try {
+            return call.writeToSpool(spool);
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+            return false;
+        }
+    }
+
+    private void replaySpool(CentralSpool spool, SpoolReplayCallFactory spoolReplayCallFactory)
+            throws Exception {
+        boolean batch = true;
+        while (!closed && initCallSucceeded && !inConnectionFailure.get()) {
+            CentralSpool.Record record = spool.peek();
+            if (record == null) {
+                return;
+            }
+            List<CentralSpool.Record> records;
+            if (batch) {
+                records = spool.peek(spoolReplayCallFactory.getMaxBatchSize(record.type()));
+            } else {
+                records = ImmutableList.of(record);
+            }
+            GrpcCall<?> call;
+            try {
+                call = spoolReplayCallFactory.create(records);
+            } catch (Exception e) {
+                if (records.size() > 1) {
+                    // find the bad record by replaying the rest of this run one record at a time
+                    logger.debug(e.getMessage(), e);
+                    batch = false;
+                    continue;
+                }
+                // e.g. record from an older agent version that can no longer be parsed
+                logger.warn("dropping spooled {} record: {}", record.type(), e.getMessage(), e);
+                spool.remove(record);
+                continue;
+            }
+            spoolReplayRateLimiter.acquire();
+            if (!callAndWait(call)) {
+                // will try again on next scheduled run
+                return;
+            }
+            for (CentralSpool.Record replayedRecord : records) {
+                spool.remove(replayedRecord);
+            }
+        }
+    }
+
+    private <T extends /*@NonNull*/ Object> boolean callAndWait(final GrpcCall<T> call)
+            throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean success = new AtomicBoolean();
+        call.call(new StreamObserver<T>() {
+            @Override
+            public void onNext(T value) {
+                call.doWithResponse(value);
+            }
+            @Override
+            public void onError(final Throwable t) {
+                suppressLogCollector(new Runnable() {
+                    @Override
+                    public void run() {
+                        logger.debug(t.getMessage(), t);
+                    }
+                });
+                latch.countDown();
+            }
+            @Override
+            public void onCompleted() {
+                success.set(true);
+                latch.countDown();
+            }
+        });
+        return latch.await(60, SECONDS) && success.get();
+    }
+
     @OnlyUsedByTests
     void close() {
         closed = true;
         retryExecutor.shutdown();
+        spoolReplayExecutor.shutdown();
         channel.shutdown();
     }
 
@@ -203,6 +325,9 @@ class CentralConnection {
         if (!retryExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (!spoolReplayExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
         if (!channel.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate channel");
         }
@@ -218,6 +343,18 @@ class CentralConnection {
     static abstract class GrpcCall<T extends /*@NonNull*/ Object> {
         abstract void call(StreamObserver<T> responseObserver);
         void doWithResponse(@SuppressWarnings("unused") T response) {}
+        // returns false if the call does not support being written to the spool, in which case it
+        // is dropped when it cannot be sent to the central collector
+        boolean writeToSpool(@SuppressWarnings("unused") CentralSpool spool) throws Exception {
+            return false;
+        }
+    }
+
+    interface SpoolReplayCallFactory {
+        // maximum number of records of the given type that can be replayed in a single call
+        int getMaxBatchSize(CentralSpool.RecordType type);
+        // records are all of the same type
+        GrpcCall<?> create(List<CentralSpool.Record> records) throws Exception;
     }
 
     private class RetryingStreamObserver<T extends /*@NonNull*/ Object>
@@ -258,6 +395,9 @@ class CentralConnection {
                 initErrorLogged = true;
             }
             if (inConnectionFailure.get()) {
+                if (!init) {
+                    writeToSpool(grpcCall);
+                }
                 decrementPendingRequestCount();
                 return;
             }
@@ -268,7 +408,7 @@ class CentralConnection {
                 }
             });
             if (!init && stopwatch.elapsed(SECONDS) > maxTotalInSeconds) {
-                if (initCallSucceeded) {
+                if (!writeToSpool(grpcCall) && initCallSucceeded) {
                     connectionErrorLogger.warn("error sending data to the central collector: {}",
                             t.getMessage(), t);
                 }
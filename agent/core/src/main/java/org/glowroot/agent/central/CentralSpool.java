@@ -0,0 +1,427 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.OnlyUsedByTests;
+
+// bounded, append-only spool of serialized messages that could not be sent to the central
+// collector (e.g. while the central collector is down for an upgrade), which are replayed once the
+// connection is re-established
+//
+// messages are written straight to disk so that heap usage does not grow while the central
+// collector is unreachable
+//
+// the spool is made up of segment files which are deleted once they have been replayed, and when
+// the spool exceeds its maximum size, the oldest segment file is deleted (dropping its messages)
+//
+// segment files are written and read using FileChannel, as opposed to being memory-mapped, since
+// (at least on Windows) memory-mapped files cannot be deleted until the mapping is garbage
+// collected
+//
+// each segment keeps a single read channel open while it is being replayed, which is closed before
+// the segment file is deleted
+class CentralSpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(CentralSpool.class);
+
+    private static final String SEGMENT_FILE_SUFFIX = ".spool";
+
+    // record length (not including header), record type, capture time
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 8;
+
+    private static final long NO_CAPTURE_TIME = -1;
+
+    private final File dir;
+    private final long maxSegmentSizeBytes;
+    private final long maxSizeBytes;
+    private final Clock clock;
+
+    private final Object lock = new Object();
+
+    // oldest first, the last segment is the one being appended to
+    @GuardedBy("lock")
+    private final Deque<Segment> segments = Queues.newArrayDeque();
+    // read position in the oldest segment
+    @GuardedBy("lock")
+    private long readPosition;
+    @GuardedBy("lock")
+    private long sizeBytes;
+    @GuardedBy("lock")
+    private @Nullable FileChannel appendChannel;
+    @GuardedBy("lock")
+    private long nextSegmentNumber;
+
+    // capture time of the oldest record that has not been replayed yet, this is tracked so that
+    // getReplayLagMillis() (which is polled via JMX) does not need to acquire the lock or read from
+    // disk
+    private volatile long oldestPendingCaptureTime = NO_CAPTURE_TIME;
+
+    CentralSpool(File dir, long maxSizeBytes, Clock clock) throws IOException {
+        this(dir, maxSizeBytes, Math.max(maxSizeBytes / 10, 1024), clock);
+    }
+
+    @VisibleForTesting
+    CentralSpool(File dir, long maxSizeBytes, long maxSegmentSizeBytes, Clock clock)
+            throws IOException {
+        this.dir = dir;
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxSegmentSizeBytes = maxSegmentSizeBytes;
+        this.clock = clock;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list directory: " + dir.getAbsolutePath());
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                continue;
+            }
+            long segmentNumber;
+            try {
+                segmentNumber = Long.parseLong(
+                        name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                logger.debug(e.getMessage(), e);
+                continue;
+            }
+            // segments from a prior JVM are never appended to, since the last record may be
+            // incomplete
+            Segment segment = new Segment(file);
+            segment.firstCaptureTime = readCaptureTime(segment, 0);
+            segments.add(segment);
+            sizeBytes += file.length();
+            nextSegmentNumber = Math.max(nextSegmentNumber, segmentNumber + 1);
+        }
+        synchronized (lock) {
+            updateOldestPendingCaptureTime();
+        }
+    }
+
+    void append(RecordType type, long captureTime, byte[] payload) throws IOException {
+        synchronized (lock) {
+            FileChannel appendChannel = this.appendChannel;
+            Segment lastSegment = segments.peekLast();
+            if (appendChannel == null || lastSegment == null
+                    || lastSegment.sizeBytes >= maxSegmentSizeBytes) {
+                appendChannel = startNewSegment();
+                lastSegment = segments.getLast();
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+            buffer.putInt(payload.length);
+            buffer.put((byte) type.ordinal());
+            buffer.putLong(captureTime);
+            buffer.put(payload);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                appendChannel.write(buffer);
+            }
+            int recordSize = RECORD_HEADER_SIZE + payload.length;
+            if (lastSegment.sizeBytes == 0) {
+                lastSegment.firstCaptureTime = captureTime;
+            }
+            lastSegment.sizeBytes += recordSize;
+            sizeBytes += recordSize;
+            if (oldestPendingCaptureTime == NO_CAPTURE_TIME) {
+                // this is the only record that has not been replayed yet
+                oldestPendingCaptureTime = captureTime;
+            }
+            while (sizeBytes > maxSizeBytes && segments.size() > 1) {
+                Segment oldestSegment = segments.getFirst();
+                logger.warn("spool for the central collector exceeded its maximum size, dropping"
+                        + " oldest {} bytes", oldestSegment.sizeBytes - readPosition);
+                removeOldestSegment();
+            }
+        }
+    }
+
+    // returns null if there is nothing to replay
+    @Nullable
+    Record peek() throws IOException {
+        synchronized (lock) {
+            while (true) {
+                Segment oldestSegment = segments.peekFirst();
+                if (oldestSegment == null) {
+                    return null;
+                }
+                Record record = readRecord(oldestSegment, readPosition);
+                if (record != null) {
+                    return record;
+                }
+                if (oldestSegment == segments.getLast() && appendChannel != null) {
+                    // caught up with the segment being appended to
+                    if (readPosition == oldestSegment.sizeBytes) {
+                        // nothing left to replay, so no need to retain the segment
+                        removeOldestSegment();
+                    }
+                    return null;
+                }
+                removeOldestSegment();
+            }
+        }
+    }
+
+    // returns up to maxRecords consecutive records of the same type (and from the same segment),
+    // so that they can be replayed in a single call
+    List<Record> peek(int maxRecords) throws IOException {
+        synchronized (lock) {
+            Record record = peek();
+            if (record == null) {
+                return ImmutableList.of();
+            }
+            List<Record> records = Lists.newArrayList(record);
+            while (records.size() < maxRecords) {
+                Record nextRecord = readRecord(record.segment, record.nextPosition);
+                if (nextRecord == null || nextRecord.type != record.type) {
+                    break;
+                }
+                records.add(nextRecord);
+                record = nextRecord;
+            }
+            return records;
+        }
+    }
+
+    // record must have been returned by peek(), and records must be removed in order
+    void remove(Record record) throws IOException {
+        synchronized (lock) {
+            if (segments.peekFirst() == record.segment && readPosition == record.position) {
+                readPosition = record.nextPosition;
+                updateOldestPendingCaptureTime();
+            }
+            // otherwise the segment was dropped in the meantime because the spool exceeded its
+            // maximum size
+        }
+    }
+
+    long getSizeBytes() {
+        synchronized (lock) {
+            return sizeBytes - readPosition;
+        }
+    }
+
+    // time since the capture time of the oldest record that has not been replayed yet
+    long getReplayLagMillis() {
+        long captureTime = oldestPendingCaptureTime;
+        if (captureTime == NO_CAPTURE_TIME) {
+            return 0;
+        }
+        return Math.max(clock.currentTimeMillis() - captureTime, 0);
+    }
+
+    @OnlyUsedByTests
+    void close() throws IOException {
+        synchronized (lock) {
+            if (appendChannel != null) {
+                appendChannel.close();
+                appendChannel = null;
+            }
+            for (Segment segment : segments) {
+                segment.closeReadChannel();
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private FileChannel startNewSegment() throws IOException {
+        if (appendChannel != null) {
+            appendChannel.close();
+        }
+        File file = new File(dir, String.format("%019d", nextSegmentNumber) + SEGMENT_FILE_SUFFIX);
+        nextSegmentNumber++;
+        Segment segment = new Segment(file);
+        segments.add(segment);
+        FileChannel appendChannel = new RandomAccessFile(file, "rw").getChannel();
+        this.appendChannel = appendChannel;
+        return appendChannel;
+    }
+
+    @GuardedBy("lock")
+    private void removeOldestSegment() throws IOException {
+        Segment oldestSegment = segments.removeFirst();
+        if (segments.isEmpty() && appendChannel != null) {
+            appendChannel.close();
+            appendChannel = null;
+        }
+        sizeBytes -= oldestSegment.sizeBytes;
+        readPosition = 0;
+        oldestSegment.closeReadChannel();
+        if (!oldestSegment.file.delete()) {
+            logger.warn("could not delete spool file: {}", oldestSegment.file.getAbsolutePath());
+        }
+        updateOldestPendingCaptureTime();
+    }
+
+    // this only reads from disk when part of the oldest segment has been replayed (in which case
+    // the record header is read from the segment's read channel which is already open), otherwise
+    // the capture time of the first record in each segment is retained in memory
+    @GuardedBy("lock")
+    private void updateOldestPendingCaptureTime() throws IOException {
+        long position = readPosition;
+        for (Segment segment : segments) {
+            long captureTime =
+                    position == 0 ? segment.firstCaptureTime : readCaptureTime(segment, position);
+            if (captureTime != NO_CAPTURE_TIME) {
+                oldestPendingCaptureTime = captureTime;
+                return;
+            }
+            position = 0;
+        }
+        oldestPendingCaptureTime = NO_CAPTURE_TIME;
+    }
+
+    // returns null if there is no (complete) record at the position
+    private static @Nullable Record readRecord(Segment segment, long position) throws IOException {
+        ByteBuffer header = readRecordHeader(segment, position);
+        if (header == null) {
+            return null;
+        }
+        int length = header.getInt();
+        int typeOrdinal = header.get();
+        long captureTime = header.getLong();
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(segment.getReadChannel(), payload, position + RECORD_HEADER_SIZE);
+        return new Record(segment, position, position + RECORD_HEADER_SIZE + length,
+                RecordType.values()[typeOrdinal], captureTime, payload.array());
+    }
+
+    // returns NO_CAPTURE_TIME if there is no (complete) record at the position
+    private static long readCaptureTime(Segment segment, long position) throws IOException {
+        ByteBuffer header = readRecordHeader(segment, position);
+        if (header == null) {
+            return NO_CAPTURE_TIME;
+        }
+        return header.getLong(4 + 1);
+    }
+
+    // returns null if there is no (complete) record at the position
+    private static @Nullable ByteBuffer readRecordHeader(Segment segment, long position)
+            throws IOException {
+        if (position + RECORD_HEADER_SIZE > segment.sizeBytes) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(segment.getReadChannel(), header, position);
+        header.flip();
+        int length = header.getInt(0);
+        int typeOrdinal = header.get(4);
+        if (length < 0 || position + RECORD_HEADER_SIZE + length > segment.sizeBytes
+                || typeOrdinal < 0 || typeOrdinal >= RecordType.values().length) {
+            // incomplete record at the end of a segment written by a prior JVM
+            logger.warn("ignoring incomplete record in spool file: {}",
+                    segment.file.getAbsolutePath());
+            return null;
+        }
+        return header;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    enum RecordType {
+        AGGREGATES, TRACE, GAUGE_VALUES
+    }
+
+    static class Record {
+
+        private final Segment segment;
+        private final long position;
+        private final long nextPosition;
+
+        private final RecordType type;
+        private final long captureTime;
+        private final byte[] payload;
+
+        private Record(Segment segment, long position, long nextPosition, RecordType type,
+                long captureTime, byte[] payload) {
+            this.segment = segment;
+            this.position = position;
+            this.nextPosition = nextPosition;
+            this.type = type;
+            this.captureTime = captureTime;
+            this.payload = payload;
+        }
+
+        RecordType type() {
+            return type;
+        }
+
+        long captureTime() {
+            return captureTime;
+        }
+
+        byte[] payload() {
+            return payload;
+        }
+    }
+
+    private static class Segment {
+
+        private final File file;
+        private long sizeBytes;
+        private long firstCaptureTime = NO_CAPTURE_TIME;
+        private @Nullable FileChannel readChannel;
+
+        private Segment(File file) {
+            this.file = file;
+            sizeBytes = file.length();
+        }
+
+        private FileChannel getReadChannel() throws IOException {
+            if (readChannel == null) {
+                readChannel = new RandomAccessFile(file, "r").getChannel();
+            }
+            return readChannel;
+        }
+
+        private void closeReadChannel() throws IOException {
+            if (readChannel != null) {
+                readChannel.close();
+                readChannel = null;
+            }
+        }
+    }
+}
@@ -80,6 +80,20 @@ public abstract class AdvancedConfig {
         return 60;
     }
 
+    // number of threads that aggregate completed transactions, each building its own partial
+    // aggregates which are merged at the end of each aggregate interval
+    @Value.Default
+    public int aggregationThreads() {
+        return ConfigDefaults.AGGREGATION_THREADS;
+    }
+
+    // when non-zero (e.g. 0.01), transaction duration histograms with more than 1024 values use
+    // log buckets with this relative accuracy instead of HdrHistogram
+    @Value.Default
+    public double histogramRelativeAccuracy() {
+        return 0;
+    }
+
     public AgentConfig.AdvancedConfig toProto() {
         return AgentConfig.AdvancedConfig.newBuilder()
                 .setWeavingTimer(weavingTimer())
@@ -91,6 +105,8 @@ public abstract class AdvancedConfig {
                 .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                 .setMaxStackTraceSamplesPerTransaction(of(maxStackTraceSamplesPerTransaction()))
                 .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
+                .setAggregationThreads(of(aggregationThreads()))
+                .setHistogramRelativeAccuracy(histogramRelativeAccuracy())
                 .build();
     }
 
@@ -124,6 +140,10 @@ public abstract class AdvancedConfig {
             builder.mbeanGaugeNotFoundDelaySeconds(
                     config.getMbeanGaugeNotFoundDelaySeconds().getValue());
         }
+        if (config.hasAggregationThreads()) {
+            builder.aggregationThreads(config.getAggregationThreads().getValue());
+        }
+        builder.histogramRelativeAccuracy(config.getHistogramRelativeAccuracy());
         return builder.build();
     }
 
@@ -41,6 +41,7 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.collector.Collector.AgentConfigUpdater;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.PluginCache;
+import org.glowroot.agent.embedded.repo.AggregateDao.DeleteListener;
 import org.glowroot.agent.embedded.repo.PlatformMBeanServerLifecycle;
 import org.glowroot.agent.embedded.repo.SimpleRepoModule;
 import org.glowroot.agent.embedded.util.DataSource;
@@ -261,6 +262,13 @@ class EmbeddedAgentModule {
                     .version(version)
                     .build();
         }
+        final UiModule uiModule = this.uiModule;
+        simpleRepoModule.getAggregateDao().addDeleteListener(new DeleteListener() {
+            @Override
+            public void onDelete(long captureTime) {
+                uiModule.invalidateSummariesBefore(captureTime);
+            }
+        });
     }
 
     boolean isSimpleRepoModuleReady() throws InterruptedException {
@@ -74,6 +74,7 @@ class PreInitializeStorageShutdownClasses {
         types.add("org.glowroot.agent.embedded.util.CappedDatabase$ShutdownHookThread");
         types.add("org.glowroot.agent.embedded.util.CappedDatabaseOutputStream");
         types.add("org.glowroot.agent.embedded.util.DataSource");
+        types.add("org.glowroot.agent.embedded.util.DataSource$CachedConnection");
         types.add("org.glowroot.agent.embedded.util.DataSource$ShutdownHookThread");
         return types;
     }
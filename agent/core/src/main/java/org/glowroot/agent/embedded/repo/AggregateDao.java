@@ -20,6 +20,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.annotation.Nullable;
@@ -27,6 +28,8 @@ import javax.annotation.Nullable;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Parser;
 import org.checkerframework.checker.tainting.qual.Untainted;
@@ -158,6 +161,8 @@ public class AggregateDao implements AggregateRepository {
 
     private final Object rollupLock = new Object();
 
+    private final Set<DeleteListener> deleteListeners = Sets.newCopyOnWriteArraySet();
+
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             ConfigRepository configRepository, TransactionTypeDao transactionTypeDao,
             FullQueryTextDao fullQueryTextDao) throws Exception {
@@ -417,9 +422,20 @@ public class AggregateDao implements AggregateRepository {
         return dataSource.query(new ShouldHaveSomethingQuery(query, "service_calls_capped_id"));
     }
 
+    public void addDeleteListener(DeleteListener listener) {
+        deleteListeners.add(listener);
+    }
+
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
         dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
+        notifyDeleteListeners(captureTime);
+    }
+
+    void notifyDeleteListeners(long captureTime) {
+        for (DeleteListener deleteListener : deleteListeners) {
+            deleteListener.onDelete(captureTime);
+        }
     }
 
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
@@ -683,7 +699,8 @@ public class AggregateDao implements AggregateRepository {
             preparedStatement.setLong(i++, query.from());
             preparedStatement.setLong(i++, query.to());
             // limit + 100 since this result still needs to be merged with other results
-            preparedStatement.setInt(i++, limit + 100);
+            // (saturated since Integer.MAX_VALUE is used for no limit)
+            preparedStatement.setInt(i++, Ints.saturatedCast(limit + 100L));
         }
 
         @Override
@@ -803,7 +820,8 @@ public class AggregateDao implements AggregateRepository {
             preparedStatement.setLong(i++, query.from());
             preparedStatement.setLong(i++, query.to());
             // limit + 100 since this result still needs to be merged with other results
-            preparedStatement.setInt(i++, limit + 100);
+            // (saturated since Integer.MAX_VALUE is used for no limit)
+            preparedStatement.setInt(i++, Ints.saturatedCast(limit + 100L));
         }
 
         @Override
@@ -1273,4 +1291,10 @@ public class AggregateDao implements AggregateRepository {
         @Nullable
         String fullTextSha1();
     }
+
+    public interface DeleteListener {
+
+        // aggregates with capture time before captureTime may have been deleted
+        void onDelete(long captureTime);
+    }
 }
@@ -33,6 +33,7 @@ class RepoAdminImpl implements RepoAdmin {
     private final CappedDatabase traceCappedDatabase;
     private final ConfigRepository configRepository;
     private final EnvironmentDao agentDao;
+    private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
     private final GaugeNameDao gaugeNameDao;
     private final TransactionTypeDao transactionTypeDao;
@@ -41,14 +42,15 @@ class RepoAdminImpl implements RepoAdmin {
 
     RepoAdminImpl(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             CappedDatabase traceCappedDatabase, ConfigRepository configRepository,
-            EnvironmentDao agentDao, GaugeValueDao gaugeValueDao, GaugeNameDao gaugeNameDao,
-            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-            TraceAttributeNameDao traceAttributeNameDao) {
+            EnvironmentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
+            GaugeNameDao gaugeNameDao, TransactionTypeDao transactionTypeDao,
+            FullQueryTextDao fullQueryTextDao, TraceAttributeNameDao traceAttributeNameDao) {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.traceCappedDatabase = traceCappedDatabase;
         this.configRepository = configRepository;
         this.agentDao = agentDao;
+        this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.gaugeNameDao = gaugeNameDao;
         this.transactionTypeDao = transactionTypeDao;
@@ -66,6 +68,7 @@ class RepoAdminImpl implements RepoAdmin {
         transactionTypeDao.invalidateCache();
         fullQueryTextDao.invalidateCache();
         traceAttributeNameDao.invalidateCache();
+        aggregateDao.notifyDeleteListeners(Long.MAX_VALUE);
         if (environment != null) {
             agentDao.store(environment);
         }
@@ -74,6 +77,7 @@ class RepoAdminImpl implements RepoAdmin {
     @Override
     public void defrag() throws Exception {
         dataSource.defrag();
+        aggregateDao.notifyDeleteListeners(Long.MAX_VALUE);
     }
 
     @Override
@@ -90,8 +90,8 @@ public class SimpleRepoModule {
         gaugeValueDao = new GaugeValueDao(dataSource, gaugeNameDao, clock);
 
         repoAdmin = new RepoAdminImpl(dataSource, rollupCappedDatabases, traceCappedDatabase,
-                configRepository, environmentDao, gaugeValueDao, gaugeNameDao, transactionTypeDao,
-                fullQueryTextDao, traceAttributeNameDao);
+                configRepository, environmentDao, aggregateDao, gaugeValueDao, gaugeNameDao,
+                transactionTypeDao, fullQueryTextDao, traceAttributeNameDao);
 
         if (backgroundExecutor == null) {
             reaperRunnable = null;
@@ -24,11 +24,13 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
 
-import javax.annotation.concurrent.GuardedBy;
-
 import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
@@ -37,6 +39,7 @@ import com.google.common.collect.Maps;
 import com.google.common.io.ByteSource;
 import com.google.common.io.CharSource;
 import com.google.common.io.CountingOutputStream;
+import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.MessageLite;
@@ -49,17 +52,24 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.SizeLimitBypassingParser;
 
+// there is a single writer (writes are serialized under lock), while reads do not synchronize with
+// the writer (so that reading large traces or profiles in the UI does not hold up writing new
+// traces), instead reads validate afterwards that the block they are reading was not overwritten
+// (or the file resized) in the meantime
 public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
     private final File file;
     private final Object lock = new Object();
-    @GuardedBy("lock")
+    // writes are guarded by lock, while reads only use the methods of CappedDatabaseOutputStream
+    // that are safe to call outside of lock
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
-    private RandomAccessFile inFile;
+    // positional reads on this channel are safe to perform concurrently
+    //
+    // this is only replaced under lock, but is read outside of lock
+    private volatile FileChannel inChannel;
     private volatile boolean closed = false;
 
     private final Ticker ticker;
@@ -69,7 +79,7 @@ public class CappedDatabase {
         this.file = file;
         this.ticker = ticker;
         out = new CappedDatabaseOutputStream(file, requestedSizeKb);
-        inFile = new RandomAccessFile(file, "r");
+        inChannel = openInChannel();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -140,12 +150,8 @@ public class CappedDatabase {
 
     public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
+        boolean overwritten = out.isOverwritten(cappedId);
+        boolean inTheFuture = cappedId >= out.getCurrIndex();
         if (overwritten) {
             return null;
         }
@@ -158,7 +164,7 @@ public class CappedDatabase {
             return null;
         }
         // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
+        // lots of small reads from the underlying FileChannel
         final int bufferSize = 32768;
         InputStream input = new LZFInputStream(
                 new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
@@ -176,12 +182,8 @@ public class CappedDatabase {
 
     public <T extends /*@NonNull*/MessageLite> List<T> readMessages(long cappedId, Parser<T> parser)
             throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
+        boolean overwritten = out.isOverwritten(cappedId);
+        boolean inTheFuture = cappedId >= out.getCurrIndex();
         if (overwritten) {
             return ImmutableList.of();
         }
@@ -194,7 +196,7 @@ public class CappedDatabase {
             return ImmutableList.of();
         }
         // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
+        // lots of small reads from the underlying FileChannel
         final int bufferSize = 32768;
         InputStream input = new LZFInputStream(
                 new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
@@ -223,15 +225,11 @@ public class CappedDatabase {
     }
 
     boolean isExpired(long cappedId) {
-        synchronized (lock) {
-            return out.isOverwritten(cappedId);
-        }
+        return out.isOverwritten(cappedId);
     }
 
     public long getSmallestNonExpiredId() {
-        synchronized (lock) {
-            return out.getSmallestNonOverwrittenId();
-        }
+        return out.getSmallestNonOverwrittenId();
     }
 
     public void resize(int newSizeKb) throws IOException {
@@ -239,9 +237,9 @@ public class CappedDatabase {
             if (closed) {
                 return;
             }
-            inFile.close();
+            inChannel.close();
             out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            inChannel = openInChannel();
         }
     }
 
@@ -250,11 +248,87 @@ public class CappedDatabase {
         synchronized (lock) {
             closed = true;
             out.close();
-            inFile.close();
+            inChannel.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    // reads bytes starting at the given index (up to the end of the file, at which point the block
+    // wraps around to the start of the file), and then validates that the block was not overwritten
+    // and that the file was not resized while reading
+    private int readBlockBytes(long cappedId, long index, byte[] bytes, int off, int len)
+            throws IOException {
+        while (true) {
+            int resizeSeq = out.getResizeSeq();
+            if (resizeSeq % 2 != 0) {
+                waitForResize();
+                continue;
+            }
+            FileChannel channel = inChannel;
+            long filePosition = out.convertToFilePosition(index);
+            long fileRemaining = out.getSizeKb() * 1024L - filePosition;
+            int numToRead = Ints.checkedCast(Math.min(len, fileRemaining));
+            int numRead;
+            try {
+                numRead = readFully(channel, ByteBuffer.wrap(bytes, off, numToRead),
+                        CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+            } catch (ClosedChannelException e) {
+                if (closed) {
+                    throw e;
+                }
+                if (out.getResizeSeq() == resizeSeq) {
+                    // the channel is closed by FileChannel when a thread is interrupted while
+                    // reading from it, which then affects all readers
+                    reopenInChannel(channel);
+                    if (e instanceof ClosedByInterruptException) {
+                        throw e;
+                    }
+                }
+                continue;
+            }
+            if (out.getResizeSeq() != resizeSeq) {
+                continue;
+            }
+            if (out.isOverwritten(cappedId) || numRead != numToRead) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+            return numRead;
+        }
+    }
+
+    private void waitForResize() {
+        synchronized (lock) {
+            // resize is performed under lock, so nothing to do here other than wait for the lock
+        }
+    }
+
+    private void reopenInChannel(FileChannel closedChannel) throws IOException {
+        synchronized (lock) {
+            if (!closed && inChannel == closedChannel) {
+                inChannel = openInChannel();
+            }
+        }
+    }
+
+    private FileChannel openInChannel() throws IOException {
+        return new RandomAccessFile(file, "r").getChannel();
+    }
+
+    // returns fewer bytes than requested only if end of file is reached, which can happen if the
+    // file is being resized
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + total);
+            if (n == -1) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
     @OnlyUsedByTests
     private class CappedBlockCharSource extends CharSource {
 
@@ -267,7 +341,7 @@ public class CappedDatabase {
         @Override
         public Reader openStream() throws IOException {
             // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
+            // lots of small reads from the underlying FileChannel
             final int bufferSize = 32768;
             return new InputStreamReader(new LZFInputStream(
                     new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
@@ -290,25 +364,20 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
-            synchronized (lock) {
-                if (out.isOverwritten(cappedId)) {
-                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
-                }
-                if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
-                }
-                long filePosition = out.convertToFilePosition(
-                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                long blockRemaining = blockLength - blockIndex;
-                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
-                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
-                blockIndex += numToRead;
-                return numToRead;
+            if (blockLength == -1) {
+                // block header is never split across the end of the file
+                byte[] blockLengthBytes =
+                        new byte[CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES];
+                readBlockBytes(cappedId, cappedId, blockLengthBytes, 0, blockLengthBytes.length);
+                blockLength = Longs.fromByteArray(blockLengthBytes);
             }
+            long blockRemaining = blockLength - blockIndex;
+            int numToRead = (int) Math.min(len, blockRemaining);
+            int numRead = readBlockBytes(cappedId,
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex,
+                    bytes, off, numToRead);
+            blockIndex += numRead;
+            return numRead;
         }
 
         @Override
@@ -335,7 +404,7 @@ public class CappedDatabase {
                 closed = true;
                 synchronized (lock) {
                     out.close();
-                    inFile.close();
+                    inChannel.close();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
@@ -19,10 +19,15 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.glowroot.common.util.OnlyUsedByTests;
 
-// Needs to be externally synchronized around startBlock()/write()/endBlock().
+// Needs to be externally synchronized around startBlock()/write()/endBlock()/resize().
+//
+// Readers do not synchronize with the writer, instead they validate after reading that the bytes
+// they read were not (being) overwritten, using isOverwritten() and getResizeSeq().
 class CappedDatabaseOutputStream extends OutputStream {
 
     static final int HEADER_SKIP_BYTES = 20;
@@ -32,16 +37,28 @@ class CappedDatabaseOutputStream extends OutputStream {
 
     private final File file;
     private RandomAccessFile out;
+    private FileChannel outChannel;
+
+    private final ByteBuffer currIndexBuffer = ByteBuffer.allocate(8);
 
     // currIndex is ever-increasing even over capped boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
-    private long currIndex;
+    //
+    // currIndex is advanced before the bytes are written, so that a reader that reads bytes while
+    // they are being overwritten is guaranteed to see that they were overwritten when it validates
+    // afterwards
+    private volatile long currIndex;
     // lastResizeBaseIndex is the smallest currIndex saved during the last resize
-    private long lastResizeBaseIndex;
-    // sizeKb is volatile so it can be read outside of the external synchronization around
-    // startBlock()/write()/endBlock()
+    private volatile long lastResizeBaseIndex;
+    // these are volatile so they can be read outside of the external synchronization around
+    // startBlock()/write()/endBlock()/resize()
     private volatile int sizeKb;
-    private long sizeBytes;
+    private volatile long sizeBytes;
+
+    // incremented both before and after resize (so it is odd while resize is in progress), so that
+    // readers can detect that the file (and the position of each index within the file) changed
+    // while they were reading
+    private volatile int resizeSeq;
 
     private long blockStartIndex;
     private long blockStartPosition;
@@ -66,6 +83,7 @@ class CappedDatabaseOutputStream extends OutputStream {
             sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = out.readLong();
         }
+        outChannel = out.getChannel();
     }
 
     void startBlock() {
@@ -95,6 +113,10 @@ class CappedDatabaseOutputStream extends OutputStream {
     long getSmallestNonOverwrittenId() {
         // need to check lastResizeBaseIndex in case it was recently resized larger, in which case
         // currIndex - sizeBytes would be less than lastResizeBaseIndex
+        //
+        // currIndex is read first, since it only increases, and so the result can only be too
+        // large (i.e. conservative) when racing with the writer
+        long currIndex = this.currIndex;
         return Math.max(lastResizeBaseIndex, currIndex - sizeBytes);
     }
 
@@ -111,11 +133,23 @@ class CappedDatabaseOutputStream extends OutputStream {
         return (index - lastResizeBaseIndex) % sizeBytes;
     }
 
-    // perform resize in-place to avoid using extra disk space
+    int getResizeSeq() {
+        return resizeSeq;
+    }
+
     void resize(int newSizeKb) throws IOException {
-        if (performEasyResize(newSizeKb)) {
-            return;
+        resizeSeq++;
+        try {
+            if (!performEasyResize(newSizeKb)) {
+                performFullResize(newSizeKb);
+            }
+        } finally {
+            resizeSeq++;
         }
+    }
+
+    // perform resize in-place to avoid using extra disk space
+    private void performFullResize(int newSizeKb) throws IOException {
         long newSizeBytes = newSizeKb * 1024L;
         // keep the min of the current and new capped size
         int numKeepKb = Math.min(sizeKb, newSizeKb);
@@ -149,6 +183,7 @@ class CappedDatabaseOutputStream extends OutputStream {
         sizeKb = newSizeKb;
         sizeBytes = newSizeBytes;
         out = new RandomAccessFile(file, "rw");
+        outChannel = out.getChannel();
     }
 
     @Override
@@ -173,19 +208,28 @@ class CappedDatabaseOutputStream extends OutputStream {
                     "A single block cannot have more bytes than size of the capped database");
         }
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
-        out.seek(HEADER_SKIP_BYTES + currPosition);
+        currIndex += len;
         long remaining = sizeBytes - currPosition;
         if (len >= remaining) {
             // intentionally handling == case here
-            out.write(b, off, (int) remaining);
-            out.seek(HEADER_SKIP_BYTES);
-            out.write(b, (int) remaining, (int) (len - remaining));
+            writeFully(ByteBuffer.wrap(b, off, (int) remaining), HEADER_SKIP_BYTES + currPosition);
+            writeFully(ByteBuffer.wrap(b, off + (int) remaining, (int) (len - remaining)),
+                    HEADER_SKIP_BYTES);
         } else {
-            out.write(b, off, len);
+            writeFully(ByteBuffer.wrap(b, off, len), HEADER_SKIP_BYTES + currPosition);
+        }
+        currIndexBuffer.clear();
+        currIndexBuffer.putLong(currIndex);
+        currIndexBuffer.flip();
+        writeFully(currIndexBuffer, HEADER_CURR_INDEX_POS);
+    }
+
+    // positional writes (as opposed to seek and write) do not need to move the file pointer
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        long currPosition = position;
+        while (buffer.hasRemaining()) {
+            currPosition += outChannel.write(buffer, currPosition);
         }
-        currIndex += len;
-        out.seek(HEADER_CURR_INDEX_POS);
-        out.writeLong(currIndex);
     }
 
     private boolean performEasyResize(int newSizeKb) throws IOException {
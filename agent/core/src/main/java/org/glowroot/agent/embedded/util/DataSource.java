@@ -25,7 +25,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -50,6 +53,12 @@ import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+// updates are performed on a single write connection (under lock), while queries are performed on
+// a small pool of read connections, so that processing the results of long running queries (e.g.
+// merging aggregates for the UI) does not hold up inserting aggregates and traces
+//
+// (h2 1.3 still executes statements one at a time per database, but result sets are fully read
+// during statement execution, and the processing of result sets is then done outside of h2)
 public class DataSource {
 
     private static final Logger logger = LoggerFactory.getLogger(DataSource.class);
@@ -60,76 +69,109 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    private static final int READ_CONNECTIONS =
+            Integer.getInteger("glowroot.internal.h2.readConnections", 4);
+
+    // used to give each in-memory database a unique name, so that the read and write connections of
+    // a data source connect to the same in-memory database
+    private static final AtomicInteger memDbCounter = new AtomicInteger();
+
     // null means use memDb
     private final @Nullable File dbFile;
+    private final @Nullable String memDbName;
     private final Thread shutdownHookThread;
     private final Object lock = new Object();
     @GuardedBy("lock")
-    private Connection connection;
+    private CachedConnection writeConnection;
+    // serializes defrag(), deleteAll() and close(), since each of these needs to take all of the
+    // read connections, and two of them taking part of the read connections each would wait on
+    // each other forever
+    private final Object exclusiveLock = new Object();
+    // read connections that are not currently in use
+    private final BlockingQueue<CachedConnection> readConnections =
+            new ArrayBlockingQueue<CachedConnection>(READ_CONNECTIONS);
+    // read connection in use by the current thread, so that queries that are performed while
+    // processing the result set of another query re-use the same read connection (otherwise these
+    // could deadlock waiting for a read connection)
+    private final ThreadLocal</*@Nullable*/ CachedConnection> currentReadConnection =
+            new ThreadLocal</*@Nullable*/ CachedConnection>();
     private volatile boolean closed;
 
     private final Map</*@Untainted*/String, ImmutableList<Column>> tables = Maps.newConcurrentMap();
     private final Map</*@Untainted*/String, ImmutableList<Index>> indexes = Maps.newConcurrentMap();
 
-    private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
-            CacheBuilder.newBuilder()
-                    .weakValues()
-                    .build(new CacheLoader</*@Untainted*/String, PreparedStatement>() {
-                        @Override
-                        public PreparedStatement load(@Untainted String sql) throws SQLException {
-                            return connection.prepareStatement(sql);
-                        }
-                    });
-
     // creates an in-memory database
     public DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        memDbName = "glowroot-" + memDbCounter.getAndIncrement();
+        writeConnection = new CachedConnection(createConnection(), 0);
+        createReadConnections();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
         this.dbFile = dbFile;
-        connection = createConnection(dbFile);
+        memDbName = null;
+        writeConnection = new CachedConnection(createConnection(), 0);
+        createReadConnections();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public void defrag() throws SQLException {
-        if (dbFile == null) {
+        if (dbFile == null || closed) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
+        synchronized (exclusiveLock) {
+            // read connections need to be closed before the database is shut down, and this needs
+            // to be done before acquiring lock, since queries can perform updates while processing
+            // their result sets
+            closeReadConnections();
+            try {
+                synchronized (lock) {
+                    if (closed) {
+                        return;
+                    }
+                    execute("shutdown defrag");
+                    writeConnection = new CachedConnection(createConnection(), 0);
+                }
+            } finally {
+                createReadConnections();
             }
-            execute("shutdown defrag");
-            preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
         }
     }
 
     public void deleteAll() throws SQLException {
-        if (dbFile == null) {
+        if (dbFile == null || closed) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
-            }
-            connection.close();
-            preparedStatementCache.invalidateAll();
-            boolean success = dbFile.delete();
-            connection = createConnection(dbFile);
-            for (Entry</*@Untainted*/String, ImmutableList<Column>> entry : tables.entrySet()) {
-                syncTable(entry.getKey(), entry.getValue());
-            }
-            for (Entry</*@Untainted*/String, ImmutableList<Index>> entry : indexes.entrySet()) {
-                syncIndexes(entry.getKey(), entry.getValue());
-            }
-            if (!success) {
-                throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+        synchronized (exclusiveLock) {
+            // see comment in defrag() above
+            closeReadConnections();
+            try {
+                synchronized (lock) {
+                    if (closed) {
+                        return;
+                    }
+                    writeConnection.close();
+                    boolean success = dbFile.delete();
+                    writeConnection = new CachedConnection(createConnection(), 0);
+                    for (Entry</*@Untainted*/String, ImmutableList<Column>> entry : tables
+                            .entrySet()) {
+                        syncTable(entry.getKey(), entry.getValue());
+                    }
+                    for (Entry</*@Untainted*/String, ImmutableList<Index>> entry : indexes
+                            .entrySet()) {
+                        syncIndexes(entry.getKey(), entry.getValue());
+                    }
+                    if (!success) {
+                        throw new SQLException(
+                                "Could not delete file: " + dbFile.getAbsolutePath());
+                    }
+                }
+            } finally {
+                createReadConnections();
             }
         }
     }
@@ -140,7 +182,7 @@ public class DataSource {
             if (closed) {
                 return;
             }
-            Statement statement = connection.createStatement();
+            Statement statement = writeConnection.connection.createStatement();
             // setQueryTimeout() affects all statements of this connection (at least with h2)
             statement.setQueryTimeout(0);
             StatementCloser closer = new StatementCloser(statement);
@@ -163,11 +205,12 @@ public class DataSource {
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return null;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
+        CachedConnection readConnection = acquireReadConnection();
+        if (readConnection == null) {
+            return null;
+        }
+        try {
+            return query(readConnection, sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
                 @Override
                 public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
                     if (!resultSet.next()) {
@@ -181,21 +224,26 @@ public class DataSource {
                     return value;
                 }
             });
+        } finally {
+            releaseReadConnection(readConnection);
         }
     }
 
     public boolean queryForExists(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return false;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor<Boolean>() {
+        CachedConnection readConnection = acquireReadConnection();
+        if (readConnection == null) {
+            return false;
+        }
+        try {
+            return query(readConnection, sql, args, new ResultSetExtractor<Boolean>() {
                 @Override
                 public Boolean extractData(ResultSet resultSet) throws SQLException {
                     return resultSet.next();
                 }
             });
+        } finally {
+            releaseReadConnection(readConnection);
         }
     }
 
@@ -215,12 +263,13 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
-        synchronized (lock) {
-            if (closed) {
-                return jdbcQuery.valueIfDataSourceClosed();
-            }
+        CachedConnection readConnection = acquireReadConnection();
+        if (readConnection == null) {
+            return jdbcQuery.valueIfDataSourceClosed();
+        }
+        try {
             PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
+                    readConnection.prepareStatement(jdbcQuery.getSql());
             jdbcQuery.bind(preparedStatement);
             ResultSet resultSet = preparedStatement.executeQuery();
             ResultSetCloser closer = new ResultSetCloser(resultSet);
@@ -231,7 +280,10 @@ public class DataSource {
             } finally {
                 closer.close();
             }
-            // don't need to close statement since they are all cached and used under lock
+            // don't need to close statement since they are all cached and only used by the thread
+            // that acquired the read connection
+        } finally {
+            releaseReadConnection(readConnection);
         }
     }
 
@@ -249,12 +301,13 @@ public class DataSource {
 
     public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
-        synchronized (lock) {
-            if (closed) {
-                return ImmutableList.of();
-            }
+        CachedConnection readConnection = acquireReadConnection();
+        if (readConnection == null) {
+            return ImmutableList.of();
+        }
+        try {
             PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
+                    readConnection.prepareStatement(jdbcQuery.getSql());
             jdbcQuery.bind(preparedStatement);
             ResultSet resultSet = preparedStatement.executeQuery();
             ResultSetCloser closer = new ResultSetCloser(resultSet);
@@ -269,7 +322,10 @@ public class DataSource {
             } finally {
                 closer.close();
             }
-            // don't need to close statement since they are all cached and used under lock
+            // don't need to close statement since they are all cached and only used by the thread
+            // that acquired the read connection
+        } finally {
+            releaseReadConnection(readConnection);
         }
     }
 
@@ -301,7 +357,8 @@ public class DataSource {
             if (closed) {
                 return 0;
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+            PreparedStatement preparedStatement =
+                    writeConnection.prepareStatement(jdbcUpdate.getSql());
             jdbcUpdate.bind(preparedStatement);
             return preparedStatement.executeUpdate();
             // don't need to close statement since they are all cached and used under lock
@@ -320,7 +377,8 @@ public class DataSource {
             if (closed) {
                 return new int[0];
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+            PreparedStatement preparedStatement =
+                    writeConnection.prepareStatement(jdbcUpdate.getSql());
             jdbcUpdate.bind(preparedStatement);
             return preparedStatement.executeBatch();
             // don't need to close statement since they are all cached and used under lock
@@ -329,7 +387,7 @@ public class DataSource {
 
     public void deleteBefore(@Untainted String tableName, long captureTime) throws SQLException {
         // delete 100 at a time, which is both faster than deleting all at once, and doesn't
-        // lock the single jdbc connection for one large chunk of time
+        // lock the write connection for one large chunk of time
         int deleted;
         do {
             deleted = update("delete from " + tableName + " where capture_time < ? limit 100",
@@ -342,7 +400,7 @@ public class DataSource {
             if (closed) {
                 return;
             }
-            Schemas.syncTable(tableName, columns, connection);
+            Schemas.syncTable(tableName, columns, writeConnection.connection);
             tables.put(tableName, ImmutableList.copyOf(columns));
         }
     }
@@ -353,7 +411,7 @@ public class DataSource {
             if (closed) {
                 return;
             }
-            Schemas.syncIndexes(tableName, indexes, connection);
+            Schemas.syncIndexes(tableName, indexes, writeConnection.connection);
             this.indexes.put(tableName, indexes);
         }
     }
@@ -365,21 +423,22 @@ public class DataSource {
     // helpful for upgrading schema
     public boolean tableExists(String tableName) throws SQLException {
         synchronized (lock) {
-            return !closed && Schemas.tableExists(tableName, connection);
+            return !closed && Schemas.tableExists(tableName, writeConnection.connection);
         }
     }
 
     // helpful for upgrading schema
     public boolean columnExists(String tableName, String columnName) throws SQLException {
         synchronized (lock) {
-            return !closed && Schemas.columnExists(tableName, columnName, connection);
+            return !closed
+                    && Schemas.columnExists(tableName, columnName, writeConnection.connection);
         }
     }
 
     // helpful for upgrading schema
     public void renameTable(@Untainted String oldTableName, @Untainted String newTableName)
             throws SQLException {
-        if (Schemas.tableExists(oldTableName, connection)) {
+        if (tableExists(oldTableName)) {
             execute("alter table " + oldTableName + " rename to " + newTableName);
         }
     }
@@ -387,7 +446,7 @@ public class DataSource {
     // helpful for upgrading schema
     public void renameColumn(@Untainted String tableName, @Untainted String oldColumnName,
             @Untainted String newColumnName) throws SQLException {
-        if (Schemas.columnExists(tableName, oldColumnName, connection)) {
+        if (columnExists(tableName, oldColumnName)) {
             execute("alter table " + tableName + " alter column " + oldColumnName + " rename to "
                     + newColumnName);
         }
@@ -395,20 +454,89 @@ public class DataSource {
 
     @OnlyUsedByTests
     public void close() throws SQLException {
-        synchronized (lock) {
+        if (closed) {
+            return;
+        }
+        synchronized (exclusiveLock) {
             if (closed) {
                 return;
             }
-            closed = true;
-            connection.close();
+            closeReadConnections();
+            synchronized (lock) {
+                closed = true;
+                writeConnection.close();
+            }
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
-    // lock must be acquired prior to calling this method
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatement(sql, QUERY_TIMEOUT_SECONDS);
+    // returns null if the data source is closed
+    private @Nullable CachedConnection acquireReadConnection() throws SQLException {
+        if (closed) {
+            return null;
+        }
+        CachedConnection readConnection = currentReadConnection.get();
+        if (readConnection != null) {
+            readConnection.nestingDepth++;
+            return readConnection;
+        }
+        try {
+            readConnection = readConnections.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+        if (closed) {
+            // the read connection is closed by releaseReadConnection()
+            releaseReadConnection(readConnection);
+            return null;
+        }
+        currentReadConnection.set(readConnection);
+        return readConnection;
+    }
+
+    private void releaseReadConnection(CachedConnection readConnection) throws SQLException {
+        if (readConnection.nestingDepth > 0) {
+            readConnection.nestingDepth--;
+            return;
+        }
+        currentReadConnection.remove();
+        if (closed) {
+            readConnection.close();
+        } else {
+            readConnections.add(readConnection);
+        }
+    }
+
+    private void createReadConnections() throws SQLException {
+        for (int i = 0; i < READ_CONNECTIONS; i++) {
+            readConnections.add(new CachedConnection(createConnection(), QUERY_TIMEOUT_SECONDS));
+        }
+    }
+
+    // waits for all read connections that are in use to be released
+    private void closeReadConnections() throws SQLException {
+        if (currentReadConnection.get() != null) {
+            // otherwise this would wait forever for the current thread to release its own read
+            // connection
+            throw new IllegalStateException("Cannot close read connections while processing a"
+                    + " result set on the same thread");
+        }
+        for (int i = 0; i < READ_CONNECTIONS; i++) {
+            CachedConnection readConnection;
+            try {
+                readConnection = readConnections.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(e);
+            }
+            readConnection.close();
+        }
+    }
+
+    private static <T extends /*@Nullable*/ Object> T query(CachedConnection readConnection,
+            @Untainted String sql, Object[] args, ResultSetExtractor<T> rse) throws SQLException {
+        PreparedStatement preparedStatement = readConnection.prepareStatement(sql);
         for (int i = 0; i < args.length; i++) {
             preparedStatement.setObject(i + 1, args[i]);
         }
@@ -421,31 +549,15 @@ public class DataSource {
         } finally {
             closer.close();
         }
-        // don't need to close statement since they are all cached and used under lock
-    }
-
-    private PreparedStatement prepareStatement(@Untainted String sql, int queryTimeoutSeconds)
-            throws SQLException {
-        try {
-            PreparedStatement preparedStatement = preparedStatementCache.get(sql);
-            // setQueryTimeout() affects all statements of this connection (at least with h2)
-            preparedStatement.setQueryTimeout(queryTimeoutSeconds);
-            return preparedStatement;
-        } catch (ExecutionException e) {
-            Throwable cause = e.getCause();
-            Throwables.propagateIfPossible(cause, SQLException.class);
-            // it should not really be possible to get here since the only checked exception that
-            // preparedStatementCache's CacheLoader throws is SQLException
-            logger.error(e.getMessage(), e);
-            throw new SQLException(e);
-        }
+        // don't need to close statement since they are all cached and only used by the thread
+        // that acquired the read connection
     }
 
-    private static Connection createConnection(@Nullable File dbFile) throws SQLException {
+    private Connection createConnection() throws SQLException {
         if (dbFile == null) {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
-            return new JdbcConnection("jdbc:h2:mem:;compress=true;db_close_on_exit=false",
-                    new Properties());
+            return new JdbcConnection("jdbc:h2:mem:" + memDbName
+                    + ";compress=true;db_close_on_exit=false", new Properties());
         } else {
             String dbPath = dbFile.getPath();
             dbPath = dbPath.replaceFirst(".h2.db$", "");
@@ -510,6 +622,52 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    // connection along with its own prepared statement cache
+    private static class CachedConnection {
+
+        private final Connection connection;
+        private final int queryTimeoutSeconds;
+
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache;
+
+        // only accessed by the thread that acquired the (read) connection
+        private int nestingDepth;
+
+        private CachedConnection(final Connection connection, int queryTimeoutSeconds) {
+            this.connection = connection;
+            this.queryTimeoutSeconds = queryTimeoutSeconds;
+            preparedStatementCache = CacheBuilder.newBuilder()
+                    .weakValues()
+                    .build(new CacheLoader</*@Untainted*/String, PreparedStatement>() {
+                        @Override
+                        public PreparedStatement load(@Untainted String sql) throws SQLException {
+                            return connection.prepareStatement(sql);
+                        }
+                    });
+        }
+
+        private PreparedStatement prepareStatement(@Untainted String sql) throws SQLException {
+            try {
+                PreparedStatement preparedStatement = preparedStatementCache.get(sql);
+                // setQueryTimeout() affects all statements of this connection (at least with h2)
+                preparedStatement.setQueryTimeout(queryTimeoutSeconds);
+                return preparedStatement;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                Throwables.propagateIfPossible(cause, SQLException.class);
+                // it should not really be possible to get here since the only checked exception
+                // that preparedStatementCache's CacheLoader throws is SQLException
+                logger.error(e.getMessage(), e);
+                throw new SQLException(e);
+            }
+        }
+
+        private void close() throws SQLException {
+            // this also closes the cached prepared statements
+            connection.close();
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -522,7 +680,12 @@ public class DataSource {
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closed = true;
                 synchronized (lock) {
-                    connection.close();
+                    writeConnection.close();
+                }
+                // read connections that are currently in use are closed when they are released
+                CachedConnection readConnection;
+                while ((readConnection = readConnections.poll()) != null) {
+                    readConnection.close();
                 }
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
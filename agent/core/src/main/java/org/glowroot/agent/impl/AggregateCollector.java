@@ -73,7 +73,7 @@ class AggregateCollector {
     private final ThreadStatsCollectorImpl auxThreadStats = new ThreadStatsCollectorImpl();
     // histogram values are in nanoseconds, but with microsecond precision to reduce the number of
     // buckets (and memory) required
-    private final LazyHistogram durationNanosHistogram = new LazyHistogram();
+    private final LazyHistogram durationNanosHistogram;
     // lazy instantiated to reduce memory footprint
     private @MonotonicNonNull QueryCollector queries;
     private @MonotonicNonNull ServiceCallCollector serviceCalls;
@@ -84,8 +84,9 @@ class AggregateCollector {
     private final int maxAggregateServiceCallsPerType;
 
     AggregateCollector(@Nullable String transactionName, int maxAggregateQueriesPerType,
-            int maxAggregateServiceCallsPerType) {
+            int maxAggregateServiceCallsPerType, double histogramRelativeAccuracy) {
         this.transactionName = transactionName;
+        durationNanosHistogram = new LazyHistogram(histogramRelativeAccuracy);
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
     }
@@ -105,6 +106,38 @@ class AggregateCollector {
         durationNanosHistogram.add(totalDurationNanos);
     }
 
+    // used to merge partial aggregates built by separate aggregation threads
+    void merge(AggregateCollector toBeMerged) throws IOException {
+        totalDurationNanos += toBeMerged.totalDurationNanos;
+        transactionCount += toBeMerged.transactionCount;
+        errorCount += toBeMerged.errorCount;
+        asyncTransactions |= toBeMerged.asyncTransactions;
+        mainThreadRootTimers.merge(toBeMerged.mainThreadRootTimers);
+        auxThreadRootTimers.merge(toBeMerged.auxThreadRootTimers);
+        asyncTimers.merge(toBeMerged.asyncTimers);
+        mainThreadStats.merge(toBeMerged.mainThreadStats);
+        auxThreadStats.merge(toBeMerged.auxThreadStats);
+        durationNanosHistogram.merge(toBeMerged.durationNanosHistogram);
+        if (toBeMerged.queries != null) {
+            getQueryCollector().mergeQueries(toBeMerged.queries);
+        }
+        if (toBeMerged.serviceCalls != null) {
+            getServiceCallCollector().mergeServiceCalls(toBeMerged.serviceCalls.toProto());
+        }
+        if (toBeMerged.mainThreadProfile != null) {
+            if (mainThreadProfile == null) {
+                mainThreadProfile = new MutableProfile();
+            }
+            mainThreadProfile.merge(toBeMerged.mainThreadProfile);
+        }
+        if (toBeMerged.auxThreadProfile != null) {
+            if (auxThreadProfile == null) {
+                auxThreadProfile = new MutableProfile();
+            }
+            auxThreadProfile.merge(toBeMerged.auxThreadProfile);
+        }
+    }
+
     RootTimerCollector getMainThreadRootTimers() {
         return mainThreadRootTimers;
     }
@@ -277,6 +310,11 @@ class AggregateCollector {
             mergeRootTimer(rootTimer, rootMutableTimers);
         }
 
+        private void merge(RootTimerCollectorImpl toBeMerged) {
+            MutableAggregateTimer.mergeChildTimers(toBeMerged.rootMutableTimers,
+                    rootMutableTimers);
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -305,32 +343,54 @@ class AggregateCollector {
 
         // aggregates use double instead of long to avoid (unlikely) 292 year nanosecond rollover
         private double totalCpuNanos;
-        private double totalBlockedMillis;
-        private double totalWaitedMillis;
         private double totalAllocatedBytes;
 
-        private boolean empty = true;
+        // blocked and waited times are only summed over the thread stats where they are available,
+        // since with contention sampling (see ThreadStatsComponent
+        // .CONTENTION_SAMPLING_INTERVAL_MILLIS) they are not available for transactions that
+        // complete before being sampled, and those should not make them N/A for the whole aggregate
+        private double contentionSampledBlockedMillis;
+        private double contentionSampledWaitedMillis;
+
+        private long count;
+        private long contentionSampledCount;
 
         @Override
         public void mergeThreadStats(ThreadStats threadStats) {
             totalCpuNanos = NotAvailableAware.add(totalCpuNanos, threadStats.getTotalCpuNanos());
-            totalBlockedMillis =
-                    NotAvailableAware.add(totalBlockedMillis, threadStats.getTotalBlockedMillis());
-            totalWaitedMillis =
-                    NotAvailableAware.add(totalWaitedMillis, threadStats.getTotalWaitedMillis());
             totalAllocatedBytes = NotAvailableAware.add(totalAllocatedBytes,
                     threadStats.getTotalAllocatedBytes());
-            empty = false;
+            long totalBlockedMillis = threadStats.getTotalBlockedMillis();
+            long totalWaitedMillis = threadStats.getTotalWaitedMillis();
+            if (!NotAvailableAware.isNA(totalBlockedMillis)
+                    && !NotAvailableAware.isNA(totalWaitedMillis)) {
+                contentionSampledBlockedMillis += totalBlockedMillis;
+                contentionSampledWaitedMillis += totalWaitedMillis;
+                contentionSampledCount++;
+            }
+            count++;
+        }
+
+        private void merge(ThreadStatsCollectorImpl toBeMerged) {
+            if (toBeMerged.count == 0) {
+                return;
+            }
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, toBeMerged.totalCpuNanos);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, toBeMerged.totalAllocatedBytes);
+            contentionSampledBlockedMillis += toBeMerged.contentionSampledBlockedMillis;
+            contentionSampledWaitedMillis += toBeMerged.contentionSampledWaitedMillis;
+            contentionSampledCount += toBeMerged.contentionSampledCount;
+            count += toBeMerged.count;
         }
 
         private boolean isNA() {
-            if (empty) {
+            if (count == 0) {
                 return true;
             }
             return NotAvailableAware.isNA(totalCpuNanos)
-                    && NotAvailableAware.isNA(totalBlockedMillis)
-                    && NotAvailableAware.isNA(totalWaitedMillis)
-                    && NotAvailableAware.isNA(totalAllocatedBytes);
+                    && NotAvailableAware.isNA(totalAllocatedBytes)
+                    && contentionSampledCount == 0;
         }
 
         public Aggregate.ThreadStats toProto() {
@@ -338,13 +398,15 @@ class AggregateCollector {
             if (!NotAvailableAware.isNA(totalCpuNanos)) {
                 builder.setTotalCpuNanos(toProto(totalCpuNanos));
             }
-            if (!NotAvailableAware.isNA(totalBlockedMillis)) {
-                builder.setTotalBlockedNanos(
-                        toProto(totalBlockedMillis * NANOSECONDS_PER_MILLISECOND));
-            }
-            if (!NotAvailableAware.isNA(totalWaitedMillis)) {
-                builder.setTotalWaitedNanos(
-                        toProto(totalWaitedMillis * NANOSECONDS_PER_MILLISECOND));
+            if (contentionSampledCount > 0) {
+                // extrapolate from the contention-sampled thread stats to all thread stats, so that
+                // the per transaction averages are not diluted by the unsampled transactions
+                double factor = NANOSECONDS_PER_MILLISECOND;
+                if (contentionSampledCount < count) {
+                    factor = factor * count / contentionSampledCount;
+                }
+                builder.setTotalBlockedNanos(toProto(contentionSampledBlockedMillis * factor));
+                builder.setTotalWaitedNanos(toProto(contentionSampledWaitedMillis * factor));
             }
             if (!NotAvailableAware.isNA(totalAllocatedBytes)) {
                 builder.setTotalAllocatedBytes(toProto(totalAllocatedBytes));
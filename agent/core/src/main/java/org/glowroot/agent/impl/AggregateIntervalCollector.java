@@ -16,12 +16,11 @@
 package org.glowroot.agent.impl;
 
 import java.io.IOException;
-import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.collect.Maps;
 import org.slf4j.Logger;
@@ -47,6 +46,9 @@ import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+// aggregation state is sharded by transaction type, and each aggregate collector (overall and per
+// transaction name) is guarded by its own lock, so that live UI reads only contend with the
+// aggregation thread(s) on the individual aggregate collector being read
 public class AggregateIntervalCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(AggregateIntervalCollector.class);
@@ -57,21 +59,21 @@ public class AggregateIntervalCollector {
     private final int maxAggregateTransactionsPerTransactionType;
     private final int maxAggregateQueriesPerType;
     private final int maxAggregateServiceCallsPerType;
+    private final double histogramRelativeAccuracy;
     private final Clock clock;
 
-    @GuardedBy("lock")
-    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
-
-    private final Object lock = new Object();
+    private final ConcurrentMap<String, IntervalTypeCollector> typeCollectors =
+            Maps.newConcurrentMap();
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxAggregateTransactionsPerTransactionType, int maxAggregateQueriesPerType,
-            int maxAggregateServiceCallsPerType, Clock clock) {
+            int maxAggregateServiceCallsPerType, double histogramRelativeAccuracy, Clock clock) {
         captureTime = Utils.getRollupCaptureTime(currentTime, aggregateIntervalMillis);
         this.maxAggregateTransactionsPerTransactionType =
                 maxAggregateTransactionsPerTransactionType;
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
+        this.histogramRelativeAccuracy = histogramRelativeAccuracy;
         this.clock = clock;
     }
 
@@ -80,32 +82,30 @@ public class AggregateIntervalCollector {
     }
 
     public void add(Transaction transaction) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector =
-                    getTypeCollector(transaction.getTransactionType());
-            typeCollector.add(transaction);
-        }
+        IntervalTypeCollector typeCollector = getTypeCollector(transaction.getTransactionType());
+        typeCollector.add(transaction);
     }
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        AggregateCollector aggregateCollector = typeCollector.overallAggregateCollector;
+        synchronized (aggregateCollector) {
+            aggregateCollector.mergeOverallSummaryInto(collector);
         }
     }
 
     public void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
+                .values()) {
+            synchronized (aggregateCollector) {
                 aggregateCollector.mergeTransactionSummariesInto(collector);
             }
         }
@@ -113,24 +113,25 @@ public class AggregateIntervalCollector {
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        AggregateCollector aggregateCollector = typeCollector.overallAggregateCollector;
+        synchronized (aggregateCollector) {
+            aggregateCollector.mergeOverallErrorSummaryInto(collector);
         }
     }
 
     public void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
+                .values()) {
+            synchronized (aggregateCollector) {
                 aggregateCollector.mergeTransactionErrorSummariesInto(collector);
             }
         }
@@ -138,119 +139,126 @@ public class AggregateIntervalCollector {
 
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
-            }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        synchronized (aggregateCollector) {
             return aggregateCollector.getOverviewAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
-            }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        synchronized (aggregateCollector) {
             return aggregateCollector.getPercentileAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
-            }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        synchronized (aggregateCollector) {
             return aggregateCollector.getThroughputAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        synchronized (lock) {
-            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-                if (fullQueryText != null) {
-                    return fullQueryText;
-                }
+        for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
+            String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+            if (fullQueryText != null) {
+                return fullQueryText;
             }
-            return null;
         }
+        return null;
     }
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return;
+        }
+        synchronized (aggregateCollector) {
             aggregateCollector.mergeQueriesInto(collector);
         }
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return;
+        }
+        synchronized (aggregateCollector) {
             aggregateCollector.mergeServiceCallsInto(collector);
         }
     }
 
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return;
+        }
+        synchronized (aggregateCollector) {
             aggregateCollector.mergeMainThreadProfilesInto(collector);
         }
     }
 
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return;
+        }
+        synchronized (aggregateCollector) {
             aggregateCollector.mergeAuxThreadProfilesInto(collector);
         }
     }
 
+    // used to merge partial interval collectors built by separate aggregation threads
+    void mergeFrom(AggregateIntervalCollector partialIntervalCollector) throws IOException {
+        for (Entry<String, IntervalTypeCollector> e : partialIntervalCollector.typeCollectors
+                .entrySet()) {
+            getTypeCollector(e.getKey()).merge(e.getValue());
+        }
+    }
+
     void flush(Collector collector) throws Exception {
         collector.collectAggregates(new AggregatesImpl(captureTime));
     }
 
     void clear() {
-        synchronized (lock) {
-            typeCollectors.clear();
-        }
+        typeCollectors.clear();
     }
 
     private IntervalTypeCollector getTypeCollector(String transactionType) {
-        IntervalTypeCollector typeCollector;
-        typeCollector = typeCollectors.get(transactionType);
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
         if (typeCollector == null) {
             typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transactionType, typeCollector);
+            IntervalTypeCollector existing =
+                    typeCollectors.putIfAbsent(transactionType, typeCollector);
+            if (existing != null) {
+                typeCollector = existing;
+            }
         }
         return typeCollector;
     }
@@ -271,37 +279,69 @@ public class AggregateIntervalCollector {
     private class IntervalTypeCollector {
 
         private final AggregateCollector overallAggregateCollector;
-        private final Map<String, AggregateCollector> transactionAggregateCollectors =
+        private final ConcurrentMap<String, AggregateCollector> transactionAggregateCollectors =
                 Maps.newConcurrentMap();
 
         private IntervalTypeCollector() {
             overallAggregateCollector = new AggregateCollector(null, maxAggregateQueriesPerType,
-                    maxAggregateServiceCallsPerType);
+                    maxAggregateServiceCallsPerType, histogramRelativeAccuracy);
         }
 
         private void add(Transaction transaction) {
-            merge(transaction, overallAggregateCollector);
-            AggregateCollector transactionAggregateCollector =
-                    transactionAggregateCollectors.get(transaction.getTransactionName());
-            if (transactionAggregateCollector == null && transactionAggregateCollectors
-                    .size() < maxAggregateTransactionsPerTransactionType) {
-                transactionAggregateCollector =
-                        new AggregateCollector(transaction.getTransactionName(),
-                                maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
-                transactionAggregateCollectors.put(transaction.getTransactionName(),
-                        transactionAggregateCollector);
+            synchronized (overallAggregateCollector) {
+                merge(transaction, overallAggregateCollector);
             }
+            AggregateCollector transactionAggregateCollector =
+                    getTransactionAggregateCollector(transaction.getTransactionName());
             if (transactionAggregateCollector == null) {
-                if (!maxAggregateTransactionsWarnLogged.getAndSet(true)) {
-                    logger.warn("the max transaction names per transaction type was exceeded"
-                            + " during the current interval. consider increasing the limit under"
-                            + " Configuration > Advanced, or reducing the number of transaction"
-                            + " names by configuring instrumentation points under Configuration"
-                            + " > Instrumentation that override the transaction name.");
-                }
+                logMaxAggregateTransactionsWarning();
                 return;
             }
-            merge(transaction, transactionAggregateCollector);
+            synchronized (transactionAggregateCollector) {
+                merge(transaction, transactionAggregateCollector);
+            }
+        }
+
+        private void merge(IntervalTypeCollector toBeMerged) throws IOException {
+            merge(toBeMerged.overallAggregateCollector, overallAggregateCollector);
+            for (Entry<String, AggregateCollector> entry : toBeMerged.transactionAggregateCollectors
+                    .entrySet()) {
+                AggregateCollector transactionAggregateCollector =
+                        getTransactionAggregateCollector(entry.getKey());
+                if (transactionAggregateCollector == null) {
+                    logMaxAggregateTransactionsWarning();
+                    continue;
+                }
+                merge(entry.getValue(), transactionAggregateCollector);
+            }
+        }
+
+        private @Nullable AggregateCollector getTransactionAggregateCollector(
+                String transactionName) {
+            AggregateCollector transactionAggregateCollector =
+                    transactionAggregateCollectors.get(transactionName);
+            if (transactionAggregateCollector != null) {
+                return transactionAggregateCollector;
+            }
+            if (transactionAggregateCollectors
+                    .size() >= maxAggregateTransactionsPerTransactionType) {
+                return null;
+            }
+            transactionAggregateCollector = new AggregateCollector(transactionName,
+                    maxAggregateQueriesPerType, maxAggregateServiceCallsPerType,
+                    histogramRelativeAccuracy);
+            AggregateCollector existing = transactionAggregateCollectors
+                    .putIfAbsent(transactionName, transactionAggregateCollector);
+            return existing == null ? transactionAggregateCollector : existing;
+        }
+
+        private void merge(AggregateCollector toBeMerged, AggregateCollector aggregateCollector)
+                throws IOException {
+            synchronized (aggregateCollector) {
+                synchronized (toBeMerged) {
+                    aggregateCollector.merge(toBeMerged);
+                }
+            }
         }
 
         private void merge(Transaction transaction, AggregateCollector aggregateCollector) {
@@ -323,12 +363,17 @@ public class AggregateIntervalCollector {
         }
 
         private @Nullable String getFullQueryText(String fullQueryTextSha1) {
-            String fullQueryText = overallAggregateCollector.getFullQueryText(fullQueryTextSha1);
+            String fullQueryText;
+            synchronized (overallAggregateCollector) {
+                fullQueryText = overallAggregateCollector.getFullQueryText(fullQueryTextSha1);
+            }
             if (fullQueryText != null) {
                 return fullQueryText;
             }
             for (AggregateCollector aggregateCollector : transactionAggregateCollectors.values()) {
-                fullQueryText = aggregateCollector.getFullQueryText(fullQueryTextSha1);
+                synchronized (aggregateCollector) {
+                    fullQueryText = aggregateCollector.getFullQueryText(fullQueryTextSha1);
+                }
                 if (fullQueryText != null) {
                     return fullQueryText;
                 }
@@ -337,6 +382,16 @@ public class AggregateIntervalCollector {
         }
     }
 
+    private static void logMaxAggregateTransactionsWarning() {
+        if (!maxAggregateTransactionsWarnLogged.getAndSet(true)) {
+            logger.warn("the max transaction names per transaction type was exceeded during the"
+                    + " current interval. consider increasing the limit under Configuration >"
+                    + " Advanced, or reducing the number of transaction names by configuring"
+                    + " instrumentation points under Configuration > Instrumentation that override"
+                    + " the transaction name.");
+        }
+    }
+
     private class AggregatesImpl implements AggregateReader {
 
         private final long captureTime;
@@ -352,25 +407,32 @@ public class AggregateIntervalCollector {
 
         @Override
         public void accept(AggregateVisitor aggregateVisitor) throws Exception {
-            synchronized (lock) {
-                SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
-                ScratchBuffer scratchBuffer = new ScratchBuffer();
-                for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                    String transactionType = e.getKey();
-                    IntervalTypeCollector intervalTypeCollector = e.getValue();
-                    Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
-                            .build(sharedQueryTextCollector, scratchBuffer);
-                    aggregateVisitor.visitOverallAggregate(transactionType,
-                            sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                            overallAggregate);
-                    for (Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
-                            .entrySet()) {
-                        Aggregate transactionAggregate =
-                                f.getValue().build(sharedQueryTextCollector, scratchBuffer);
-                        aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
-                                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                                transactionAggregate);
+            SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
+            ScratchBuffer scratchBuffer = new ScratchBuffer();
+            for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
+                String transactionType = e.getKey();
+                IntervalTypeCollector intervalTypeCollector = e.getValue();
+                AggregateCollector overallAggregateCollector =
+                        intervalTypeCollector.overallAggregateCollector;
+                Aggregate overallAggregate;
+                synchronized (overallAggregateCollector) {
+                    overallAggregate = overallAggregateCollector.build(sharedQueryTextCollector,
+                            scratchBuffer);
+                }
+                aggregateVisitor.visitOverallAggregate(transactionType,
+                        sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                        overallAggregate);
+                for (Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
+                        .entrySet()) {
+                    AggregateCollector transactionAggregateCollector = f.getValue();
+                    Aggregate transactionAggregate;
+                    synchronized (transactionAggregateCollector) {
+                        transactionAggregate = transactionAggregateCollector
+                                .build(sharedQueryTextCollector, scratchBuffer);
                     }
+                    aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
+                            sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                            transactionAggregate);
                 }
             }
         }
@@ -15,13 +15,18 @@
  */
 package org.glowroot.agent.impl;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
@@ -29,12 +34,15 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.util.CaptureTimeRingBuffer;
+import org.glowroot.agent.util.CaptureTimeRingBuffer.WaitStrategy;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class Aggregator {
@@ -45,27 +53,38 @@ public class Aggregator {
     private static final int TRANSACTION_PENDING_LIMIT = 1000;
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
+    // back pressure from aggregation threads onto the transaction queue
+    private static final int WORKER_PENDING_LIMIT = 1000;
+    // bound on how often live reads re-merge the partial interval collectors while transactions
+    // are still being aggregated
+    private static final long ACTIVE_VIEW_MIN_AGE_MILLIS = 1000;
+
+    private static final String WAIT_STRATEGY =
+            System.getProperty("glowroot.internal.aggregate.waitStrategy", "park");
 
     private volatile AggregateIntervalCollector activeIntervalCollector;
+    // partial interval collectors (one per aggregation worker) for the active interval, this is
+    // empty when the active interval is being aggregated directly by the processing thread
+    private volatile List<AggregateIntervalCollector> activePartialIntervalCollectors =
+            ImmutableList.of();
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
+    // merged snapshot of the partial interval collectors, shared between live reads
+    private volatile @Nullable ActiveView activeView;
+    // the workers aggregating the active interval, only replaced by the processing thread
+    private volatile List<AggregationWorker> activeWorkers = ImmutableList.of();
 
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
+    // lazily created, since only needed when aggregation threads is configured > 1
+    private volatile @Nullable ExecutorService workerExecutor;
     private final Collector collector;
     private final ConfigService configService;
     private final Clock clock;
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    // tail is non-volatile since only accessed under lock
-    private PendingTransaction tail = head;
-    private final Object queueLock = new Object();
-    @GuardedBy("queueLock")
-    private int queueLength;
+    private final CaptureTimeRingBuffer<Transaction> transactionQueue;
 
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
@@ -77,17 +96,17 @@ public class Aggregator {
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
+        transactionQueue = new TransactionQueue(TRANSACTION_PENDING_LIMIT,
+                parseWaitStrategy(WAIT_STRATEGY), clock);
         processingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Processing"));
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Flushing"));
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig()
-                                .maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
-        processingExecutor.execute(new TransactionProcessor());
+        activeIntervalCollector = createIntervalCollector(clock.currentTimeMillis());
+        TransactionProcessor transactionProcessor = new TransactionProcessor();
+        transactionProcessor.startPartialIntervalCollectors(
+                activeIntervalCollector.getCaptureTime());
+        processingExecutor.execute(transactionProcessor);
     }
 
     // from is non-inclusive
@@ -104,51 +123,108 @@ public class Aggregator {
     }
 
     public void clearInMemoryAggregate() {
+        activeView = null;
         activeIntervalCollector.clear();
+        for (AggregateIntervalCollector partialIntervalCollector
+                : activePartialIntervalCollectors) {
+            partialIntervalCollector.clear();
+        }
     }
 
     long add(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        long captureTime;
-        synchronized (queueLock) {
-            captureTime = clock.currentTimeMillis();
-            if (queueLength >= TRANSACTION_PENDING_LIMIT) {
-                backPressureLogger.warn("not aggregating a transaction because of an excessive"
-                        + " backlog of {} transactions already waiting to be aggregated",
-                        TRANSACTION_PENDING_LIMIT);
-                transaction.removeFromActiveTransactions();
-                return captureTime;
-            }
-            newTail.captureTime = captureTime;
-            tail.next = newTail;
-            tail = newTail;
-            queueLength++;
+        // the transaction queue ensures traces are placed into it in the order of captureTime (so
+        // that queue reader can assume if captureTime indicates time to flush, then no new traces
+        // will come in with prior captureTime)
+        long captureTime = transactionQueue.offer(transaction);
+        if (captureTime == CaptureTimeRingBuffer.REJECTED) {
+            backPressureLogger.warn("not aggregating a transaction because of an excessive"
+                    + " backlog of {} transactions already waiting to be aggregated",
+                    transactionQueue.capacity());
+            transaction.removeFromActiveTransactions();
+            return clock.currentTimeMillis();
         }
         return captureTime;
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
         // grab active first then pending (and de-dup) to make sure one is not missed between states
-        AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
+        AggregateIntervalCollector activeIntervalCollector = getActiveIntervalCollectorView();
         List<AggregateIntervalCollector> intervalCollectors =
                 Lists.newArrayList(pendingIntervalCollectors);
         if (intervalCollectors.isEmpty()) {
             // common case
             return ImmutableList.of(activeIntervalCollector);
-        } else if (!intervalCollectors.contains(activeIntervalCollector)) {
-            intervalCollectors.add(activeIntervalCollector);
-            return intervalCollectors;
-        } else {
-            return intervalCollectors;
+        }
+        // de-dup by capture time, since the active view may be a merged snapshot of the partial
+        // interval collectors
+        long activeCaptureTime = activeIntervalCollector.getCaptureTime();
+        for (AggregateIntervalCollector intervalCollector : intervalCollectors) {
+            if (intervalCollector.getCaptureTime() == activeCaptureTime) {
+                return intervalCollectors;
+            }
+        }
+        intervalCollectors.add(activeIntervalCollector);
+        return intervalCollectors;
+    }
+
+    private AggregateIntervalCollector getActiveIntervalCollectorView() {
+        // partial interval collectors are set prior to the active interval collector, so reading
+        // them in the opposite order guarantees they are not older than the active one
+        AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
+        List<AggregateIntervalCollector> partialIntervalCollectors =
+                activePartialIntervalCollectors;
+        if (partialIntervalCollectors.isEmpty() || partialIntervalCollectors.get(0)
+                .getCaptureTime() != activeIntervalCollector.getCaptureTime()) {
+            return activeIntervalCollector;
+        }
+        long aggregatedCount = 0;
+        for (AggregationWorker worker : activeWorkers) {
+            aggregatedCount += worker.aggregatedCount;
+        }
+        long currentTime = clock.currentTimeMillis();
+        ActiveView activeView = this.activeView;
+        if (activeView != null && activeView.partialIntervalCollectors == partialIntervalCollectors
+                && (activeView.aggregatedCount == aggregatedCount
+                        || currentTime - activeView.createdTime < ACTIVE_VIEW_MIN_AGE_MILLIS)) {
+            return activeView.snapshot;
+        }
+        // copy-on-read snapshot so that live reads do not block the aggregation threads
+        AggregateIntervalCollector snapshot =
+                createIntervalCollector(activeIntervalCollector.getCaptureTime());
+        try {
+            for (AggregateIntervalCollector partialIntervalCollector : partialIntervalCollectors) {
+                snapshot.mergeFrom(partialIntervalCollector);
+            }
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+        }
+        this.activeView = new ActiveView(partialIntervalCollectors, aggregatedCount, currentTime,
+                snapshot);
+        return snapshot;
+    }
+
+    private AggregateIntervalCollector createIntervalCollector(long currentTime) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
+                configService.getAdvancedConfig().maxAggregateQueriesPerType(),
+                configService.getAdvancedConfig().maxAggregateServiceCallsPerType(),
+                configService.getAdvancedConfig().histogramRelativeAccuracy(), clock);
+    }
+
+    @VisibleForTesting
+    static WaitStrategy parseWaitStrategy(String value) {
+        try {
+            return WaitStrategy.valueOf(value.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            logger.warn("invalid glowroot.internal.aggregate.waitStrategy: {}", value);
+            return WaitStrategy.PARK;
         }
     }
 
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         closed = true;
+        transactionQueue.close();
         processingExecutor.shutdown();
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
@@ -157,10 +233,20 @@ public class Aggregator {
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        ExecutorService workerExecutor = this.workerExecutor;
+        if (workerExecutor != null) {
+            workerExecutor.shutdown();
+            if (!workerExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
     }
 
     private class TransactionProcessor implements Runnable {
 
+        // only accessed by the processing thread
+        private final List<AggregationWorker> workers = Lists.newArrayList();
+
         @Override
         public void run() {
             while (!closed) {
@@ -174,68 +260,118 @@ public class Aggregator {
         }
 
         private void processOne() throws InterruptedException {
-            PendingTransaction pendingTransaction = head.next;
-            if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
+            Transaction transaction = transactionQueue.poll();
+            if (transaction == null) {
+                long currentTime = clock.currentTimeMillis();
+                long activeCaptureTime = activeIntervalCollector.getCaptureTime();
+                if (currentTime > activeCaptureTime) {
                     maybeEndOfInterval();
                 } else {
-                    // TODO benchmark other alternatives to sleep (e.g. wait/notify)
-                    Thread.sleep(1);
+                    // wait at most until the end of the active interval
+                    transactionQueue.await(activeCaptureTime - currentTime + 1);
                 }
                 return;
             }
             // remove transaction from list of active transactions
             // used to do this at the very end of Transaction.end(), but moved to here to remove the
             // (minor) cost from the transaction main path
-            Transaction transaction = checkNotNull(pendingTransaction.transaction);
             transaction.removeFromActiveTransactions();
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
+            long captureTime = transactionQueue.getPolledCaptureTime();
+            if (captureTime > activeIntervalCollector.getCaptureTime()) {
+                flushActiveIntervalCollector();
+                startNewInterval(captureTime);
+            }
+            if (activeWorkers.isEmpty()) {
+                activeIntervalCollector.add(transaction);
+            } else {
+                // same transaction name always goes to the same worker so that the transaction
+                // level partial aggregates do not overlap
+                int hash = transaction.getTransactionName().hashCode() & Integer.MAX_VALUE;
+                activeWorkers.get(hash % activeWorkers.size()).dispatch(transaction);
             }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
+        }
+
+        private void maybeEndOfInterval() throws InterruptedException {
+            long currentTime = transactionQueue.claimIfEmpty();
+            if (currentTime == CaptureTimeRingBuffer.REJECTED) {
+                // something just crept into the queue, possibly still something from active
+                // interval, it will get picked up right away and if it is in next interval it
+                // will force active aggregate to be flushed anyways
+                return;
+            }
+            if (currentTime > activeIntervalCollector.getCaptureTime()) {
+                // safe to flush, no other pending transactions can enter queue with prior time
+                // (since the current time was read while claiming a queue sequence)
                 flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(
-                        pendingTransaction.captureTime, aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+                startNewInterval(currentTime);
             }
-            activeIntervalCollector.add(transaction);
         }
 
-        private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
+        private void startNewInterval(long currentTime) {
+            // partial interval collectors must be set prior to the active interval collector (see
+            // getActiveIntervalCollectorView())
+            startPartialIntervalCollectors(currentTime);
+            activeIntervalCollector = createIntervalCollector(currentTime);
+        }
+
+        private void startPartialIntervalCollectors(long currentTime) {
+            int aggregationThreads = configService.getAdvancedConfig().aggregationThreads();
+            int workerCount = aggregationThreads <= 1 ? 0 : aggregationThreads;
+            // safe to stop since workers are idle (see flushActiveIntervalCollector())
+            while (workers.size() > workerCount) {
+                workers.remove(workers.size() - 1).stopped = true;
+            }
+            if (workerCount == 0) {
+                activePartialIntervalCollectors = ImmutableList.of();
+                activeWorkers = ImmutableList.of();
+            } else {
+                while (workers.size() < aggregationThreads) {
+                    AggregationWorker worker = new AggregationWorker();
+                    getOrCreateWorkerExecutor().execute(worker);
+                    workers.add(worker);
                 }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
+                List<AggregationWorker> activeWorkers = ImmutableList.copyOf(workers);
+                List<AggregateIntervalCollector> partialIntervalCollectors = Lists.newArrayList();
+                for (AggregationWorker worker : activeWorkers) {
+                    // safe to replace since workers are idle (see flushActiveIntervalCollector())
+                    AggregateIntervalCollector partialIntervalCollector =
+                            createIntervalCollector(currentTime);
+                    worker.intervalCollector = partialIntervalCollector;
+                    partialIntervalCollectors.add(partialIntervalCollector);
+                }
+                Aggregator.this.activeWorkers = activeWorkers;
+                activePartialIntervalCollectors =
+                        ImmutableList.copyOf(partialIntervalCollectors);
             }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                        aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+        }
+
+        private ExecutorService getOrCreateWorkerExecutor() {
+            ExecutorService workerExecutor = Aggregator.this.workerExecutor;
+            if (workerExecutor == null) {
+                workerExecutor = Executors.newCachedThreadPool(
+                        ThreadFactories.create("Glowroot-Aggregate-Worker-%d"));
+                Aggregator.this.workerExecutor = workerExecutor;
             }
+            return workerExecutor;
         }
 
-        private void flushActiveIntervalCollector() {
+        private void flushActiveIntervalCollector() throws InterruptedException {
+            if (!activeWorkers.isEmpty()) {
+                for (AggregationWorker worker : activeWorkers) {
+                    worker.awaitIdle();
+                }
+                // merge partial aggregates on this thread since it is once per interval, and the
+                // merged aggregate needs to be in place before the partials are replaced
+                for (AggregateIntervalCollector partialIntervalCollector
+                        : activePartialIntervalCollectors) {
+                    try {
+                        activeIntervalCollector.mergeFrom(partialIntervalCollector);
+                    } catch (IOException e) {
+                        logger.error(e.getMessage(), e);
+                    }
+                }
+            }
             if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
                 logger.warn("not storing an aggregate because of an excessive backlog of {}"
                         + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
@@ -259,14 +395,101 @@ public class Aggregator {
         }
     }
 
-    private static class PendingTransaction {
+    private class AggregationWorker implements Runnable {
+
+        private final BlockingQueue<Transaction> queue =
+                new ArrayBlockingQueue<Transaction>(WORKER_PENDING_LIMIT);
+        // number of transactions dispatched to this worker that have not been aggregated yet
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        // notified when pending count drops to zero
+        private final Object idleLock = new Object();
+
+        // only written by this worker, read by live reads to detect changes since the last
+        // snapshot of the partial interval collectors
+        private volatile long aggregatedCount;
+
+        // set by the processing thread when the number of aggregation threads is reduced
+        private volatile boolean stopped;
+
+        // only replaced by the processing thread while this worker is idle, and visibility to this
+        // worker is guaranteed by the subsequent queue hand off
+        private volatile @Nullable AggregateIntervalCollector intervalCollector;
+
+        @Override
+        public void run() {
+            while (!closed && !stopped) {
+                try {
+                    Transaction transaction = queue.poll(100, MILLISECONDS);
+                    if (transaction == null) {
+                        continue;
+                    }
+                    try {
+                        checkNotNull(intervalCollector).add(transaction);
+                        aggregatedCount++;
+                    } finally {
+                        if (pendingCount.decrementAndGet() == 0) {
+                            synchronized (idleLock) {
+                                idleLock.notifyAll();
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // shutdown requested
+                    return;
+                } catch (Throwable t) {
+                    // log and continue processing
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }
+
+        // only called by the processing thread
+        private void dispatch(Transaction transaction) throws InterruptedException {
+            pendingCount.incrementAndGet();
+            // blocks when this worker falls behind, which then backs up the transaction queue
+            queue.put(transaction);
+        }
+
+        // only called by the processing thread
+        private void awaitIdle() throws InterruptedException {
+            synchronized (idleLock) {
+                // the worker can only notify while holding the lock, so the notification cannot be
+                // missed between checking the count and waiting
+                while (pendingCount.get() > 0) {
+                    idleLock.wait();
+                }
+            }
+        }
+    }
+
+    private static class ActiveView {
+
+        private final List<AggregateIntervalCollector> partialIntervalCollectors;
+        private final long aggregatedCount;
+        private final long createdTime;
+        private final AggregateIntervalCollector snapshot;
+
+        private ActiveView(List<AggregateIntervalCollector> partialIntervalCollectors,
+                long aggregatedCount, long createdTime, AggregateIntervalCollector snapshot) {
+            this.partialIntervalCollectors = partialIntervalCollectors;
+            this.aggregatedCount = aggregatedCount;
+            this.createdTime = createdTime;
+            this.snapshot = snapshot;
+        }
+    }
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
-        private volatile @Nullable PendingTransaction next;
+    private static class TransactionQueue extends CaptureTimeRingBuffer<Transaction> {
 
-        private PendingTransaction(@Nullable Transaction transaction) {
-            this.transaction = transaction;
+        private final Clock clock;
+
+        private TransactionQueue(int minCapacity, WaitStrategy waitStrategy, Clock clock) {
+            super(minCapacity, waitStrategy);
+            this.clock = clock;
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return clock.currentTimeMillis();
         }
     }
 }
@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Arrays;
+
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.model.TimerNameImpl;
@@ -57,6 +59,14 @@ class NestedTimerMap {
         putWithoutRehashCheck(key, value);
     }
 
+    // retains the current capacity, so that a recycled map does not need to rehash again
+    void clear() {
+        if (size != 0) {
+            Arrays.fill(table, null);
+            size = 0;
+        }
+    }
+
     private @Nullable TimerImpl getChained(TimerNameImpl key, Object value) {
         @Nullable
         Object[] chainedTable = (/*@Nullable*/ Object[]) value;
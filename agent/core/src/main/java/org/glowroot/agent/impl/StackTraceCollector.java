@@ -90,6 +90,7 @@ public class StackTraceCollector {
         for (int i = 0; i < threadContexts.size(); i++) {
             threadIds[i] = threadContexts.get(i).getThreadId();
         }
+        // stack traces for all threads are captured in a single call (single safepoint)
         @Nullable
         ThreadInfo[] threadInfos =
                 ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
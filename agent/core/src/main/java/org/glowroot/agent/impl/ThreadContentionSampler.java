@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.agent.model.ThreadStatsComponent;
+import org.glowroot.common.util.ScheduledRunnable;
+
+// captures the starting blocked and waited times for transaction threads that are still waiting for
+// them, see ThreadStatsComponent.CONTENTION_SAMPLING_INTERVAL_MILLIS
+public class ThreadContentionSampler extends ScheduledRunnable {
+
+    private final TransactionRegistry transactionRegistry;
+
+    public ThreadContentionSampler(TransactionRegistry transactionRegistry) {
+        this.transactionRegistry = transactionRegistry;
+    }
+
+    @Override
+    protected void runInternal() {
+        List<ThreadContextImpl> threadContexts = Lists.newArrayList();
+        for (Transaction transaction : transactionRegistry.getTransactions()) {
+            ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
+            if (mainThreadContext.isActive()
+                    && mainThreadContext.needsStartingThreadContention()) {
+                threadContexts.add(mainThreadContext);
+            }
+            for (ThreadContextImpl auxThreadContext : transaction.getActiveAuxThreadContexts()) {
+                if (auxThreadContext.needsStartingThreadContention()) {
+                    threadContexts.add(auxThreadContext);
+                }
+            }
+        }
+        captureStartingThreadContention(threadContexts);
+    }
+
+    static void captureStartingThreadContention(List<ThreadContextImpl> threadContexts) {
+        if (threadContexts.isEmpty()) {
+            // critical not to call ThreadMXBean.getThreadInfo() with empty id list
+            // see https://bugs.openjdk.java.net/browse/JDK-8074368
+            return;
+        }
+        long[] threadIds = new long[threadContexts.size()];
+        for (int i = 0; i < threadContexts.size(); i++) {
+            threadIds[i] = threadContexts.get(i).getThreadId();
+        }
+        // thread infos for all threads are captured in a single call (single safepoint)
+        @Nullable
+        ThreadInfo[] threadInfos = ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, 0);
+        for (int i = 0; i < threadContexts.size(); i++) {
+            ThreadInfo threadInfo = threadInfos[i];
+            if (threadInfo != null) {
+                threadContexts.get(i).captureStartingThreadContention(threadInfo);
+            }
+        }
+    }
+}
@@ -37,6 +37,7 @@ import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.QueryData;
 import org.glowroot.agent.model.QueryDataMap;
 import org.glowroot.agent.model.QueryEntryBase;
+import org.glowroot.agent.model.QueryTextInterner;
 import org.glowroot.agent.model.ThreadContextPlus;
 import org.glowroot.agent.model.ThreadStats;
 import org.glowroot.agent.model.ThreadStatsComponent;
@@ -77,6 +78,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
     // it is used to help place aux thread context in the correct place inside parent
     private final @Nullable TraceEntryImpl parentThreadContextPriorEntry;
 
+    // null unless object pooling is enabled
+    private final @Nullable ThreadObjectPool objectPool;
+
     private final TimerImpl rootTimer;
     // only accessed by the thread context's thread
     private @Nullable TimerImpl currentTimer;
@@ -133,6 +137,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
             @Nullable MessageSupplier servletMessageSupplier) {
         this.transaction = transaction;
         this.parentTraceEntry = parentTraceEntry;
+        objectPool = ThreadObjectPool.getForCurrentThread();
         rootTimer = TimerImpl.createRootTimer(castInitialized(this), (TimerNameImpl) rootTimerName);
         rootTimer.start(startTick);
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
@@ -169,6 +174,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return rootTimer;
     }
 
+    @Nullable
+    ThreadObjectPool getObjectPool() {
+        return objectPool;
+    }
+
     ThreadStats getThreadStats() {
         if (threadStatsComponent == null) {
             return ThreadStats.NA;
@@ -183,6 +193,16 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return threadStatsComponent.getTotalCpuNanos();
     }
 
+    boolean needsStartingThreadContention() {
+        return threadStatsComponent != null && threadStatsComponent.needsStartingContention();
+    }
+
+    void captureStartingThreadContention(ThreadInfo threadInfo) {
+        if (threadStatsComponent != null) {
+            threadStatsComponent.captureStartingContention(threadInfo);
+        }
+    }
+
     public long getThreadId() {
         return threadId;
     }
@@ -237,7 +257,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
     void mergeQueriesInto(QueryCollector queries) {
         QueryData curr = headQueryData;
         while (curr != null) {
-            queries.mergeQuery(curr.getQueryType(), curr.getQueryText(),
+            queries.mergeQuery(curr.getQueryType(), curr.getQueryTextId(), curr.getQueryText(),
                     curr.getTotalDurationNanos(), curr.getExecutionCount(), curr.hasTotalRows(),
                     curr.getTotalRows());
             curr = curr.getNextQueryData();
@@ -273,7 +293,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 // maxAggregateQueriesPerType set to 0
                 return new QueryData(queryType, queryText, null);
             }
-            QueryData queryData = new QueryData(queryType, queryText, null);
+            // query text is interned here (once per transaction) so that the aggregation thread
+            // does not need to hash the query text (see QueryTextInterner)
+            QueryData queryData = new QueryData(queryType, queryText,
+                    QueryTextInterner.getId(queryText), null);
             queriesForFirstType = new QueryDataMap(queryType);
             queriesForFirstType.put(queryText, queryData);
             headQueryData = queryData;
@@ -285,7 +308,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
         QueryData queryData = queriesForCurrentType.get(queryText);
         if (queryData == null && transaction.allowAnotherAggregateQuery(bypassLimit)) {
-            queryData = new QueryData(queryType, queryText, headQueryData);
+            queryData = new QueryData(queryType, queryText, QueryTextInterner.getId(queryText),
+                    headQueryData);
             queriesForCurrentType.put(queryText, queryData);
             headQueryData = queryData;
         }
@@ -404,6 +428,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
             if (threadStatsComponent != null) {
                 threadStatsComponent.onComplete();
             }
+            if (objectPool != null) {
+                rootTimer.releaseNestedTimerMaps(objectPool);
+            }
             threadContextHolder.set(outerTransactionThreadContext);
             if (outerTransactionThreadContext != null) {
                 outerTransactionThreadContext.innerTransactionThreadContext = null;
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+
+// per-thread pool of nested timer maps
+//
+// only the nested timer maps are pooled, since they are only ever accessed by the transaction
+// thread, so they can be returned to the pool by the transaction thread as soon as the thread
+// context completes, without any hand off between threads
+//
+// timers, trace entries and thread contexts are not pooled, since other threads (e.g. partial
+// trace capture, active trace viewer and aggregation) can hold on to them for an unbounded time
+// after the transaction completes
+class ThreadObjectPool {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.internal.objectPooling");
+
+    // nested timer maps beyond this are left to the garbage collector
+    @VisibleForTesting
+    static final int MAX_POOLED_NESTED_TIMER_MAPS = 64;
+
+    private static final ThreadLocal<ThreadObjectPool> pools =
+            new ThreadLocal<ThreadObjectPool>() {
+                @Override
+                protected ThreadObjectPool initialValue() {
+                    return new ThreadObjectPool();
+                }
+            };
+
+    // only accessed by the owning thread
+    private final NestedTimerMap[] nestedTimerMaps =
+            new NestedTimerMap[MAX_POOLED_NESTED_TIMER_MAPS];
+    private int nestedTimerMapCount;
+
+    static @Nullable ThreadObjectPool getForCurrentThread() {
+        return ENABLED ? pools.get() : null;
+    }
+
+    // only called by the owning thread
+    NestedTimerMap pollNestedTimerMap() {
+        if (nestedTimerMapCount == 0) {
+            return new NestedTimerMap();
+        }
+        NestedTimerMap nestedTimerMap = nestedTimerMaps[--nestedTimerMapCount];
+        nestedTimerMaps[nestedTimerMapCount] = null;
+        return nestedTimerMap;
+    }
+
+    // only called by the owning thread
+    void release(NestedTimerMap nestedTimerMap) {
+        if (nestedTimerMapCount < MAX_POOLED_NESTED_TIMER_MAPS) {
+            // clear so that pooled maps do not retain timers from prior transactions
+            nestedTimerMap.clear();
+            nestedTimerMaps[nestedTimerMapCount++] = nestedTimerMap;
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        return nestedTimerMapCount;
+    }
+}
@@ -77,7 +77,10 @@ public class TimerImpl implements Timer, CommonTimerImpl {
     // synchronized access during timer capture which is important
     //
     // lazy initialize to save memory in common case where this is a leaf timer
-    private @MonotonicNonNull NestedTimerMap nestedTimers;
+    //
+    // this is also released back to the object pool (if enabled) once the thread context completes
+    // (see releaseNestedTimerMaps())
+    private @Nullable NestedTimerMap nestedTimers;
 
     // separate linked list for safe iterating by other threads (e.g. partial trace capture and
     // active trace viewer)
@@ -293,7 +296,9 @@ public class TimerImpl implements Timer, CommonTimerImpl {
 
     private TimerImpl startNestedTimerInternal(TimerName timerName, long nestedTimerStartTick) {
         if (nestedTimers == null) {
-            nestedTimers = new NestedTimerMap();
+            ThreadObjectPool objectPool = threadContext.getObjectPool();
+            nestedTimers =
+                    objectPool == null ? new NestedTimerMap() : objectPool.pollNestedTimerMap();
         }
         TimerNameImpl timerNameImpl = (TimerNameImpl) timerName;
         TimerImpl nestedTimer = nestedTimers.get(timerNameImpl);
@@ -307,4 +312,22 @@ public class TimerImpl implements Timer, CommonTimerImpl {
         headChild = nestedTimer;
         return nestedTimer;
     }
+
+    // only called by the transaction thread, once the thread context has completed
+    //
+    // the timers themselves are not recycled since other threads (e.g. partial trace capture and
+    // active trace viewer) can still be reading them, but nothing else reads the nested timer maps
+    void releaseNestedTimerMaps(ThreadObjectPool objectPool) {
+        if (nestedTimers == null) {
+            // leaf timer
+            return;
+        }
+        objectPool.release(nestedTimers);
+        nestedTimers = null;
+        TimerImpl curr = headChild;
+        while (curr != null) {
+            curr.releaseNestedTimerMaps(objectPool);
+            curr = curr.nextSibling;
+        }
+    }
 }
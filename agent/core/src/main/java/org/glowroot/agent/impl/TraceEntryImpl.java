@@ -346,9 +346,9 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     }
 
     private void endWithErrorInternal(@Nullable String message, @Nullable Throwable t) {
+        long endTick = ticker.read();
         ErrorMessage errorMessage = ErrorMessage.create(message, t,
                 threadContext.getTransaction().getThrowableFrameLimitCounter());
-        endInternal(ticker.read(), errorMessage);
         // it is not helpful to capture stack trace at end of async trace entry since it is
         // ended by a different thread (and by not capturing, it reduces thread safety needs)
         if (!isAsync() && t == null) {
@@ -357,8 +357,11 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
             // TraceEntryImpl.endWithError() and the plugin advice method
             int index = ThreadContextImpl.getNormalizedStartIndex(stackTrace,
                     "endWithErrorInternal", 2);
+            // stack trace must be set prior to ending, since ending the root entry hands the
+            // transaction off to other threads (which read the stack trace without synchronization)
             setStackTrace(ImmutableList.copyOf(stackTrace).subList(index, stackTrace.length));
         }
+        endInternal(endTick, errorMessage);
     }
 
     private void endInternal(long endTick, @Nullable ErrorMessage errorMessage) {
@@ -45,6 +45,7 @@ import org.glowroot.agent.impl.GlowrootServiceImpl;
 import org.glowroot.agent.impl.ServiceRegistryImpl;
 import org.glowroot.agent.impl.ServiceRegistryImpl.ConfigServiceFactory;
 import org.glowroot.agent.impl.StackTraceCollector;
+import org.glowroot.agent.impl.ThreadContentionSampler;
 import org.glowroot.agent.impl.TimerNameCache;
 import org.glowroot.agent.impl.TransactionCollector;
 import org.glowroot.agent.impl.TransactionRegistry;
@@ -54,6 +55,7 @@ import org.glowroot.agent.live.LiveAggregateRepositoryImpl;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.agent.model.ThreadStatsComponent;
 import org.glowroot.agent.util.LazyPlatformMBeanServer;
 import org.glowroot.agent.util.OptionalService;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
@@ -63,6 +65,7 @@ import org.glowroot.agent.weaving.AnalyzedWorld;
 import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -98,6 +101,7 @@ public class AgentModule {
 
     private final GaugeCollector gaugeCollector;
     private final StackTraceCollector stackTraceCollector;
+    private final @Nullable ThreadContentionSampler threadContentionSampler;
 
     private final boolean jvmRetransformClassesSupported;
 
@@ -129,9 +133,14 @@ public class AgentModule {
                 adviceCache.getShimTypes(), adviceCache.getMixinTypes());
         final TimerNameCache timerNameCache = new TimerNameCache();
 
+        WeavingCache weavingCache = null;
+        if (WeavingCache.ENABLED) {
+            weavingCache = WeavingCache.create(agentDir, adviceCache.getAdvisorsSupplier().get(),
+                    adviceCache.getShimTypes(), adviceCache.getMixinTypes());
+        }
         Weaver weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
-                adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, timerNameCache,
-                configService);
+                adviceCache.getMixinTypes(), analyzedWorld, weavingCache, transactionRegistry,
+                timerNameCache, configService);
 
         if (instrumentation == null) {
             // instrumentation is null when debugging with LocalContainer
@@ -199,6 +208,13 @@ public class AgentModule {
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
         stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        if (ThreadStatsComponent.CONTENTION_SAMPLING_INTERVAL_MILLIS > 0) {
+            threadContentionSampler = new ThreadContentionSampler(transactionRegistry);
+            threadContentionSampler.scheduleWithFixedDelay(backgroundExecutor,
+                    ThreadStatsComponent.CONTENTION_SAMPLING_INTERVAL_MILLIS, MILLISECONDS);
+        } else {
+            threadContentionSampler = null;
+        }
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, transactionCollector, configService, ticker);
@@ -317,6 +333,9 @@ public class AgentModule {
         aggregator.close();
         gaugeCollector.close();
         stackTraceCollector.close();
+        if (threadContentionSampler != null) {
+            threadContentionSampler.cancel();
+        }
         lazyPlatformMBeanServer.close();
     }
 }
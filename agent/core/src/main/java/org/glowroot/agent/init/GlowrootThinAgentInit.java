@@ -101,7 +101,8 @@ public class GlowrootThinAgentInit implements GlowrootAgentInit {
                     centralCollector = new CentralCollector(properties,
                             checkNotNull(collectorAddress), agentModule.getLiveJvmService(),
                             agentModule.getLiveWeavingService(),
-                            agentModule.getLiveTraceRepository(), agentConfigUpdater);
+                            agentModule.getLiveTraceRepository(), agentConfigUpdater,
+                            agentModule.getLazyPlatformMBeanServer());
                     collector = centralCollector;
                 } else {
                     collector = customCollector;
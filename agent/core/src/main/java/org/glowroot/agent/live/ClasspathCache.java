@@ -16,7 +16,6 @@
 package org.glowroot.agent.live;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.instrument.Instrumentation;
@@ -29,11 +28,21 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
 
@@ -42,12 +51,13 @@ import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
-import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
@@ -55,6 +65,7 @@ import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closer;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.immutables.value.Value;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -63,10 +74,12 @@ import org.objectweb.asm.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.agent.weaving.AnalyzedWorld;
 import org.glowroot.agent.weaving.ClassNames;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.objectweb.asm.Opcodes.ACC_NATIVE;
 import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
 import static org.objectweb.asm.Opcodes.ASM5;
@@ -77,26 +90,41 @@ class ClasspathCache {
 
     private static final Logger logger = LoggerFactory.getLogger(ClasspathCache.class);
 
+    // jars are scanned in parallel since the first update on a large application can take a long
+    // time, but bounded since this is mostly (disk) io
+    private static final int MAX_THREADS = 4;
+
     private final AnalyzedWorld analyzedWorld;
     private final @Nullable Instrumentation instrumentation;
 
-    @GuardedBy("this")
+    // updates are serialized, but readers do not wait for an update that is already in progress
+    // (other than for the very first update), and instead read the last published snapshot
+    private final Lock updateLock = new ReentrantLock();
+
+    @GuardedBy("updateLock")
     private final Set<Location> classpathLocations = Sets.newHashSet();
 
+    // created on first use and then re-used across updates, idle threads time out since updates
+    // are rare
+    @GuardedBy("updateLock")
+    private @Nullable ThreadPoolExecutor executor;
+
     // using ImmutableMultimap because it is very space efficient
     // this is not updated often so trading space efficiency for copying the entire map on update
-    @GuardedBy("this")
-    private ImmutableMultimap<String, Location> classNameLocations = ImmutableMultimap.of();
+    private volatile ImmutableMultimap<String, Location> classNameLocations =
+            ImmutableMultimap.of();
+
+    private volatile boolean updatedOnce;
 
     ClasspathCache(AnalyzedWorld analyzedWorld, @Nullable Instrumentation instrumentation) {
         this.analyzedWorld = analyzedWorld;
         this.instrumentation = instrumentation;
     }
 
-    // using synchronization instead of concurrent structures in this cache to conserve memory
-    synchronized ImmutableList<String> getMatchingClassNames(String partialClassName, int limit) {
+    ImmutableList<String> getMatchingClassNames(String partialClassName, int limit) {
         // update cache before proceeding
-        updateCache();
+        updateCacheIfNotInProgress();
+        ImmutableMultimap<String, Location> classNameLocations = this.classNameLocations;
         PartialClassNameMatcher matcher = new PartialClassNameMatcher(partialClassName);
         Set<String> fullMatchingClassNames = Sets.newLinkedHashSet();
         Set<String> matchingClassNames = Sets.newLinkedHashSet();
@@ -133,10 +161,9 @@ class ClasspathCache {
         return combineClassNamesWithLimit(fullMatchingClassNames, matchingClassNames, limit);
     }
 
-    // using synchronization over concurrent structures in this cache to conserve memory
-    synchronized ImmutableList<UiAnalyzedMethod> getAnalyzedMethods(String className) {
+    ImmutableList<UiAnalyzedMethod> getAnalyzedMethods(String className) {
         // update cache before proceeding
-        updateCache();
+        updateCacheIfNotInProgress();
         Set<UiAnalyzedMethod> analyzedMethods = Sets.newHashSet();
         Collection<Location> locations = classNameLocations.get(className);
         for (Location location : locations) {
@@ -157,14 +184,37 @@ class ClasspathCache {
         return ImmutableList.copyOf(analyzedMethods);
     }
 
-    // using synchronization over concurrent structures in this cache to conserve memory
-    synchronized void updateCache() {
-        Multimap<String, Location> newClassNameLocations = HashMultimap.create();
+    void updateCache() {
+        updateLock.lock();
+        try {
+            updateCacheUnderLock();
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    private void updateCacheIfNotInProgress() {
+        if (!updatedOnce) {
+            // nothing to read yet
+            updateCache();
+        } else if (updateLock.tryLock()) {
+            try {
+                updateCacheUnderLock();
+            } finally {
+                updateLock.unlock();
+            }
+        }
+    }
+
+    @GuardedBy("updateLock")
+    private void updateCacheUnderLock() {
+        List<Location> locations = Lists.newArrayList();
         for (ClassLoader loader : getKnownClassLoaders()) {
-            updateCache(loader, newClassNameLocations);
+            locations.addAll(getLocations(loader));
         }
-        updateCacheWithClasspathClasses(newClassNameLocations);
-        updateCacheWithBootstrapClasses(newClassNameLocations);
+        locations.addAll(getLocations(StandardSystemProperty.JAVA_CLASS_PATH.value()));
+        locations.addAll(getLocations(System.getProperty("sun.boot.class.path")));
+        Multimap<String, Location> newClassNameLocations = loadClassNames(locations);
         if (!newClassNameLocations.isEmpty()) {
             // multimap that sorts keys and de-dups values while maintains value ordering
             SetMultimap<String, Location> newMap =
@@ -173,6 +223,7 @@ class ClasspathCache {
             newMap.putAll(newClassNameLocations);
             classNameLocations = ImmutableMultimap.copyOf(newMap);
         }
+        updatedOnce = true;
     }
 
     private ImmutableList<String> combineClassNamesWithLimit(Set<String> fullMatchingClassNames,
@@ -186,35 +237,18 @@ class ClasspathCache {
         return ImmutableList.copyOf(fullMatchingClassNames);
     }
 
-    @GuardedBy("this")
-    private void updateCacheWithClasspathClasses(Multimap<String, Location> newClassNameLocations) {
-        String javaClassPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
-        if (javaClassPath == null) {
-            return;
-        }
-        for (String path : Splitter.on(File.pathSeparatorChar).split(javaClassPath)) {
-            File file = new File(path);
-            Location location = getLocationFromFile(file);
-            if (location != null) {
-                loadClassNames(location, newClassNameLocations);
-            }
-        }
-    }
-
-    // TODO refactor this and above method which are nearly identical
-    @GuardedBy("this")
-    private void updateCacheWithBootstrapClasses(Multimap<String, Location> newClassNameLocations) {
-        String bootClassPath = System.getProperty("sun.boot.class.path");
-        if (bootClassPath == null) {
-            return;
+    private static List<Location> getLocations(@Nullable String path) {
+        if (path == null) {
+            return ImmutableList.of();
         }
-        for (String path : Splitter.on(File.pathSeparatorChar).split(bootClassPath)) {
-            File file = new File(path);
-            Location location = getLocationFromFile(file);
+        List<Location> locations = Lists.newArrayList();
+        for (String pathElement : Splitter.on(File.pathSeparatorChar).split(path)) {
+            Location location = getLocationFromFile(new File(pathElement));
             if (location != null) {
-                loadClassNames(location, newClassNameLocations);
+                locations.add(location);
             }
         }
+        return locations;
     }
 
     private List<UiAnalyzedMethod> getAnalyzedMethods(Location location, String className)
@@ -260,8 +294,7 @@ class ClasspathCache {
         return analyzedMethods;
     }
 
-    @GuardedBy("this")
-    private void updateCache(ClassLoader loader, Multimap<String, Location> newClassNameLocations) {
+    private List<Location> getLocations(ClassLoader loader) {
         List<URL> urls = getURLs(loader);
         List<Location> locations = Lists.newArrayList();
         for (URL url : urls) {
@@ -270,9 +303,7 @@ class ClasspathCache {
                 locations.add(location);
             }
         }
-        for (Location location : locations) {
-            loadClassNames(location, newClassNameLocations);
-        }
+        return locations;
     }
 
     private @Nullable Location tryToGetFileFromURL(URL url, ClassLoader loader) {
@@ -339,26 +370,112 @@ class ClasspathCache {
         return loaders;
     }
 
-    private void loadClassNames(Location location,
+    // returns class names from locations that have not been loaded before, including locations
+    // referenced from jar manifest Class-Path
+    @GuardedBy("updateLock")
+    private Multimap<String, Location> loadClassNames(List<Location> locations) {
+        Map<Location, LoadedClassNames> loadedClassNames = Maps.newHashMap();
+        List<Location> pendingLocations = locations;
+        while (!pendingLocations.isEmpty()) {
+            List<Location> newLocations = Lists.newArrayList();
+            for (Location location : pendingLocations) {
+                // add to classpathLocations before loading to avoid infinite loop in case of
+                // cycle in Manifest Class-Path
+                if (classpathLocations.add(location)) {
+                    newLocations.add(location);
+                }
+            }
+            if (newLocations.isEmpty()) {
+                break;
+            }
+            pendingLocations = Lists.newArrayList();
+            for (LoadedClassNames result : loadClassNamesInParallel(newLocations)) {
+                loadedClassNames.put(result.location, result);
+                pendingLocations.addAll(result.manifestClassPathLocations);
+            }
+        }
+        // locations referenced from jar manifest Class-Path are loaded in later rounds (above), but
+        // are added here right after the jar that references them, so that the order of locations
+        // for a given class name is the same as when loading serially
+        Multimap<String, Location> newClassNameLocations = LinkedHashMultimap.create();
+        Set<Location> addedLocations = Sets.newHashSet();
+        for (Location location : locations) {
+            addClassNames(location, loadedClassNames, addedLocations, newClassNameLocations);
+        }
+        return newClassNameLocations;
+    }
+
+    @GuardedBy("updateLock")
+    private List<LoadedClassNames> loadClassNamesInParallel(List<Location> locations) {
+        List<LoadedClassNames> results = Lists.newArrayList();
+        if (locations.size() == 1) {
+            for (Location location : locations) {
+                results.add(loadClassNames(location));
+            }
+        } else {
+            List<Future<LoadedClassNames>> futures = Lists.newArrayList();
+            for (final Location location : locations) {
+                futures.add(getExecutor().submit(new Callable<LoadedClassNames>() {
+                    @Override
+                    public LoadedClassNames call() {
+                        return loadClassNames(location);
+                    }
+                }));
+            }
+            // results are collected in the same order as the locations so that the order of
+            // locations for a given class name is the same as when loading serially
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(Uninterruptibles.getUninterruptibly(futures.get(i)));
+                } catch (ExecutionException e) {
+                    logger.warn("error reading classes from file: {}", locations.get(i), e);
+                }
+            }
+        }
+        return results;
+    }
+
+    @GuardedBy("updateLock")
+    private ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    ThreadFactories.create("Glowroot-Classpath-Cache-%d"));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    private static void addClassNames(Location location,
+            Map<Location, LoadedClassNames> loadedClassNames, Set<Location> addedLocations,
             Multimap<String, Location> newClassNameLocations) {
-        if (classpathLocations.contains(location)) {
+        LoadedClassNames result = loadedClassNames.get(location);
+        if (result == null || !addedLocations.add(location)) {
+            // not loaded in this update, or already added
             return;
         }
-        // add to classpath at top of method to avoid infinite recursion in case of cycle in
-        // Manifest Class-Path
-        classpathLocations.add(location);
+        for (String className : result.classNames) {
+            newClassNameLocations.put(className, location);
+        }
+        for (Location manifestClassPathLocation : result.manifestClassPathLocations) {
+            addClassNames(manifestClassPathLocation, loadedClassNames, addedLocations,
+                    newClassNameLocations);
+        }
+    }
+
+    private static LoadedClassNames loadClassNames(Location location) {
+        LoadedClassNames result = new LoadedClassNames(location);
         try {
             File dir = location.directory();
             File jarFile = location.jarFile();
             if (dir != null) {
-                loadClassNamesFromDirectory(dir, "", location, newClassNameLocations);
+                loadClassNamesFromDirectory(dir, "", result);
             } else if (jarFile != null) {
                 String nestedJarFilePath = location.nestedJarFilePath();
                 if (nestedJarFilePath == null) {
-                    loadClassNamesFromJarFile(jarFile, location, newClassNameLocations);
+                    loadClassNamesFromJarFile(jarFile, result);
                 } else {
-                    loadClassNamesFromNestedJarFile(jarFile, nestedJarFilePath, location,
-                            newClassNameLocations);
+                    loadClassNamesFromNestedJarFile(jarFile, nestedJarFilePath, result);
                 }
             } else {
                 throw new AssertionError("Both Location directory() and jarFile() are null");
@@ -369,10 +486,11 @@ class ClasspathCache {
         } catch (IOException e) {
             logger.debug("error reading classes from file: {}", location, e);
         }
+        return result;
     }
 
-    private static void loadClassNamesFromDirectory(File dir, String prefix, Location location,
-            Multimap<String, Location> newClassNameLocations) throws MalformedURLException {
+    private static void loadClassNamesFromDirectory(File dir, String prefix,
+            LoadedClassNames result) throws MalformedURLException {
         File[] files = dir.listFiles();
         if (files == null) {
             return;
@@ -380,33 +498,31 @@ class ClasspathCache {
         for (File file : files) {
             String name = file.getName();
             if (file.isFile() && name.endsWith(".class")) {
-                String className = prefix + name.substring(0, name.lastIndexOf('.'));
-                newClassNameLocations.put(className, location);
+                result.classNames.add(prefix + name.substring(0, name.lastIndexOf('.')));
             } else if (file.isDirectory()) {
-                loadClassNamesFromDirectory(file, prefix + name + ".", location,
-                        newClassNameLocations);
+                loadClassNamesFromDirectory(file, prefix + name + ".", result);
             }
         }
     }
 
-    private void loadClassNamesFromJarFile(File jarFile, Location location,
-            Multimap<String, Location> newClassNameLocations) throws IOException {
-        Closer closer = Closer.create();
-        InputStream s = new FileInputStream(jarFile);
-        JarInputStream jarIn = closer.register(new JarInputStream(s));
+    // using JarFile instead of JarInputStream since JarFile only needs to read the zip central
+    // directory, while JarInputStream inflates every entry
+    private static void loadClassNamesFromJarFile(File jarFile, LoadedClassNames result)
+            throws IOException {
+        JarFile jar = new JarFile(jarFile, false);
         try {
-            loadClassNamesFromManifestClassPath(jarIn, jarFile, newClassNameLocations);
-            loadClassNamesFromJarInputStream(jarIn, location, newClassNameLocations);
-        } catch (Throwable t) {
-            throw closer.rethrow(t);
+            loadClassNamesFromManifestClassPath(jar.getManifest(), jarFile, result);
+            Enumeration<JarEntry> e = jar.entries();
+            while (e.hasMoreElements()) {
+                loadClassName(e.nextElement(), result);
+            }
         } finally {
-            closer.close();
+            jar.close();
         }
     }
 
-    private void loadClassNamesFromManifestClassPath(JarInputStream jarIn, File jarFile,
-            Multimap<String, Location> newClassNameLocations) {
-        Manifest manifest = jarIn.getManifest();
+    private static void loadClassNamesFromManifestClassPath(@Nullable Manifest manifest,
+            File jarFile, LoadedClassNames result) {
         if (manifest == null) {
             return;
         }
@@ -419,14 +535,13 @@ class ClasspathCache {
             File file = new File(baseUri.resolve(path));
             Location location = getLocationFromFile(file);
             if (location != null) {
-                loadClassNames(location, newClassNameLocations);
+                result.manifestClassPathLocations.add(location);
             }
         }
     }
 
     private static void loadClassNamesFromNestedJarFile(File jarFile, String nestedJarFilePath,
-            Location location, Multimap<String, Location> newClassNameLocations)
-            throws IOException {
+            LoadedClassNames result) throws IOException {
         URI uri;
         try {
             uri = new URI("jar", "file:" + jarFile.getPath() + "!/" + nestedJarFilePath, "");
@@ -438,7 +553,10 @@ class ClasspathCache {
         InputStream s = uri.toURL().openStream();
         JarInputStream jarIn = closer.register(new JarInputStream(s));
         try {
-            loadClassNamesFromJarInputStream(jarIn, location, newClassNameLocations);
+            JarEntry jarEntry;
+            while ((jarEntry = jarIn.getNextJarEntry()) != null) {
+                loadClassName(jarEntry, result);
+            }
         } catch (Throwable t) {
             throw closer.rethrow(t);
         } finally {
@@ -446,20 +564,15 @@ class ClasspathCache {
         }
     }
 
-    private static void loadClassNamesFromJarInputStream(JarInputStream jarIn, Location location,
-            Multimap<String, Location> newClassNameLocations) throws IOException {
-        JarEntry jarEntry;
-        while ((jarEntry = jarIn.getNextJarEntry()) != null) {
-            if (jarEntry.isDirectory()) {
-                continue;
-            }
-            String name = jarEntry.getName();
-            if (!name.endsWith(".class")) {
-                continue;
-            }
-            String className = name.substring(0, name.lastIndexOf('.')).replace('/', '.');
-            newClassNameLocations.put(className, location);
+    private static void loadClassName(JarEntry jarEntry, LoadedClassNames result) {
+        if (jarEntry.isDirectory()) {
+            return;
+        }
+        String name = jarEntry.getName();
+        if (!name.endsWith(".class")) {
+            return;
         }
+        result.classNames.add(name.substring(0, name.lastIndexOf('.')).replace('/', '.'));
     }
 
     private static @Nullable Location getFileFromJBossVfsURL(URL url, ClassLoader loader)
@@ -642,6 +755,17 @@ class ClasspathCache {
         throw new UnsupportedOperationException();
     }
 
+    private static class LoadedClassNames {
+
+        private final Location location;
+        private final List<String> classNames = Lists.newArrayList();
+        private final List<Location> manifestClassPathLocations = Lists.newArrayList();
+
+        private LoadedClassNames(Location location) {
+            this.location = location;
+        }
+    }
+
     @Value.Immutable
     interface Location {
         @Nullable
@@ -59,6 +59,12 @@ public class MutableAggregateTimer {
         timer.mergeChildTimersInto2(childTimers);
     }
 
+    public void merge(MutableAggregateTimer timer) {
+        count += timer.count;
+        totalDurationNanos += timer.totalDurationNanos;
+        mergeChildTimers(timer.childTimers, childTimers);
+    }
+
     public Aggregate.Timer toProto() {
         Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
                 .setName(name)
@@ -70,4 +76,23 @@ public class MutableAggregateTimer {
         }
         return builder.build();
     }
+
+    public static void mergeChildTimers(List<MutableAggregateTimer> toBeMergedTimers,
+            List<MutableAggregateTimer> timers) {
+        for (MutableAggregateTimer toBeMergedTimer : toBeMergedTimers) {
+            MutableAggregateTimer matchingTimer = null;
+            for (MutableAggregateTimer timer : timers) {
+                if (toBeMergedTimer.name.equals(timer.name)
+                        && toBeMergedTimer.extended == timer.extended) {
+                    matchingTimer = timer;
+                    break;
+                }
+            }
+            if (matchingTimer == null) {
+                matchingTimer = createRootTimer(toBeMergedTimer.name, toBeMergedTimer.extended);
+                timers.add(matchingTimer);
+            }
+            matchingTimer.merge(toBeMergedTimer);
+        }
+    }
 }
@@ -21,16 +21,30 @@ import org.glowroot.wire.api.model.Proto.OptionalInt64;
 
 class MutableQuery {
 
+    private final String queryText;
+    // QueryTextInterner.NO_ID for query texts that were not interned
+    private final long queryTextId;
+
     private MutableNumber totalDurationNanos;
     private long executionCount;
 
     private boolean hasTotalRows;
     private long totalRows;
 
-    MutableQuery(boolean traceLevel) {
+    MutableQuery(String queryText, long queryTextId, boolean traceLevel) {
+        this.queryText = queryText;
+        this.queryTextId = queryTextId;
         totalDurationNanos = traceLevel ? new MutableLong() : new MutableDouble();
     }
 
+    String getQueryText() {
+        return queryText;
+    }
+
+    long getQueryTextId() {
+        return queryTextId;
+    }
+
     double getTotalDurationNanos() {
         return totalDurationNanos.getDouble();
     }
@@ -51,6 +65,10 @@ class MutableQuery {
         this.totalDurationNanos.add(totalDurationNanos);
     }
 
+    void addToTotalDurationNanos(double totalDurationNanos) {
+        this.totalDurationNanos.add(totalDurationNanos);
+    }
+
     void addToExecutionCount(long executionCount) {
         this.executionCount += executionCount;
     }
@@ -62,8 +80,7 @@ class MutableQuery {
         }
     }
 
-    Aggregate.Query toAggregateProto(String queryText,
-            SharedQueryTextCollector sharedQueryTextCollector) {
+    Aggregate.Query toAggregateProto(SharedQueryTextCollector sharedQueryTextCollector) {
         int sharedQueryTextIndex = sharedQueryTextCollector.getIndex(queryText);
         Aggregate.Query.Builder builder = Aggregate.Query.newBuilder()
                 .setSharedQueryTextIndex(sharedQueryTextIndex)
@@ -77,6 +94,7 @@ class MutableQuery {
 
     private interface MutableNumber {
         void add(long value);
+        void add(double value);
         long getLong();
         double getDouble();
     }
@@ -90,6 +108,12 @@ class MutableQuery {
             this.value += value;
         }
 
+        @Override
+        public void add(double value) {
+            // only called when merging trace level queries, which are always whole nanoseconds
+            this.value += (long) value;
+        }
+
         @Override
         public long getLong() {
             return value;
@@ -111,6 +135,11 @@ class MutableQuery {
             this.value += value;
         }
 
+        @Override
+        public void add(double value) {
+            this.value += value;
+        }
+
         @Override
         public long getLong() {
             // not ok to convert double to long
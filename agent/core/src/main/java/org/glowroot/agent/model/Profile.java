@@ -18,17 +18,26 @@ package org.glowroot.agent.model;
 import java.lang.management.ThreadInfo;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.MutableProfile.StackTraceCache;
 
 public class Profile {
 
+    // caps the cost of merging (and the memory of) very deep stack traces, at the cost of profile
+    // accuracy, frames are dropped from the leaf end so that truncated stack traces still share the
+    // same root nodes as the rest of the profile
+    private static final int MAX_STACK_DEPTH =
+            Integer.getInteger("glowroot.internal.profiling.maxStackDepth", Integer.MAX_VALUE);
+
     private final Object lock = new Object();
     @GuardedBy("lock")
     private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
@@ -38,6 +47,9 @@ public class Profile {
     private @MonotonicNonNull MutableProfile profile;
     @GuardedBy("lock")
     private long sampleCount;
+    // keyed by thread id, since the auxiliary thread profile is shared by multiple threads
+    @GuardedBy("lock")
+    private final Map<Long, StackTraceCache> stackTraceCaches = Maps.newHashMap();
 
     @VisibleForTesting
     public Profile() {}
@@ -74,14 +86,25 @@ public class Profile {
     // limit is just to cap memory consumption for a single transaction profile in case it runs for
     // a very very very long time
     public void addStackTrace(ThreadInfo threadInfo, int limit) {
+        StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+        if (stackTrace.length > MAX_STACK_DEPTH) {
+            // element 0 is the leaf
+            stackTrace = Arrays.copyOfRange(stackTrace, stackTrace.length - MAX_STACK_DEPTH,
+                    stackTrace.length);
+        }
+        addStackTrace(threadInfo.getThreadId(), stackTrace, threadInfo.getThreadState(), limit);
+    }
+
+    // stack trace array must not be modified afterwards
+    @VisibleForTesting
+    public void addStackTrace(long threadId, StackTraceElement[] stackTrace,
+            Thread.State threadState, int limit) {
         synchronized (lock) {
             if (sampleCount >= limit) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            Thread.State threadState = threadInfo.getThreadState();
             if (profile == null) {
-                unmergedStackTraces.add(stackTrace);
+                unmergedStackTraces.add(Arrays.asList(stackTrace));
                 unmergedStackTraceThreadStates.add(threadState);
                 if (unmergedStackTraces.size() >= 10) {
                     // merged stack tree takes up less memory
@@ -91,12 +114,22 @@ public class Profile {
                     unmergedStackTraceThreadStates.clear();
                 }
             } else {
-                profile.merge(stackTrace, threadState);
+                profile.merge(stackTrace, threadState, getStackTraceCache(threadId));
             }
             sampleCount++;
         }
     }
 
+    @GuardedBy("lock")
+    private StackTraceCache getStackTraceCache(long threadId) {
+        StackTraceCache stackTraceCache = stackTraceCaches.get(threadId);
+        if (stackTraceCache == null) {
+            stackTraceCache = new StackTraceCache();
+            stackTraceCaches.put(threadId, stackTraceCache);
+        }
+        return stackTraceCache;
+    }
+
     private void mergeTheUnmergedInto(MutableProfile profile) {
         for (int i = 0; i < unmergedStackTraces.size(); i++) {
             List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
@@ -15,11 +15,13 @@
  */
 package org.glowroot.agent.model;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 
 import javax.annotation.Nullable;
 
@@ -27,37 +29,31 @@ import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Ordering;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Doubles;
-import org.immutables.value.Value;
 
 import org.glowroot.common.config.StorageConfig;
-import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 public class QueryCollector {
 
-    private static final Ordering<Entry<String, MutableQuery>> bySmallestTotalDuration =
-            new Ordering<Entry<String, MutableQuery>>() {
+    private static final Comparator<MutableQuery> byLargestTotalDuration =
+            new Comparator<MutableQuery>() {
                 @Override
-                public int compare(Entry<String, MutableQuery> left,
-                        Entry<String, MutableQuery> right) {
-                    return Doubles.compare(left.getValue().getTotalDurationNanos(),
-                            right.getValue().getTotalDurationNanos());
+                public int compare(MutableQuery left, MutableQuery right) {
+                    return Doubles.compare(right.getTotalDurationNanos(),
+                            left.getTotalDurationNanos());
                 }
             };
 
     private static final int REMOVE_SMALLEST_N = 10;
 
-    // first key is query type, second key is query text
-    private final Map<String, Map<String, MutableQuery>> queries = Maps.newHashMap();
+    // key is query type
+    private final Map<String, QueriesForType> queries = Maps.newHashMap();
     private final int limit;
     private final int maxMultiplierWhileBuilding;
     private final boolean traceLevel;
 
-    private final Map<String, MinQuery> minQueryPerType = Maps.newHashMap();
-
     public QueryCollector(int limit, int maxMultiplierWhileBuilding, boolean traceLevel) {
         this.limit = limit;
         this.maxMultiplierWhileBuilding = maxMultiplierWhileBuilding;
@@ -70,12 +66,12 @@ public class QueryCollector {
             return ImmutableList.of();
         }
         List<Aggregate.QueriesByType> proto = Lists.newArrayList();
-        for (Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
+        for (Entry<String, QueriesForType> outerEntry : queries.entrySet()) {
+            QueriesForType queriesForType = outerEntry.getValue();
             List<Aggregate.Query> queries =
-                    Lists.newArrayListWithCapacity(outerEntry.getValue().values().size());
-            for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
-                queries.add(entry.getValue().toAggregateProto(entry.getKey(),
-                        sharedQueryTextCollector));
+                    Lists.newArrayListWithCapacity(queriesForType.size());
+            for (MutableQuery query : queriesForType.getQueries()) {
+                queries.add(query.toAggregateProto(sharedQueryTextCollector));
             }
             if (queries.size() > limit) {
                 orderAggregateQueries(queries);
@@ -91,19 +87,32 @@ public class QueryCollector {
 
     public void mergeQuery(String queryType, String queryText, long totalDurationNanos,
             long executionCount, boolean hasTotalRows, long totalRows) {
-        Map<String, MutableQuery> queriesForType = queries.get(queryType);
-        if (queriesForType == null) {
-            queriesForType = Maps.newHashMap();
-            queries.put(queryType, queriesForType);
+        mergeQuery(queryType, QueryTextInterner.NO_ID, queryText, totalDurationNanos,
+                executionCount, hasTotalRows, totalRows);
+    }
+
+    // queryTextId is from QueryTextInterner (or QueryTextInterner.NO_ID)
+    public void mergeQuery(String queryType, long queryTextId, String queryText,
+            long totalDurationNanos, long executionCount, boolean hasTotalRows, long totalRows) {
+        getOrCreateQueriesForType(queryType).merge(queryTextId, queryText, totalDurationNanos,
+                executionCount, totalRows, hasTotalRows);
+    }
+
+    public void mergeQueries(QueryCollector toBeMergedQueries) {
+        for (Entry<String, QueriesForType> outerEntry : toBeMergedQueries.queries.entrySet()) {
+            QueriesForType queriesForType = getOrCreateQueriesForType(outerEntry.getKey());
+            for (MutableQuery query : outerEntry.getValue().getQueries()) {
+                queriesForType.merge(query.getQueryTextId(), query.getQueryText(),
+                        query.getTotalDurationNanos(), query.getExecutionCount(),
+                        query.getTotalRows(), query.hasTotalRows());
+            }
         }
-        mergeQuery(queryType, queryText, totalDurationNanos, executionCount, totalRows,
-                hasTotalRows, queriesForType);
     }
 
     public void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector) {
-        for (Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
-            for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
-                String fullQueryText = entry.getKey();
+        for (Entry<String, QueriesForType> outerEntry : queries.entrySet()) {
+            for (MutableQuery query : outerEntry.getValue().getQueries()) {
+                String fullQueryText = query.getQueryText();
                 String truncatedQueryText;
                 String fullQueryTextSha1;
                 if (fullQueryText.length() > StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
@@ -115,7 +124,6 @@ public class QueryCollector {
                     truncatedQueryText = fullQueryText;
                     fullQueryTextSha1 = null;
                 }
-                MutableQuery query = entry.getValue();
                 collector.mergeQuery(outerEntry.getKey(), truncatedQueryText, fullQueryTextSha1,
                         query.getTotalDurationNanos(), query.getExecutionCount(),
                         query.hasTotalRows(), query.getTotalRows());
@@ -124,8 +132,9 @@ public class QueryCollector {
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        for (Entry<String, Map<String, MutableQuery>> entry : queries.entrySet()) {
-            for (String fullQueryText : entry.getValue().keySet()) {
+        for (QueriesForType queriesForType : queries.values()) {
+            for (MutableQuery query : queriesForType.getQueries()) {
+                String fullQueryText = query.getQueryText();
                 if (fullQueryText.length() <= StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     continue;
                 }
@@ -138,39 +147,13 @@ public class QueryCollector {
         return null;
     }
 
-    private void mergeQuery(String queryType, String queryText, long totalDurationNanos,
-            long executionCount, long totalRows, boolean hasTotalRows,
-            Map<String, MutableQuery> queriesForType) {
-        MutableQuery aggregateQuery = queriesForType.get(queryText);
-        boolean truncateAndRecalculateMinQuery = false;
-        if (aggregateQuery == null) {
-            if (maxMultiplierWhileBuilding != 0
-                    && queriesForType.size() >= limit * maxMultiplierWhileBuilding) {
-                MinQuery minQuery = minQueryPerType.get(queryType);
-                if (minQuery != null && totalDurationNanos < minQuery.totalDurationNanos()) {
-                    return;
-                }
-                truncateAndRecalculateMinQuery = true;
-            }
-            aggregateQuery = new MutableQuery(traceLevel);
-            queriesForType.put(queryText, aggregateQuery);
-        }
-        aggregateQuery.addToTotalDurationNanos(totalDurationNanos);
-        aggregateQuery.addToExecutionCount(executionCount);
-        aggregateQuery.addToTotalRows(hasTotalRows, totalRows);
-        if (truncateAndRecalculateMinQuery) {
-            // TODO report checker framework issue that occurs without this suppression
-            @SuppressWarnings("assignment.type.incompatible")
-            List<Entry<String, MutableQuery>> sortedEntries =
-                    bySmallestTotalDuration.sortedCopy(queriesForType.entrySet());
-            // remove smallest N (instead of just smallest 1) to avoid re-sort again so quickly
-            for (int i = 0; i < REMOVE_SMALLEST_N; i++) {
-                queriesForType.remove(sortedEntries.get(i).getKey());
-            }
-            MutableQuery lastQuery = sortedEntries.get(REMOVE_SMALLEST_N).getValue();
-            minQueryPerType.put(queryType,
-                    ImmutableMinQuery.of(lastQuery, lastQuery.getTotalDurationNanos()));
+    private QueriesForType getOrCreateQueriesForType(String queryType) {
+        QueriesForType queriesForType = queries.get(queryType);
+        if (queriesForType == null) {
+            queriesForType = new QueriesForType();
+            queries.put(queryType, queriesForType);
         }
+        return queriesForType;
     }
 
     private static void orderAggregateQueries(List<Aggregate.Query> queries) {
@@ -183,11 +166,143 @@ public class QueryCollector {
         });
     }
 
-    @Value.Immutable
-    @Styles.AllParameters
-    interface MinQuery {
-        MutableQuery query();
-        double totalDurationNanos();
+    // queries with an interned query text id are keyed by that id in a primitive table, so that
+    // the aggregation thread does not need to hash the query text, and the remaining queries (query
+    // text not interned) are keyed by query text
+    //
+    // this relies on QueryTextInterner never re-assigning ids, so that a given query text is always
+    // keyed by the same id (or always by query text)
+    private class QueriesForType {
+
+        // open addressing (linear probing), capacity must always be a power of 2
+        private long[] internedKeys = new long[16];
+        private @Nullable MutableQuery[] internedValues = new MutableQuery[16];
+        private int internedSize;
+
+        private final Map<String, MutableQuery> uninterned = Maps.newHashMap();
+
+        private boolean hasMinTotalDurationNanos;
+        private double minTotalDurationNanos;
+
+        private void merge(long queryTextId, String queryText, double totalDurationNanos,
+                long executionCount, long totalRows, boolean hasTotalRows) {
+            MutableQuery query;
+            int index = -1;
+            if (queryTextId == QueryTextInterner.NO_ID) {
+                query = uninterned.get(queryText);
+            } else {
+                index = indexOf(queryTextId);
+                query = internedValues[index];
+            }
+            boolean truncateAndRecalculateMinQuery = false;
+            if (query == null) {
+                if (maxMultiplierWhileBuilding != 0
+                        && size() >= limit * maxMultiplierWhileBuilding) {
+                    if (hasMinTotalDurationNanos && totalDurationNanos < minTotalDurationNanos) {
+                        return;
+                    }
+                    truncateAndRecalculateMinQuery = true;
+                }
+                query = new MutableQuery(queryText, queryTextId, traceLevel);
+                if (index == -1) {
+                    uninterned.put(queryText, query);
+                } else {
+                    internedKeys[index] = queryTextId;
+                    internedValues[index] = query;
+                    if (++internedSize > internedValues.length >> 1) {
+                        rehashInterned(internedValues.length << 1,
+                                ImmutableList.<MutableQuery>of());
+                    }
+                }
+            }
+            query.addToTotalDurationNanos(totalDurationNanos);
+            query.addToExecutionCount(executionCount);
+            query.addToTotalRows(hasTotalRows, totalRows);
+            if (truncateAndRecalculateMinQuery) {
+                removeSmallest();
+            }
+        }
+
+        private int size() {
+            return internedSize + uninterned.size();
+        }
+
+        private List<MutableQuery> getQueries() {
+            List<MutableQuery> queries = Lists.newArrayListWithCapacity(size());
+            for (MutableQuery query : internedValues) {
+                if (query != null) {
+                    queries.add(query);
+                }
+            }
+            queries.addAll(uninterned.values());
+            return queries;
+        }
+
+        // remove smallest N (instead of just smallest 1) to avoid having to do this again so
+        // quickly, using a bounded max heap to find the smallest N + 1 without sorting everything
+        private void removeSmallest() {
+            PriorityQueue<MutableQuery> smallest =
+                    new PriorityQueue<MutableQuery>(REMOVE_SMALLEST_N + 2, byLargestTotalDuration);
+            for (MutableQuery query : getQueries()) {
+                if (smallest.size() <= REMOVE_SMALLEST_N) {
+                    smallest.add(query);
+                } else if (query.getTotalDurationNanos() < smallest.peek()
+                        .getTotalDurationNanos()) {
+                    smallest.poll();
+                    smallest.add(query);
+                }
+            }
+            // the largest of the smallest N + 1 is retained and becomes the new min
+            MutableQuery minQuery = smallest.poll();
+            boolean removeInterned = false;
+            for (MutableQuery query : smallest) {
+                if (query.getQueryTextId() == QueryTextInterner.NO_ID) {
+                    uninterned.remove(query.getQueryText());
+                } else {
+                    removeInterned = true;
+                }
+            }
+            if (removeInterned) {
+                // linear probing does not support simple removal, so rebuild without them
+                rehashInterned(internedValues.length, smallest);
+            }
+            hasMinTotalDurationNanos = true;
+            minTotalDurationNanos = minQuery.getTotalDurationNanos();
+        }
+
+        // returns the index of the key, or the index of the empty slot where the key belongs
+        private int indexOf(long queryTextId) {
+            int mask = internedValues.length - 1;
+            int index = hash(queryTextId) & mask;
+            while (true) {
+                if (internedValues[index] == null || internedKeys[index] == queryTextId) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        private void rehashInterned(int capacity, Collection<MutableQuery> excluding) {
+            MutableQuery[] existingValues = internedValues;
+            internedKeys = new long[capacity];
+            internedValues = new MutableQuery[capacity];
+            internedSize = 0;
+            for (MutableQuery query : existingValues) {
+                if (query != null && !excluding.contains(query)) {
+                    long queryTextId = query.getQueryTextId();
+                    int index = indexOf(queryTextId);
+                    internedKeys[index] = queryTextId;
+                    internedValues[index] = query;
+                    internedSize++;
+                }
+            }
+        }
+
+        private int hash(long queryTextId) {
+            // spread sequential ids across the table
+            long h = queryTextId * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
     }
 
     public static class SharedQueryTextCollector {
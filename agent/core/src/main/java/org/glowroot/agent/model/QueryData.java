@@ -40,6 +40,8 @@ public class QueryData {
 
     private final String queryType;
     private final String queryText;
+    // see QueryTextInterner
+    private final long queryTextId;
     private final @Nullable QueryData nextQueryData;
 
     // nanosecond rollover (292 years) isn't a concern for total time on a single transaction
@@ -55,8 +57,14 @@ public class QueryData {
     private int selfNestingLevel;
 
     public QueryData(String queryType, String queryText, @Nullable QueryData nextQueryData) {
+        this(queryType, queryText, QueryTextInterner.NO_ID, nextQueryData);
+    }
+
+    public QueryData(String queryType, String queryText, long queryTextId,
+            @Nullable QueryData nextQueryData) {
         this.queryType = queryType;
         this.queryText = queryText;
+        this.queryTextId = queryTextId;
         this.nextQueryData = nextQueryData;
     }
 
@@ -68,6 +76,10 @@ public class QueryData {
         return queryText;
     }
 
+    public long getQueryTextId() {
+        return queryTextId;
+    }
+
     public @Nullable QueryData getNextQueryData() {
         return nextQueryData;
     }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+
+// agent-wide table that assigns each distinct query text an id, so that query text is only hashed
+// (and compared) once per transaction on the transaction thread, and aggregation can then key
+// queries by id
+//
+// the table is bounded, and once it fills up, query texts that are not already interned are not
+// interned at all (NO_ID), and are keyed by query text instead (see QueryCollector)
+//
+// entries are never removed and ids are never re-assigned, so a given query text always maps to
+// the same id (or always to NO_ID), which QueryCollector relies on to key each query only once
+//
+// the bounds are checked without locking, so they can be exceeded by (at most) one entry per
+// concurrently interning thread
+public class QueryTextInterner {
+
+    public static final long NO_ID = -1;
+
+    private static final int MAX_SIZE =
+            Integer.getInteger("glowroot.internal.queryTextInterner.maxSize", 10000);
+
+    // this bounds memory retained by the interner in the presence of very long query texts
+    private static final long MAX_TOTAL_CHARS =
+            Long.getLong("glowroot.internal.queryTextInterner.maxTotalChars", 1000000);
+
+    private static final QueryTextInterner INSTANCE =
+            new QueryTextInterner(MAX_SIZE, MAX_TOTAL_CHARS);
+
+    private final int maxSize;
+    private final long maxTotalChars;
+
+    private final ConcurrentMap<String, Long> ids = Maps.newConcurrentMap();
+
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong totalChars = new AtomicLong();
+
+    @VisibleForTesting
+    QueryTextInterner(int maxSize, long maxTotalChars) {
+        this.maxSize = maxSize;
+        this.maxTotalChars = maxTotalChars;
+    }
+
+    public static long getId(String queryText) {
+        return INSTANCE.intern(queryText);
+    }
+
+    @VisibleForTesting
+    long intern(String queryText) {
+        Long id = ids.get(queryText);
+        if (id != null) {
+            return id;
+        }
+        if (size.get() >= maxSize
+                || totalChars.get() + queryText.length() > maxTotalChars) {
+            return NO_ID;
+        }
+        long newId = nextId.getAndIncrement();
+        Long existingId = ids.putIfAbsent(queryText, newId);
+        if (existingId != null) {
+            // interned concurrently by another thread
+            return existingId;
+        }
+        size.incrementAndGet();
+        totalChars.addAndGet(queryText.length());
+        return newId;
+    }
+
+    @VisibleForTesting
+    int size() {
+        return size.get();
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2016 the original author or authors.
+ * Copyright 2013-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -31,6 +31,25 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 public class ThreadStatsComponent {
 
+    // 0 means the starting blocked and waited times are captured (using
+    // ThreadMXBean.getThreadInfo()) at the start of every transaction
+    //
+    // otherwise, ThreadMXBean.getThreadInfo() is a VM operation that is relatively expensive for
+    // high-rate short transactions, so instead the starting blocked and waited times are captured
+    // by ThreadContentionSampler (batched for all active transaction threads) once the transaction
+    // has been running for up to this interval, and transactions that complete before that are
+    // reported with blocked and waited times not available (-1), so that they are not reported as
+    // zero, and the blocked and waited times of the other transactions are under-reported by up
+    // to this interval per transaction
+    //
+    // aggregates sum blocked and waited times over the sampled transactions only, and extrapolate
+    // from those to the full transaction count (see AggregateCollector.ThreadStatsCollectorImpl)
+    //
+    // CPU time and allocated bytes are captured at the start of every transaction either way,
+    // since those are cheap to capture
+    public static final int CONTENTION_SAMPLING_INTERVAL_MILLIS = Integer
+            .getInteger("glowroot.internal.threadStats.contentionSamplingIntervalMillis", 0);
+
     private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
     private static final boolean IS_THREAD_CPU_TIME_SUPPORTED =
             threadMXBean.isThreadCpuTimeSupported();
@@ -39,10 +58,15 @@ public class ThreadStatsComponent {
 
     private final long threadId;
     private final long startingCpuNanos;
-    private final long startingBlockedMillis;
-    private final long startingWaitedMillis;
     private final long startingAllocatedBytes;
 
+    @GuardedBy("lock")
+    private long startingBlockedMillis;
+    @GuardedBy("lock")
+    private long startingWaitedMillis;
+    // only false while waiting for ThreadContentionSampler to capture the starting values
+    private volatile boolean startingContentionCaptured;
+
     private final @Nullable ThreadAllocatedBytes threadAllocatedBytes;
 
     @GuardedBy("lock")
@@ -52,17 +76,22 @@ public class ThreadStatsComponent {
 
     public ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
         threadId = Thread.currentThread().getId();
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        // thread info for current thread cannot be null
-        checkNotNull(threadInfo);
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
             startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
         } else {
             startingCpuNanos = -1;
         }
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+        if (!IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+            startingBlockedMillis = -1;
+            startingWaitedMillis = -1;
+            startingContentionCaptured = true;
+        } else if (CONTENTION_SAMPLING_INTERVAL_MILLIS == 0) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            // thread info for current thread cannot be null
+            checkNotNull(threadInfo);
             startingBlockedMillis = threadInfo.getBlockedTime();
             startingWaitedMillis = threadInfo.getWaitedTime();
+            startingContentionCaptured = true;
         } else {
             startingBlockedMillis = -1;
             startingWaitedMillis = -1;
@@ -96,6 +125,21 @@ public class ThreadStatsComponent {
         }
     }
 
+    public boolean needsStartingContention() {
+        return !startingContentionCaptured;
+    }
+
+    // called by ThreadContentionSampler, with thread info captured from another thread
+    public void captureStartingContention(ThreadInfo threadInfo) {
+        synchronized (lock) {
+            if (completedThreadStats == null && !startingContentionCaptured) {
+                startingBlockedMillis = threadInfo.getBlockedTime();
+                startingWaitedMillis = threadInfo.getWaitedTime();
+                startingContentionCaptured = true;
+            }
+        }
+    }
+
     // safe to be called from another thread
     public long getTotalCpuNanos() {
         synchronized (lock) {
@@ -115,6 +159,11 @@ public class ThreadStatsComponent {
     }
 
     private ThreadStats getThreadStatsInternal() {
+        if (!startingContentionCaptured) {
+            // transaction completed (or is being viewed) before its starting blocked and waited
+            // times were captured, see comment on CONTENTION_SAMPLING_INTERVAL_MILLIS
+            return getThreadStatsWithoutContention();
+        }
         ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
         if (threadInfo == null) {
             // thread must have just recently terminated
@@ -145,6 +194,23 @@ public class ThreadStatsComponent {
                 totalAllocatedBytes);
     }
 
+    private ThreadStats getThreadStatsWithoutContention() {
+        long totalCpuNanos;
+        if (IS_THREAD_CPU_TIME_SUPPORTED) {
+            totalCpuNanos = getTotalCpuNanosInternal();
+        } else {
+            totalCpuNanos = -1;
+        }
+        long totalAllocatedBytes;
+        if (this.threadAllocatedBytes != null) {
+            totalAllocatedBytes = getThreadAllocatedBytes();
+        } else {
+            totalAllocatedBytes = -1;
+        }
+        // blocked and waited times are not available since the starting values were not captured
+        return new ThreadStats(totalCpuNanos, -1, -1, totalAllocatedBytes);
+    }
+
     private long getTotalCpuNanosInternal() {
         // getThreadCpuTime() returns -1 if CPU time measurement is disabled (which is different
         // than whether or not it is supported)
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nullable;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// bounded lock-free multi-producer / single-consumer ring buffer that stamps each element with a
+// capture time, guaranteeing that capture times are placed into the buffer in order (so that the
+// consumer can assume if a capture time indicates time to flush, then no new elements will come in
+// with prior capture time)
+//
+// this class intentionally only exposes JDK types since it is also used by the benchmarks module
+public abstract class CaptureTimeRingBuffer<E> {
+
+    public static final long REJECTED = -1;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    // written by producer before publishing the element, and only read by consumer after observing
+    // the published element
+    private final long[] captureTimes;
+
+    // next sequence to be claimed (by a producer, or by the consumer in claimIfEmpty())
+    private final AtomicLong tail = new AtomicLong();
+    // next sequence to be consumed, only written by the single consumer
+    private final AtomicLong head = new AtomicLong();
+
+    private final WaitStrategy waitStrategy;
+
+    private volatile @Nullable Thread waitingConsumer;
+    private volatile boolean closed;
+
+    // only accessed by the single consumer
+    private long polledCaptureTime;
+
+    protected CaptureTimeRingBuffer(int minCapacity, WaitStrategy waitStrategy) {
+        capacity = Integer.highestOneBit(Math.max(minCapacity - 1, 1)) << 1;
+        mask = capacity - 1;
+        elements = new AtomicReferenceArray<E>(capacity);
+        captureTimes = new long[capacity];
+        this.waitStrategy = waitStrategy;
+    }
+
+    protected abstract long currentTimeMillis();
+
+    // returns the capture time, or REJECTED if the buffer is full
+    public long offer(E element) {
+        long sequence;
+        long captureTime;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() >= capacity) {
+                return REJECTED;
+            }
+            // capture time is read after reading the sequence, and the sequence is only claimed if
+            // no one else has claimed it in the meantime, so any later sequence will be stamped
+            // with a capture time that was read after this one
+            captureTime = currentTimeMillis();
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        int index = (int) sequence & mask;
+        captureTimes[index] = captureTime;
+        elements.lazySet(index, element);
+        // the compareAndSet above is a full fence, so either the consumer sees the claimed sequence
+        // before parking, or this sees the waiting consumer
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return captureTime;
+    }
+
+    // only called by the single consumer
+    //
+    // returns null if the buffer is empty, or if the next element has been claimed but not yet
+    // published by its producer
+    public @Nullable E poll() {
+        long sequence = head.get();
+        int index = (int) sequence & mask;
+        E element = elements.get(index);
+        if (element == null) {
+            return null;
+        }
+        polledCaptureTime = captureTimes[index];
+        // element slot must be cleared before head is advanced, since producers only re-use the
+        // slot after observing the advanced head
+        elements.lazySet(index, null);
+        head.lazySet(sequence + 1);
+        return element;
+    }
+
+    // only called by the single consumer, returns the capture time of the last polled element
+    public long getPolledCaptureTime() {
+        return polledCaptureTime;
+    }
+
+    // only called by the single consumer
+    //
+    // if the buffer is empty, claims a sequence (without an element) and returns the current time
+    // read while claiming it, which guarantees that no element can subsequently enter the buffer
+    // with a prior capture time, otherwise returns REJECTED
+    public long claimIfEmpty() {
+        long sequence = head.get();
+        if (tail.get() != sequence) {
+            return REJECTED;
+        }
+        long currentTime = currentTimeMillis();
+        if (!tail.compareAndSet(sequence, sequence + 1)) {
+            // something just crept into the buffer
+            return REJECTED;
+        }
+        head.lazySet(sequence + 1);
+        return currentTime;
+    }
+
+    // only called by the single consumer, when poll() returns null
+    public void await(long maxWaitMillis) throws InterruptedException {
+        switch (waitStrategy) {
+            case PARK:
+                waitingConsumer = Thread.currentThread();
+                try {
+                    if (!closed && tail.get() == head.get()) {
+                        LockSupport.parkNanos(this, MILLISECONDS.toNanos(maxWaitMillis));
+                    }
+                } finally {
+                    waitingConsumer = null;
+                }
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case SLEEP:
+                Thread.sleep(1);
+                break;
+            default:
+                throw new AssertionError("Unexpected wait strategy: " + waitStrategy);
+        }
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    // wakes up the consumer if it is waiting, and prevents it from waiting again
+    public void close() {
+        closed = true;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    public enum WaitStrategy {
+
+        // consumer parks until an element is published (or until max wait), producers only pay
+        // for an unpark when the consumer is actually parked
+        PARK,
+        // consumer busy spins, yielding between polls (lowest latency, burns a core)
+        YIELD,
+        // consumer sleeps 1 millisecond between polls
+        SLEEP
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,6 +17,7 @@ package org.glowroot.agent.weaving;
 
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 
 import javax.annotation.Nullable;
@@ -74,6 +75,12 @@ class Accessor {
         }
     }
 
+    // returns null for array length
+    @Nullable
+    Member getMember() {
+        return method == null ? field : method;
+    }
+
     @Nullable
     Object evaluate(Object object) throws Exception {
         if (isArrayEvaluation(object)) {
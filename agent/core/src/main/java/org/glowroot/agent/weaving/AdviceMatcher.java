@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2016 the original author or authors.
+ * Copyright 2012-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -38,9 +38,13 @@ abstract class AdviceMatcher {
     private static final Logger logger = LoggerFactory.getLogger(AdviceMatcher.class);
 
     static ImmutableList<AdviceMatcher> getAdviceMatchers(String className,
-            List<String> classAnnotations, List<Advice> advisors) {
+            List<String> classAnnotations, AdviceMatcherIndex adviceMatcherIndex) {
+        List<Advice> candidates = adviceMatcherIndex.getCandidates(className, classAnnotations);
+        if (candidates.isEmpty()) {
+            return ImmutableList.of();
+        }
         List<AdviceMatcher> adviceMatchers = Lists.newArrayList();
-        for (Advice advice : advisors) {
+        for (Advice advice : candidates) {
             if (isDeclaringClassMatch(className, classAnnotations, advice)) {
                 adviceMatchers.add(ImmutableAdviceMatcher.of(advice));
             }
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+// pre-filter for AdviceMatcher.getAdviceMatchers(), so that the vast majority of classes (which do
+// not match any advice) are rejected without running any regular expressions
+//
+// this only narrows down the candidate advisors, each candidate still goes through the full
+// AdviceMatcher.isDeclaringClassMatch(), so the index only needs to guarantee that it never
+// excludes an advice that would have matched
+//
+// an index is built once per advisors list (see AnalyzedWorld.getAdviceMatcherIndex()), and the
+// advisors merged in from @Instrumentation annotations extend that index instead of replacing it
+class AdviceMatcherIndex {
+
+    private final List<Advice> advisors;
+
+    // null unless this index extends another index with additional advisors
+    private final @Nullable AdviceMatcherIndex base;
+
+    // advice with a class annotation (strict match), keyed by annotation class name
+    private final Map<String, List<Advice>> annotationAdvisors = Maps.newHashMap();
+    // advice with a class annotation pattern, these can only match classes with annotations
+    private final List<Advice> annotationPatternAdvisors = Lists.newArrayList();
+
+    private final Map<String, List<Advice>> classNameAdvisors = Maps.newHashMap();
+    private final PrefixNode classNamePrefixAdvisors = new PrefixNode();
+    // advice with full regex or with a pattern that starts with *
+    private final List<Advice> unindexedAdvisors = Lists.newArrayList();
+
+    AdviceMatcherIndex(List<Advice> advisors) {
+        this(advisors, null, advisors);
+    }
+
+    private AdviceMatcherIndex(List<Advice> advisors, @Nullable AdviceMatcherIndex base,
+            List<Advice> indexedAdvisors) {
+        this.advisors = advisors;
+        this.base = base;
+        for (Advice advice : indexedAdvisors) {
+            String classAnnotation = advice.pointcut().classAnnotation();
+            if (advice.pointcutClassNameAnnotationPattern() != null) {
+                annotationPatternAdvisors.add(advice);
+            } else if (!classAnnotation.isEmpty()) {
+                add(annotationAdvisors, classAnnotation, advice);
+            } else {
+                addClassName(advice);
+            }
+        }
+    }
+
+    List<Advice> advisors() {
+        return advisors;
+    }
+
+    // only the additional advisors are indexed, the rest are delegated to this index
+    AdviceMatcherIndex extend(List<Advice> additionalAdvisors) {
+        List<Advice> mergedAdvisors = Lists.newArrayList(advisors);
+        mergedAdvisors.addAll(additionalAdvisors);
+        return new AdviceMatcherIndex(ImmutableList.copyOf(mergedAdvisors), this,
+                additionalAdvisors);
+    }
+
+    // the returned list must not be modified
+    List<Advice> getCandidates(String className, List<String> classAnnotations) {
+        List<Advice> candidates = getIndexedCandidates(className, classAnnotations);
+        if (base == null) {
+            return candidates;
+        }
+        // base candidates first, to preserve the order of the advisors
+        return merge(base.getCandidates(className, classAnnotations), candidates);
+    }
+
+    private List<Advice> getIndexedCandidates(String className, List<String> classAnnotations) {
+        List<Advice> candidates = unindexedAdvisors;
+        candidates = merge(candidates, classNameAdvisors.get(className));
+        candidates = merge(candidates, classNamePrefixAdvisors.getAdvisors(className));
+        if (!classAnnotations.isEmpty()) {
+            candidates = merge(candidates, annotationPatternAdvisors);
+            if (!annotationAdvisors.isEmpty()) {
+                for (String classAnnotation : classAnnotations) {
+                    // same conversion as AdviceMatcher.isAnnotationMatch()
+                    String annotation = classAnnotation.replace('/', '.').substring(1,
+                            classAnnotation.length() - 1);
+                    candidates = merge(candidates, annotationAdvisors.get(annotation));
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private void addClassName(Advice advice) {
+        if (advice.pointcutMethodDeclaringClassNamePattern() == null) {
+            String methodDeclaringClassName = advice.pointcutMethodDeclaringClassName();
+            if (methodDeclaringClassName.isEmpty()) {
+                unindexedAdvisors.add(advice);
+            } else {
+                add(classNameAdvisors, methodDeclaringClassName, advice);
+            }
+            return;
+        }
+        // same parsing as AdviceBuilder.buildPattern()
+        String maybePattern = advice.pointcutMethodDeclaringClassName();
+        if (maybePattern.startsWith("/") && maybePattern.endsWith("/")) {
+            unindexedAdvisors.add(advice);
+            return;
+        }
+        String[] parts = maybePattern.split("\\|");
+        for (String part : parts) {
+            if (part.startsWith("*")) {
+                unindexedAdvisors.add(advice);
+                return;
+            }
+        }
+        for (String part : parts) {
+            int index = part.indexOf('*');
+            if (index == -1) {
+                add(classNameAdvisors, part, advice);
+            } else {
+                classNamePrefixAdvisors.add(part.substring(0, index), advice);
+            }
+        }
+    }
+
+    // avoids copying in the common case where at most one of the lists is non-empty
+    private static List<Advice> merge(List<Advice> candidates, @Nullable List<Advice> advisors) {
+        if (advisors == null || advisors.isEmpty()) {
+            return candidates;
+        }
+        if (candidates.isEmpty()) {
+            return advisors;
+        }
+        List<Advice> merged = Lists.newArrayList(candidates);
+        for (Advice advice : advisors) {
+            // the same advice can be reached via multiple keys, e.g. "a.b.*|a.b.c.*"
+            if (!merged.contains(advice)) {
+                merged.add(advice);
+            }
+        }
+        return merged;
+    }
+
+    private static void add(Map<String, List<Advice>> map, String key, Advice advice) {
+        List<Advice> advisors = map.get(key);
+        if (advisors == null) {
+            advisors = Lists.newArrayList();
+            map.put(key, advisors);
+        }
+        if (!advisors.contains(advice)) {
+            advisors.add(advice);
+        }
+    }
+
+    private static class PrefixNode {
+
+        private final Map<Character, PrefixNode> children = Maps.newHashMap();
+        // advice whose prefix ends at this node
+        private final List<Advice> advisors = Lists.newArrayList();
+
+        private void add(String prefix, Advice advice) {
+            PrefixNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                Character c = prefix.charAt(i);
+                PrefixNode child = node.children.get(c);
+                if (child == null) {
+                    child = new PrefixNode();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            if (!node.advisors.contains(advice)) {
+                node.advisors.add(advice);
+            }
+        }
+
+        private List<Advice> getAdvisors(String className) {
+            List<Advice> matchingAdvisors = advisors;
+            PrefixNode node = this;
+            for (int i = 0; i < className.length(); i++) {
+                node = node.children.get(className.charAt(i));
+                if (node == null) {
+                    break;
+                }
+                matchingAdvisors = merge(matchingAdvisors, node.advisors);
+            }
+            return matchingAdvisors;
+        }
+    }
+}
@@ -90,6 +90,10 @@ public class AnalyzedWorld {
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
 
+    // one index per advisors list, so it is only re-built when the advisors change (on
+    // instrumentation config changes)
+    private volatile @Nullable AdviceMatcherIndex adviceMatcherIndex;
+
     public AnalyzedWorld(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes) {
         this.advisors = advisors;
@@ -144,25 +148,28 @@ public class AnalyzedWorld {
         return getOrCreateAnalyzedClass(className, loader);
     }
 
-    List<Advice> mergeInstrumentationAnnotations(List<Advice> advisors, byte[] classBytes,
+    // returns the index of the advisors, extended with the advisors from @Instrumentation
+    // annotations if there are any
+    AdviceMatcherIndex mergeInstrumentationAnnotations(List<Advice> advisors, byte[] classBytes,
             @Nullable ClassLoader loader, String className) {
+        AdviceMatcherIndex adviceMatcherIndex = getAdviceMatcherIndex(advisors);
         // TODO after removing deprecated @Instrument, change marker to
         // "Lorg/glowroot/agent/api/Instrumentation$"
         byte[] marker = "Lorg/glowroot/agent/api/Instrument".getBytes(Charsets.UTF_8);
         if (Bytes.indexOf(classBytes, marker) == -1) {
-            return advisors;
+            return adviceMatcherIndex;
         }
         InstrumentationSeekerClassVisitor cv = new InstrumentationSeekerClassVisitor();
         ClassReader cr = new ClassReader(classBytes);
         cr.accept(cv, ClassReader.SKIP_CODE);
         List<InstrumentationConfig> instrumentationConfigs = cv.getInstrumentationConfigs();
         if (instrumentationConfigs.isEmpty()) {
-            return advisors;
+            return adviceMatcherIndex;
         }
         if (loader == null) {
             logger.warn("@Instrumentation annotations not currently supported in bootstrap class"
                     + " loader: {}", className);
-            return advisors;
+            return adviceMatcherIndex;
         }
         for (InstrumentationConfig instrumentationConfig : instrumentationConfigs) {
             instrumentationConfig.logValidationErrorsIfAny();
@@ -174,9 +181,16 @@ public class AnalyzedWorld {
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
-        List<Advice> mergedAdvisors = Lists.newArrayList(advisors);
-        mergedAdvisors.addAll(newAdvisors.keySet());
-        return mergedAdvisors;
+        return adviceMatcherIndex.extend(newAdvisors.keySet().asList());
+    }
+
+    private AdviceMatcherIndex getAdviceMatcherIndex(List<Advice> advisors) {
+        AdviceMatcherIndex adviceMatcherIndex = this.adviceMatcherIndex;
+        if (adviceMatcherIndex == null || adviceMatcherIndex.advisors() != advisors) {
+            adviceMatcherIndex = new AdviceMatcherIndex(advisors);
+            this.adviceMatcherIndex = adviceMatcherIndex;
+        }
+        return adviceMatcherIndex;
     }
 
     // it's ok if there are duplicates in the returned list (e.g. an interface that appears twice
@@ -318,12 +332,12 @@ public class AnalyzedWorld {
             return createAnalyzedClassPlanB(className, loader);
         }
         byte[] bytes = Resources.toByteArray(url);
-        List<Advice> advisors =
-                mergeInstrumentationAnnotations(this.advisors.get(), bytes, loader, className);
+        AdviceMatcherIndex adviceMatcherIndex =
+                mergeInstrumentationAnnotations(advisors.get(), bytes, loader, className);
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(bytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
-        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
-                mixinTypes, loader, this, null, bytes);
+        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), adviceMatcherIndex,
+                shimTypes, mixinTypes, loader, this, null, bytes);
         classAnalyzer.analyzeMethods();
         return classAnalyzer.getAnalyzedClass();
     }
@@ -369,7 +383,7 @@ public class AnalyzedWorld {
         }
         // the class loaded by Class.forName() above was not previously loaded which means
         // weaving was bypassed since ClassFileTransformer.transform() is not re-entrant
-        analyzedClass = createAnalyzedClassPlanC(clazz, advisors.get());
+        analyzedClass = createAnalyzedClassPlanC(clazz, getAdviceMatcherIndex(advisors.get()));
         if (analyzedClass.isInterface()) {
             return analyzedClass;
         }
@@ -410,7 +424,8 @@ public class AnalyzedWorld {
     }
 
     // now that the type has been loaded anyways, build the analyzed class via reflection
-    private static AnalyzedClass createAnalyzedClassPlanC(Class<?> clazz, List<Advice> advisors) {
+    private static AnalyzedClass createAnalyzedClassPlanC(Class<?> clazz,
+            AdviceMatcherIndex adviceMatcherIndex) {
         ImmutableAnalyzedClass.Builder classBuilder = ImmutableAnalyzedClass.builder();
         classBuilder.modifiers(clazz.getModifiers());
         classBuilder.name(clazz.getName());
@@ -426,7 +441,8 @@ public class AnalyzedWorld {
             classAnnotations.add(annotation.annotationType().getName());
         }
         List<AdviceMatcher> adviceMatchers =
-                AdviceMatcher.getAdviceMatchers(clazz.getName(), classAnnotations, advisors);
+                AdviceMatcher.getAdviceMatchers(clazz.getName(), classAnnotations,
+                        adviceMatcherIndex);
         Map<Method, List<Advice>> bridgeTargetAdvisors = Maps.newHashMap();
         for (Method method : clazz.getDeclaredMethods()) {
             if (!method.isBridge()) {
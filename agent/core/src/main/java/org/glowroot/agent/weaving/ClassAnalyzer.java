@@ -79,8 +79,8 @@ class ClassAnalyzer {
     // this is used to propagate bridge method advice to its target
     private @MonotonicNonNull Map<ThinMethod, List<Advice>> bridgeTargetAdvisors;
 
-    ClassAnalyzer(ThinClass thinClass, List<Advice> advisors, List<ShimType> shimTypes,
-            List<MixinType> mixinTypes, @Nullable ClassLoader loader, AnalyzedWorld analyzedWorld,
+    ClassAnalyzer(ThinClass thinClass, AdviceMatcherIndex adviceMatcherIndex,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes, @Nullable ClassLoader loader, AnalyzedWorld analyzedWorld,
             @Nullable CodeSource codeSource, byte[] classBytes) {
         this.thinClass = thinClass;
         ImmutableList<String> interfaceNames = ClassNames.fromInternalNames(thinClass.interfaces());
@@ -91,8 +91,8 @@ class ClassAnalyzer {
                 .name(className)
                 .superName(superClassName)
                 .addAllInterfaceNames(interfaceNames);
-        adviceMatchers =
-                AdviceMatcher.getAdviceMatchers(className, thinClass.annotations(), advisors);
+        adviceMatchers = AdviceMatcher.getAdviceMatchers(className, thinClass.annotations(),
+                adviceMatcherIndex);
         if (Modifier.isInterface(thinClass.access())) {
             superAnalyzedClasses = ImmutableList.of();
             matchedShimTypes = getMatchedShimTypes(shimTypes, className,
@@ -138,6 +138,34 @@ class ClassAnalyzer {
         this.classBytes = classBytes;
     }
 
+    // for a class that does not match any advice, shim type or mixin type itself (see
+    // WeavingCache), returns true if its analysis is not affected by its super types either, in
+    // which case the analysis is fully determined by the class bytes
+    static boolean isUnaffectedBySuperTypes(AnalyzedClass analyzedClass, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes, @Nullable ClassLoader loader, AnalyzedWorld analyzedWorld,
+            @Nullable CodeSource codeSource) {
+        if (analyzedClass.isInterface()) {
+            // super types are not analyzed for interfaces, see constructor
+            return true;
+        }
+        ParseContext parseContext = ImmutableParseContext.of(analyzedClass.name(), codeSource);
+        List<AnalyzedClass> superAnalyzedHierarchy =
+                analyzedWorld.getAnalyzedHierarchy(analyzedClass.superName(), loader, parseContext);
+        List<AnalyzedClass> interfaceAnalyzedHierarchy = Lists.newArrayList();
+        for (String interfaceName : analyzedClass.interfaceNames()) {
+            interfaceAnalyzedHierarchy.addAll(
+                    analyzedWorld.getAnalyzedHierarchy(interfaceName, loader, parseContext));
+        }
+        List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+        superAnalyzedClasses.addAll(superAnalyzedHierarchy);
+        superAnalyzedClasses.addAll(interfaceAnalyzedHierarchy);
+        return !hasSuperAdvice(superAnalyzedClasses)
+                && getMatchedShimTypes(shimTypes, analyzedClass.name(), superAnalyzedHierarchy,
+                        interfaceAnalyzedHierarchy).isEmpty()
+                && getMatchedMixinTypes(mixinTypes, analyzedClass.name(), superAnalyzedHierarchy,
+                        interfaceAnalyzedHierarchy).isEmpty();
+    }
+
     void analyzeMethods() {
         methodAdvisors = Maps.newHashMap();
         bridgeTargetAdvisors = Maps.newHashMap();
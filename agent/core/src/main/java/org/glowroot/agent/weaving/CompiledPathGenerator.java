@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.primitives.Primitives;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.IFNONNULL;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_5;
+
+// generates a class that evaluates a chain of accessors with direct (non-reflective) method calls
+// and field reads, so that the JIT can inline them
+//
+// only chains that evaluate exactly the same as the reflective Accessor chain are generated, which
+// rules out non-public members (generated classes are not in the same runtime package), static
+// members, and evaluating on types whose instances can be arrays (since Accessor evaluates over
+// each element of an Object[])
+class CompiledPathGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompiledPathGenerator.class);
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private CompiledPathGenerator() {}
+
+    static @Nullable CompiledPath generate(Class<?> baseClass, Accessor[] accessors,
+            @Nullable ClassLoader loader) {
+        if (accessors.length == 0 || loader == null) {
+            // nothing to compile, or the instrumented class is in the bootstrap class loader where
+            // classes cannot be defined via ClassLoader.defineClass()
+            return null;
+        }
+        if (!isVisible(CompiledPath.class, loader)) {
+            return null;
+        }
+        Class<?> currClass = baseClass;
+        for (int i = 0; i < accessors.length; i++) {
+            Member member = accessors[i].getMember();
+            if (!isCompilable(currClass, member, loader)) {
+                return null;
+            }
+            currClass = accessors[i].getValueType();
+            if (!isVisible(currClass, loader)) {
+                return null;
+            }
+            boolean last = i == accessors.length - 1;
+            if (currClass == void.class || currClass.isPrimitive() && !last) {
+                return null;
+            }
+        }
+        String internalName = "org/glowroot/agent/weaving/GeneratedCompiledPath"
+                + counter.incrementAndGet();
+        try {
+            byte[] bytes = generateBytes(internalName, accessors);
+            Class<?> generatedClass = ClassLoaders.defineClass(
+                    Type.getObjectType(internalName).getClassName(), bytes, loader);
+            return (CompiledPath) generatedClass.newInstance();
+        } catch (Throwable t) {
+            // falls back to the reflective accessors
+            logger.debug(t.getMessage(), t);
+            return null;
+        }
+    }
+
+    private static boolean isCompilable(Class<?> currClass, @Nullable Member member,
+            ClassLoader loader) {
+        if (member == null) {
+            // array length
+            return false;
+        }
+        if (currClass.isArray() || currClass == Object.class || currClass == Cloneable.class
+                || currClass == Serializable.class) {
+            // instances of these can be arrays at runtime
+            return false;
+        }
+        Class<?> declaringClass = member.getDeclaringClass();
+        return Modifier.isPublic(member.getModifiers())
+                && !Modifier.isStatic(member.getModifiers())
+                && Modifier.isPublic(declaringClass.getModifiers())
+                && isVisible(declaringClass, loader);
+    }
+
+    // checks that the class resolves to the same class from the loader where the generated class is
+    // defined, otherwise the generated class would fail to link (or link to a different class)
+    private static boolean isVisible(Class<?> clazz, ClassLoader loader) {
+        if (clazz.isPrimitive()) {
+            return true;
+        }
+        try {
+            return Class.forName(clazz.getName(), false, loader) == clazz;
+        } catch (ClassNotFoundException e) {
+            // log exception at trace level
+            logger.trace(e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private static byte[] generateBytes(String internalName, Accessor[] accessors) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_5, ACC_PUBLIC + ACC_SUPER, internalName, null, "java/lang/Object",
+                new String[] {Type.getInternalName(CompiledPath.class)});
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        mv = cw.visitMethod(ACC_PUBLIC, "evaluate", "(Ljava/lang/Object;)Ljava/lang/Object;", null,
+                null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 1);
+        for (int i = 0; i < accessors.length; i++) {
+            if (i > 0) {
+                // same as the reflective accessor chain, stop at the first null value
+                Label notNullLabel = new Label();
+                mv.visitInsn(DUP);
+                mv.visitJumpInsn(IFNONNULL, notNullLabel);
+                mv.visitInsn(ARETURN);
+                mv.visitLabel(notNullLabel);
+            }
+            Member member = accessors[i].getMember();
+            if (member == null) {
+                // checked above in isCompilable()
+                throw new AssertionError("Unexpected array length accessor");
+            }
+            String owner = Type.getInternalName(member.getDeclaringClass());
+            mv.visitTypeInsn(CHECKCAST, owner);
+            if (member instanceof Method) {
+                Method method = (Method) member;
+                boolean itf = method.getDeclaringClass().isInterface();
+                mv.visitMethodInsn(itf ? INVOKEINTERFACE : INVOKEVIRTUAL, owner,
+                        method.getName(), Type.getMethodDescriptor(method), itf);
+            } else {
+                Field field = (Field) member;
+                mv.visitFieldInsn(GETFIELD, owner, field.getName(),
+                        Type.getDescriptor(field.getType()));
+            }
+        }
+        Class<?> valueType = accessors[accessors.length - 1].getValueType();
+        if (valueType.isPrimitive()) {
+            Class<?> wrapperType = Primitives.wrap(valueType);
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(wrapperType), "valueOf",
+                    "(" + Type.getDescriptor(valueType) + ")" + Type.getDescriptor(wrapperType),
+                    false);
+        }
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2016 the original author or authors.
+ * Copyright 2013-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -84,7 +84,8 @@ public class GenericMessageSupplier extends MessageSupplier {
 
     @UsedByGeneratedBytecode
     public String getMessageText() {
-        StringBuilder sb = new StringBuilder();
+        String /*@Nullable*/[] resolvedReturnValuePathParts = this.resolvedReturnValuePathParts;
+        StringBuilder sb = new StringBuilder(getMessageTextLength(resolvedReturnValuePathParts));
         int receiverPathPartIndex = 0;
         int argPathPartIndex = 0;
         int returnValuePathPartIndex = 0;
@@ -115,6 +116,24 @@ public class GenericMessageSupplier extends MessageSupplier {
         return sb.toString();
     }
 
+    // exact length of the rendered message, so that the StringBuilder never needs to grow
+    private int getMessageTextLength(String /*@Nullable*/[] resolvedReturnValuePathParts) {
+        int length = template.getConstantsLength()
+                + template.getMethodNameCount() * methodName.length();
+        for (String part : resolvedReceiverPathParts) {
+            length += part.length();
+        }
+        for (String part : resolvedArgPathParts) {
+            length += part.length();
+        }
+        if (resolvedReturnValuePathParts != null) {
+            for (String part : resolvedReturnValuePathParts) {
+                length += part.length();
+            }
+        }
+        return length;
+    }
+
     @UsedByGeneratedBytecode
     public static void updateWithReturnValue(TraceEntry traceEntry, @Nullable Object returnValue) {
         GenericMessageSupplier messageSupplier =
@@ -29,6 +29,7 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,12 +49,19 @@ public class MessageTemplate {
     private final ImmutableList<ArgPathPart> argPathParts;
     private final ImmutableList<ValuePathPart> returnPathParts;
 
+    // used to pre-size the StringBuilder when rendering
+    private final int constantsLength;
+    private final int methodNameCount;
+
     @UsedByGeneratedBytecode
     public static MessageTemplate create(String template, Method method) {
         List<Part> allParts = Lists.newArrayList();
         List<ValuePathPart> thisPathParts = Lists.newArrayList();
         List<ArgPathPart> argPathParts = Lists.newArrayList();
         List<ValuePathPart> returnPathParts = Lists.newArrayList();
+        // compiled paths are defined in the class loader of the instrumented class, which can see
+        // the declaring class, parameter types and return type
+        ClassLoader loader = method.getDeclaringClass().getClassLoader();
         Matcher matcher = pattern.matcher(template);
         int curr = 0;
         while (matcher.find()) {
@@ -74,14 +82,14 @@ public class MessageTemplate {
             }
             if (base.equals("this")) {
                 ValuePathPart part = new ValuePathPart(PartType.THIS_PATH,
-                        method.getDeclaringClass(), remaining);
+                        method.getDeclaringClass(), remaining, loader);
                 allParts.add(part);
                 thisPathParts.add(part);
             } else if (base.matches("[0-9]+")) {
                 int argNumber = Integer.parseInt(base);
                 if (argNumber < method.getParameterTypes().length) {
                     ArgPathPart part = new ArgPathPart(method.getParameterTypes()[argNumber],
-                            remaining, argNumber);
+                            remaining, argNumber, loader);
                     allParts.add(part);
                     argPathParts.add(part);
                 } else {
@@ -89,8 +97,8 @@ public class MessageTemplate {
                             "<requested arg index out of bounds: " + argNumber + ">"));
                 }
             } else if (base.equals("_")) {
-                ValuePathPart part =
-                        new ValuePathPart(PartType.RETURN_PATH, method.getReturnType(), remaining);
+                ValuePathPart part = new ValuePathPart(PartType.RETURN_PATH,
+                        method.getReturnType(), remaining, loader);
                 allParts.add(part);
                 returnPathParts.add(part);
             } else if (base.equals("methodName")) {
@@ -113,6 +121,17 @@ public class MessageTemplate {
         this.thisPathParts = ImmutableList.copyOf(thisPathParts);
         this.argPathParts = ImmutableList.copyOf(argPathParts);
         this.returnPathParts = ImmutableList.copyOf(returnPathParts);
+        int constantsLength = 0;
+        int methodNameCount = 0;
+        for (Part part : allParts) {
+            if (part.getType() == PartType.CONSTANT) {
+                constantsLength += ((ConstantPart) part).getConstant().length();
+            } else if (part.getType() == PartType.METHOD_NAME) {
+                methodNameCount++;
+            }
+        }
+        this.constantsLength = constantsLength;
+        this.methodNameCount = methodNameCount;
     }
 
     ImmutableList<Part> getAllParts() {
@@ -131,6 +150,14 @@ public class MessageTemplate {
         return returnPathParts;
     }
 
+    int getConstantsLength() {
+        return constantsLength;
+    }
+
+    int getMethodNameCount() {
+        return methodNameCount;
+    }
+
     enum PartType {
         CONSTANT, THIS_PATH, ARG_PATH, RETURN_PATH, METHOD_NAME;
     }
@@ -166,9 +193,10 @@ public class MessageTemplate {
 
         private final PathEvaluator pathEvaluator;
 
-        private ValuePathPart(PartType partType, Class<?> valueClass, String propertyPath) {
+        private ValuePathPart(PartType partType, Class<?> valueClass, String propertyPath,
+                @Nullable ClassLoader loader) {
             super(partType);
-            this.pathEvaluator = new PathEvaluator(valueClass, propertyPath);
+            this.pathEvaluator = new PathEvaluator(valueClass, propertyPath, loader);
         }
 
         String evaluatePart(@Nullable Object base) {
@@ -227,8 +255,9 @@ public class MessageTemplate {
 
         private final int argNumber;
 
-        private ArgPathPart(Class<?> argClass, String propertyPath, int argNumber) {
-            super(PartType.ARG_PATH, argClass, propertyPath);
+        private ArgPathPart(Class<?> argClass, String propertyPath, int argNumber,
+                @Nullable ClassLoader loader) {
+            super(PartType.ARG_PATH, argClass, propertyPath, loader);
             this.argNumber = argNumber;
         }
 
@@ -242,10 +271,27 @@ public class MessageTemplate {
 
         private static final Splitter splitter = Splitter.on('.').omitEmptyStrings();
 
+        private static final boolean DISABLE_COMPILED_PATHS =
+                Boolean.getBoolean("glowroot.internal.messageTemplate.disableCompiledPaths");
+
+        private final Class<?> baseClass;
         private final Accessor[] accessors;
         private final String /*@Nullable*/[] remainingPath;
+        private final @Nullable ClassLoader loader;
+
+        // compiled on first evaluation instead of up front, since templates are created during
+        // static initialization of the instrumented class, and also so that classes are only
+        // generated for methods that are actually executed
+        private volatile @MonotonicNonNull CompiledPath compiledPath;
+        private volatile boolean compiledPathAttempted;
 
         PathEvaluator(Class<?> baseClass, String path) {
+            this(baseClass, path, baseClass.getClassLoader());
+        }
+
+        PathEvaluator(Class<?> baseClass, String path, @Nullable ClassLoader loader) {
+            this.baseClass = baseClass;
+            this.loader = loader;
             List<String> parts = Lists.newArrayList(splitter.split(path));
             List<Accessor> accessors = Lists.newArrayList();
             Class<?> currClass = baseClass;
@@ -269,6 +315,34 @@ public class MessageTemplate {
 
         @Nullable
         Object evaluateOnBase(Object base) throws Exception {
+            Object curr = evaluateAccessors(base);
+            if (curr == null) {
+                return null;
+            }
+            if (remainingPath != null) {
+                // too bad, revert to slow Beans
+                return Beans.value(curr, remainingPath);
+            }
+            return curr;
+        }
+
+        private @Nullable Object evaluateAccessors(Object base) throws Exception {
+            if (!compiledPathAttempted) {
+                // benign race, worst case is an extra generated class
+                if (!DISABLE_COMPILED_PATHS) {
+                    compiledPath = CompiledPathGenerator.generate(baseClass, accessors, loader);
+                }
+                compiledPathAttempted = true;
+            }
+            CompiledPath compiledPath = this.compiledPath;
+            if (compiledPath != null) {
+                try {
+                    return compiledPath.evaluate(base);
+                } catch (Throwable t) {
+                    // wrapped the same as exceptions thrown from the reflective accessors below
+                    throw new InvocationTargetException(t);
+                }
+            }
             Object curr = base;
             for (Accessor accessor : accessors) {
                 curr = accessor.evaluate(curr);
@@ -276,10 +350,6 @@ public class MessageTemplate {
                     return null;
                 }
             }
-            if (remainingPath != null) {
-                // too bad, revert to slow Beans
-                return Beans.value(curr, remainingPath);
-            }
             return curr;
         }
     }
@@ -227,6 +227,18 @@ public class PreInitializeWeavingClasses {
         types.add("com.google.common.collect.TreeTraverser");
         types.add("com.google.common.collect.UnmodifiableIterator");
         types.add("com.google.common.collect.UnmodifiableListIterator");
+        types.add("com.google.common.hash.AbstractHasher");
+        types.add("com.google.common.hash.AbstractStreamingHashFunction");
+        types.add("com.google.common.hash.AbstractStreamingHashFunction$AbstractStreamingHasher");
+        types.add("com.google.common.hash.HashCode");
+        types.add("com.google.common.hash.HashCode$BytesHashCode");
+        types.add("com.google.common.hash.HashFunction");
+        types.add("com.google.common.hash.Hasher");
+        types.add("com.google.common.hash.Hashing");
+        types.add("com.google.common.hash.Hashing$Murmur3_128Holder");
+        types.add("com.google.common.hash.Murmur3_128HashFunction");
+        types.add("com.google.common.hash.Murmur3_128HashFunction$Murmur3_128Hasher");
+        types.add("com.google.common.hash.PrimitiveSink");
         types.add("com.google.common.io.ByteSink");
         types.add("com.google.common.io.ByteSource");
         types.add("com.google.common.io.ByteStreams");
@@ -248,6 +260,7 @@ public class PreInitializeWeavingClasses {
         types.add("com.google.common.primitives.Booleans");
         types.add("com.google.common.primitives.Bytes");
         types.add("com.google.common.primitives.Ints");
+        types.add("com.google.common.primitives.UnsignedBytes");
         return types;
     }
 
@@ -260,6 +273,8 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.impl.OptionalThreadContextImpl");
         types.add("org.glowroot.agent.impl.NestedTimerMap");
         types.add("org.glowroot.agent.impl.ThreadContextImpl");
+        types.add("org.glowroot.agent.impl.ThreadObjectPool");
+        types.add("org.glowroot.agent.impl.ThreadObjectPool$1");
         types.add("org.glowroot.agent.impl.TimerImpl");
         types.add("org.glowroot.agent.impl.TransactionRegistry");
         types.add("org.glowroot.agent.impl.TransactionRegistry$TransactionRegistryHolder");
@@ -307,6 +322,8 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.AdviceBuilder$1");
         types.add("org.glowroot.agent.weaving.AdviceBuilder$AdviceConstructionException");
         types.add("org.glowroot.agent.weaving.AdviceMatcher");
+        types.add("org.glowroot.agent.weaving.AdviceMatcherIndex");
+        types.add("org.glowroot.agent.weaving.AdviceMatcherIndex$PrefixNode");
         types.add("org.glowroot.agent.weaving.AnalyzedClass");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld");
@@ -370,6 +387,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.Weaver");
         types.add("org.glowroot.agent.weaving.Weaver$ComputeFramesClassWriter");
         types.add("org.glowroot.agent.weaving.Weaver$JSRInlinerClassVisitor");
+        types.add("org.glowroot.agent.weaving.WeavingCache");
         types.add("org.glowroot.agent.weaving.WeavingClassFileTransformer");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$InitMixins");
@@ -486,6 +504,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.model.NestedTimerMap$1");
         types.add("org.glowroot.agent.util.Tickers$1");
         types.add("org.glowroot.agent.weaving.Advice$1");
+        types.add("org.glowroot.agent.weaving.AdviceMatcherIndex$1");
         types.add("org.glowroot.agent.weaving.AnalyzedClass$1");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod$1");
         types.add("org.glowroot.agent.weaving.AnalyzedMethodKey$1");
@@ -64,6 +64,7 @@ public class Weaver {
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
     private final AnalyzedWorld analyzedWorld;
+    private final @Nullable WeavingCache weavingCache;
     private final TransactionRegistry transactionRegistry;
     private final TimerName timerName;
 
@@ -71,12 +72,13 @@ public class Weaver {
 
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
-            TransactionRegistry transactionRegistry, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            @Nullable WeavingCache weavingCache, TransactionRegistry transactionRegistry,
+            TimerNameCache timerNameCache, final ConfigService configService) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.analyzedWorld = analyzedWorld;
+        this.weavingCache = weavingCache;
         this.transactionRegistry = transactionRegistry;
         configService.addConfigListener(new ConfigListener() {
             @Override
@@ -121,10 +123,9 @@ public class Weaver {
 
     private byte/*@Nullable*/[] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
-        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
-                classBytes, loader, className);
-        ThinClassVisitor accv = new ThinClassVisitor();
-        new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        AdviceMatcherIndex adviceMatcherIndex = analyzedWorld.mergeInstrumentationAnnotations(
+                this.advisors.get(), classBytes, loader, className);
+        List<Advice> advisors = adviceMatcherIndex.advisors();
         byte[] maybeProcessedBytes = null;
         if (className.equals("org/apache/felix/framework/BundleWiringImpl")) {
             ClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld,
@@ -141,11 +142,26 @@ public class Weaver {
             cr.accept(new JSRInlinerClassVisitor(cv), ClassReader.SKIP_FRAMES);
             maybeProcessedBytes = cw.toByteArray();
         }
-        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
-                mixinTypes, loader, analyzedWorld, codeSource, classBytes);
+        if (weavingCache != null) {
+            AnalyzedClass cachedAnalyzedClass = weavingCache.get(classBytes, advisors);
+            if (cachedAnalyzedClass != null && ClassAnalyzer.isUnaffectedBySuperTypes(
+                    cachedAnalyzedClass, shimTypes, mixinTypes, loader, analyzedWorld,
+                    codeSource)) {
+                analyzedWorld.add(cachedAnalyzedClass, loader);
+                return maybeProcessedBytes;
+            }
+        }
+        ThinClassVisitor accv = new ThinClassVisitor();
+        new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), adviceMatcherIndex,
+                shimTypes, mixinTypes, loader, analyzedWorld, codeSource, classBytes);
         classAnalyzer.analyzeMethods();
         if (!classAnalyzer.isWeavingRequired()) {
-            analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+            analyzedWorld.add(analyzedClass, loader);
+            if (weavingCache != null) {
+                weavingCache.put(classBytes, advisors, analyzedClass);
+            }
             return maybeProcessedBytes;
         }
         // from http://www.oracle.com/technetwork/java/javase/compatibility-417013.html:
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.CodeSource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+// persistent (across jvm restarts) cache of the analysis of classes that do not need weaving, which
+// is the vast majority of classes, so that on restart these classes can skip parsing and advice
+// matching
+//
+// woven classes are not cached since woven bytecode embeds state that is specific to the current
+// jvm (e.g. nesting group ids, suppression key ids, generated advice and meta holder class names)
+//
+// entries are keyed by a hash of the class bytes, and the file is discarded on startup if the
+// fingerprint of the advice, shim types, mixin types or glowroot agent jar has changed
+//
+// only entries that are fully determined by the class bytes and the (fingerprinted) advice are
+// cached, i.e. classes that do not match any advice, shim type or mixin type, and the dependency on
+// the super types is re-checked on each cache hit (see ClassAnalyzer.isUnaffectedBySuperTypes())
+public class WeavingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    public static final boolean ENABLED = Boolean.getBoolean("glowroot.weaving.cache");
+
+    private static final int FORMAT_VERSION = 1;
+
+    // protects against the file growing unbounded across many redeploys of changing classes
+    private static final int MAX_ENTRIES = 500000;
+
+    private final File file;
+    private final List<Advice> advisors;
+
+    private final ConcurrentMap<HashCode, AnalyzedClass> analyzedClasses =
+            Maps.newConcurrentMap();
+
+    private final Object lock = new Object();
+    @GuardedBy("lock")
+    private @Nullable DataOutputStream out;
+
+    public static WeavingCache create(File agentDir, List<Advice> advisors,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes) {
+        File file = new File(new File(agentDir, "tmp"), "weaving-cache.bin");
+        String fingerprint = getFingerprint(advisors, shimTypes, mixinTypes);
+        WeavingCache weavingCache = new WeavingCache(file, advisors);
+        weavingCache.open(fingerprint);
+        Runtime.getRuntime().addShutdownHook(new ShutdownHookThread(weavingCache));
+        return weavingCache;
+    }
+
+    @VisibleForTesting
+    WeavingCache(File file, List<Advice> advisors) {
+        this.file = file;
+        this.advisors = advisors;
+    }
+
+    // advisors are passed in so that the cache is bypassed when they are not the advisors that the
+    // cache was created with, e.g. after instrumentation config changes, or for classes with
+    // @Instrumentation annotations
+    @Nullable
+    AnalyzedClass get(byte[] classBytes, List<Advice> advisors) {
+        if (advisors != this.advisors) {
+            return null;
+        }
+        return analyzedClasses.get(hash(classBytes));
+    }
+
+    void put(byte[] classBytes, List<Advice> advisors, AnalyzedClass analyzedClass) {
+        if (advisors != this.advisors || !isCacheable(analyzedClass)
+                || analyzedClasses.size() >= MAX_ENTRIES) {
+            return;
+        }
+        HashCode key = hash(classBytes);
+        if (analyzedClasses.putIfAbsent(key, analyzedClass) != null) {
+            // e.g. same class loaded by multiple class loaders
+            return;
+        }
+        synchronized (lock) {
+            if (out == null) {
+                return;
+            }
+            try {
+                writeEntry(out, key, analyzedClass);
+            } catch (IOException e) {
+                logger.warn("error writing to weaving cache, disabling weaving cache for the"
+                        + " remainder of this jvm: {}", e.getMessage(), e);
+                closeQuietly();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void open(String fingerprint) {
+        synchronized (lock) {
+            try {
+                if (load(fingerprint)) {
+                    out = new DataOutputStream(
+                            new BufferedOutputStream(new FileOutputStream(file, true)));
+                } else {
+                    // re-create the file, keeping any entries that were loaded successfully
+                    file.getParentFile().mkdirs();
+                    out = new DataOutputStream(
+                            new BufferedOutputStream(new FileOutputStream(file, false)));
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeUTF(fingerprint);
+                    for (Map.Entry<HashCode, AnalyzedClass> entry : analyzedClasses.entrySet()) {
+                        writeEntry(out, entry.getKey(), entry.getValue());
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("error opening weaving cache: {}", e.getMessage(), e);
+                closeQuietly();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void close() {
+        synchronized (lock) {
+            closeQuietly();
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        return analyzedClasses.size();
+    }
+
+    // returns true if new entries can be appended to the existing file
+    private boolean load(String fingerprint) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(fingerprint)) {
+                logger.debug("discarding weaving cache since plugins or instrumentation changed");
+                return false;
+            }
+            HashCode key;
+            while ((key = readKey(in)) != null) {
+                analyzedClasses.put(key, readAnalyzedClass(in));
+                if (analyzedClasses.size() >= MAX_ENTRIES) {
+                    analyzedClasses.clear();
+                    return false;
+                }
+            }
+            return true;
+        } catch (EOFException e) {
+            // truncated header, or partially written last entry (e.g. if the jvm was killed before
+            // the shutdown hook could flush the file), in which case appending to the file would
+            // leave it corrupt
+            logger.debug(e.getMessage(), e);
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void closeQuietly() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.warn(e.getMessage(), e);
+        }
+        out = null;
+    }
+
+    private static boolean isCacheable(AnalyzedClass analyzedClass) {
+        // these are the only fields that are not read back by readAnalyzedClass()
+        return analyzedClass.analyzedMethods().isEmpty() && analyzedClass.shimTypes().isEmpty()
+                && analyzedClass.mixinTypes().isEmpty();
+    }
+
+    private static HashCode hash(byte[] classBytes) {
+        return Hashing.murmur3_128().hashBytes(classBytes);
+    }
+
+    // returns null at (clean) end of file
+    private static @Nullable HashCode readKey(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[16];
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        bytes[0] = (byte) first;
+        in.readFully(bytes, 1, 15);
+        return HashCode.fromBytes(bytes);
+    }
+
+    private static void writeEntry(DataOutputStream out, HashCode key,
+            AnalyzedClass analyzedClass) throws IOException {
+        out.write(key.asBytes());
+        out.writeInt(analyzedClass.modifiers());
+        out.writeUTF(analyzedClass.name());
+        String superName = analyzedClass.superName();
+        out.writeBoolean(superName != null);
+        if (superName != null) {
+            out.writeUTF(superName);
+        }
+        writeStrings(out, analyzedClass.interfaceNames());
+        out.writeInt(analyzedClass.publicFinalMethods().size());
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            out.writeUTF(publicFinalMethod.name());
+            writeStrings(out, publicFinalMethod.parameterTypes());
+        }
+    }
+
+    private static AnalyzedClass readAnalyzedClass(DataInputStream in) throws IOException {
+        ImmutableAnalyzedClass.Builder builder = ImmutableAnalyzedClass.builder()
+                .modifiers(in.readInt())
+                .name(in.readUTF());
+        if (in.readBoolean()) {
+            builder.superName(in.readUTF());
+        }
+        builder.addAllInterfaceNames(readStrings(in));
+        int publicFinalMethodCount = in.readInt();
+        for (int i = 0; i < publicFinalMethodCount; i++) {
+            builder.addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .build());
+        }
+        return builder.build();
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> strings = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    // only the parts of the advice, shim types and mixin types that are used for matching are
+    // included, since other parts (e.g. generated advice class names and nesting groups) are not
+    // stable across jvm restarts, and are sorted since advice order is not stable either
+    @VisibleForTesting
+    static String getFingerprint(List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        List<String> parts = Lists.newArrayList();
+        for (Advice advice : advisors) {
+            Pointcut pointcut = advice.pointcut();
+            parts.add("advice:" + pointcut.className() + ':' + pointcut.classAnnotation() + ':'
+                    + pointcut.methodDeclaringClassName() + ':' + pointcut.methodName() + ':'
+                    + pointcut.methodAnnotation() + ':'
+                    + Joiner.on(',').join(pointcut.methodParameterTypes()) + ':'
+                    + pointcut.methodReturnType() + ':'
+                    + Arrays.toString(pointcut.methodModifiers()));
+        }
+        for (ShimType shimType : shimTypes) {
+            parts.add("shim:" + shimType.iface().getInternalName() + ':' + shimType.target());
+        }
+        for (MixinType mixinType : mixinTypes) {
+            parts.add("mixin:" + Joiner.on(',').join(mixinType.targets()) + ':'
+                    + mixinType.interfaces() + ':' + mixinType.initMethodName());
+        }
+        Collections.sort(parts);
+        Hasher hasher = Hashing.sha1().newHasher();
+        // the agent jar is included so that changes to the matching logic itself (e.g. upgrading
+        // glowroot) invalidate the cache
+        hasher.putString(getAgentJarIdentity(), Charsets.UTF_8);
+        for (String part : parts) {
+            hasher.putString(part, Charsets.UTF_8);
+            hasher.putByte((byte) 0);
+        }
+        return hasher.hash().toString();
+    }
+
+    private static String getAgentJarIdentity() {
+        CodeSource codeSource = WeavingCache.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null) {
+            return "";
+        }
+        try {
+            File agentJar = new File(codeSource.getLocation().toURI());
+            return agentJar.getPath() + ':' + agentJar.length() + ':' + agentJar.lastModified();
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+            return "";
+        }
+    }
+
+    private static class ShutdownHookThread extends Thread {
+
+        private final WeavingCache weavingCache;
+
+        private ShutdownHookThread(WeavingCache weavingCache) {
+            this.weavingCache = weavingCache;
+        }
+
+        @Override
+        public void run() {
+            weavingCache.close();
+        }
+    }
+}
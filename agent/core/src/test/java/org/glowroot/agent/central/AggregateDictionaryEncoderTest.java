@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import io.grpc.stub.StreamObserver;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateDictionaryEncoderTest {
+
+    @Test
+    public void shouldEncode() {
+        // given
+        List<String> dictionaryEntries = Lists.newArrayList();
+        AggregateDictionaryEncoder encoder =
+                new AggregateDictionaryEncoder(new DictionaryEntryCollector(dictionaryEntries));
+        Aggregate aggregate = Aggregate.newBuilder()
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("http request")
+                        .setTotalNanos(100)
+                        .setCount(1)
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setName("jdbc query")
+                                .setTotalNanos(50)
+                                .setCount(2)))
+                .addAsyncTimer(Aggregate.Timer.newBuilder()
+                        .setName("jdbc query")
+                        .setTotalNanos(10)
+                        .setCount(1))
+                .addServiceCallsByType(Aggregate.ServiceCallsByType.newBuilder()
+                        .setType("HTTP")
+                        .addServiceCall(Aggregate.ServiceCall.newBuilder()
+                                .setText("GET http://example.org")
+                                .setTotalDurationNanos(30)
+                                .setExecutionCount(1)))
+                .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                        .addOrderedRawValue(1000)
+                        .addOrderedRawValue(1500)
+                        .addOrderedRawValue(1600))
+                .build();
+
+        // when
+        Aggregate encoded = encoder.encode(aggregate);
+
+        // then
+        assertThat(dictionaryEntries).containsExactly("http request", "jdbc query",
+                "GET http://example.org");
+        Aggregate.Timer rootTimer = encoded.getMainThreadRootTimer(0);
+        assertThat(rootTimer.getName()).isEmpty();
+        assertThat(rootTimer.getNameIndex()).isEqualTo(0);
+        assertThat(rootTimer.getTotalNanos()).isEqualTo(100);
+        assertThat(rootTimer.getChildTimer(0).getNameIndex()).isEqualTo(1);
+        assertThat(rootTimer.getChildTimer(0).getCount()).isEqualTo(2);
+        assertThat(encoded.getAsyncTimer(0).getNameIndex()).isEqualTo(1);
+        Aggregate.ServiceCall serviceCall =
+                encoded.getServiceCallsByType(0).getServiceCall(0);
+        assertThat(serviceCall.getText()).isEmpty();
+        assertThat(serviceCall.getTextIndex()).isEqualTo(2);
+        assertThat(serviceCall.getTotalDurationNanos()).isEqualTo(30);
+        assertThat(encoded.getDurationNanosHistogram().getOrderedRawValueList()).isEmpty();
+        assertThat(encoded.getDurationNanosHistogram().getOrderedRawValueDeltaList())
+                .containsExactly(1000L, 500L, 100L);
+    }
+
+    private static class DictionaryEntryCollector
+            implements StreamObserver<AggregateStreamMessage> {
+
+        private final List<String> dictionaryEntries;
+
+        private DictionaryEntryCollector(List<String> dictionaryEntries) {
+            this.dictionaryEntries = dictionaryEntries;
+        }
+
+        @Override
+        public void onNext(AggregateStreamMessage value) {
+            dictionaryEntries.add(value.getDictionaryEntry());
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+    }
+}
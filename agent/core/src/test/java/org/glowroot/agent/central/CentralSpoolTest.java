@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.CentralSpool.Record;
+import org.glowroot.agent.central.CentralSpool.RecordType;
+import org.glowroot.common.util.Clock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CentralSpoolTest {
+
+    private File dir;
+    private Clock clock;
+
+    @Before
+    public void beforeEach() {
+        dir = Files.createTempDir();
+        clock = mock(Clock.class);
+    }
+
+    @After
+    public void afterEach() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReplayInOrder() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, clock);
+        spool.append(RecordType.AGGREGATES, 1, new byte[] {1});
+        spool.append(RecordType.TRACE, 2, new byte[] {2, 2});
+        spool.append(RecordType.GAUGE_VALUES, 3, new byte[] {3, 3, 3});
+
+        // when
+        Record record1 = spool.peek();
+        spool.remove(record1);
+        Record record2 = spool.peek();
+        spool.remove(record2);
+        Record record3 = spool.peek();
+        spool.remove(record3);
+
+        // then
+        assertThat(record1.type()).isEqualTo(RecordType.AGGREGATES);
+        assertThat(record1.captureTime()).isEqualTo(1);
+        assertThat(record1.payload()).containsExactly(new byte[] {1});
+        assertThat(record2.type()).isEqualTo(RecordType.TRACE);
+        assertThat(record2.captureTime()).isEqualTo(2);
+        assertThat(record2.payload()).containsExactly(new byte[] {2, 2});
+        assertThat(record3.type()).isEqualTo(RecordType.GAUGE_VALUES);
+        assertThat(record3.captureTime()).isEqualTo(3);
+        assertThat(record3.payload()).containsExactly(new byte[] {3, 3, 3});
+        assertThat(spool.peek()).isNull();
+        assertThat(spool.getSizeBytes()).isEqualTo(0);
+        spool.close();
+    }
+
+    @Test
+    public void shouldPeekSameRecordUntilRemoved() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, clock);
+        spool.append(RecordType.AGGREGATES, 1, new byte[] {1});
+        spool.append(RecordType.AGGREGATES, 2, new byte[] {2});
+
+        // when
+        Record record1 = spool.peek();
+        Record record2 = spool.peek();
+
+        // then
+        assertThat(record1.captureTime()).isEqualTo(1);
+        assertThat(record2.captureTime()).isEqualTo(1);
+        spool.close();
+    }
+
+    @Test
+    public void shouldPeekBatchOfSameType() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, clock);
+        spool.append(RecordType.AGGREGATES, 1, new byte[] {1});
+        spool.append(RecordType.AGGREGATES, 2, new byte[] {2});
+        spool.append(RecordType.AGGREGATES, 3, new byte[] {3});
+        spool.append(RecordType.TRACE, 4, new byte[] {4});
+
+        // when
+        List<Record> batch1 = spool.peek(2);
+        for (Record record : batch1) {
+            spool.remove(record);
+        }
+        List<Record> batch2 = spool.peek(2);
+        for (Record record : batch2) {
+            spool.remove(record);
+        }
+        List<Record> batch3 = spool.peek(2);
+        for (Record record : batch3) {
+            spool.remove(record);
+        }
+
+        // then
+        assertThat(batch1).hasSize(2);
+        assertThat(batch1.get(0).captureTime()).isEqualTo(1);
+        assertThat(batch1.get(1).captureTime()).isEqualTo(2);
+        assertThat(batch2).hasSize(1);
+        assertThat(batch2.get(0).captureTime()).isEqualTo(3);
+        assertThat(batch3).hasSize(1);
+        assertThat(batch3.get(0).type()).isEqualTo(RecordType.TRACE);
+        assertThat(spool.peek(2)).isEmpty();
+        spool.close();
+    }
+
+    @Test
+    public void shouldRotateAndDeleteReplayedSegments() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, 100, clock);
+        for (int i = 0; i < 5; i++) {
+            spool.append(RecordType.AGGREGATES, i, new byte[50]);
+        }
+
+        // when
+        int count = 0;
+        Record record;
+        while ((record = spool.peek()) != null) {
+            assertThat(record.captureTime()).isEqualTo(count++);
+            spool.remove(record);
+        }
+
+        // then
+        assertThat(count).isEqualTo(5);
+        assertThat(dir.listFiles()).isEmpty();
+        spool.close();
+    }
+
+    @Test
+    public void shouldDropOldestSegmentWhenExceedingMaxSize() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 300, 100, clock);
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            spool.append(RecordType.AGGREGATES, i, new byte[50]);
+        }
+
+        // then
+        assertThat(spool.getSizeBytes()).isLessThanOrEqualTo(300);
+        Record record = spool.peek();
+        assertThat(record.captureTime()).isGreaterThan(0);
+        long lastCaptureTime = -1;
+        while ((record = spool.peek()) != null) {
+            lastCaptureTime = record.captureTime();
+            spool.remove(record);
+        }
+        assertThat(lastCaptureTime).isEqualTo(9);
+        spool.close();
+    }
+
+    @Test
+    public void shouldReplayAfterRestart() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, clock);
+        spool.append(RecordType.AGGREGATES, 1, new byte[] {1});
+        spool.append(RecordType.AGGREGATES, 2, new byte[] {2});
+        spool.close();
+
+        // when
+        spool = new CentralSpool(dir, 1024 * 1024, clock);
+        spool.append(RecordType.AGGREGATES, 3, new byte[] {3});
+
+        // then
+        for (int i = 1; i <= 3; i++) {
+            Record record = spool.peek();
+            assertThat(record.captureTime()).isEqualTo(i);
+            spool.remove(record);
+        }
+        assertThat(spool.peek()).isNull();
+        spool.close();
+    }
+
+    @Test
+    public void shouldIgnoreIncompleteRecordAfterRestart() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, clock);
+        spool.append(RecordType.AGGREGATES, 1, new byte[10]);
+        spool.append(RecordType.AGGREGATES, 2, new byte[10]);
+        spool.close();
+        truncate(dir.listFiles()[0], 5);
+
+        // when
+        spool = new CentralSpool(dir, 1024 * 1024, clock);
+
+        // then
+        Record record = spool.peek();
+        assertThat(record.captureTime()).isEqualTo(1);
+        spool.remove(record);
+        assertThat(spool.peek()).isNull();
+        assertThat(dir.listFiles()).isEmpty();
+        spool.close();
+    }
+
+    @Test
+    public void shouldCalculateReplayLag() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, clock);
+        when(clock.currentTimeMillis()).thenReturn(5000L);
+
+        // when
+        long emptyReplayLag = spool.getReplayLagMillis();
+        spool.append(RecordType.AGGREGATES, 1000, new byte[] {1});
+        spool.append(RecordType.AGGREGATES, 2000, new byte[] {2});
+        long replayLag = spool.getReplayLagMillis();
+        spool.remove(spool.peek());
+        long replayLagAfterRemove = spool.getReplayLagMillis();
+
+        // then
+        assertThat(emptyReplayLag).isEqualTo(0);
+        assertThat(replayLag).isEqualTo(4000);
+        assertThat(replayLagAfterRemove).isEqualTo(3000);
+        spool.close();
+    }
+
+    @Test
+    public void shouldCalculateReplayLagAcrossSegmentsAndAfterRestart() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, 1, clock);
+        when(clock.currentTimeMillis()).thenReturn(5000L);
+        spool.append(RecordType.AGGREGATES, 1000, new byte[] {1});
+        spool.append(RecordType.AGGREGATES, 2000, new byte[] {2});
+        spool.close();
+
+        // when
+        spool = new CentralSpool(dir, 1024 * 1024, 1, clock);
+        long replayLag = spool.getReplayLagMillis();
+        spool.remove(spool.peek());
+        long replayLagAfterRemove = spool.getReplayLagMillis();
+        spool.remove(spool.peek());
+        long replayLagAfterRemoveAll = spool.getReplayLagMillis();
+
+        // then
+        assertThat(replayLag).isEqualTo(4000);
+        assertThat(replayLagAfterRemove).isEqualTo(3000);
+        assertThat(replayLagAfterRemoveAll).isEqualTo(0);
+        spool.close();
+    }
+
+    private static void truncate(File file, int bytes) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(out.length() - bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// trace writes (entries and profile) by a single writer, first on its own, and then while other
+// threads are continually reading the most recently written trace entries and profiles (similar to
+// the UI exporting large traces)
+public class CappedDatabasePerformanceMain {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(CappedDatabasePerformanceMain.class);
+
+    private static final int READER_THREADS = 4;
+    private static final int RUN_SECONDS = 10;
+
+    private CappedDatabasePerformanceMain() {}
+
+    public static void main(String... args) throws Exception {
+        File file = File.createTempFile("glowroot-perf-", ".capped.db");
+        CappedDatabase cappedDatabase = new CappedDatabase(file, 20000, Ticker.systemTicker());
+        List<Trace.Entry> entries = createEntries();
+        Profile profile = createProfile();
+        try {
+            run(cappedDatabase, entries, profile, 0);
+            run(cappedDatabase, entries, profile, READER_THREADS);
+        } finally {
+            cappedDatabase.close();
+            file.delete();
+        }
+    }
+
+    private static void run(final CappedDatabase cappedDatabase, List<Trace.Entry> entries,
+            Profile profile, int readerThreads) throws Exception {
+        final AtomicLong lastEntriesCappedId = new AtomicLong(-1);
+        final AtomicLong lastProfileCappedId = new AtomicLong(-1);
+        final AtomicLong readCount = new AtomicLong();
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(readerThreads, 1));
+        for (int i = 0; i < readerThreads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (stopwatch.elapsed(SECONDS) < RUN_SECONDS) {
+                            long entriesCappedId = lastEntriesCappedId.get();
+                            long profileCappedId = lastProfileCappedId.get();
+                            if (entriesCappedId == -1 || profileCappedId == -1) {
+                                continue;
+                            }
+                            cappedDatabase.readMessages(entriesCappedId, Trace.Entry.parser());
+                            cappedDatabase.readMessage(profileCappedId, Profile.parser());
+                            readCount.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        logger.error(e.getMessage(), e);
+                    }
+                }
+            });
+        }
+        long writeCount = 0;
+        long totalWriteNanos = 0;
+        long maxWriteNanos = 0;
+        while (stopwatch.elapsed(SECONDS) < RUN_SECONDS) {
+            long startTick = System.nanoTime();
+            lastEntriesCappedId.set(cappedDatabase.writeMessages(entries, "trace entries"));
+            lastProfileCappedId.set(cappedDatabase.writeMessage(profile, "trace profiles"));
+            long writeNanos = System.nanoTime() - startTick;
+            writeCount++;
+            totalWriteNanos += writeNanos;
+            maxWriteNanos = Math.max(maxWriteNanos, writeNanos);
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, SECONDS);
+        logger.info("reader threads: {}, trace writes: {}, avg write: {} us, max write: {} ms,"
+                + " trace reads: {}", readerThreads, writeCount,
+                TimeUnit.NANOSECONDS.toMicros(totalWriteNanos / writeCount),
+                TimeUnit.NANOSECONDS.toMillis(maxWriteNanos), readCount.get());
+        logger.info("elapsed time: {}", stopwatch.elapsed(MILLISECONDS));
+    }
+
+    private static List<Trace.Entry> createEntries() {
+        List<Trace.Entry> entries = Lists.newArrayList();
+        for (int i = 0; i < 2000; i++) {
+            entries.add(Trace.Entry.newBuilder()
+                    .setDepth(i % 10)
+                    .setStartOffsetNanos(i * 1000000L)
+                    .setDurationNanos(100000L + i)
+                    .setMessage("select id, name, description from orders where customer_id = ?"
+                            + " and status = ? [" + i + ", 'open']")
+                    .build());
+        }
+        return entries;
+    }
+
+    private static Profile createProfile() {
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 1000; i++) {
+            List<StackTraceElement> stackTrace = Lists.newArrayList();
+            for (int j = 0; j < 50; j++) {
+                stackTrace.add(new StackTraceElement("com.example.Service" + (i % 20 + j),
+                        "call" + (i % 7), "Service.java", j));
+            }
+            profile.merge(stackTrace, Thread.State.RUNNABLE);
+        }
+        return profile.toProto();
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2016 the original author or authors.
+ * Copyright 2012-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,6 +19,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
@@ -157,4 +162,62 @@ public class CappedDatabaseTest {
         assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
                 + "$CappedBlockRolledOverMidReadException");
     }
+
+    @Test
+    public void shouldReadConcurrentlyWithWrap() throws Exception {
+        // given
+        // use random text so that the lzf compressed text is also large and forces wrapping
+        final Random random = new Random();
+        final AtomicLong lastCappedId = new AtomicLong(-1);
+        final String[] texts = new String[100];
+        for (int i = 0; i < texts.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(i).append(':');
+            for (int j = 0; j < 200; j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            texts[i] = sb.toString();
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> future = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 10000; i++) {
+                        String text = texts[i % texts.length];
+                        lastCappedId.set(cappedDatabase
+                                .write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test"));
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+
+        // when
+        int successCount = 0;
+        while (!future.isDone()) {
+            long cappedId = lastCappedId.get();
+            if (cappedId == -1) {
+                continue;
+            }
+            String text;
+            try {
+                text = cappedDatabase.read(cappedId).read();
+            } catch (IOException e) {
+                assertThat(e.getClass().getName()).isEqualTo(
+                        "org.glowroot.agent.embedded.util.CappedDatabase"
+                                + "$CappedBlockRolledOverMidReadException");
+                continue;
+            }
+            // then
+            int index = Integer.parseInt(text.substring(0, text.indexOf(':')));
+            assertThat(text).isEqualTo(texts[index]);
+            successCount++;
+        }
+        future.get();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        assertThat(successCount).isGreaterThan(0);
+    }
 }
@@ -15,11 +15,26 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -93,4 +108,125 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void shouldQueryUpdatesFromWriteConnection() throws Exception {
+        // given
+        DataSource dataSource = new DataSource();
+        dataSource.execute("create table test (x bigint)");
+        // when
+        dataSource.update("insert into test (x) values (?)", 5);
+        // then
+        assertThat(dataSource.queryForLong("select x from test")).isEqualTo(5);
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldQueryAndUpdateWhileProcessingResultSet() throws Exception {
+        // given
+        final DataSource dataSource = new DataSource();
+        dataSource.execute("create table test (x bigint)");
+        dataSource.execute("create table test2 (x bigint)");
+        for (int i = 0; i < 10; i++) {
+            dataSource.update("insert into test (x) values (?)", i);
+        }
+        // when
+        List<Long> values = dataSource.query(new JdbcQuery<List<Long>>() {
+            @Override
+            public String getSql() {
+                return "select x from test order by x";
+            }
+            @Override
+            public void bind(PreparedStatement preparedStatement) {}
+            @Override
+            public List<Long> processResultSet(ResultSet resultSet) throws Exception {
+                List<Long> values = Lists.newArrayList();
+                while (resultSet.next()) {
+                    long x = resultSet.getLong(1);
+                    dataSource.update("insert into test2 (x) values (?)", x * 2);
+                    values.add(dataSource.queryForLong("select max(x) from test2"));
+                }
+                return values;
+            }
+            @Override
+            public List<Long> valueIfDataSourceClosed() {
+                return Lists.newArrayList();
+            }
+        });
+        // then
+        assertThat(values).containsExactly(0L, 2L, 4L, 6L, 8L, 10L, 12L, 14L, 16L, 18L);
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldFailInsteadOfDeadlockWhenDeletingAllWhileProcessingResultSet()
+            throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        final DataSource dataSource = new DataSource(dbFile);
+        dataSource.execute("create table test (x bigint)");
+        dataSource.update("insert into test (x) values (?)", 1);
+        // when
+        Exception exception = dataSource.query(new JdbcQuery</*@Nullable*/ Exception>() {
+            @Override
+            public String getSql() {
+                return "select x from test";
+            }
+            @Override
+            public void bind(PreparedStatement preparedStatement) {}
+            @Override
+            public @Nullable Exception processResultSet(ResultSet resultSet) throws Exception {
+                try {
+                    dataSource.deleteAll();
+                    return null;
+                } catch (IllegalStateException e) {
+                    return e;
+                }
+            }
+            @Override
+            public @Nullable Exception valueIfDataSourceClosed() {
+                return null;
+            }
+        });
+        // then
+        assertThat(exception).isInstanceOf(IllegalStateException.class);
+        // and the data source should still be usable
+        assertThat(dataSource.queryForLong("select x from test")).isEqualTo(1);
+        dataSource.close();
+        dbFile.delete();
+    }
+
+    @Test
+    public void shouldNotDeadlockWhenDefraggingAndDeletingAllConcurrently() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        final DataSource dataSource = new DataSource(dbFile);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Void>> futures = Lists.newArrayList();
+        // when
+        for (int i = 0; i < 4; i++) {
+            final boolean defrag = i % 2 == 0;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < 10; j++) {
+                        if (defrag) {
+                            dataSource.defrag();
+                        } else {
+                            dataSource.deleteAll();
+                        }
+                        dataSource.queryForLong("select 1");
+                    }
+                    return null;
+                }
+            }));
+        }
+        // then
+        for (Future<Void> future : futures) {
+            future.get(60, SECONDS);
+        }
+        executor.shutdown();
+        dataSource.close();
+        dbFile.delete();
+    }
 }
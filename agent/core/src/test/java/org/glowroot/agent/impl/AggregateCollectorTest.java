@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import org.glowroot.agent.model.QueryCollector.SharedQueryTextCollector;
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateCollectorTest {
+
+    @Test
+    public void shouldAggregateContentionOverSampledTransactionsOnly() throws Exception {
+        // given
+        AggregateCollector aggregateCollector = new AggregateCollector(null, 100, 100, 0.01);
+        AggregateCollector toBeMerged = new AggregateCollector(null, 100, 100, 0.01);
+
+        // when
+        aggregateCollector.add(buildTransaction(new ThreadStats(1000, 10, 20, 100)));
+        aggregateCollector.add(buildTransaction(new ThreadStats(1000, -1, -1, 100)));
+        toBeMerged.add(buildTransaction(new ThreadStats(1000, 30, 40, 100)));
+        toBeMerged.add(buildTransaction(new ThreadStats(1000, -1, -1, 100)));
+        aggregateCollector.merge(toBeMerged);
+        Aggregate aggregate =
+                aggregateCollector.build(new SharedQueryTextCollector(), new ScratchBuffer());
+
+        // then
+        Aggregate.ThreadStats threadStats = aggregate.getMainThreadStats();
+        assertThat(threadStats.getTotalCpuNanos().getValue()).isEqualTo(4000);
+        assertThat(threadStats.getTotalAllocatedBytes().getValue()).isEqualTo(400);
+        // extrapolated from the 2 sampled transactions to all 4 transactions
+        assertThat(threadStats.getTotalBlockedNanos().getValue())
+                .isEqualTo(MILLISECONDS.toNanos(80));
+        assertThat(threadStats.getTotalWaitedNanos().getValue())
+                .isEqualTo(MILLISECONDS.toNanos(120));
+    }
+
+    @Test
+    public void shouldNotReportContentionWhenNoTransactionsSampled() throws Exception {
+        // given
+        AggregateCollector aggregateCollector = new AggregateCollector(null, 100, 100, 0.01);
+
+        // when
+        aggregateCollector.add(buildTransaction(new ThreadStats(1000, -1, -1, 100)));
+        aggregateCollector.add(buildTransaction(new ThreadStats(1000, -1, -1, 100)));
+        Aggregate aggregate =
+                aggregateCollector.build(new SharedQueryTextCollector(), new ScratchBuffer());
+
+        // then
+        Aggregate.ThreadStats threadStats = aggregate.getMainThreadStats();
+        assertThat(threadStats.getTotalCpuNanos().getValue()).isEqualTo(2000);
+        assertThat(threadStats.hasTotalBlockedNanos()).isFalse();
+        assertThat(threadStats.hasTotalWaitedNanos()).isFalse();
+    }
+
+    private static Transaction buildTransaction(ThreadStats mainThreadStats) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
+        when(transaction.getMainThreadStats()).thenReturn(mainThreadStats);
+        return transaction;
+    }
+}
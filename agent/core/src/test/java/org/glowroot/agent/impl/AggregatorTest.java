@@ -40,20 +40,31 @@ public class AggregatorTest {
 
     @Test
     public void shouldFlushWithTrace() throws InterruptedException {
+        shouldFlushWithTrace(1);
+    }
+
+    @Test
+    public void shouldFlushWithTraceUsingMultipleAggregationThreads()
+            throws InterruptedException {
+        shouldFlushWithTrace(4);
+    }
+
+    private static void shouldFlushWithTrace(int aggregationThreads) throws InterruptedException {
         // given
         MockCollector aggregateCollector = new MockCollector();
         ConfigService configService = mock(ConfigService.class);
-        when(configService.getAdvancedConfig())
-                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        when(configService.getAdvancedConfig()).thenReturn(ImmutableAdvancedConfig.builder()
+                .aggregationThreads(aggregationThreads)
+                .build());
         Aggregator aggregator =
                 new Aggregator(aggregateCollector, configService, 1000, Clock.systemClock());
 
         // when
         int count = 0;
-        long firstCaptureTime = aggregator.add(buildTransaction());
+        long firstCaptureTime = aggregator.add(buildTransaction("a name"));
         long aggregateCaptureTime = (long) Math.ceil(firstCaptureTime / 1000.0) * 1000;
         while (true) {
-            long captureTime = aggregator.add(buildTransaction());
+            long captureTime = aggregator.add(buildTransaction("a name " + count % 10));
             count++;
             if (captureTime > aggregateCaptureTime) {
                 break;
@@ -73,12 +84,12 @@ public class AggregatorTest {
         aggregator.close();
     }
 
-    private static Transaction buildTransaction() {
+    private static Transaction buildTransaction(String transactionName) {
         Transaction transaction = mock(Transaction.class);
         TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
         when(mainThreadRootTimer.getName()).thenReturn("mock timer");
         when(transaction.getTransactionType()).thenReturn("a type");
-        when(transaction.getTransactionName()).thenReturn("a name");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
         when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
         when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
         when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
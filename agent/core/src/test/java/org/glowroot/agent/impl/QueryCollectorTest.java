@@ -16,7 +16,9 @@
 package org.glowroot.agent.impl;
 
 import java.util.List;
+import java.util.Map;
 
+import com.google.common.collect.Maps;
 import org.junit.Test;
 
 import org.glowroot.agent.model.QueryCollector;
@@ -62,4 +64,93 @@ public class QueryCollectorTest {
         assertThat(queriesByType.getQueryList().get(0).getTotalDurationNanos()).isEqualTo(300);
         assertThat(queriesByType.getQueryList().get(99).getTotalDurationNanos()).isEqualTo(201);
     }
+
+    @Test
+    public void testAddWithQueryTextIdsInAscendingOrder() {
+        // given
+        QueryCollector queries = new QueryCollector(100, 2, false);
+        for (int i = 1; i <= 300; i++) {
+            queries.mergeQuery("SQL", i, Integer.toString(i), i, 1, true, 1);
+        }
+        // when
+        List<Aggregate.QueriesByType> queriesByTypeList =
+                queries.toAggregateProto(new SharedQueryTextCollector());
+        // then
+        assertThat(queriesByTypeList).hasSize(1);
+        Aggregate.QueriesByType queriesByType = queriesByTypeList.get(0);
+        assertThat(queriesByType.getQueryList()).hasSize(100);
+        assertThat(queriesByType.getQueryList().get(0).getTotalDurationNanos()).isEqualTo(300);
+        assertThat(queriesByType.getQueryList().get(99).getTotalDurationNanos()).isEqualTo(201);
+    }
+
+    @Test
+    public void testMergeAfterEviction() {
+        // given
+        QueryCollector queries = new QueryCollector(100, 2, false);
+        for (int i = 300; i > 0; i--) {
+            queries.mergeQuery("SQL", i, Integer.toString(i), i, 1, true, 1);
+        }
+        // when
+        // every retained query must still be found (and not duplicated) after evictions
+        for (int i = 300; i > 0; i--) {
+            queries.mergeQuery("SQL", i, Integer.toString(i), 0, 1, true, 1);
+        }
+        List<Aggregate.QueriesByType> queriesByTypeList =
+                queries.toAggregateProto(new SharedQueryTextCollector());
+        // then
+        Aggregate.QueriesByType queriesByType = queriesByTypeList.get(0);
+        assertThat(queriesByType.getQueryList()).hasSize(100);
+        assertThat(queriesByType.getQueryList().get(0).getExecutionCount()).isEqualTo(2);
+        assertThat(queriesByType.getQueryList().get(99).getExecutionCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testMergeQueriesWithAndWithoutQueryTextIds() {
+        // given
+        QueryCollector queries = new QueryCollector(100, 2, false);
+        QueryCollector otherQueries = new QueryCollector(100, 2, false);
+        queries.mergeQuery("SQL", 1, "select 1", 10, 1, false, 0);
+        queries.mergeQuery("SQL", "select 2", 20, 1, false, 0);
+        otherQueries.mergeQuery("SQL", 1, "select 1", 10, 1, false, 0);
+        otherQueries.mergeQuery("SQL", "select 3", 30, 1, false, 0);
+        otherQueries.mergeQuery("SQL", "select 2", 20, 1, false, 0);
+        // when
+        queries.mergeQueries(otherQueries);
+        SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
+        List<Aggregate.QueriesByType> queriesByTypeList =
+                queries.toAggregateProto(sharedQueryTextCollector);
+        // then
+        List<String> sharedQueryTexts =
+                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts();
+        Map<String, Double> totals = Maps.newHashMap();
+        for (Aggregate.Query query : queriesByTypeList.get(0).getQueryList()) {
+            totals.put(sharedQueryTexts.get(query.getSharedQueryTextIndex()),
+                    query.getTotalDurationNanos());
+        }
+        assertThat(totals).hasSize(3);
+        assertThat(totals.get("select 1")).isEqualTo(20);
+        assertThat(totals.get("select 2")).isEqualTo(40);
+        assertThat(totals.get("select 3")).isEqualTo(30);
+    }
+
+    @Test
+    public void testAddWithAndWithoutQueryTextIdsInAscendingOrder() {
+        // given
+        QueryCollector queries = new QueryCollector(100, 2, false);
+        for (int i = 1; i <= 300; i++) {
+            if (i % 2 == 0) {
+                queries.mergeQuery("SQL", i, Integer.toString(i), i, 1, true, 1);
+            } else {
+                queries.mergeQuery("SQL", Integer.toString(i), i, 1, true, 1);
+            }
+        }
+        // when
+        List<Aggregate.QueriesByType> queriesByTypeList =
+                queries.toAggregateProto(new SharedQueryTextCollector());
+        // then
+        Aggregate.QueriesByType queriesByType = queriesByTypeList.get(0);
+        assertThat(queriesByType.getQueryList()).hasSize(100);
+        assertThat(queriesByType.getQueryList().get(0).getTotalDurationNanos()).isEqualTo(300);
+        assertThat(queriesByType.getQueryList().get(99).getTotalDurationNanos()).isEqualTo(201);
+    }
 }
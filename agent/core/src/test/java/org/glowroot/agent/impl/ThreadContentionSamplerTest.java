@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ThreadInfo;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ThreadContentionSamplerTest {
+
+    @Test
+    public void shouldCaptureForLiveThreadsOnly() throws Exception {
+        // given
+        ThreadContextImpl currentThreadContext = mock(ThreadContextImpl.class);
+        when(currentThreadContext.getThreadId()).thenReturn(Thread.currentThread().getId());
+        Thread thread = new Thread();
+        thread.start();
+        thread.join();
+        ThreadContextImpl terminatedThreadContext = mock(ThreadContextImpl.class);
+        when(terminatedThreadContext.getThreadId()).thenReturn(thread.getId());
+        List<ThreadContextImpl> threadContexts =
+                ImmutableList.of(currentThreadContext, terminatedThreadContext);
+
+        // when
+        ThreadContentionSampler.captureStartingThreadContention(threadContexts);
+
+        // then
+        verify(currentThreadContext).captureStartingThreadContention(any(ThreadInfo.class));
+        verify(terminatedThreadContext, never())
+                .captureStartingThreadContention(any(ThreadInfo.class));
+    }
+
+    @Test
+    public void shouldNotCaptureForEmptyList() {
+        // when
+        ThreadContentionSampler
+                .captureStartingThreadContention(ImmutableList.<ThreadContextImpl>of());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ThreadObjectPoolTest {
+
+    private ThreadObjectPool objectPool;
+    private ThreadContextImpl threadContext;
+
+    @Before
+    public void beforeEachTest() {
+        objectPool = new ThreadObjectPool();
+        threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.getObjectPool()).thenReturn(objectPool);
+    }
+
+    @Test
+    public void shouldReleaseNestedTimerMapsButKeepTimerTree() {
+        // given
+        TimerNameImpl aTimerName = ImmutableTimerNameImpl.of("a", false);
+        TimerNameImpl bTimerName = ImmutableTimerNameImpl.of("b", false);
+        TimerImpl rootTimer =
+                TimerImpl.createRootTimer(threadContext, ImmutableTimerNameImpl.of("root", false));
+        TimerImpl aTimer = rootTimer.startNestedTimer(aTimerName);
+        aTimer.startNestedTimer(bTimerName).stop();
+        aTimer.stop();
+        rootTimer.startNestedTimer(bTimerName).stop();
+
+        // when
+        rootTimer.releaseNestedTimerMaps(objectPool);
+
+        // then
+        // only the root timer and timer "a" have nested timers
+        assertThat(objectPool.size()).isEqualTo(2);
+        // other threads can still read the timers after the nested timer maps are released
+        Trace.Timer timer = rootTimer.toProto();
+        assertThat(timer.getChildTimerCount()).isEqualTo(2);
+        assertThat(timer.getChildTimer(1).getName()).isEqualTo("a");
+        assertThat(timer.getChildTimer(1).getChildTimer(0).getName()).isEqualTo("b");
+    }
+
+    @Test
+    public void shouldReuseClearedNestedTimerMap() {
+        // given
+        TimerNameImpl rootTimerName = ImmutableTimerNameImpl.of("root", false);
+        TimerNameImpl aTimerName = ImmutableTimerNameImpl.of("a", false);
+        TimerImpl rootTimer = TimerImpl.createRootTimer(threadContext, rootTimerName);
+        TimerImpl aTimer = rootTimer.startNestedTimer(aTimerName);
+        aTimer.stop();
+        rootTimer.releaseNestedTimerMaps(objectPool);
+
+        // when
+        TimerImpl newRootTimer = TimerImpl.createRootTimer(threadContext, rootTimerName);
+        TimerImpl newTimer = newRootTimer.startNestedTimer(aTimerName);
+        newTimer.stop();
+
+        // then
+        assertThat(objectPool.size()).isZero();
+        assertThat(newTimer).isNotSameAs(aTimer);
+        assertThat(newTimer.getCount()).isEqualTo(1);
+        assertThat(aTimer.getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldBoundPooledNestedTimerMaps() {
+        // when
+        for (int i = 0; i < ThreadObjectPool.MAX_POOLED_NESTED_TIMER_MAPS + 2; i++) {
+            objectPool.release(new NestedTimerMap());
+        }
+
+        // then
+        assertThat(objectPool.size()).isEqualTo(ThreadObjectPool.MAX_POOLED_NESTED_TIMER_MAPS);
+    }
+}
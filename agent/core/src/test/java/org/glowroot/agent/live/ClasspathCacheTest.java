@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2016 the original author or authors.
+ * Copyright 2013-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,19 +15,36 @@
  */
 package org.glowroot.agent.live;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import org.glowroot.agent.live.ClasspathCache.UiAnalyzedMethod;
 import org.glowroot.agent.weaving.AnalyzedWorld;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -115,6 +132,92 @@ public class ClasspathCacheTest {
         assertThat(methods).hasSize(1);
     }
 
+    @Test
+    public void shouldReadManifestClassPath() throws Exception {
+        // given
+        File dir = Files.createTempDir();
+        File jarFile1 = new File(dir, "one.jar");
+        File jarFile2 = new File(dir, "two.jar");
+        // cycle in Manifest Class-Path
+        createJarFile(jarFile1, "two.jar", "org/example/One.class");
+        createJarFile(jarFile2, "one.jar", "org/example/Two.class");
+        ClassLoader loader = new URLClassLoader(new URL[] {jarFile1.toURI().toURL()});
+        AnalyzedWorld analyzedWorld = mock(AnalyzedWorld.class);
+        when(analyzedWorld.getClassLoaders()).thenReturn(ImmutableList.of(loader));
+        ClasspathCache classpathCache = new ClasspathCache(analyzedWorld, null);
+        try {
+            // when
+            List<String> classNames = classpathCache.getMatchingClassNames("org.example.", 5);
+            // then
+            assertThat(classNames).containsExactly("org.example.One", "org.example.Two");
+        } finally {
+            jarFile1.delete();
+            jarFile2.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void shouldReadPreviousSnapshotDuringUpdate() throws Exception {
+        // given
+        final CountDownLatch updateStarted = new CountDownLatch(1);
+        final CountDownLatch releaseUpdate = new CountDownLatch(1);
+        final AtomicInteger updateCount = new AtomicInteger();
+        AnalyzedWorld analyzedWorld = mock(AnalyzedWorld.class);
+        when(analyzedWorld.getClassLoaders()).thenAnswer(new Answer<List<ClassLoader>>() {
+            @Override
+            public List<ClassLoader> answer(InvocationOnMock invocation) throws Exception {
+                if (updateCount.getAndIncrement() > 0) {
+                    // block the second update while it holds the update lock
+                    updateStarted.countDown();
+                    releaseUpdate.await();
+                }
+                return ImmutableList.of(ClassLoader.getSystemClassLoader());
+            }
+        });
+        final ClasspathCache classpathCache = new ClasspathCache(analyzedWorld, null);
+        classpathCache.updateCache();
+        Thread updateThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                classpathCache.updateCache();
+            }
+        });
+        updateThread.start();
+        updateStarted.await();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // when
+            Future<List<String>> future = executor.submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() {
+                    return classpathCache.getMatchingClassNames("ImmutableMap", 5);
+                }
+            });
+            // then
+            assertThat(future.get(10, SECONDS)).contains("com.google.common.collect.ImmutableMap");
+            assertThat(updateThread.isAlive()).isTrue();
+        } finally {
+            releaseUpdate.countDown();
+            updateThread.join();
+            executor.shutdown();
+        }
+    }
+
+    private static void createJarFile(File jarFile, String manifestClassPath, String entryName)
+            throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, manifestClassPath);
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile), manifest);
+        try {
+            out.putNextEntry(new JarEntry(entryName));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+
     @SuppressWarnings("serial")
     private static class A extends ArrayList<String> {
         @Override
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTextInternerTest {
+
+    @Test
+    public void shouldReturnSameIdForEqualQueryText() {
+        // given
+        QueryTextInterner interner = new QueryTextInterner(1000, 1000000);
+        String queryText = "select x from y where z = ?";
+        // when
+        long id = interner.intern(queryText);
+        long id2 = interner.intern(new String(queryText));
+        long otherId = interner.intern("select a from b");
+        // then
+        assertThat(id).isGreaterThanOrEqualTo(0);
+        assertThat(id2).isEqualTo(id);
+        assertThat(otherId).isGreaterThanOrEqualTo(0).isNotEqualTo(id);
+    }
+
+    @Test
+    public void shouldKeepIdsWhenFull() {
+        // given
+        QueryTextInterner interner = new QueryTextInterner(1000, 1000000);
+        long firstId = interner.intern("select 0");
+        // when
+        for (int i = 1; i < 2500; i++) {
+            interner.intern("select " + i);
+        }
+        // then
+        assertThat(interner.size()).isEqualTo(1000);
+        assertThat(interner.intern("select 0")).isEqualTo(firstId);
+        assertThat(interner.intern("select 999")).isNotEqualTo(QueryTextInterner.NO_ID);
+        assertThat(interner.intern("select 1000")).isEqualTo(QueryTextInterner.NO_ID);
+        assertThat(interner.intern("select 2499")).isEqualTo(QueryTextInterner.NO_ID);
+    }
+
+    @Test
+    public void shouldNotInternWhenTooManyChars() {
+        // given
+        QueryTextInterner interner = new QueryTextInterner(1000, 20);
+        // when
+        long id = interner.intern("select x from y");
+        long otherId = interner.intern("select a from b");
+        // then
+        assertThat(id).isNotEqualTo(QueryTextInterner.NO_ID);
+        assertThat(otherId).isEqualTo(QueryTextInterner.NO_ID);
+        assertThat(interner.intern("select x from y")).isEqualTo(id);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import org.glowroot.agent.util.CaptureTimeRingBuffer.WaitStrategy;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CaptureTimeRingBufferTest {
+
+    @Test
+    public void shouldRoundUpCapacity() {
+        assertThat(new TickingRingBuffer(1000).capacity()).isEqualTo(1024);
+        assertThat(new TickingRingBuffer(1024).capacity()).isEqualTo(1024);
+        assertThat(new TickingRingBuffer(1).capacity()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldRejectWhenFull() {
+        // given
+        TickingRingBuffer buffer = new TickingRingBuffer(4);
+        for (int i = 0; i < 4; i++) {
+            assertThat(buffer.offer("x")).isNotEqualTo(CaptureTimeRingBuffer.REJECTED);
+        }
+
+        // when
+        long captureTime = buffer.offer("y");
+
+        // then
+        assertThat(captureTime).isEqualTo(CaptureTimeRingBuffer.REJECTED);
+        assertThat(buffer.size()).isEqualTo(4);
+        assertThat(buffer.poll()).isEqualTo("x");
+        assertThat(buffer.offer("z")).isNotEqualTo(CaptureTimeRingBuffer.REJECTED);
+    }
+
+    @Test
+    public void shouldOnlyClaimWhenEmpty() {
+        // given
+        TickingRingBuffer buffer = new TickingRingBuffer(4);
+        buffer.offer("x");
+
+        // when
+        long rejected = buffer.claimIfEmpty();
+        buffer.poll();
+        long currentTime = buffer.claimIfEmpty();
+        long captureTime = buffer.offer("y");
+
+        // then
+        assertThat(rejected).isEqualTo(CaptureTimeRingBuffer.REJECTED);
+        assertThat(currentTime).isNotEqualTo(CaptureTimeRingBuffer.REJECTED);
+        assertThat(captureTime).isGreaterThan(currentTime);
+        assertThat(buffer.poll()).isEqualTo("y");
+        assertThat(buffer.getPolledCaptureTime()).isEqualTo(captureTime);
+        assertThat(buffer.poll()).isNull();
+    }
+
+    @Test
+    public void shouldPreserveCaptureTimeOrderAcrossProducers() throws Exception {
+        // given
+        final TickingRingBuffer buffer = new TickingRingBuffer(64);
+        int producers = 8;
+        final int perProducer = 10000;
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        final CountDownLatch latch = new CountDownLatch(producers);
+
+        // when
+        for (int i = 0; i < producers; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perProducer; j++) {
+                        while (buffer.offer("x") == CaptureTimeRingBuffer.REJECTED) {
+                            Thread.yield();
+                        }
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+        int count = 0;
+        long lastCaptureTime = 0;
+        boolean ordered = true;
+        while (count < producers * perProducer) {
+            if (buffer.poll() == null) {
+                buffer.await(1);
+                continue;
+            }
+            long captureTime = buffer.getPolledCaptureTime();
+            if (captureTime < lastCaptureTime) {
+                ordered = false;
+            }
+            lastCaptureTime = captureTime;
+            count++;
+        }
+
+        // then
+        assertThat(latch.await(10, SECONDS)).isTrue();
+        assertThat(ordered).isTrue();
+        assertThat(buffer.size()).isZero();
+        executor.shutdown();
+    }
+
+    private static class TickingRingBuffer extends CaptureTimeRingBuffer<String> {
+
+        private final AtomicLong ticker = new AtomicLong();
+
+        private TickingRingBuffer(int minCapacity) {
+            super(minCapacity, WaitStrategy.PARK);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return ticker.incrementAndGet();
+        }
+    }
+}
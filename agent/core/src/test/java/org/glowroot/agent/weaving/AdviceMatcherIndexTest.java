@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdviceMatcherIndexTest {
+
+    private static final ImmutableList<String> NO_ANNOTATIONS = ImmutableList.of();
+
+    private Advice exactAdvice;
+    private Advice prefixAdvice;
+    private Advice alternationAdvice;
+    private Advice regexAdvice;
+    private Advice annotationAdvice;
+    private Advice annotationPatternAdvice;
+
+    private AdviceMatcherIndex index;
+
+    @Before
+    public void onBefore() throws Exception {
+        exactAdvice = new AdviceBuilder(ExactAdvice.class).build();
+        prefixAdvice = new AdviceBuilder(PrefixAdvice.class).build();
+        alternationAdvice = new AdviceBuilder(AlternationAdvice.class).build();
+        regexAdvice = new AdviceBuilder(RegexAdvice.class).build();
+        annotationAdvice = new AdviceBuilder(AnnotationAdvice.class).build();
+        annotationPatternAdvice = new AdviceBuilder(AnnotationPatternAdvice.class).build();
+        index = new AdviceMatcherIndex(ImmutableList.of(exactAdvice, prefixAdvice,
+                alternationAdvice, regexAdvice, annotationAdvice, annotationPatternAdvice));
+    }
+
+    @Test
+    public void shouldFindExact() {
+        assertThat(index.getCandidates("com.example.Exact", NO_ANNOTATIONS))
+                .containsOnly(exactAdvice, regexAdvice);
+    }
+
+    @Test
+    public void shouldFindPrefix() {
+        assertThat(index.getCandidates("com.example.prefix.Abc", NO_ANNOTATIONS))
+                .containsOnly(prefixAdvice, regexAdvice);
+    }
+
+    @Test
+    public void shouldFindAlternationWithoutDuplicates() {
+        assertThat(index.getCandidates("org.example.alt.sub.Abc", NO_ANNOTATIONS))
+                .containsOnly(alternationAdvice, regexAdvice)
+                .doesNotHaveDuplicates();
+        assertThat(index.getCandidates("net.example.Alt", NO_ANNOTATIONS))
+                .containsOnly(alternationAdvice, regexAdvice);
+    }
+
+    @Test
+    public void shouldFindAnnotation() {
+        List<String> annotations = ImmutableList.of("Lcom/example/Marker;");
+        assertThat(index.getCandidates("com.example.Other", annotations))
+                .containsOnly(annotationAdvice, annotationPatternAdvice, regexAdvice);
+    }
+
+    @Test
+    public void shouldOnlyFindUnindexed() {
+        assertThat(index.getCandidates("com.example.Other", NO_ANNOTATIONS))
+                .containsOnly(regexAdvice);
+    }
+
+    @Test
+    public void shouldRejectWithoutUnindexed() {
+        // given
+        AdviceMatcherIndex index = new AdviceMatcherIndex(
+                ImmutableList.of(exactAdvice, prefixAdvice, annotationAdvice));
+        // when
+        List<Advice> candidates = index.getCandidates("java.lang.String", NO_ANNOTATIONS);
+        // then
+        assertThat(candidates).isEmpty();
+    }
+
+    @Test
+    public void shouldMatchSameAsWithoutIndex() {
+        // when
+        List<AdviceMatcher> adviceMatchers = AdviceMatcher
+                .getAdviceMatchers("com.example.prefix.Abc", NO_ANNOTATIONS, index);
+        // then
+        assertThat(adviceMatchers).containsOnly(ImmutableAdviceMatcher.of(prefixAdvice));
+    }
+
+    @Test
+    public void shouldFindFromExtendedIndex() throws Exception {
+        // given
+        Advice extendedAdvice = new AdviceBuilder(ExtendedAdvice.class).build();
+        // when
+        AdviceMatcherIndex extendedIndex = index.extend(ImmutableList.of(extendedAdvice));
+        // then
+        assertThat(extendedIndex.advisors()).containsExactly(exactAdvice, prefixAdvice,
+                alternationAdvice, regexAdvice, annotationAdvice, annotationPatternAdvice,
+                extendedAdvice);
+        assertThat(extendedIndex.getCandidates("com.example.Exact", NO_ANNOTATIONS))
+                .containsOnly(exactAdvice, regexAdvice, extendedAdvice);
+        assertThat(extendedIndex.getCandidates("com.example.Other", NO_ANNOTATIONS))
+                .containsOnly(regexAdvice);
+        // and the extended index does not change the original index
+        assertThat(index.getCandidates("com.example.Exact", NO_ANNOTATIONS))
+                .containsOnly(exactAdvice, regexAdvice);
+    }
+
+    @Pointcut(className = "com.example.Exact", methodName = "*", methodParameterTypes = {".."})
+    public static class ExactAdvice {}
+
+    @Pointcut(className = "com.example.prefix.*", methodName = "*",
+            methodParameterTypes = {".."})
+    public static class PrefixAdvice {}
+
+    @Pointcut(className = "org.example.alt.*|org.example.alt.sub.*|net.example.Alt",
+            methodName = "*", methodParameterTypes = {".."})
+    public static class AlternationAdvice {}
+
+    @Pointcut(className = "/com\\.example\\.[A-Z].*/", methodName = "*",
+            methodParameterTypes = {".."})
+    public static class RegexAdvice {}
+
+    @Pointcut(classAnnotation = "com.example.Marker", methodName = "*",
+            methodParameterTypes = {".."})
+    public static class AnnotationAdvice {}
+
+    @Pointcut(classAnnotation = "com.example.*", methodName = "*", methodParameterTypes = {".."})
+    public static class AnnotationPatternAdvice {}
+
+    @Pointcut(className = "com.example.Exact", methodName = "other",
+            methodParameterTypes = {".."})
+    public static class ExtendedAdvice {}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompiledPathGeneratorTest {
+
+    @Test
+    public void shouldCompileGetterAndFieldChain() throws Exception {
+        // given
+        CompiledPath compiledPath = generate(A.class, "b", "str");
+        // when
+        Object value = compiledPath.evaluate(new A());
+        // then
+        assertThat(value).isEqualTo("abc");
+    }
+
+    @Test
+    public void shouldStopAtNull() throws Exception {
+        // given
+        CompiledPath compiledPath = generate(A.class, "b", "str");
+        A a = new A();
+        a.b = null;
+        // when
+        Object value = compiledPath.evaluate(a);
+        // then
+        assertThat(value).isNull();
+    }
+
+    @Test
+    public void shouldBoxPrimitive() throws Exception {
+        // given
+        CompiledPath compiledPath = generate(A.class, "b", "num");
+        // when
+        Object value = compiledPath.evaluate(new A());
+        // then
+        assertThat(value).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldCompileInterfaceMethod() throws Exception {
+        // given
+        CompiledPath compiledPath = generate(A.class, "list", "size");
+        // when
+        Object value = compiledPath.evaluate(new A());
+        // then
+        assertThat(value).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldThrowOriginalException() throws Exception {
+        // given
+        CompiledPath compiledPath = generate(A.class, "throwing");
+        // when
+        Exception exception = null;
+        try {
+            compiledPath.evaluate(new A());
+        } catch (Exception e) {
+            exception = e;
+        }
+        // then
+        assertThat(exception).isExactlyInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void shouldNotCompileNonPublicClass() throws Exception {
+        assertThat(tryGenerate(NonPublic.class, "str")).isNull();
+    }
+
+    @Test
+    public void shouldNotCompileArrayNavigation() throws Exception {
+        assertThat(tryGenerate(A.class, "bs", "str")).isNull();
+        assertThat(tryGenerate(A.class, "bs", "length")).isNull();
+    }
+
+    @Test
+    public void shouldNotCompileOnObject() throws Exception {
+        assertThat(tryGenerate(Object.class, "class")).isNull();
+    }
+
+    @Test
+    public void shouldNotCompileInBootstrapClassLoader() throws Exception {
+        assertThat(tryGenerate(List.class, "size")).isNull();
+    }
+
+    private static CompiledPath generate(Class<?> baseClass, String... path) {
+        CompiledPath compiledPath = tryGenerate(baseClass, path);
+        assertThat(compiledPath).isNotNull();
+        return compiledPath;
+    }
+
+    private static CompiledPath tryGenerate(Class<?> baseClass, String... path) {
+        Accessor[] accessors = new Accessor[path.length];
+        Class<?> currClass = baseClass;
+        for (int i = 0; i < path.length; i++) {
+            accessors[i] = Beans.loadPossiblyArrayBasedAccessor(currClass, path[i]);
+            currClass = accessors[i].getValueType();
+        }
+        return CompiledPathGenerator.generate(baseClass, accessors, baseClass.getClassLoader());
+    }
+
+    public static class A {
+
+        public B b = new B();
+
+        public B getB() {
+            return b;
+        }
+
+        public List<String> getList() {
+            return java.util.Collections.emptyList();
+        }
+
+        public B[] getBs() {
+            return new B[] {new B()};
+        }
+
+        public String getThrowing() {
+            throw new IllegalStateException();
+        }
+    }
+
+    public static class B {
+
+        public final String str = "abc";
+
+        public int getNum() {
+            return 5;
+        }
+    }
+
+    static class NonPublic {
+
+        public String getStr() {
+            return "abc";
+        }
+    }
+}
@@ -877,7 +877,7 @@ public class WeaverTest {
         when(transactionRegistry.getCurrentThreadContextHolder())
                 .thenReturn(new FastThreadLocal<ThreadContextImpl>().getHolder());
         Weaver weaver = new Weaver(advisorsSupplier, ImmutableList.<ShimType>of(),
-                ImmutableList.<MixinType>of(), analyzedWorld, transactionRegistry,
+                ImmutableList.<MixinType>of(), analyzedWorld, null, transactionRegistry,
                 new TimerNameCache(), mock(ConfigService.class));
         isolatedWeavingClassLoader.setWeaver(weaver);
         Misc test = isolatedWeavingClassLoader.newInstance(BasicMisc.class, Misc.class);
@@ -1590,7 +1590,7 @@ public class WeaverTest {
         TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
         when(transactionRegistry.getCurrentThreadContextHolder())
                 .thenReturn(new FastThreadLocal<ThreadContextImpl>().getHolder());
-        Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
+        Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld, null,
                 transactionRegistry, new TimerNameCache(), mock(ConfigService.class));
         isolatedWeavingClassLoader.setWeaver(weaver);
         return isolatedWeavingClassLoader.newInstance(implClass, bridgeClass);
@@ -1629,7 +1629,7 @@ public class WeaverTest {
         TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
         when(transactionRegistry.getCurrentThreadContextHolder())
                 .thenReturn(new FastThreadLocal<ThreadContextImpl>().getHolder());
-        Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
+        Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld, null,
                 transactionRegistry, new TimerNameCache(), mock(ConfigService.class));
         isolatedWeavingClassLoader.setWeaver(weaver);
 
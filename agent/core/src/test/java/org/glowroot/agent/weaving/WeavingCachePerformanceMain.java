@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.StandardSystemProperty;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.ThreadContextImpl;
+import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.plugin.api.util.FastThreadLocal;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// weaving of every class in the jars on the class path, each run with a new AnalyzedWorld and
+// Weaver (similar to a jvm restart), first without the weaving cache, then with an empty weaving
+// cache (first start), and then re-opening the populated weaving cache (subsequent starts)
+//
+// since the runs after the first one benefit from the JIT, a single run in a new jvm can be done by
+// passing "none" or the weaving cache file (which is kept, so that the next run re-opens it)
+public class WeavingCachePerformanceMain {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCachePerformanceMain.class);
+
+    private static final int RUNS = 5;
+
+    private WeavingCachePerformanceMain() {}
+
+    public static void main(String... args) throws Exception {
+        List<File> jarFiles = getJarFiles();
+        Map<String, byte[]> classes = readClasses(jarFiles);
+        List<URL> urls = Lists.newArrayList();
+        for (File jarFile : jarFiles) {
+            urls.add(jarFile.toURI().toURL());
+        }
+        ClassLoader loader = new URLClassLoader(urls.toArray(new URL[urls.size()]), null);
+        logger.info("jars: {}, classes: {}", jarFiles.size(), classes.size());
+
+        List<Advice> advisors = ImmutableList.of(
+                new AdviceBuilder(ServletAdvice.class).build(),
+                new AdviceBuilder(StatementAdvice.class).build(),
+                new AdviceBuilder(ExecutorAdvice.class).build(),
+                new AdviceBuilder(HttpClientAdvice.class).build(),
+                new AdviceBuilder(ControllerAdvice.class).build());
+        if (args.length > 0) {
+            File file = args[0].equals("none") ? null : new File(args[0]);
+            run(file == null ? "no cache" : file.exists() ? "populated cache" : "empty cache",
+                    classes, loader, advisors, file);
+            return;
+        }
+        File file = File.createTempFile("glowroot-perf-", ".weaving-cache.bin");
+        file.delete();
+        try {
+            for (int i = 0; i < RUNS; i++) {
+                run("no cache", classes, loader, advisors, null);
+            }
+            run("empty cache", classes, loader, advisors, file);
+            for (int i = 0; i < RUNS; i++) {
+                run("populated cache", classes, loader, advisors, file);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void run(String name, Map<String, byte[]> classes, ClassLoader loader,
+            List<Advice> advisors, @Nullable File file) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        List<ShimType> shimTypes = ImmutableList.of();
+        List<MixinType> mixinTypes = ImmutableList.of();
+        WeavingCache weavingCache = null;
+        if (file != null) {
+            weavingCache = new WeavingCache(file, advisors);
+            weavingCache.open(WeavingCache.getFingerprint(advisors, shimTypes, mixinTypes));
+        }
+        long openMillis = stopwatch.elapsed(MILLISECONDS);
+        Supplier<List<Advice>> advisorsSupplier = Suppliers.ofInstance(advisors);
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier, shimTypes, mixinTypes);
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        when(transactionRegistry.getCurrentThreadContextHolder())
+                .thenReturn(new FastThreadLocal<ThreadContextImpl>().getHolder());
+        Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
+                weavingCache, transactionRegistry, new TimerNameCache(), mock(ConfigService.class));
+        int wovenCount = 0;
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            byte[] classBytes = entry.getValue();
+            try {
+                if (weaver.weave(classBytes, entry.getKey(), null, loader) != null) {
+                    wovenCount++;
+                }
+            } catch (RuntimeException e) {
+                // e.g. optional dependencies of the classes are not on the class path
+                logger.debug(e.getMessage(), e);
+            }
+        }
+        int cacheSize = 0;
+        if (weavingCache != null) {
+            cacheSize = weavingCache.size();
+            weavingCache.close();
+        }
+        logger.info("{}: {} ms (cache open: {} ms, cache entries: {}, woven: {})", name,
+                stopwatch.elapsed(MILLISECONDS), openMillis, cacheSize, wovenCount);
+    }
+
+    private static List<File> getJarFiles() {
+        List<File> jarFiles = Lists.newArrayList();
+        for (String path : Splitter.on(StandardSystemProperty.PATH_SEPARATOR.value())
+                .split(StandardSystemProperty.JAVA_CLASS_PATH.value())) {
+            if (path.endsWith(".jar")) {
+                jarFiles.add(new File(path));
+            }
+        }
+        return jarFiles;
+    }
+
+    private static Map<String, byte[]> readClasses(List<File> jarFiles) throws Exception {
+        Map<String, byte[]> classes = Maps.newLinkedHashMap();
+        for (File file : jarFiles) {
+            JarFile jarFile = new JarFile(file);
+            try {
+                Enumeration<JarEntry> e = jarFile.entries();
+                while (e.hasMoreElements()) {
+                    JarEntry jarEntry = e.nextElement();
+                    String name = jarEntry.getName();
+                    if (!name.endsWith(".class") || name.startsWith("META-INF/")
+                            || name.endsWith("module-info.class")) {
+                        continue;
+                    }
+                    String className = name.substring(0, name.length() - ".class".length());
+                    if (!classes.containsKey(className)) {
+                        classes.put(className,
+                                ByteStreams.toByteArray(jarFile.getInputStream(jarEntry)));
+                    }
+                }
+            } finally {
+                jarFile.close();
+            }
+        }
+        return classes;
+    }
+
+    // typical plugin pointcuts, most classes do not match any of them
+
+    @Pointcut(className = "javax.servlet.Servlet", methodName = "service",
+            methodParameterTypes = {".."})
+    public static class ServletAdvice {}
+
+    @Pointcut(className = "java.sql.Statement", methodName = "execute*",
+            methodParameterTypes = {".."})
+    public static class StatementAdvice {}
+
+    @Pointcut(className = "java.util.concurrent.Executor", methodName = "execute",
+            methodParameterTypes = {"java.lang.Runnable"})
+    public static class ExecutorAdvice {}
+
+    @Pointcut(className = "org.apache.http.client.HttpClient", methodName = "execute",
+            methodParameterTypes = {".."})
+    public static class HttpClientAdvice {}
+
+    @Pointcut(className = "/.*Controller/", methodName = "handle*",
+            methodParameterTypes = {".."})
+    public static class ControllerAdvice {}
+}
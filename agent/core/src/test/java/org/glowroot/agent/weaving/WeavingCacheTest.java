@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingCacheTest {
+
+    private static final byte[] CLASS_BYTES_1 = new byte[] {1, 2, 3};
+    private static final byte[] CLASS_BYTES_2 = new byte[] {4, 5, 6};
+
+    private File tempFile;
+    private List<Advice> advisors;
+
+    @Before
+    public void onBefore() throws IOException {
+        tempFile = File.createTempFile("glowroot-test-", ".weaving-cache.bin");
+        advisors = Lists.newArrayList();
+    }
+
+    @After
+    public void onAfter() {
+        tempFile.delete();
+    }
+
+    @Test
+    public void shouldReadAfterReopen() {
+        // given
+        WeavingCache weavingCache = open("abc");
+        AnalyzedClass analyzedClass = ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC)
+                .name("com.example.Abc")
+                .superName("com.example.Base")
+                .addInterfaceNames("java.lang.Runnable", "java.io.Serializable")
+                .addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                        .name("run")
+                        .addParameterTypes("int", "java.lang.String")
+                        .build())
+                .build();
+        weavingCache.put(CLASS_BYTES_1, advisors, analyzedClass);
+        weavingCache.put(CLASS_BYTES_2, advisors, newAnalyzedClass("com.example.Xyz"));
+        weavingCache.close();
+
+        // when
+        weavingCache = open("abc");
+
+        // then
+        assertThat(weavingCache.size()).isEqualTo(2);
+        assertThat(weavingCache.get(CLASS_BYTES_1, advisors)).isEqualTo(analyzedClass);
+        assertThat(weavingCache.get(CLASS_BYTES_2, advisors).name()).isEqualTo("com.example.Xyz");
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldAppendAfterReopen() {
+        // given
+        WeavingCache weavingCache = open("abc");
+        weavingCache.put(CLASS_BYTES_1, advisors, newAnalyzedClass("com.example.Abc"));
+        weavingCache.close();
+        weavingCache = open("abc");
+        weavingCache.put(CLASS_BYTES_2, advisors, newAnalyzedClass("com.example.Xyz"));
+        weavingCache.close();
+
+        // when
+        weavingCache = open("abc");
+
+        // then
+        assertThat(weavingCache.size()).isEqualTo(2);
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldDiscardOnFingerprintChange() {
+        // given
+        WeavingCache weavingCache = open("abc");
+        weavingCache.put(CLASS_BYTES_1, advisors, newAnalyzedClass("com.example.Abc"));
+        weavingCache.close();
+
+        // when
+        weavingCache = open("xyz");
+
+        // then
+        assertThat(weavingCache.size()).isZero();
+        assertThat(weavingCache.get(CLASS_BYTES_1, advisors)).isNull();
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldKeepEntriesBeforeTruncatedEntry() throws IOException {
+        // given
+        WeavingCache weavingCache = open("abc");
+        weavingCache.put(CLASS_BYTES_1, advisors, newAnalyzedClass("com.example.Abc"));
+        weavingCache.close();
+        long length = tempFile.length();
+        weavingCache = open("abc");
+        weavingCache.put(CLASS_BYTES_2, advisors, newAnalyzedClass("com.example.Xyz"));
+        weavingCache.close();
+        truncate(length + 10);
+
+        // when
+        weavingCache = open("abc");
+
+        // then
+        assertThat(weavingCache.size()).isEqualTo(1);
+        assertThat(weavingCache.get(CLASS_BYTES_1, advisors)).isNotNull();
+        weavingCache.close();
+        // and the file should have been re-written without the truncated entry
+        assertThat(tempFile.length()).isEqualTo(length);
+    }
+
+    @Test
+    public void shouldNotCacheClassWithAdvice() {
+        // given
+        WeavingCache weavingCache = open("abc");
+        AnalyzedClass analyzedClass = ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC)
+                .name("com.example.Abc")
+                .addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                        .name("run")
+                        .returnType("void")
+                        .modifiers(Modifier.PUBLIC)
+                        .build())
+                .build();
+
+        // when
+        weavingCache.put(CLASS_BYTES_1, advisors, analyzedClass);
+
+        // then
+        assertThat(weavingCache.get(CLASS_BYTES_1, advisors)).isNull();
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldBypassForOtherAdvisors() {
+        // given
+        WeavingCache weavingCache = open("abc");
+        List<Advice> otherAdvisors = Lists.newArrayList();
+
+        // when
+        weavingCache.put(CLASS_BYTES_1, otherAdvisors, newAnalyzedClass("com.example.Abc"));
+        weavingCache.put(CLASS_BYTES_2, advisors, newAnalyzedClass("com.example.Xyz"));
+
+        // then
+        assertThat(weavingCache.get(CLASS_BYTES_1, advisors)).isNull();
+        assertThat(weavingCache.get(CLASS_BYTES_2, advisors)).isNotNull();
+        assertThat(weavingCache.get(CLASS_BYTES_2, otherAdvisors)).isNull();
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldHaveStableFingerprint() {
+        // given
+        List<ShimType> shimTypes = ImmutableList.of();
+        List<MixinType> mixinTypes = ImmutableList.of();
+
+        // when
+        String fingerprint1 = WeavingCache.getFingerprint(advisors, shimTypes, mixinTypes);
+        String fingerprint2 = WeavingCache.getFingerprint(advisors, shimTypes, mixinTypes);
+
+        // then
+        assertThat(fingerprint1).isEqualTo(fingerprint2);
+    }
+
+    private WeavingCache open(String fingerprint) {
+        WeavingCache weavingCache = new WeavingCache(tempFile, advisors);
+        weavingCache.open(fingerprint);
+        return weavingCache;
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static AnalyzedClass newAnalyzedClass(String name) {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC)
+                .name(name)
+                .superName("java.lang.Object")
+                .build();
+    }
+}
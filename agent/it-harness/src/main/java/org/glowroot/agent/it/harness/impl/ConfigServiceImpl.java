@@ -210,6 +210,7 @@ class ConfigServiceImpl implements ConfigService {
                 .setMaxTraceEntriesPerTransaction(of(2000))
                 .setMaxStackTraceSamplesPerTransaction(of(10000))
                 .setMbeanGaugeNotFoundDelaySeconds(of(60))
+                .setAggregationThreads(of(1))
                 .build();
     }
 
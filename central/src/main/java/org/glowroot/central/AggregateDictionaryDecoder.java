@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// reverses the agent's dictionary encoding of a single aggregate interval (see
+// AggregateStreamHeader.dictionary_encoded), so that aggregates are stored the same regardless of
+// encoding
+class AggregateDictionaryDecoder {
+
+    private final List<String> dictionary = Lists.newArrayList();
+
+    void addEntry(String entry) {
+        dictionary.add(entry);
+    }
+
+    String decode(int index) {
+        if (index < 0 || index >= dictionary.size()) {
+            throw new IllegalStateException("Invalid dictionary index: " + index);
+        }
+        return dictionary.get(index);
+    }
+
+    Aggregate decode(Aggregate aggregate) {
+        Aggregate.Builder builder = aggregate.toBuilder()
+                .clearMainThreadRootTimer()
+                .clearAuxThreadRootTimer()
+                .clearAsyncTimer()
+                .clearServiceCallsByType();
+        for (Aggregate.Timer timer : aggregate.getMainThreadRootTimerList()) {
+            builder.addMainThreadRootTimer(decode(timer));
+        }
+        for (Aggregate.Timer timer : aggregate.getAuxThreadRootTimerList()) {
+            builder.addAuxThreadRootTimer(decode(timer));
+        }
+        for (Aggregate.Timer timer : aggregate.getAsyncTimerList()) {
+            builder.addAsyncTimer(decode(timer));
+        }
+        for (Aggregate.ServiceCallsByType serviceCallsByType : aggregate
+                .getServiceCallsByTypeList()) {
+            Aggregate.ServiceCallsByType.Builder serviceCallsByTypeBuilder =
+                    serviceCallsByType.toBuilder().clearServiceCall();
+            for (Aggregate.ServiceCall serviceCall : serviceCallsByType.getServiceCallList()) {
+                serviceCallsByTypeBuilder.addServiceCall(serviceCall.toBuilder()
+                        .clearTextIndex()
+                        .setText(decode(serviceCall.getTextIndex())));
+            }
+            builder.addServiceCallsByType(serviceCallsByTypeBuilder);
+        }
+        Aggregate.Histogram histogram = aggregate.getDurationNanosHistogram();
+        List<Long> orderedRawValueDeltas = histogram.getOrderedRawValueDeltaList();
+        if (!orderedRawValueDeltas.isEmpty()) {
+            Aggregate.Histogram.Builder histogramBuilder =
+                    histogram.toBuilder().clearOrderedRawValueDelta();
+            long value = 0;
+            for (long delta : orderedRawValueDeltas) {
+                value += delta;
+                histogramBuilder.addOrderedRawValue(value);
+            }
+            builder.setDurationNanosHistogram(histogramBuilder);
+        }
+        return builder.build();
+    }
+
+    private Aggregate.Timer decode(Aggregate.Timer timer) {
+        Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
+                .setName(decode(timer.getNameIndex()))
+                .setExtended(timer.getExtended())
+                .setTotalNanos(timer.getTotalNanos())
+                .setCount(timer.getCount());
+        for (Aggregate.Timer childTimer : timer.getChildTimerList()) {
+            builder.addChildTimer(decode(childTimer));
+        }
+        return builder.build();
+    }
+}
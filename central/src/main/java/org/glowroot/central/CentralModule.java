@@ -55,7 +55,6 @@ import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.CentralConfigDao;
 import org.glowroot.central.repo.ConfigDao;
 import org.glowroot.central.repo.ConfigRepositoryImpl;
-import org.glowroot.central.repo.ConfigRepositoryImpl.AgentConfigListener;
 import org.glowroot.central.repo.EnvironmentDao;
 import org.glowroot.central.repo.FullQueryTextDao;
 import org.glowroot.central.repo.GaugeValueDao;
@@ -71,6 +70,7 @@ import org.glowroot.central.repo.UserDao;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.MailService;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.config.ImmutableWebConfig;
 import org.glowroot.common.config.SmtpConfig;
 import org.glowroot.common.config.WebConfig;
@@ -96,6 +96,7 @@ class CentralModule {
     private final ClusterManager clusterManager;
     private final Cluster cluster;
     private final Session session;
+    private final StatementScheduler statementScheduler;
     private final RollupService rollupService;
     private final SyntheticMonitorService pingAndSyntheticAlertService;
     private final GrpcServer server;
@@ -109,6 +110,7 @@ class CentralModule {
         ClusterManager clusterManager = null;
         Cluster cluster = null;
         Session session = null;
+        StatementScheduler statementScheduler = null;
         RollupService rollupService = null;
         SyntheticMonitorService pingAndSyntheticAlertService = null;
         GrpcServer server = null;
@@ -151,6 +153,8 @@ class CentralModule {
             cluster = session.getCluster();
             Sessions.createKeyspaceIfNotExists(session, centralConfig.cassandraKeyspace());
             session.execute("use " + centralConfig.cassandraKeyspace());
+            statementScheduler =
+                    new StatementScheduler(session, centralConfig.cassandraMaxConcurrentQueries());
 
             KeyspaceMetadata keyspace =
                     cluster.getMetadata().getKeyspace(centralConfig.cassandraKeyspace());
@@ -162,7 +166,7 @@ class CentralModule {
                 schemaUpgrade.upgrade();
             }
             CentralConfigDao centralConfigDao = new CentralConfigDao(session, clusterManager);
-            AgentDao agentDao = new AgentDao(session, clusterManager);
+            AgentDao agentDao = new AgentDao(session, statementScheduler, clusterManager);
             ConfigDao configDao = new ConfigDao(session, clusterManager);
             UserDao userDao = new UserDao(session, keyspace, clusterManager);
             RoleDao roleDao = new RoleDao(session, keyspace, clusterManager);
@@ -193,22 +197,25 @@ class CentralModule {
                 }
             }
 
-            TransactionTypeDao transactionTypeDao =
-                    new TransactionTypeDao(session, configRepository, clusterManager);
-            FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
-            AggregateDao aggregateDao = new AggregateDao(session, agentDao, transactionTypeDao,
-                    fullQueryTextDao, configRepository, clock);
-            TraceAttributeNameDao traceAttributeNameDao =
-                    new TraceAttributeNameDao(session, configRepository, clusterManager);
-            TraceDao traceDao = new TraceDao(session, agentDao, transactionTypeDao,
-                    fullQueryTextDao, traceAttributeNameDao, configRepository, clock);
-            GaugeValueDao gaugeValueDao =
-                    new GaugeValueDao(session, agentDao, configRepository, clusterManager, clock);
+            TransactionTypeDao transactionTypeDao = new TransactionTypeDao(session,
+                    statementScheduler, configRepository, clusterManager);
+            FullQueryTextDao fullQueryTextDao =
+                    new FullQueryTextDao(session, statementScheduler, configRepository);
+            AggregateDao aggregateDao = new AggregateDao(session, statementScheduler, agentDao,
+                    transactionTypeDao, fullQueryTextDao, configRepository, clock);
+            TraceAttributeNameDao traceAttributeNameDao = new TraceAttributeNameDao(session,
+                    statementScheduler, configRepository, clusterManager);
+            TraceDao traceDao = new TraceDao(session, statementScheduler, agentDao,
+                    transactionTypeDao, fullQueryTextDao, traceAttributeNameDao, configRepository,
+                    clock);
+            GaugeValueDao gaugeValueDao = new GaugeValueDao(session, statementScheduler, agentDao,
+                    configRepository, clusterManager, centralConfig.cassandraGaugeValueBlocks(),
+                    clock);
             SyntheticResultDao syntheticResultDao =
-                    new SyntheticResultDao(session, configRepository, clock);
+                    new SyntheticResultDao(session, statementScheduler, configRepository, clock);
             EnvironmentDao environmentDao = new EnvironmentDao(session);
             HeartbeatDao heartbeatDao = new HeartbeatDao(session, agentDao, clock);
-            TriggeredAlertDao triggeredAlertDao = new TriggeredAlertDao(session);
+            TriggeredAlertDao triggeredAlertDao = new TriggeredAlertDao(session, clusterManager);
             RollupLevelService rollupLevelService = new RollupLevelService(configRepository, clock);
             MailService mailService = new MailService();
             AlertingService alertingService = new AlertingService(configRepository,
@@ -222,18 +229,17 @@ class CentralModule {
 
             server = new GrpcServer(centralConfig.grpcBindAddress(), centralConfig.grpcPort(),
                     agentDao, configDao, aggregateDao, gaugeValueDao, environmentDao, heartbeatDao,
-                    traceDao, configRepository, alertingService, clusterManager, clock, version);
+                    traceDao, configRepository, alertingService, clusterManager,
+                    statementScheduler, clock, version);
             DownstreamServiceImpl downstreamService = server.getDownstreamService();
-            configRepository.addAgentConfigListener(new AgentConfigListener() {
-                @Override
-                public void onChange(String agentId) throws Exception {
-                    // TODO report checker framework issue that occurs without checkNotNull
-                    checkNotNull(downstreamService).updateAgentConfigIfConnectedAndNeeded(agentId);
-                }
-            });
+            ConfigChangeIndex configChangeIndex = new ConfigChangeIndex(agentDao,
+                    downstreamService, alertingService, clusterManager);
+            configRepository.addAgentConfigListener(configChangeIndex);
             rollupService = new RollupService(agentDao, aggregateDao, gaugeValueDao,
-                    syntheticResultDao, heartbeatDao, configRepository, alertingService,
-                    downstreamService, clock);
+                    syntheticResultDao, traceDao, heartbeatDao, configRepository,
+                    alertingService, downstreamService, configChangeIndex,
+                    clusterManager.createDistributedOwnership("rollupOwnership"), clock,
+                    centralConfig.rollupThreads());
             pingAndSyntheticAlertService = new SyntheticMonitorService(agentDao, configRepository,
                     triggeredAlertDao, alertingService, syntheticResultDao, ticker, clock);
 
@@ -270,6 +276,7 @@ class CentralModule {
                     .numWorkerThreads(50)
                     .version(version)
                     .build();
+            aggregateDao.addStoreListener(uiModule::invalidateSummaries);
         } catch (Throwable t) {
             if (startupLogger == null) {
                 t.printStackTrace();
@@ -290,6 +297,9 @@ class CentralModule {
             if (pingAndSyntheticAlertService != null) {
                 pingAndSyntheticAlertService.close();
             }
+            if (statementScheduler != null) {
+                statementScheduler.close();
+            }
             if (session != null) {
                 session.close();
             }
@@ -304,6 +314,7 @@ class CentralModule {
         this.clusterManager = clusterManager;
         this.cluster = cluster;
         this.session = session;
+        this.statementScheduler = statementScheduler;
         this.rollupService = rollupService;
         this.pingAndSyntheticAlertService = pingAndSyntheticAlertService;
         this.server = server;
@@ -323,6 +334,7 @@ class CentralModule {
             server.close();
             rollupService.close();
             pingAndSyntheticAlertService.close();
+            statementScheduler.close();
             session.close();
             cluster.close();
             clusterManager.close();
@@ -383,6 +395,20 @@ class CentralModule {
         if (!Strings.isNullOrEmpty(grpcPortText)) {
             builder.grpcPort(Integer.parseInt(grpcPortText));
         }
+        String rollupThreadsText = props.getProperty("rollup.threads");
+        if (!Strings.isNullOrEmpty(rollupThreadsText)) {
+            builder.rollupThreads(Integer.parseInt(rollupThreadsText));
+        }
+        String cassandraMaxConcurrentQueriesText =
+                props.getProperty("cassandra.maxConcurrentQueries");
+        if (!Strings.isNullOrEmpty(cassandraMaxConcurrentQueriesText)) {
+            builder.cassandraMaxConcurrentQueries(
+                    Integer.parseInt(cassandraMaxConcurrentQueriesText));
+        }
+        String cassandraGaugeValueBlocksText = props.getProperty("cassandra.gaugeValueBlocks");
+        if (!Strings.isNullOrEmpty(cassandraGaugeValueBlocksText)) {
+            builder.cassandraGaugeValueBlocks(Boolean.parseBoolean(cassandraGaugeValueBlocksText));
+        }
         String uiBindAddress = props.getProperty("ui.bindAddress");
         if (!Strings.isNullOrEmpty(uiBindAddress)) {
             builder.uiBindAddressOverride(uiBindAddress);
@@ -504,6 +530,21 @@ class CentralModule {
             return "glowroot";
         }
 
+        // upper bound for the adaptive limit on asynchronous queries in flight (see
+        // StatementScheduler), which should stay below the driver's max queue size (4096) so
+        // that the driver's queue does not overflow
+        @Value.Default
+        int cassandraMaxConcurrentQueries() {
+            return 1024;
+        }
+
+        // stores rolled-up gauge values in compressed blocks (in addition to individual rows),
+        // which greatly reduces the number of rows read for long-range gauge charts
+        @Value.Default
+        boolean cassandraGaugeValueBlocks() {
+            return false;
+        }
+
         @Value.Default
         String grpcBindAddress() {
             return "0.0.0.0";
@@ -514,6 +555,11 @@ class CentralModule {
             return 8181;
         }
 
+        @Value.Default
+        int rollupThreads() {
+            return 4;
+        }
+
         abstract @Nullable String jgroupsConfigurationFile();
 
         abstract Map<String, String> jgroupProperties();
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+import org.glowroot.central.repo.AgentDao;
+import org.glowroot.central.repo.ConfigRepositoryImpl.AgentConfigListener;
+import org.glowroot.central.util.ClusterManager;
+
+// tracks the agents that have a config update which has not been delivered yet, and the agent
+// rollups that have an alert config change which has not been applied to their triggered alerts
+// yet, so that the once-a-minute rollup pass only does this work (and the cassandra reads that go
+// with it) for the agents and agent rollups that need it, instead of for every agent rollup
+//
+// the pending maps are replicated across the central cluster, since a config can be changed on a
+// different central node than the one that the agent is connected to, or that rolls up the agent
+// rollup
+//
+// the values are tokens, so that an entry is only removed if it has not been re-added (by a more
+// recent change) while it was being processed
+class ConfigChangeIndex implements AgentConfigListener {
+
+    private final AgentDao agentDao;
+    private final DownstreamServiceImpl downstreamService;
+    private final AlertingService alertingService;
+
+    private final ConcurrentMap<String, UUID> pendingConfigUpdates;
+    private final ConcurrentMap<String, UUID> pendingAlertConfigChanges;
+
+    ConfigChangeIndex(AgentDao agentDao, DownstreamServiceImpl downstreamService,
+            AlertingService alertingService, ClusterManager clusterManager) {
+        this.agentDao = agentDao;
+        this.downstreamService = downstreamService;
+        this.alertingService = alertingService;
+        pendingConfigUpdates = clusterManager.createReplicatedMap("pendingConfigUpdates");
+        pendingAlertConfigChanges = clusterManager.createReplicatedMap("pendingAlertConfigChanges");
+    }
+
+    @Override
+    public void onChange(String agentRollupId) throws Exception {
+        pendingAlertConfigChanges.put(agentRollupId, UUID.randomUUID());
+        if (agentDao.isAgent(agentRollupId)) {
+            // the config update is pushed right away, and is only left pending if the agent is not
+            // currently connected (or the push fails), in which case it is retried on each rollup
+            // pass until the agent re-connects
+            pendingConfigUpdates.put(agentRollupId, UUID.randomUUID());
+            updateAgentConfigIfPending(agentRollupId);
+        }
+    }
+
+    void updateAgentConfigIfPending(String agentId) throws Exception {
+        UUID token = pendingConfigUpdates.get(agentId);
+        if (token != null && downstreamService.updateAgentConfigIfConnectedAndNeeded(agentId)) {
+            pendingConfigUpdates.remove(agentId, token);
+        }
+    }
+
+    void checkForDeletedAlertsIfPending(String agentRollupId) throws Exception {
+        UUID token = pendingAlertConfigChanges.get(agentRollupId);
+        if (token != null) {
+            alertingService.checkForDeletedAlerts(agentRollupId);
+            pendingAlertConfigChanges.remove(agentRollupId, token);
+        }
+    }
+}
@@ -120,8 +120,11 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         return new ConnectedAgent(requestObserver);
     }
 
-    void updateAgentConfigIfConnectedAndNeeded(String agentId) throws Exception {
-        connectedAgents.execute(agentId, ConnectedAgent::updateAgentConfigIfConnectedAndNeeded);
+    // returns true if the agent is connected and has been sent its latest config
+    boolean updateAgentConfigIfConnectedAndNeeded(String agentId) throws Exception {
+        java.util.Optional<Boolean> optional = connectedAgents.execute(agentId,
+                ConnectedAgent::updateAgentConfigIfConnectedAndNeeded);
+        return optional.isPresent() && optional.get();
     }
 
     boolean isAvailable(String agentId) throws Exception {
@@ -408,7 +411,7 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
             }
         }
 
-        // dummy return value, just needs to be serializable
+        // returns false if unable to determine or send the pending config update
         private boolean updateAgentConfigIfConnectedAndNeeded() {
             checkNotNull(agentId);
             AgentConfigUpdate agentConfigUpdate;
@@ -419,7 +422,7 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
                 return false;
             }
             if (agentConfigUpdate == null) {
-                return false;
+                return true;
             }
             sendRequest(CentralRequest.newBuilder()
                     .setRequestId(nextRequestId.getAndIncrement())
@@ -432,7 +435,7 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
                 logger.error(e.getMessage(), e);
                 return false;
             }
-            return false;
+            return true;
         }
 
         private boolean isAvailable() {
@@ -23,6 +23,8 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
@@ -45,6 +47,7 @@ import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.TraceDao;
 import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
@@ -94,6 +97,7 @@ class GrpcServer {
     private final TraceDao traceDao;
     private final ConfigRepositoryImpl configRepository;
     private final AlertingService alertingService;
+    private final StatementScheduler statementScheduler;
     private final Clock clock;
     private final String version;
 
@@ -109,8 +113,9 @@ class GrpcServer {
     GrpcServer(String bindAddress, int port, AgentDao agentDao, ConfigDao configDao,
             AggregateDao aggregateDao, GaugeValueDao gaugeValueDao, EnvironmentDao environmentDao,
             HeartbeatDao heartbeatDao, TraceDao traceDao, ConfigRepositoryImpl configRepository,
-            AlertingService alertingService, ClusterManager clusterManager, Clock clock,
-            String version) throws IOException {
+            AlertingService alertingService, ClusterManager clusterManager,
+            StatementScheduler statementScheduler, Clock clock, String version)
+            throws IOException {
         this.agentDao = agentDao;
         this.configDao = configDao;
         this.environmentDao = environmentDao;
@@ -120,6 +125,7 @@ class GrpcServer {
         this.traceDao = traceDao;
         this.configRepository = configRepository;
         this.alertingService = alertingService;
+        this.statementScheduler = statementScheduler;
         this.clock = clock;
         this.version = version;
 
@@ -187,7 +193,9 @@ class GrpcServer {
             logger.info("agent connected: {}, version {}", getDisplayForLogging(agentId),
                     request.getEnvironment().getJavaInfo().getGlowrootAgentVersion());
             InitResponse.Builder response = InitResponse.newBuilder()
-                    .setGlowrootCentralVersion(version);
+                    .setGlowrootCentralVersion(version)
+                    .setMultiIntervalAggregateStream(true)
+                    .setAggregateDictionaryEncoding(true);
             if (!updatedAgentConfig.equals(request.getAgentConfig())) {
                 response.setAgentConfig(updatedAgentConfig);
             }
@@ -205,31 +213,59 @@ class GrpcServer {
                 private Map<String, OldAggregatesByType.Builder> aggregatesByTypeMap =
                         Maps.newHashMap();
 
+                // the agent can batch multiple intervals (e.g. backlog after reconnecting) into a
+                // single stream, in which case this is the first error storing a prior interval
+                private @Nullable Throwable priorIntervalError;
+
+                // dictionary is scoped to the interval
+                private @Nullable AggregateDictionaryDecoder dictionaryDecoder;
+
                 @Override
                 public void onNext(AggregateStreamMessage value) {
                     switch (value.getMessageCase()) {
                         case STREAM_HEADER:
+                            if (streamHeader != null) {
+                                storePriorInterval(streamHeader);
+                            }
                             streamHeader = value.getStreamHeader();
+                            if (streamHeader.getDictionaryEncoded()) {
+                                dictionaryDecoder = new AggregateDictionaryDecoder();
+                            } else {
+                                dictionaryDecoder = null;
+                            }
                             break;
                         case SHARED_QUERY_TEXT:
                             sharedQueryTexts.add(value.getSharedQueryText());
                             break;
+                        case DICTIONARY_ENTRY:
+                            checkNotNull(dictionaryDecoder).addEntry(value.getDictionaryEntry());
+                            break;
                         case OVERALL_AGGREGATE:
                             OverallAggregate overallAggregate = value.getOverallAggregate();
                             String transactionType = overallAggregate.getTransactionType();
+                            Aggregate aggregate = overallAggregate.getAggregate();
+                            if (dictionaryDecoder != null) {
+                                aggregate = dictionaryDecoder.decode(aggregate);
+                            }
                             aggregatesByTypeMap.put(transactionType,
                                     OldAggregatesByType.newBuilder()
                                             .setTransactionType(transactionType)
-                                            .setOverallAggregate(overallAggregate.getAggregate()));
+                                            .setOverallAggregate(aggregate));
                             break;
                         case TRANSACTION_AGGREGATE:
                             TransactionAggregate transactionAggregate =
                                     value.getTransactionAggregate();
                             OldAggregatesByType.Builder builder = checkNotNull(aggregatesByTypeMap
                                     .get(transactionAggregate.getTransactionType()));
+                            Aggregate transactionAggregateValue =
+                                    transactionAggregate.getAggregate();
+                            if (dictionaryDecoder != null) {
+                                transactionAggregateValue =
+                                        dictionaryDecoder.decode(transactionAggregateValue);
+                            }
                             builder.addTransactionAggregate(OldTransactionAggregate.newBuilder()
                                     .setTransactionName(transactionAggregate.getTransactionName())
-                                    .setAggregate(transactionAggregate.getAggregate())
+                                    .setAggregate(transactionAggregateValue)
                                     .build());
                             break;
                         default:
@@ -255,14 +291,42 @@ class GrpcServer {
                 @Override
                 public void onCompleted() {
                     checkNotNull(streamHeader);
+                    if (priorIntervalError != null) {
+                        responseObserver.onError(priorIntervalError);
+                        return;
+                    }
+                    collectAggregatesInternal(streamHeader.getAgentId(),
+                            streamHeader.getCaptureTime(), sharedQueryTexts,
+                            buildAggregatesByTypeList(), responseObserver);
+                }
+
+                private void storePriorInterval(AggregateStreamHeader priorStreamHeader) {
+                    List<OldAggregatesByType> aggregatesByTypeList = buildAggregatesByTypeList();
+                    if (priorIntervalError == null && !aggregatesByTypeList.isEmpty()) {
+                        try {
+                            statementScheduler.awaitCapacity();
+                            aggregateDao.store(priorStreamHeader.getAgentId(),
+                                    priorStreamHeader.getCaptureTime(), aggregatesByTypeList,
+                                    sharedQueryTexts);
+                        } catch (Throwable t) {
+                            logger.error("{} - {}",
+                                    getDisplayForLogging(priorStreamHeader.getAgentId()),
+                                    t.getMessage(), t);
+                            priorIntervalError = t;
+                        }
+                    }
+                    // shared query text indexes are per interval
+                    sharedQueryTexts = Lists.newArrayList();
+                    aggregatesByTypeMap = Maps.newHashMap();
+                }
+
+                private List<OldAggregatesByType> buildAggregatesByTypeList() {
                     List<OldAggregatesByType> aggregatesByTypeList = Lists.newArrayList();
                     for (OldAggregatesByType.Builder aggregatesByType : aggregatesByTypeMap
                             .values()) {
                         aggregatesByTypeList.add(aggregatesByType.build());
                     }
-                    collectAggregatesInternal(streamHeader.getAgentId(),
-                            streamHeader.getCaptureTime(),
-                            sharedQueryTexts, aggregatesByTypeList, responseObserver);
+                    return aggregatesByTypeList;
                 }
             };
         }
@@ -296,6 +360,7 @@ class GrpcServer {
                 StreamObserver<AggregateResponseMessage> responseObserver) {
             if (!aggregatesByTypeList.isEmpty()) {
                 try {
+                    statementScheduler.awaitCapacity();
                     aggregateDao.store(agentId, captureTime, aggregatesByTypeList,
                             sharedQueryTexts);
                 } catch (Throwable t) {
@@ -340,6 +405,7 @@ class GrpcServer {
             String agentId = request.getAgentId();
             long maxCaptureTime = 0;
             try {
+                statementScheduler.awaitCapacity();
                 gaugeValueDao.store(agentId, request.getGaugeValuesList());
                 for (GaugeValue gaugeValue : request.getGaugeValuesList()) {
                     maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
@@ -466,6 +532,7 @@ class GrpcServer {
                                 .build();
                     }
                     try {
+                        statementScheduler.awaitCapacity();
                         traceDao.store(streamHeader.getAgentId(), trace);
                     } catch (Throwable t) {
                         logger.error("{} - {}", getDisplayForLogging(streamHeader.getAgentId()),
@@ -515,6 +582,7 @@ class GrpcServer {
                 StreamObserver<EmptyMessage> responseObserver) {
             String agentId = request.getAgentId();
             try {
+                statementScheduler.awaitCapacity();
                 traceDao.store(agentId, request.getTrace());
             } catch (Throwable t) {
                 logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
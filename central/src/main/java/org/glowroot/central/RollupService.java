@@ -15,14 +15,25 @@
  */
 package org.glowroot.central;
 
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,49 +45,107 @@ import org.glowroot.central.repo.ConfigRepositoryImpl;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.repo.TraceDao;
+import org.glowroot.central.util.DistributedOwnership;
 import org.glowroot.common.repo.AgentRepository.AgentRollup;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertKind;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+// each agent rollup is rolled up by its own task on a bounded worker pool, and the task for a
+// parent agent rollup is only started once the tasks for all of its children have completed, since
+// the parent rollups are done from the children's 1-min rollups
+//
+// the size of the worker pool also bounds the number of rollups (and so the number of cassandra
+// statements from rollups) that are in flight at the same time
+//
+// when running multiple central nodes, each top-level agent rollup (together with all of its
+// descendants) is rolled up and alert checked by a single central node, which is assigned by
+// consistent hash over the central cluster and re-evaluated on every pass, so that the work is
+// spread across the central nodes and is rebalanced when a central node joins or leaves the
+// cluster (rollups are idempotent and pending rollups are tracked in cassandra, so it is harmless
+// if an agent rollup is rolled up twice or is skipped for a pass during rebalancing)
+//
+// agent config updates and deleted alert cleanup are only done on each pass for the agents and
+// agent rollups that have pending config changes (see ConfigChangeIndex), with a full pass over all
+// agent rollups once an hour as a backstop (e.g. in case all central nodes were restarted)
 class RollupService implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(RollupService.class);
 
+    private static final String MBEAN_NAME = "org.glowroot.central:type=RollupService";
+
+    private static final long FULL_CONFIG_CHECK_INTERVAL_MINUTES = 60;
+
     private final AgentDao agentDao;
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
     private final SyntheticResultDao syntheticResultDao;
+    private final TraceDao traceDao;
     private final HeartbeatDao heartbeatDao;
     private final ConfigRepositoryImpl configRepository;
     private final AlertingService alertingService;
     private final DownstreamServiceImpl downstreamService;
+    private final ConfigChangeIndex configChangeIndex;
+    private final DistributedOwnership rollupOwnership;
     private final Clock clock;
 
     private final ExecutorService executor;
+    private final ExecutorService workerExecutor;
 
     private final Stopwatch stopwatch = Stopwatch.createStarted();
 
+    // only accessed by the single rollup loop thread
+    private long nextFullConfigCheckMinutes;
+
+    private final RollupStats rollupStats = new RollupStats();
+    private final boolean mbeanRegistered;
+
     private volatile boolean closed;
 
     RollupService(AgentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
-            SyntheticResultDao syntheticResultDao, HeartbeatDao heartbeatDao,
+            SyntheticResultDao syntheticResultDao, TraceDao traceDao, HeartbeatDao heartbeatDao,
             ConfigRepositoryImpl configRepository, AlertingService alertingService,
-            DownstreamServiceImpl downstreamService, Clock clock) {
+            DownstreamServiceImpl downstreamService, ConfigChangeIndex configChangeIndex,
+            DistributedOwnership rollupOwnership, Clock clock, int rollupThreads) {
+        this(agentDao, aggregateDao, gaugeValueDao, syntheticResultDao, traceDao, heartbeatDao,
+                configRepository, alertingService, downstreamService, configChangeIndex,
+                rollupOwnership, clock, rollupThreads, true);
+    }
+
+    // startLoop is false in tests, which call runInternal() directly, and so need to avoid racing
+    // with the rollup loop
+    @VisibleForTesting
+    RollupService(AgentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
+            SyntheticResultDao syntheticResultDao, TraceDao traceDao, HeartbeatDao heartbeatDao,
+            ConfigRepositoryImpl configRepository, AlertingService alertingService,
+            DownstreamServiceImpl downstreamService, ConfigChangeIndex configChangeIndex,
+            DistributedOwnership rollupOwnership, Clock clock, int rollupThreads,
+            boolean startLoop) {
         this.agentDao = agentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.syntheticResultDao = syntheticResultDao;
+        this.traceDao = traceDao;
         this.heartbeatDao = heartbeatDao;
         this.configRepository = configRepository;
         this.alertingService = alertingService;
         this.downstreamService = downstreamService;
+        this.configChangeIndex = configChangeIndex;
+        this.rollupOwnership = rollupOwnership;
         this.clock = clock;
-        executor = Executors.newSingleThreadExecutor();
-        executor.execute(castInitialized(this));
+        workerExecutor = Executors.newFixedThreadPool(rollupThreads,
+                new ThreadFactoryBuilder().setNameFormat("Glowroot-Rollup-Worker-%d").build());
+        mbeanRegistered = registerMBean(rollupStats);
+        executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("Glowroot-Rollup-Loop").build());
+        if (startLoop) {
+            executor.execute(castInitialized(this));
+        }
     }
 
     @Override
@@ -95,50 +164,139 @@ class RollupService implements Runnable {
 
     void close() throws InterruptedException {
         closed = true;
-        // shutdownNow() is needed here to send interrupt to RollupService thread
+        // shutdownNow() is needed here to send interrupt to RollupService threads
         executor.shutdownNow();
+        workerExecutor.shutdownNow();
         if (!executor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        if (mbeanRegistered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                        .unregisterMBean(new ObjectName(MBEAN_NAME));
+            } catch (Exception e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
     }
 
+    @VisibleForTesting
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Outer rollup loop", traceHeadline = "Outer rollup loop",
             timer = "outer rollup loop")
-    private void runInternal() throws Exception {
+    void runInternal() throws Exception {
         Glowroot.setTransactionOuter();
+        Stopwatch passStopwatch = Stopwatch.createStarted();
+        LevelCompletionTimes levelCompletionTimes = new LevelCompletionTimes(passStopwatch);
+        long elapsedMinutes = stopwatch.elapsed(MINUTES);
+        boolean checkHeartbeatAlerts = elapsedMinutes >= 4;
+        // the full config check also waits for agents to re-connect after central start-up (see
+        // comment in rollupAndCheck() about heartbeat alerts)
+        boolean fullConfigCheck =
+                checkHeartbeatAlerts && elapsedMinutes >= nextFullConfigCheckMinutes;
+        if (fullConfigCheck) {
+            nextFullConfigCheckMinutes = elapsedMinutes + FULL_CONFIG_CHECK_INTERVAL_MINUTES;
+        }
+        List<CompletableFuture<Boolean>> futures = Lists.newArrayList();
+        int ownedCount = 0;
         for (AgentRollup agentRollup : agentDao.readAgentRollups()) {
-            rollupAggregates(agentRollup, null);
-            rollupGauges(agentRollup, null);
-            rollupSyntheticMonitors(agentRollup);
-            // checking for deleted alerts doesn't depend on rollup
-            consumeAgentRollups(agentRollup, this::checkForDeletedAlerts);
-            // checking transaction and gauge alerts after rollup since their calculation can depend
-            // on rollups depending on time period length
-            //
-            // these alerts are also checked right after receiving the respective data
-            // (transaction/gauge/heartbeat) from agent, but need to also check once a minute in
-            // case no data has been received from agent recently
-            consumeAgentRollups(agentRollup, this::checkTransactionAlerts);
-            consumeAgentRollups(agentRollup, this::checkGaugeAlerts);
-            // checking heartbeat alerts doesn't depend on rollups, just here for convenience
-            if (stopwatch.elapsed(MINUTES) >= 4) {
-                // give agents plenty of time to re-connect after central start-up
-                // needs to be at least enough time for grpc max reconnect backoff
-                // which is 2 minutes +/- 20% jitter (see io.grpc.internal.ExponentialBackoffPolicy)
-                // but better to give a bit extra (4 minutes above) to avoid false heartbeat alert
-                consumeAgentRollups(agentRollup, this::checkHeartbeatAlerts);
+            if (rollupOwnership.isLocallyOwned(agentRollup.id())) {
+                futures.add(rollupAsync(agentRollup, null, 0, checkHeartbeatAlerts,
+                        fullConfigCheck, levelCompletionTimes));
+                ownedCount++;
+            } else {
+                // agent config updates are sent over the agent's connection, which may be to this
+                // central node regardless of which central node owns the agent rollup
+                updateAgentConfigsIfConnectedAndNeeded(agentRollup, fullConfigCheck);
+            }
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+        } catch (ExecutionException e) {
+            if (closed) {
+                // shutdown requested
+                throw new InterruptedException();
             }
-            // updating agent configs doesn't depend on rollups, just here for convenience
-            consumeAgentRollups(agentRollup, this::updateAgentConfigIfConnectedAndNeeded);
+            throw e;
+        }
+        long passDurationMillis = passStopwatch.elapsed(MILLISECONDS);
+        rollupStats.update(passDurationMillis, levelCompletionTimes.get(), ownedCount);
+        if (passDurationMillis > MINUTES.toMillis(1)) {
+            logger.warn("rollup took {} seconds, which is longer than the one minute rollup"
+                    + " interval", MILLISECONDS.toSeconds(passDurationMillis));
         }
     }
 
-    private void rollupAggregates(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
-            throws InterruptedException {
+    // returns true if gauge rollup was successful for the agent rollup and all of its descendants
+    private CompletableFuture<Boolean> rollupAsync(AgentRollup agentRollup,
+            @Nullable String parentAgentRollupId, int level, boolean checkHeartbeatAlerts,
+            boolean fullConfigCheck, LevelCompletionTimes levelCompletionTimes) {
+        List<CompletableFuture<Boolean>> childFutures = Lists.newArrayList();
         for (AgentRollup childAgentRollup : agentRollup.children()) {
-            rollupAggregates(childAgentRollup, agentRollup.id());
+            childFutures.add(rollupAsync(childAgentRollup, agentRollup.id(), level + 1,
+                    checkHeartbeatAlerts, fullConfigCheck, levelCompletionTimes));
+        }
+        return CompletableFuture.allOf(childFutures.toArray(new CompletableFuture<?>[0]))
+                .thenApplyAsync(ignored -> {
+                    boolean childGaugeSuccess = true;
+                    for (CompletableFuture<Boolean> childFuture : childFutures) {
+                        childGaugeSuccess = childGaugeSuccess && childFuture.join();
+                    }
+                    try {
+                        boolean gaugeSuccess = rollupAndCheck(agentRollup, parentAgentRollupId,
+                                childGaugeSuccess, checkHeartbeatAlerts, fullConfigCheck);
+                        levelCompletionTimes.complete(level);
+                        return gaugeSuccess;
+                    } catch (InterruptedException e) {
+                        // shutdown requested
+                        Thread.currentThread().interrupt();
+                        throw new CompletionException(e);
+                    }
+                }, workerExecutor);
+    }
+
+    private boolean rollupAndCheck(AgentRollup agentRollup, @Nullable String parentAgentRollupId,
+            boolean childGaugeSuccess, boolean checkHeartbeatAlerts, boolean fullConfigCheck)
+            throws InterruptedException {
+        rollupAggregates(agentRollup, parentAgentRollupId);
+        boolean gaugeSuccess = false;
+        if (childGaugeSuccess) {
+            // important to not roll up parent if exception occurs while rolling up a child, since
+            // gauge values initial roll up from children is done on the 1-min aggregates of the
+            // children
+            gaugeSuccess = rollupGauges(agentRollup, parentAgentRollupId);
+        }
+        rollupSyntheticMonitors(agentRollup);
+        rollupErrorMessages(agentRollup);
+        // checking for deleted alerts doesn't depend on rollup
+        consume(agentRollup, loopAgentRollup -> checkForDeletedAlerts(loopAgentRollup,
+                fullConfigCheck));
+        // checking transaction and gauge alerts after rollup since their calculation can depend
+        // on rollups depending on time period length
+        //
+        // these alerts are also checked right after receiving the respective data
+        // (transaction/gauge/heartbeat) from agent, but need to also check once a minute in case
+        // no data has been received from agent recently
+        consume(agentRollup, this::checkTransactionAlerts);
+        consume(agentRollup, this::checkGaugeAlerts);
+        // checking heartbeat alerts doesn't depend on rollups, just here for convenience
+        if (checkHeartbeatAlerts) {
+            // give agents plenty of time to re-connect after central start-up
+            // needs to be at least enough time for grpc max reconnect backoff
+            // which is 2 minutes +/- 20% jitter (see io.grpc.internal.ExponentialBackoffPolicy)
+            // but better to give a bit extra (4 minutes above) to avoid false heartbeat alert
+            consume(agentRollup, this::checkHeartbeatAlerts);
         }
+        // updating agent configs doesn't depend on rollups, just here for convenience
+        updateAgentConfigIfConnectedAndNeeded(agentRollup, fullConfigCheck);
+        return gaugeSuccess;
+    }
+
+    private void rollupAggregates(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
+            throws InterruptedException {
         try {
             aggregateDao.rollup(agentRollup.id(), parentAgentRollupId,
                     agentRollup.children().isEmpty());
@@ -153,19 +311,6 @@ class RollupService implements Runnable {
     // returns true on success, false on failure
     private boolean rollupGauges(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
             throws InterruptedException {
-        // important to roll up children first, since gauge values initial roll up from children is
-        // done on the 1-min aggregates of the children
-        boolean success = true;
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            boolean childSuccess = rollupGauges(childAgentRollup, agentRollup.id());
-            success = success && childSuccess;
-        }
-        if (!success) {
-            // also important to not roll up parent if exception occurs while rolling up a child,
-            // since gauge values initial roll up from children is done on the 1-min aggregates of
-            // the children
-            return false;
-        }
         try {
             gaugeValueDao.rollup(agentRollup.id(), parentAgentRollupId,
                     agentRollup.children().isEmpty());
@@ -179,10 +324,7 @@ class RollupService implements Runnable {
         }
     }
 
-    private void rollupSyntheticMonitors(AgentRollup agentRollup) throws Exception {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            rollupSyntheticMonitors(childAgentRollup);
-        }
+    private void rollupSyntheticMonitors(AgentRollup agentRollup) throws InterruptedException {
         try {
             syntheticResultDao.rollup(agentRollup.id());
         } catch (InterruptedException e) {
@@ -193,16 +335,36 @@ class RollupService implements Runnable {
         }
     }
 
-    private void consumeAgentRollups(AgentRollup agentRollup,
-            AgentRollupConsumer agentRollupConsumer) throws Exception {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            consumeAgentRollups(childAgentRollup, agentRollupConsumer);
+    private void rollupErrorMessages(AgentRollup agentRollup) throws InterruptedException {
+        try {
+            traceDao.rollup(agentRollup.id());
+        } catch (InterruptedException e) {
+            // shutdown requested
+            throw e;
+        } catch (Exception e) {
+            logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
         }
-        agentRollupConsumer.accept(agentRollup);
     }
 
-    private void checkForDeletedAlerts(AgentRollup agentRollup) throws Exception {
-        alertingService.checkForDeletedAlerts(agentRollup.id());
+    private void consume(AgentRollup agentRollup, AgentRollupConsumer agentRollupConsumer)
+            throws InterruptedException {
+        try {
+            agentRollupConsumer.accept(agentRollup);
+        } catch (InterruptedException e) {
+            // shutdown requested
+            throw e;
+        } catch (Exception e) {
+            logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
+        }
+    }
+
+    private void checkForDeletedAlerts(AgentRollup agentRollup, boolean fullConfigCheck)
+            throws Exception {
+        if (fullConfigCheck) {
+            alertingService.checkForDeletedAlerts(agentRollup.id());
+        } else {
+            configChangeIndex.checkForDeletedAlertsIfPending(agentRollup.id());
+        }
     }
 
     private void checkTransactionAlerts(AgentRollup agentRollup) throws Exception {
@@ -223,13 +385,17 @@ class RollupService implements Runnable {
                         clock.currentTimeMillis()));
     }
 
-    private void updateAgentConfigIfConnectedAndNeeded(AgentRollup agentRollup)
-            throws InterruptedException {
+    private void updateAgentConfigIfConnectedAndNeeded(AgentRollup agentRollup,
+            boolean fullConfigCheck) throws InterruptedException {
         if (!agentRollup.children().isEmpty()) {
             return;
         }
         try {
-            downstreamService.updateAgentConfigIfConnectedAndNeeded(agentRollup.id());
+            if (fullConfigCheck) {
+                downstreamService.updateAgentConfigIfConnectedAndNeeded(agentRollup.id());
+            } else {
+                configChangeIndex.updateAgentConfigIfPending(agentRollup.id());
+            }
         } catch (InterruptedException e) {
             // shutdown requested
             throw e;
@@ -238,6 +404,14 @@ class RollupService implements Runnable {
         }
     }
 
+    private void updateAgentConfigsIfConnectedAndNeeded(AgentRollup agentRollup,
+            boolean fullConfigCheck) throws InterruptedException {
+        for (AgentRollup childAgentRollup : agentRollup.children()) {
+            updateAgentConfigsIfConnectedAndNeeded(childAgentRollup, fullConfigCheck);
+        }
+        updateAgentConfigIfConnectedAndNeeded(agentRollup, fullConfigCheck);
+    }
+
     private void checkAlerts(AgentRollup agentRollup, AlertKind alertKind,
             AlertConfigConsumer check) throws InterruptedException {
         List<AlertConfig> alertConfigs;
@@ -296,11 +470,84 @@ class RollupService implements Runnable {
         return 60000 - (currentTimeMillis - 10000) % 60000;
     }
 
+    @VisibleForTesting
+    RollupStatsMXBean getRollupStats() {
+        return rollupStats;
+    }
+
+    private static boolean registerMBean(RollupStats rollupStats) {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbeanServer.registerMBean(rollupStats, new ObjectName(MBEAN_NAME));
+            return true;
+        } catch (InstanceAlreadyExistsException e) {
+            // e.g. multiple central modules in the same jvm during tests
+            logger.debug(e.getMessage(), e);
+        } catch (Exception e) {
+            logger.warn(e.getMessage(), e);
+        }
+        return false;
+    }
+
     @SuppressWarnings("return.type.incompatible")
     private static <T> /*@Initialized*/ T castInitialized(/*@UnderInitialization*/ T obj) {
         return obj;
     }
 
+    // level 0 is the top level of the agent rollup hierarchy
+    private static class LevelCompletionTimes {
+
+        private final Stopwatch passStopwatch;
+
+        @GuardedBy("this")
+        private long[] completionMillis = new long[0];
+
+        private LevelCompletionTimes(Stopwatch passStopwatch) {
+            this.passStopwatch = passStopwatch;
+        }
+
+        private synchronized void complete(int level) {
+            if (level >= completionMillis.length) {
+                completionMillis = Arrays.copyOf(completionMillis, level + 1);
+            }
+            completionMillis[level] =
+                    Math.max(completionMillis[level], passStopwatch.elapsed(MILLISECONDS));
+        }
+
+        private synchronized long[] get() {
+            return completionMillis.clone();
+        }
+    }
+
+    private static class RollupStats implements RollupStatsMXBean {
+
+        private volatile long lastPassDurationMillis = -1;
+        private volatile long[] lastPassLevelCompletionMillis = new long[0];
+        private volatile int lastPassOwnedAgentRollupCount;
+
+        private void update(long passDurationMillis, long[] levelCompletionMillis,
+                int ownedAgentRollupCount) {
+            lastPassDurationMillis = passDurationMillis;
+            lastPassLevelCompletionMillis = levelCompletionMillis;
+            lastPassOwnedAgentRollupCount = ownedAgentRollupCount;
+        }
+
+        @Override
+        public long getLastPassDurationMillis() {
+            return lastPassDurationMillis;
+        }
+
+        @Override
+        public long[] getLastPassLevelCompletionMillis() {
+            return lastPassLevelCompletionMillis.clone();
+        }
+
+        @Override
+        public int getLastPassOwnedAgentRollupCount() {
+            return lastPassOwnedAgentRollupCount;
+        }
+    }
+
     @FunctionalInterface
     interface AgentRollupConsumer {
         void accept(AgentRollup agentRollup) throws Exception;
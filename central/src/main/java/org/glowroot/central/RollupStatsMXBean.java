@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+public interface RollupStatsMXBean {
+
+    // -1 if no rollup has completed yet
+    long getLastPassDurationMillis();
+
+    // indexed by level in the agent rollup hierarchy (0 is the top level), the time after the
+    // start of the last rollup at which all agent rollups at that level had been rolled up
+    // (lower levels complete first since parents are rolled up after their children)
+    long[] getLastPassLevelCompletionMillis();
+
+    // number of top-level agent rollups that were rolled up by this central node in the last
+    // rollup (the others are owned by other central nodes in the cluster)
+    int getLastPassOwnedAgentRollupCount();
+}
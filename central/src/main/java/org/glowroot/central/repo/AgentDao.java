@@ -41,9 +41,10 @@ import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import org.immutables.value.Value;
 
-import org.glowroot.central.util.Cache;
 import org.glowroot.central.util.Cache.CacheLoader;
+import org.glowroot.central.util.Cache;
 import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.config.AgentRollupConfig;
 import org.glowroot.common.config.ImmutableAgentRollupConfig;
 import org.glowroot.common.repo.AgentRepository;
@@ -60,6 +61,7 @@ public class AgentDao implements AgentRepository {
             "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
 
     private final Session session;
+    private final StatementScheduler statementScheduler;
 
     private final PreparedStatement readPS;
     private final PreparedStatement readParentIdPS;
@@ -77,8 +79,10 @@ public class AgentDao implements AgentRepository {
     private final Cache<String, Optional<String>> agentRollupIdCache;
     private final Cache<String, Optional<AgentRollupConfig>> agentRollupConfigCache;
 
-    public AgentDao(Session session, ClusterManager clusterManager) {
+    public AgentDao(Session session, StatementScheduler statementScheduler,
+            ClusterManager clusterManager) {
         this.session = session;
+        this.statementScheduler = statementScheduler;
 
         session.execute("create table if not exists agent_rollup (one int, agent_rollup_id varchar,"
                 + " parent_agent_rollup_id varchar, display varchar, agent boolean,"
@@ -219,7 +223,7 @@ public class AgentDao implements AgentRepository {
         int i = 0;
         boundStatement.setString(i++, agentId);
         boundStatement.setTimestamp(i++, new Date(captureTime));
-        return session.executeAsync(boundStatement);
+        return statementScheduler.executeAsync(boundStatement);
     }
 
     @Nullable
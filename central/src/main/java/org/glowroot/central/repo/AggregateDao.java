@@ -57,6 +57,7 @@ import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.config.StorageConfig;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
@@ -204,12 +205,15 @@ public class AggregateDao implements AggregateRepository {
             .build();
 
     private final Session session;
+    private final StatementScheduler statementScheduler;
     private final AgentDao agentDao;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final ConfigRepository configRepository;
     private final Clock clock;
 
+    private final Set<StoreListener> storeListeners = Sets.newCopyOnWriteArraySet();
+
     // list index is rollupLevel
     private final Map<Table, List<PreparedStatement>> insertOverallPS;
     private final Map<Table, List<PreparedStatement>> insertTransactionPS;
@@ -235,10 +239,11 @@ public class AggregateDao implements AggregateRepository {
 
     private final ImmutableList<Table> allTables;
 
-    public AggregateDao(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao, ConfigRepository configRepository, Clock clock)
-            throws Exception {
+    public AggregateDao(Session session, StatementScheduler statementScheduler, AgentDao agentDao,
+            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
+            ConfigRepository configRepository, Clock clock) throws Exception {
         this.session = session;
+        this.statementScheduler = statementScheduler;
         this.agentDao = agentDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
@@ -468,7 +473,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setString(i++, agentId);
             boundStatement.setSet(i++, transactionTypes);
             boundStatement.setInt(i++, needsRollupAdjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
         // insert into aggregate_needs_rollup_1
         long intervalMillis = rollupConfigs.get(1).intervalMillis();
@@ -480,8 +485,18 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setUUID(i++, UUIDs.timeBased());
         boundStatement.setSet(i++, transactionTypes);
         boundStatement.setInt(i++, needsRollupAdjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(statementScheduler.executeAsync(boundStatement));
         MoreFutures.waitForAll(futures);
+
+        for (StoreListener storeListener : storeListeners) {
+            for (String agentRollupId : agentRollupIds) {
+                storeListener.onStore(agentRollupId, captureTime);
+            }
+        }
+    }
+
+    public void addStoreListener(StoreListener listener) {
+        storeListeners.add(listener);
     }
 
     // query.from() is non-inclusive
@@ -840,7 +855,8 @@ public class AggregateDao implements AggregateRepository {
                     needsRollupFromChildren.getKeys().keySet(),
                     needsRollupFromChildren.getUniquenessKeysForDeletion(),
                     nextRollupIntervalMillis, insertNeedsRollup.get(rollupLevel),
-                    deleteNeedsRollupFromChild, needsRollupAdjustedTTL, session);
+                    deleteNeedsRollupFromChild, needsRollupAdjustedTTL, session,
+                    statementScheduler);
         }
     }
 
@@ -871,7 +887,7 @@ public class AggregateDao implements AggregateRepository {
                 // processed (also prior to 0.9.6), and when the corresponding old data has expired
                 AggregateDao.postRollup(agentRollupId, needsRollup.getCaptureTime(),
                         transactionTypes, needsRollup.getUniquenessKeysForDeletion(), null, null,
-                        deleteNeedsRollup.get(rollupLevel - 1), -1, session);
+                        deleteNeedsRollup.get(rollupLevel - 1), -1, session, statementScheduler);
                 continue;
             }
             // wait for above async work to ensure rollup complete before proceeding
@@ -882,7 +898,8 @@ public class AggregateDao implements AggregateRepository {
             PreparedStatement deleteNeedsRollup = this.deleteNeedsRollup.get(rollupLevel - 1);
             postRollup(agentRollupId, needsRollup.getCaptureTime(), transactionTypes,
                     needsRollup.getUniquenessKeysForDeletion(), nextRollupIntervalMillis,
-                    insertNeedsRollup, deleteNeedsRollup, needsRollupAdjustedTTL, session);
+                    insertNeedsRollup, deleteNeedsRollup, needsRollupAdjustedTTL, session,
+                    statementScheduler);
         }
     }
 
@@ -1016,7 +1033,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, totalDurationNanos);
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(statementScheduler.executeAsync(boundStatement));
     }
 
     private List<ResultSetFuture> rollupErrorSummary(RollupParams rollup, TransactionQuery query) {
@@ -1053,7 +1070,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, errorCount);
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(statementScheduler.executeAsync(boundStatement));
     }
 
     // transactionNames is passed in empty, and populated by method
@@ -1117,7 +1134,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setDouble(i++, summary.totalDurationNanos);
             boundStatement.setLong(i++, summary.transactionCount);
             boundStatement.setInt(i++, rollup.adjustedTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
         transactionNames.addAll(summaries.keySet());
         return futures;
@@ -1176,7 +1193,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, summary.errorCount);
             boundStatement.setLong(i++, summary.transactionCount);
             boundStatement.setInt(i++, rollup.adjustedTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
         return futures;
     }
@@ -1271,7 +1288,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, auxThreadStats.getTotalWaitedNanos());
         boundStatement.setDouble(i++, auxThreadStats.getTotalAllocatedBytes());
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(statementScheduler.executeAsync(boundStatement));
     }
 
     private List<ResultSetFuture> rollupHistogram(RollupParams rollup, TransactionQuery query,
@@ -1330,7 +1347,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setBytes(i++, toByteBuffer(durationNanosHistogram.toProto(scratchBuffer)));
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(statementScheduler.executeAsync(boundStatement));
     }
 
     private List<ResultSetFuture> rollupThroughput(RollupParams rollup, TransactionQuery query) {
@@ -1377,7 +1394,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(query.to()));
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(statementScheduler.executeAsync(boundStatement));
     }
 
     private List<ResultSetFuture> rollupQueries(RollupParams rollup, TransactionQuery query)
@@ -1496,7 +1513,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(query.to()));
         boundStatement.setBytes(i++, toByteBuffer(profile.toProto()));
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(statementScheduler.executeAsync(boundStatement));
     }
 
     private List<Row> getRowsForSummaryRollupFromChildren(TransactionQuery query,
@@ -1537,7 +1554,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(statementScheduler.executeAsync(boundStatement));
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertOverallPS(errorSummaryTable, rollupLevel).bind();
@@ -1548,7 +1565,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
 
         boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
@@ -1557,7 +1574,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(i++, transactionType);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(statementScheduler.executeAsync(boundStatement));
 
         boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1568,7 +1585,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(statementScheduler.executeAsync(boundStatement));
 
         boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1577,7 +1594,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(statementScheduler.executeAsync(boundStatement));
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1588,7 +1605,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1599,7 +1616,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
         futures.addAll(insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts,
                 rollupLevel, agentRollupId, transactionType, null, captureTime, adjustedTTL));
@@ -1624,7 +1641,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(statementScheduler.executeAsync(boundStatement));
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertTransactionPS(errorSummaryTable, rollupLevel).bind();
@@ -1636,7 +1653,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
 
         boundStatement = getInsertTransactionPS(overviewTable, rollupLevel).bind();
@@ -1646,7 +1663,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(i++, transactionName);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(statementScheduler.executeAsync(boundStatement));
 
         boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1658,7 +1675,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(statementScheduler.executeAsync(boundStatement));
 
         boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1668,7 +1685,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(statementScheduler.executeAsync(boundStatement));
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1680,7 +1697,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1692,7 +1709,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
         futures.addAll(
                 insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts, rollupLevel,
@@ -1742,7 +1759,7 @@ public class AggregateDao implements AggregateRepository {
                     boundStatement.setToNull(i++);
                 }
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(statementScheduler.executeAsync(boundStatement));
             }
         }
         return futures;
@@ -1781,7 +1798,7 @@ public class AggregateDao implements AggregateRepository {
                     boundStatement.setToNull(i++);
                 }
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(statementScheduler.executeAsync(boundStatement));
                 if (rollupFromChildren && fullTextSha1 != null) {
                     futures.addAll(fullQueryTextDao.updateTTL(agentRollupId, fullTextSha1));
                 }
@@ -1815,7 +1832,7 @@ public class AggregateDao implements AggregateRepository {
                 boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
                 boundStatement.setLong(i++, serviceCall.getExecutionCount());
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(statementScheduler.executeAsync(boundStatement));
             }
         }
         return futures;
@@ -2018,7 +2035,15 @@ public class AggregateDao implements AggregateRepository {
     static List<NeedsRollup> getNeedsRollupList(String agentRollupId, int rollupLevel,
             long rollupIntervalMillis, List<PreparedStatement> readNeedsRollup, Session session,
             Clock clock) {
-        BoundStatement boundStatement = readNeedsRollup.get(rollupLevel - 1).bind();
+        // there is no "needs rollup" for rollup level 0, so readNeedsRollup is indexed by
+        // rollupLevel - 1
+        return getNeedsRollupList(agentRollupId, rollupIntervalMillis,
+                readNeedsRollup.get(rollupLevel - 1), session, clock);
+    }
+
+    static List<NeedsRollup> getNeedsRollupList(String agentRollupId, long rollupIntervalMillis,
+            PreparedStatement readNeedsRollup, Session session, Clock clock) {
+        BoundStatement boundStatement = readNeedsRollup.bind();
         boundStatement.setString(0, agentRollupId);
         ResultSet results = session.execute(boundStatement);
         Map<Long, NeedsRollup> needsRollupMap = Maps.newLinkedHashMap();
@@ -2090,7 +2115,8 @@ public class AggregateDao implements AggregateRepository {
     static void postRollup(String agentRollupId, long captureTime, Set<String> keys,
             Set<UUID> uniquenessKeysForDeletion, @Nullable Long nextRollupIntervalMillis,
             @Nullable PreparedStatement insertNeedsRollup, PreparedStatement deleteNeedsRollup,
-            int needsRollupAdjustedTTL, Session session) throws Exception {
+            int needsRollupAdjustedTTL, Session session, StatementScheduler statementScheduler)
+            throws Exception {
         if (nextRollupIntervalMillis != null) {
             checkNotNull(insertNeedsRollup);
             long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime,
@@ -2112,7 +2138,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setString(i++, agentRollupId);
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setUUID(i++, uniqueness);
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
         MoreFutures.waitForAll(futures);
     }
@@ -2473,4 +2499,12 @@ public class AggregateDao implements AggregateRepository {
         private long errorCount;
         private long transactionCount;
     }
+
+    public interface StoreListener {
+
+        // captureTime is the end of the aggregate interval, the listener is responsible for
+        // deciding whether the aggregates arrived late (e.g. replayed by an agent after a
+        // collector outage)
+        void onStore(String agentRollupId, long captureTime);
+    }
 }
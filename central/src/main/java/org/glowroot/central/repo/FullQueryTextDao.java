@@ -33,7 +33,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.central.util.RateLimiter;
-import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.util.Styles;
@@ -48,6 +48,7 @@ public class FullQueryTextDao {
     private static final Logger logger = LoggerFactory.getLogger(FullQueryTextDao.class);
 
     private final Session session;
+    private final StatementScheduler statementScheduler;
     private final ConfigRepository configRepository;
 
     private final PreparedStatement insertCheckPS;
@@ -58,8 +59,10 @@ public class FullQueryTextDao {
 
     private final RateLimiter<FullQueryTextKey> rateLimiter = new RateLimiter<>(10000);
 
-    public FullQueryTextDao(Session session, ConfigRepository configRepository) {
+    public FullQueryTextDao(Session session, StatementScheduler statementScheduler,
+            ConfigRepository configRepository) {
         this.session = session;
+        this.statementScheduler = statementScheduler;
         this.configRepository = configRepository;
 
         // intentionally using default size-tiered compaction strategy
@@ -147,7 +150,7 @@ public class FullQueryTextDao {
         boundStatement.setString(i++, rateLimiterKey.fullTextSha1());
         boundStatement.setString(i++, fullText);
         boundStatement.setInt(i++, getTTL());
-        futures.add(Sessions.executeAsyncWithOnFailure(session, boundStatement,
+        futures.add(statementScheduler.executeAsyncWithOnFailure(boundStatement,
                 () -> rateLimiter.invalidate(rateLimiterKey)));
         return futures;
     }
@@ -158,7 +161,7 @@ public class FullQueryTextDao {
         boundStatement.setString(i++, rateLimiterKey.agentRollupId());
         boundStatement.setString(i++, rateLimiterKey.fullTextSha1());
         boundStatement.setInt(i++, getTTL());
-        return Sessions.executeAsyncWithOnFailure(session, boundStatement,
+        return statementScheduler.executeAsyncWithOnFailure(boundStatement,
                 () -> rateLimiter.invalidate(rateLimiterKey));
     }
 
@@ -29,11 +29,11 @@ import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.MoreExecutors;
 import org.immutables.value.Value;
 
-import org.glowroot.central.util.Cache;
 import org.glowroot.central.util.Cache.CacheLoader;
+import org.glowroot.central.util.Cache;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.RateLimiter;
-import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.util.Styles;
 
@@ -46,6 +46,7 @@ class GaugeNameDao {
             "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
 
     private final Session session;
+    private final StatementScheduler statementScheduler;
     private final ConfigRepository configRepository;
 
     private final PreparedStatement insertPS;
@@ -55,9 +56,10 @@ class GaugeNameDao {
 
     private final Cache<String, List<String>> gaugeNamesCache;
 
-    GaugeNameDao(Session session, ConfigRepository configRepository,
-            ClusterManager clusterManager) {
+    GaugeNameDao(Session session, StatementScheduler statementScheduler,
+            ConfigRepository configRepository, ClusterManager clusterManager) {
         this.session = session;
+        this.statementScheduler = statementScheduler;
         this.configRepository = configRepository;
 
         session.execute("create table if not exists gauge_name (agent_rollup varchar,"
@@ -84,7 +86,7 @@ class GaugeNameDao {
         boundStatement.setString(i++, agentRollupId);
         boundStatement.setString(i++, gaugeName);
         boundStatement.setInt(i++, getMaxTTL());
-        ResultSetFuture future = Sessions.executeAsyncWithOnFailure(session, boundStatement,
+        ResultSetFuture future = statementScheduler.executeAsyncWithOnFailure(boundStatement,
                 () -> rateLimiter.invalidate(rateLimiterKey));
         future.addListener(() -> gaugeNamesCache.invalidate(agentRollupId),
                 MoreExecutors.directExecutor());
@@ -15,9 +15,11 @@
  */
 package org.glowroot.central.repo;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -30,9 +32,11 @@ import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.base.Function;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.primitives.Ints;
@@ -49,6 +53,8 @@ import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.DummyResultSet;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
+import org.glowroot.central.util.TimeSeriesCodec;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.GaugeValueRepository;
@@ -61,6 +67,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class GaugeValueDao implements GaugeValueRepository {
 
@@ -68,9 +75,20 @@ public class GaugeValueDao implements GaugeValueRepository {
 
     private static final String LCS = "compaction = { 'class' : 'LeveledCompactionStrategy' }";
 
+    // number of rolled-up values in each compressed gauge value block, e.g. blocks of 1-minute
+    // rolled-up values cover 1 hour
+    private static final int VALUES_PER_BLOCK = 60;
+
+    // once the top rollup level is stored in compressed blocks, its individual rows are only
+    // needed for serving the in-flight block, so they are re-written with a shortened TTL after
+    // their block has been written
+    private static final int TOP_LEVEL_ROW_RETENTION_BLOCKS = 2;
+
     private final Session session;
+    private final StatementScheduler statementScheduler;
     private final AgentDao agentDao;
     private final ConfigRepository configRepository;
+    private final boolean gaugeValueBlocks;
     private final Clock clock;
 
     private final GaugeNameDao gaugeNameDao;
@@ -81,6 +99,15 @@ public class GaugeValueDao implements GaugeValueRepository {
     private final ImmutableList<PreparedStatement> readValueForRollupPS;
     private final PreparedStatement readValueForRollupFromChildPS;
 
+    // index is rollupLevel - 1 (there are no compressed blocks for non-rolled-up values), and these
+    // are empty when gauge value blocks are not enabled
+    private final ImmutableList<PreparedStatement> insertBlockPS;
+    private final ImmutableList<PreparedStatement> readBlockPS;
+    private final ImmutableList<PreparedStatement> readBlockForMergePS;
+    private final ImmutableList<PreparedStatement> insertNeedsBlockPS;
+    private final ImmutableList<PreparedStatement> readNeedsBlockPS;
+    private final ImmutableList<PreparedStatement> deleteNeedsBlockPS;
+
     private final List<PreparedStatement> insertNeedsRollup;
     private final List<PreparedStatement> readNeedsRollup;
     private final List<PreparedStatement> deleteNeedsRollup;
@@ -89,14 +116,18 @@ public class GaugeValueDao implements GaugeValueRepository {
     private final PreparedStatement readNeedsRollupFromChild;
     private final PreparedStatement deleteNeedsRollupFromChild;
 
-    public GaugeValueDao(Session session, AgentDao agentDao, ConfigRepository configRepository,
-            ClusterManager clusterManager, Clock clock) throws Exception {
+    public GaugeValueDao(Session session, StatementScheduler statementScheduler, AgentDao agentDao,
+            ConfigRepository configRepository, ClusterManager clusterManager,
+            boolean gaugeValueBlocks, Clock clock) throws Exception {
         this.session = session;
+        this.statementScheduler = statementScheduler;
         this.agentDao = agentDao;
         this.configRepository = configRepository;
+        this.gaugeValueBlocks = gaugeValueBlocks;
         this.clock = clock;
 
-        gaugeNameDao = new GaugeNameDao(session, configRepository, clusterManager);
+        gaugeNameDao =
+                new GaugeNameDao(session, statementScheduler, configRepository, clusterManager);
 
         int count = configRepository.getRollupConfigs().size();
         List<Integer> rollupExpirationHours = getRollupExpirationHours(configRepository);
@@ -127,6 +158,7 @@ public class GaugeValueDao implements GaugeValueRepository {
                 + " gauge_value_rollup_1 where agent_rollup = ? and gauge_name = ?"
                 + " and capture_time = ?");
 
+        List<PreparedStatement> insertBlockPS = Lists.newArrayList();
         // since rollup operations are idempotent, any records resurrected after gc_grace_seconds
         // would just create extra work, but not have any other effect
         //
@@ -135,6 +167,51 @@ public class GaugeValueDao implements GaugeValueRepository {
         // (see http://www.uberobert.com/cassandra_gc_grace_disables_hinted_handoff)
         long needsRollupGcGraceSeconds = HOURS.toSeconds(3);
 
+        List<PreparedStatement> readBlockPS = Lists.newArrayList();
+        List<PreparedStatement> readBlockForMergePS = Lists.newArrayList();
+        List<PreparedStatement> insertNeedsBlockPS = Lists.newArrayList();
+        List<PreparedStatement> readNeedsBlockPS = Lists.newArrayList();
+        List<PreparedStatement> deleteNeedsBlockPS = Lists.newArrayList();
+        if (gaugeValueBlocks) {
+            for (int i = 1; i <= count; i++) {
+                // each block holds the rolled-up values with capture times in
+                // (block_end - block size, block_end], compressed by TimeSeriesCodec
+                Sessions.createTableWithTWCS(session, "create table if not exists"
+                        + " gauge_value_block_rollup_" + i + " (agent_rollup varchar,"
+                        + " gauge_name varchar, block_end timestamp, gauge_values blob,"
+                        + " primary key ((agent_rollup, gauge_name), block_end))",
+                        rollupExpirationHours.get(i));
+                insertBlockPS.add(session.prepare("insert into gauge_value_block_rollup_" + i
+                        + " (agent_rollup, gauge_name, block_end, gauge_values) values"
+                        + " (?, ?, ?, ?) using ttl ?"));
+                readBlockPS.add(session.prepare("select block_end, gauge_values from"
+                        + " gauge_value_block_rollup_" + i + " where agent_rollup = ? and"
+                        + " gauge_name = ? and block_end >= ? and block_end < ?"));
+                readBlockForMergePS.add(session.prepare("select gauge_values from"
+                        + " gauge_value_block_rollup_" + i + " where agent_rollup = ? and"
+                        + " gauge_name = ? and block_end = ?"));
+                // blocks that have had values rolled up into them, but have not been written yet
+                // since they were still in-flight
+                session.execute("create table if not exists gauge_needs_block_rollup_" + i
+                        + " (agent_rollup varchar, block_end timestamp, gauge_name varchar,"
+                        + " primary key (agent_rollup, block_end, gauge_name))"
+                        + " with gc_grace_seconds = " + needsRollupGcGraceSeconds + " and " + LCS);
+                insertNeedsBlockPS.add(session.prepare("insert into gauge_needs_block_rollup_" + i
+                        + " (agent_rollup, block_end, gauge_name) values (?, ?, ?) using ttl ?"));
+                readNeedsBlockPS.add(session.prepare("select block_end, gauge_name from"
+                        + " gauge_needs_block_rollup_" + i + " where agent_rollup = ? and"
+                        + " block_end <= ?"));
+                deleteNeedsBlockPS.add(session.prepare("delete from gauge_needs_block_rollup_" + i
+                        + " where agent_rollup = ? and block_end = ? and gauge_name = ?"));
+            }
+        }
+        this.insertBlockPS = ImmutableList.copyOf(insertBlockPS);
+        this.readBlockPS = ImmutableList.copyOf(readBlockPS);
+        this.readBlockForMergePS = ImmutableList.copyOf(readBlockForMergePS);
+        this.insertNeedsBlockPS = ImmutableList.copyOf(insertNeedsBlockPS);
+        this.readNeedsBlockPS = ImmutableList.copyOf(readNeedsBlockPS);
+        this.deleteNeedsBlockPS = ImmutableList.copyOf(deleteNeedsBlockPS);
+
         List<PreparedStatement> insertNeedsRollup = Lists.newArrayList();
         List<PreparedStatement> readNeedsRollup = Lists.newArrayList();
         List<PreparedStatement> deleteNeedsRollup = Lists.newArrayList();
@@ -192,7 +269,7 @@ public class GaugeValueDao implements GaugeValueRepository {
             boundStatement.setDouble(i++, gaugeValue.getValue());
             boundStatement.setLong(i++, gaugeValue.getWeight());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
             for (String agentRollupId : agentRollupIds) {
                 futures.addAll(gaugeNameDao.store(agentRollupId, gaugeName));
             }
@@ -216,7 +293,7 @@ public class GaugeValueDao implements GaugeValueRepository {
             boundStatement.setUUID(i++, UUIDs.timeBased());
             boundStatement.setSet(i++, entry.getValue());
             boundStatement.setInt(i++, needsRollupAdjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
         MoreFutures.waitForAll(futures);
     }
@@ -234,6 +311,48 @@ public class GaugeValueDao implements GaugeValueRepository {
     @Override
     public List<GaugeValue> readGaugeValues(String agentRollupId, String gaugeName, long from,
             long to, int rollupLevel) {
+        if (!gaugeValueBlocks || rollupLevel == 0 || to - from < getBlockMillis(rollupLevel)) {
+            return readGaugeValuesFromRows(agentRollupId, gaugeName, from, to, rollupLevel);
+        }
+        long blockMillis = getBlockMillis(rollupLevel);
+        BoundStatement boundStatement = readBlockPS.get(rollupLevel - 1).bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, gaugeName);
+        boundStatement.setTimestamp(i++, new Date(from));
+        boundStatement.setTimestamp(i++, new Date(to + blockMillis));
+        ResultSet results = session.execute(boundStatement);
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        // rows are read for any part of the range that is not covered by a block, which is the
+        // in-flight block, and any blocks from before gauge value blocks were enabled
+        long remainingFrom = from;
+        for (Row row : results) {
+            i = 0;
+            long blockEnd = checkNotNull(row.getTimestamp(i++)).getTime();
+            ByteBuffer bytes = checkNotNull(row.getBytes(i++));
+            long blockStart = blockEnd - blockMillis;
+            if (blockStart >= remainingFrom) {
+                gaugeValues.addAll(readGaugeValuesFromRows(agentRollupId, gaugeName,
+                        remainingFrom, blockStart, rollupLevel));
+            }
+            for (GaugeValue gaugeValue : TimeSeriesCodec.decode(bytes)) {
+                long captureTime = gaugeValue.getCaptureTime();
+                if (captureTime >= remainingFrom && captureTime <= to) {
+                    gaugeValues.add(gaugeValue);
+                }
+            }
+            remainingFrom = blockEnd + 1;
+        }
+        if (remainingFrom <= to) {
+            gaugeValues.addAll(readGaugeValuesFromRows(agentRollupId, gaugeName, remainingFrom,
+                    to, rollupLevel));
+        }
+        return gaugeValues;
+    }
+
+    // from is INCLUSIVE
+    private List<GaugeValue> readGaugeValuesFromRows(String agentRollupId, String gaugeName,
+            long from, long to, int rollupLevel) {
         BoundStatement boundStatement = readValuePS.get(rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -310,6 +429,8 @@ public class GaugeValueDao implements GaugeValueRepository {
             }
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
+            insertNeedsBlock(rollupLevel, agentRollupId,
+                    needsRollupFromChildren.getKeys().keySet(), captureTime, ttl);
 
             int needsRollupAdjustedTTL =
                     AggregateDao.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
@@ -330,8 +451,10 @@ public class GaugeValueDao implements GaugeValueRepository {
                     needsRollupFromChildren.getKeys().keySet(),
                     needsRollupFromChildren.getUniquenessKeysForDeletion(),
                     nextRollupIntervalMillis, insertNeedsRollup.get(rollupLevel),
-                    deleteNeedsRollupFromChild, needsRollupAdjustedTTL, session);
+                    deleteNeedsRollupFromChild, needsRollupAdjustedTTL, session,
+                    statementScheduler);
         }
+        writeCompletedBlocks(rollupLevel, agentRollupId, ttl);
     }
 
     private void rollup(String agentRollupId, @Nullable String parentAgentRollupId, int rollupLevel,
@@ -361,11 +484,12 @@ public class GaugeValueDao implements GaugeValueRepository {
                 // processed (also prior to 0.9.6), and when the corresponding old data has expired
                 AggregateDao.postRollup(agentRollupId, needsRollup.getCaptureTime(),
                         gaugeNames, needsRollup.getUniquenessKeysForDeletion(), null, null,
-                        deleteNeedsRollup.get(rollupLevel - 1), -1, session);
+                        deleteNeedsRollup.get(rollupLevel - 1), -1, session, statementScheduler);
                 continue;
             }
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
+            insertNeedsBlock(rollupLevel, agentRollupId, gaugeNames, captureTime, ttl);
 
             int needsRollupAdjustedTTL =
                     AggregateDao.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
@@ -388,8 +512,9 @@ public class GaugeValueDao implements GaugeValueRepository {
             AggregateDao.postRollup(agentRollupId, needsRollup.getCaptureTime(),
                     gaugeNames, needsRollup.getUniquenessKeysForDeletion(),
                     nextRollupIntervalMillis, insertNeedsRollup, deleteNeedsRollup,
-                    needsRollupAdjustedTTL, session);
+                    needsRollupAdjustedTTL, session, statementScheduler);
         }
+        writeCompletedBlocks(rollupLevel, agentRollupId, ttl);
     }
 
     private ListenableFuture<ResultSet> rollupOneFromChildren(int rollupLevel, String agentRollupId,
@@ -401,7 +526,7 @@ public class GaugeValueDao implements GaugeValueRepository {
             boundStatement.setString(i++, childAgentRollup);
             boundStatement.setString(i++, gaugeName);
             boundStatement.setTimestamp(i++, new Date(captureTime));
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
         return Futures.transformAsync(
                 Futures.allAsList(futures),
@@ -445,7 +570,7 @@ public class GaugeValueDao implements GaugeValueRepository {
         boundStatement.setTimestamp(i++, new Date(from));
         boundStatement.setTimestamp(i++, new Date(to));
         return Futures.transformAsync(
-                session.executeAsync(boundStatement),
+                statementScheduler.executeAsync(boundStatement),
                 new AsyncFunction<ResultSet, ResultSet>() {
                     @Override
                     public ListenableFuture<ResultSet> apply(@Nullable ResultSet results)
@@ -486,7 +611,189 @@ public class GaugeValueDao implements GaugeValueRepository {
         boundStatement.setDouble(i++, totalWeightedValue / totalWeight);
         boundStatement.setLong(i++, totalWeight);
         boundStatement.setInt(i++, adjustedTTL);
-        return session.executeAsync(boundStatement);
+        return statementScheduler.executeAsync(boundStatement);
+    }
+
+    // the block is not written here since the rollup may be for an in-flight block, and the last
+    // interval of a block may not have any values (in which case there will be no rollup for it),
+    // so instead the block is recorded as needing to be written, and is written by
+    // writeCompletedBlocks() at the end of the rollup pass once the block is complete
+    private void insertNeedsBlock(int rollupLevel, String agentRollupId, Set<String> gaugeNames,
+            long captureTime, int ttl) throws Exception {
+        if (!gaugeValueBlocks) {
+            return;
+        }
+        long blockEnd = Utils.getRollupCaptureTime(captureTime, getBlockMillis(rollupLevel));
+        int adjustedTTL = AggregateDao.getAdjustedTTL(ttl, blockEnd, clock);
+        List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
+        for (String gaugeName : gaugeNames) {
+            BoundStatement boundStatement = insertNeedsBlockPS.get(rollupLevel - 1).bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setTimestamp(i++, new Date(blockEnd));
+            boundStatement.setString(i++, gaugeName);
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(statementScheduler.executeAsync(boundStatement));
+        }
+        MoreFutures.waitForAll(futures);
+    }
+
+    // this writes every complete block that has had values rolled up into it since it was last
+    // written, which covers both newly completed blocks and late values rolled up into an older
+    // block (which is re-written, merging with the values already in the block)
+    private void writeCompletedBlocks(int rollupLevel, String agentRollupId, int ttl)
+            throws Exception {
+        if (!gaugeValueBlocks) {
+            return;
+        }
+        BoundStatement boundStatement = readNeedsBlockPS.get(rollupLevel - 1).bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setTimestamp(i++, new Date(clock.currentTimeMillis()));
+        ResultSet results = session.execute(boundStatement);
+        SetMultimap<Long, String> needsBlocks = HashMultimap.create();
+        for (Row row : results) {
+            i = 0;
+            long blockEnd = checkNotNull(row.getTimestamp(i++)).getTime();
+            needsBlocks.put(blockEnd, checkNotNull(row.getString(i++)));
+        }
+        if (needsBlocks.isEmpty()) {
+            return;
+        }
+        List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
+        for (Entry<Long, String> entry : needsBlocks.entries()) {
+            futures.add(writeBlock(rollupLevel, agentRollupId, entry.getValue(), entry.getKey(),
+                    ttl));
+        }
+        // wait for the blocks to be written before deleting the "needs block" records
+        MoreFutures.waitForAll(futures);
+        futures.clear();
+        for (Entry<Long, String> entry : needsBlocks.entries()) {
+            boundStatement = deleteNeedsBlockPS.get(rollupLevel - 1).bind();
+            i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setTimestamp(i++, new Date(entry.getKey()));
+            boundStatement.setString(i++, entry.getValue());
+            futures.add(statementScheduler.executeAsync(boundStatement));
+        }
+        MoreFutures.waitForAll(futures);
+    }
+
+    private ListenableFuture<ResultSet> writeBlock(int rollupLevel, String agentRollupId,
+            String gaugeName, long blockEnd, int ttl) {
+        BoundStatement boundStatement = readBlockForMergePS.get(rollupLevel - 1).bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, gaugeName);
+        boundStatement.setTimestamp(i++, new Date(blockEnd));
+        ListenableFuture<ResultSet> blockFuture = statementScheduler.executeAsync(boundStatement);
+        boundStatement = readValuePS.get(rollupLevel).bind();
+        i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, gaugeName);
+        boundStatement.setTimestamp(i++, new Date(blockEnd - getBlockMillis(rollupLevel) + 1));
+        boundStatement.setTimestamp(i++, new Date(blockEnd));
+        ListenableFuture<ResultSet> valuesFuture = statementScheduler.executeAsync(boundStatement);
+        return Futures.transformAsync(
+                Futures.allAsList(blockFuture, valuesFuture),
+                new AsyncFunction<List<ResultSet>, ResultSet>() {
+                    @Override
+                    public ListenableFuture<ResultSet> apply(@Nullable List<ResultSet> results)
+                            throws Exception {
+                        checkNotNull(results);
+                        Map<Long, GaugeValue> gaugeValues = Maps.newTreeMap();
+                        // values from the existing block are needed when rows in the block have
+                        // already expired (see shortenRowTTLs())
+                        Row blockRow = results.get(0).one();
+                        if (blockRow != null) {
+                            ByteBuffer bytes = checkNotNull(blockRow.getBytes(0));
+                            for (GaugeValue gaugeValue : TimeSeriesCodec.decode(bytes)) {
+                                gaugeValues.put(gaugeValue.getCaptureTime(), gaugeValue);
+                            }
+                        }
+                        List<GaugeValue> rowGaugeValues = Lists.newArrayList();
+                        for (Row row : results.get(1)) {
+                            int i = 0;
+                            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+                            GaugeValue gaugeValue = GaugeValue.newBuilder()
+                                    .setCaptureTime(captureTime)
+                                    .setValue(row.getDouble(i++))
+                                    .setWeight(row.getLong(i++))
+                                    .build();
+                            gaugeValues.put(captureTime, gaugeValue);
+                            rowGaugeValues.add(gaugeValue);
+                        }
+                        if (gaugeValues.isEmpty()) {
+                            return Futures.immediateFuture(DummyResultSet.INSTANCE);
+                        }
+                        BoundStatement boundStatement =
+                                insertBlockPS.get(rollupLevel - 1).bind();
+                        int i = 0;
+                        boundStatement.setString(i++, agentRollupId);
+                        boundStatement.setString(i++, gaugeName);
+                        boundStatement.setTimestamp(i++, new Date(blockEnd));
+                        boundStatement.setBytes(i++, TimeSeriesCodec
+                                .encode(ImmutableList.copyOf(gaugeValues.values())));
+                        boundStatement.setInt(i++,
+                                AggregateDao.getAdjustedTTL(ttl, blockEnd, clock));
+                        ListenableFuture<ResultSet> future =
+                                statementScheduler.executeAsync(boundStatement);
+                        if (rowGaugeValues.isEmpty()
+                                || rollupLevel < configRepository.getRollupConfigs().size()) {
+                            return future;
+                        }
+                        return Futures.transformAsync(future,
+                                new AsyncFunction<ResultSet, ResultSet>() {
+                                    @Override
+                                    public ListenableFuture<ResultSet> apply(
+                                            @Nullable ResultSet result) throws Exception {
+                                        return shortenRowTTLs(rollupLevel, agentRollupId,
+                                                gaugeName, rowGaugeValues, ttl);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    // rows of the top rollup level are not needed for rolling up to a later level, so once their
+    // block has been written, they are re-written with a TTL that only retains them as long as
+    // needed to serve the in-flight block (the blocks themselves are retained for the full rollup
+    // expiration)
+    //
+    // this is only done after the block has been written, so that the values are never lost if the
+    // block write is delayed (e.g. central is down) or fails
+    private ListenableFuture<ResultSet> shortenRowTTLs(int rollupLevel, String agentRollupId,
+            String gaugeName, List<GaugeValue> gaugeValues, int ttl) {
+        int rowTTL = Ints.saturatedCast(MILLISECONDS
+                .toSeconds(getBlockMillis(rollupLevel) * TOP_LEVEL_ROW_RETENTION_BLOCKS));
+        List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
+        for (GaugeValue gaugeValue : gaugeValues) {
+            long captureTime = gaugeValue.getCaptureTime();
+            int adjustedTTL = AggregateDao.getAdjustedTTL(ttl, captureTime, clock);
+            int rowAdjustedTTL = AggregateDao.getAdjustedTTL(rowTTL, captureTime, clock);
+            BoundStatement boundStatement = insertValuePS.get(rollupLevel).bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, gaugeName);
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            boundStatement.setDouble(i++, gaugeValue.getValue());
+            boundStatement.setLong(i++, gaugeValue.getWeight());
+            boundStatement.setInt(i++,
+                    adjustedTTL == 0 ? rowAdjustedTTL : Math.min(adjustedTTL, rowAdjustedTTL));
+            futures.add(statementScheduler.executeAsync(boundStatement));
+        }
+        return Futures.transform(Futures.allAsList(futures),
+                new Function<List<ResultSet>, ResultSet>() {
+                    @Override
+                    public ResultSet apply(@Nullable List<ResultSet> results) {
+                        return DummyResultSet.INSTANCE;
+                    }
+                });
+    }
+
+    private long getBlockMillis(int rollupLevel) {
+        return configRepository.getRollupConfigs().get(rollupLevel - 1).intervalMillis()
+                * VALUES_PER_BLOCK;
     }
 
     private List<Integer> getTTLs() throws Exception {
@@ -506,6 +813,12 @@ public class GaugeValueDao implements GaugeValueRepository {
         for (int i = 1; i <= configRepository.getRollupConfigs().size(); i++) {
             session.execute("truncate gauge_needs_rollup_" + i);
         }
+        if (gaugeValueBlocks) {
+            for (int i = 1; i <= configRepository.getRollupConfigs().size(); i++) {
+                session.execute("truncate gauge_value_block_rollup_" + i);
+                session.execute("truncate gauge_needs_block_rollup_" + i);
+            }
+        }
         session.execute("truncate gauge_name");
         session.execute("truncate gauge_needs_rollup_from_child");
     }
@@ -42,6 +42,7 @@ import org.glowroot.central.repo.AggregateDao.NeedsRollup;
 import org.glowroot.central.util.DummyResultSet;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.ImmutableSyntheticResult;
@@ -60,6 +61,7 @@ public class SyntheticResultDao implements SyntheticResultRepository {
     private static final String LCS = "compaction = { 'class' : 'LeveledCompactionStrategy' }";
 
     private final Session session;
+    private final StatementScheduler statementScheduler;
     private final ConfigRepository configRepository;
     private final Clock clock;
 
@@ -72,9 +74,10 @@ public class SyntheticResultDao implements SyntheticResultRepository {
     private final List<PreparedStatement> readNeedsRollup;
     private final List<PreparedStatement> deleteNeedsRollup;
 
-    public SyntheticResultDao(Session session, ConfigRepository configRepository, Clock clock)
-            throws Exception {
+    public SyntheticResultDao(Session session, StatementScheduler statementScheduler,
+            ConfigRepository configRepository, Clock clock) throws Exception {
         this.session = session;
+        this.statementScheduler = statementScheduler;
         this.configRepository = configRepository;
         this.clock = clock;
 
@@ -236,7 +239,7 @@ public class SyntheticResultDao implements SyntheticResultRepository {
                 // processed (also prior to 0.9.6), and when the corresponding old data has expired
                 AggregateDao.postRollup(agentRollupId, needsRollup.getCaptureTime(),
                         syntheticMonitorIds, needsRollup.getUniquenessKeysForDeletion(), null, null,
-                        deleteNeedsRollup.get(rollupLevel - 1), -1, session);
+                        deleteNeedsRollup.get(rollupLevel - 1), -1, session, statementScheduler);
                 continue;
             }
             // wait for above async work to ensure rollup complete before proceeding
@@ -250,7 +253,7 @@ public class SyntheticResultDao implements SyntheticResultRepository {
             AggregateDao.postRollup(agentRollupId, needsRollup.getCaptureTime(),
                     syntheticMonitorIds, needsRollup.getUniquenessKeysForDeletion(),
                     nextRollupIntervalMillis, insertNeedsRollup, deleteNeedsRollup,
-                    needsRollupAdjustedTTL, session);
+                    needsRollupAdjustedTTL, session, statementScheduler);
         }
     }
 
@@ -264,7 +267,7 @@ public class SyntheticResultDao implements SyntheticResultRepository {
         boundStatement.setTimestamp(i++, new Date(from));
         boundStatement.setTimestamp(i++, new Date(to));
         return Futures.transformAsync(
-                session.executeAsync(boundStatement),
+                statementScheduler.executeAsync(boundStatement),
                 new AsyncFunction<ResultSet, ResultSet>() {
                     @Override
                     public ListenableFuture<ResultSet> apply(@Nullable ResultSet results)
@@ -305,7 +308,7 @@ public class SyntheticResultDao implements SyntheticResultRepository {
         boundStatement.setLong(i++, executionCount);
         boundStatement.setLong(i++, errorCount);
         boundStatement.setInt(i++, adjustedTTL);
-        return session.executeAsync(boundStatement);
+        return statementScheduler.executeAsync(boundStatement);
     }
 
     private List<Integer> getTTLs() throws Exception {
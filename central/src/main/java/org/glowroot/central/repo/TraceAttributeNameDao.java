@@ -31,11 +31,11 @@ import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.MoreExecutors;
 import org.immutables.value.Value;
 
-import org.glowroot.central.util.Cache;
 import org.glowroot.central.util.Cache.CacheLoader;
+import org.glowroot.central.util.Cache;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.RateLimiter;
-import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.TraceAttributeNameRepository;
 import org.glowroot.common.util.Styles;
@@ -52,6 +52,7 @@ public class TraceAttributeNameDao implements TraceAttributeNameRepository {
     private static final String SINGLE_CACHE_KEY = "x";
 
     private final Session session;
+    private final StatementScheduler statementScheduler;
     private final ConfigRepository configRepository;
 
     private final PreparedStatement insertPS;
@@ -61,9 +62,10 @@ public class TraceAttributeNameDao implements TraceAttributeNameRepository {
 
     private final Cache<String, Map<String, Map<String, List<String>>>> traceAttributeNamesCache;
 
-    public TraceAttributeNameDao(Session session, ConfigRepository configRepository,
-            ClusterManager clusterManager) {
+    public TraceAttributeNameDao(Session session, StatementScheduler statementScheduler,
+            ConfigRepository configRepository, ClusterManager clusterManager) {
         this.session = session;
+        this.statementScheduler = statementScheduler;
         this.configRepository = configRepository;
 
         session.execute("create table if not exists trace_attribute_name (agent_rollup varchar,"
@@ -97,7 +99,7 @@ public class TraceAttributeNameDao implements TraceAttributeNameRepository {
         boundStatement.setString(i++, transactionType);
         boundStatement.setString(i++, traceAttributeName);
         boundStatement.setInt(i++, getMaxTTL());
-        ResultSetFuture future = Sessions.executeAsyncWithOnFailure(session, boundStatement,
+        ResultSetFuture future = statementScheduler.executeAsyncWithOnFailure(boundStatement,
                 () -> rateLimiter.invalidate(rateLimiterKey));
         future.addListener(() -> traceAttributeNamesCache.invalidate(SINGLE_CACHE_KEY),
                 MoreExecutors.directExecutor());
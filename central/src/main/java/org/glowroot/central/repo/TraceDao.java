@@ -24,6 +24,8 @@ import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.UUID;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
@@ -34,20 +36,29 @@ import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.utils.UUIDs;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import org.immutables.value.Value;
 
+import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.repo.AggregateDao.NeedsRollup;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.config.StorageConfig;
 import org.glowroot.common.live.ImmutableEntries;
 import org.glowroot.common.live.ImmutableTracePoint;
@@ -57,6 +68,7 @@ import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.ImmutableErrorMessageCount;
 import org.glowroot.common.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common.repo.ImmutableErrorMessageResult;
@@ -72,10 +84,18 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class TraceDao implements TraceRepository {
 
+    private static final String LCS = "compaction = { 'class' : 'LeveledCompactionStrategy' }";
+
+    // transaction type and transaction name are combined into a single "needs rollup" key since
+    // the "needs rollup" helpers in AggregateDao operate on a set of string keys
+    private static final String NEEDS_ROLLUP_KEY_SEPARATOR = "\u0000";
+
     private final Session session;
+    private final StatementScheduler statementScheduler;
     private final AgentDao agentDao;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
@@ -116,6 +136,22 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement readOverallErrorMessage;
     private final PreparedStatement readTransactionErrorMessage;
 
+    // index is rollupLevel
+    private final ImmutableList<PreparedStatement> insertOverallErrorMessageCount;
+    private final ImmutableList<PreparedStatement> insertTransactionErrorMessageCount;
+    private final ImmutableList<PreparedStatement> readOverallErrorMessageCount;
+    private final ImmutableList<PreparedStatement> readTransactionErrorMessageCount;
+
+    // index is rollupLevel (unlike aggregates, rollup level 0 is also rolled up, from the raw error
+    // messages)
+    private final ImmutableList<PreparedStatement> insertErrorMessageNeedsRollup;
+    private final ImmutableList<PreparedStatement> readErrorMessageNeedsRollup;
+    private final ImmutableList<PreparedStatement> deleteErrorMessageNeedsRollup;
+    private final ImmutableList<PreparedStatement> readErrorMessageNeedsRollupForRange;
+
+    // error messages captured before this time are never rolled up (see readErrorMessages())
+    private final long errorMessageRollupStartTime;
+
     private final PreparedStatement readHeader;
     private final PreparedStatement readEntries;
     private final PreparedStatement readSharedQueryTexts;
@@ -128,10 +164,12 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement deletePartialOverallSlowCount;
     private final PreparedStatement deletePartialTransactionSlowCount;
 
-    public TraceDao(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao, TraceAttributeNameDao traceAttributeNameDao,
-            ConfigRepository configRepository, Clock clock) throws Exception {
+    public TraceDao(Session session, StatementScheduler statementScheduler, AgentDao agentDao,
+            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
+            TraceAttributeNameDao traceAttributeNameDao, ConfigRepository configRepository,
+            Clock clock) throws Exception {
         this.session = session;
+        this.statementScheduler = statementScheduler;
         this.agentDao = agentDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
@@ -367,6 +405,103 @@ public class TraceDao implements TraceRepository {
         deletePartialTransactionSlowCount = session.prepare("delete from trace_tn_slow_count"
                 + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
                 + " and capture_time = ? and agent_id = ? and trace_id = ?");
+
+        // error message counts are pre-aggregated per rollup interval so that the error page reads
+        // scale with the number of distinct error messages instead of with the number of errors
+        //
+        // these are not cassandra counters since counters do not support TTL, and since rollups
+        // need to be idempotent (each interval is re-computed in full whenever it needs rollup, so
+        // that errors arriving late for an interval are included)
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        List<PreparedStatement> insertOverallErrorMessageCount = Lists.newArrayList();
+        List<PreparedStatement> insertTransactionErrorMessageCount = Lists.newArrayList();
+        List<PreparedStatement> readOverallErrorMessageCount = Lists.newArrayList();
+        List<PreparedStatement> readTransactionErrorMessageCount = Lists.newArrayList();
+        for (int i = 0; i < rollupConfigs.size(); i++) {
+            Sessions.createTableWithTWCS(session, "create table if not exists"
+                    + " trace_tt_error_message_rollup_" + i + " (agent_rollup varchar,"
+                    + " transaction_type varchar, capture_time timestamp, error_message varchar,"
+                    + " error_count bigint, primary key ((agent_rollup, transaction_type),"
+                    + " capture_time, error_message))", expirationHours);
+            Sessions.createTableWithTWCS(session, "create table if not exists"
+                    + " trace_tn_error_message_rollup_" + i + " (agent_rollup varchar,"
+                    + " transaction_type varchar, transaction_name varchar,"
+                    + " capture_time timestamp, error_message varchar, error_count bigint,"
+                    + " primary key ((agent_rollup, transaction_type, transaction_name),"
+                    + " capture_time, error_message))", expirationHours);
+            insertOverallErrorMessageCount.add(session.prepare("insert into"
+                    + " trace_tt_error_message_rollup_" + i + " (agent_rollup, transaction_type,"
+                    + " capture_time, error_message, error_count) values (?, ?, ?, ?, ?)"
+                    + " using ttl ?"));
+            insertTransactionErrorMessageCount.add(session.prepare("insert into"
+                    + " trace_tn_error_message_rollup_" + i + " (agent_rollup, transaction_type,"
+                    + " transaction_name, capture_time, error_message, error_count) values"
+                    + " (?, ?, ?, ?, ?, ?) using ttl ?"));
+            readOverallErrorMessageCount.add(session.prepare("select capture_time, error_message,"
+                    + " error_count from trace_tt_error_message_rollup_" + i + " where"
+                    + " agent_rollup = ? and transaction_type = ? and capture_time > ?"
+                    + " and capture_time <= ?"));
+            readTransactionErrorMessageCount.add(session.prepare("select capture_time,"
+                    + " error_message, error_count from trace_tn_error_message_rollup_" + i
+                    + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
+                    + " and capture_time > ? and capture_time <= ?"));
+        }
+        this.insertOverallErrorMessageCount = ImmutableList.copyOf(insertOverallErrorMessageCount);
+        this.insertTransactionErrorMessageCount =
+                ImmutableList.copyOf(insertTransactionErrorMessageCount);
+        this.readOverallErrorMessageCount = ImmutableList.copyOf(readOverallErrorMessageCount);
+        this.readTransactionErrorMessageCount =
+                ImmutableList.copyOf(readTransactionErrorMessageCount);
+
+        // same gc_grace_seconds reasoning as for aggregate_needs_rollup_* (see AggregateDao)
+        long needsRollupGcGraceSeconds = HOURS.toSeconds(3);
+
+        List<PreparedStatement> insertErrorMessageNeedsRollup = Lists.newArrayList();
+        List<PreparedStatement> readErrorMessageNeedsRollup = Lists.newArrayList();
+        List<PreparedStatement> deleteErrorMessageNeedsRollup = Lists.newArrayList();
+        List<PreparedStatement> readErrorMessageNeedsRollupForRange = Lists.newArrayList();
+        for (int i = 0; i < rollupConfigs.size(); i++) {
+            // transaction_keys are transaction type and transaction name pairs (see
+            // NEEDS_ROLLUP_KEY_SEPARATOR)
+            session.execute("create table if not exists trace_error_message_needs_rollup_" + i
+                    + " (agent_rollup varchar, capture_time timestamp, uniqueness timeuuid,"
+                    + " transaction_keys set<varchar>, primary key (agent_rollup, capture_time,"
+                    + " uniqueness)) with gc_grace_seconds = " + needsRollupGcGraceSeconds + " and "
+                    + LCS);
+            insertErrorMessageNeedsRollup.add(session.prepare("insert into"
+                    + " trace_error_message_needs_rollup_" + i + " (agent_rollup, capture_time,"
+                    + " uniqueness, transaction_keys) values (?, ?, ?, ?) using TTL ?"));
+            readErrorMessageNeedsRollup.add(session.prepare("select capture_time, uniqueness,"
+                    + " transaction_keys from trace_error_message_needs_rollup_" + i
+                    + " where agent_rollup = ?"));
+            // the delete is performed using the timestamp of when the "needs rollup" was read, so
+            // that it does not delete a "needs rollup" that has been re-written since then (see
+            // store())
+            deleteErrorMessageNeedsRollup.add(session.prepare("delete from"
+                    + " trace_error_message_needs_rollup_" + i + " using timestamp ? where"
+                    + " agent_rollup = ? and capture_time = ? and uniqueness = ?"));
+            readErrorMessageNeedsRollupForRange.add(session.prepare("select capture_time,"
+                    + " transaction_keys from trace_error_message_needs_rollup_" + i
+                    + " where agent_rollup = ? and capture_time > ? and capture_time <= ?"));
+        }
+        this.insertErrorMessageNeedsRollup = ImmutableList.copyOf(insertErrorMessageNeedsRollup);
+        this.readErrorMessageNeedsRollup = ImmutableList.copyOf(readErrorMessageNeedsRollup);
+        this.deleteErrorMessageNeedsRollup = ImmutableList.copyOf(deleteErrorMessageNeedsRollup);
+        this.readErrorMessageNeedsRollupForRange =
+                ImmutableList.copyOf(readErrorMessageNeedsRollupForRange);
+
+        // error messages stored before the first startup with error message rollups (i.e. stored
+        // prior to upgrading) never get a "needs rollup", so this records when rollups started
+        session.execute("create table if not exists trace_error_message_rollup_start (one int,"
+                + " start_time timestamp, primary key (one)) with " + LCS);
+        BoundStatement boundStatement = session.prepare("insert into"
+                + " trace_error_message_rollup_start (one, start_time) values (1, ?)"
+                + " if not exists").bind();
+        boundStatement.setTimestamp(0, new Date(clock.currentTimeMillis()));
+        session.execute(boundStatement);
+        Row row = checkNotNull(session.execute("select start_time from"
+                + " trace_error_message_rollup_start where one = 1").one());
+        errorMessageRollupStartTime = checkNotNull(row.getTimestamp(0)).getTime();
     }
 
     public void store(String agentId, Trace trace) throws Exception {
@@ -418,6 +553,9 @@ public class TraceDao implements TraceRepository {
         futures.clear();
 
         int adjustedTTL = AggregateDao.getAdjustedTTL(getTTL(), header.getCaptureTime(), clock);
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        int needsRollupAdjustedTTL =
+                AggregateDao.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
         for (String agentRollupId : agentRollupIds) {
 
             if (!agentRollupId.equals(agentId)) {
@@ -427,46 +565,46 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setString(i++, agentId);
                 boundStatement.setString(i++, traceId);
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(statementScheduler.executeAsync(boundStatement));
             }
 
             if (header.getSlow()) {
                 BoundStatement boundStatement = insertOverallSlowPoint.bind();
                 bindSlowPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         true);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(statementScheduler.executeAsync(boundStatement));
 
                 boundStatement = insertTransactionSlowPoint.bind();
                 bindSlowPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         false);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(statementScheduler.executeAsync(boundStatement));
 
                 boundStatement = insertOverallSlowCount.bind();
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         true);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(statementScheduler.executeAsync(boundStatement));
 
                 boundStatement = insertTransactionSlowCount.bind();
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         false);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(statementScheduler.executeAsync(boundStatement));
 
                 if (priorHeader != null) {
                     boundStatement = deletePartialOverallSlowPoint.bind();
                     bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, true);
-                    futures.add(session.executeAsync(boundStatement));
+                    futures.add(statementScheduler.executeAsync(boundStatement));
 
                     boundStatement = deletePartialTransactionSlowPoint.bind();
                     bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, false);
-                    futures.add(session.executeAsync(boundStatement));
+                    futures.add(statementScheduler.executeAsync(boundStatement));
 
                     boundStatement = deletePartialOverallSlowCount.bind();
                     bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, true);
-                    futures.add(session.executeAsync(boundStatement));
+                    futures.add(statementScheduler.executeAsync(boundStatement));
 
                     boundStatement = deletePartialTransactionSlowCount.bind();
                     bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, false);
-                    futures.add(session.executeAsync(boundStatement));
+                    futures.add(statementScheduler.executeAsync(boundStatement));
                 }
             }
             // seems unnecessary to insert error info for partial traces
@@ -475,32 +613,52 @@ public class TraceDao implements TraceRepository {
                 BoundStatement boundStatement = insertOverallErrorMessage.bind();
                 bindErrorMessage(boundStatement, agentRollupId, agentId, traceId, header,
                         adjustedTTL, true);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(statementScheduler.executeAsync(boundStatement));
 
                 boundStatement = insertTransactionErrorMessage.bind();
                 bindErrorMessage(boundStatement, agentRollupId, agentId, traceId, header,
                         adjustedTTL, false);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(statementScheduler.executeAsync(boundStatement));
 
                 boundStatement = insertOverallErrorPoint.bind();
                 bindErrorPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         true);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(statementScheduler.executeAsync(boundStatement));
 
                 boundStatement = insertTransactionErrorPoint.bind();
                 bindErrorPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         false);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(statementScheduler.executeAsync(boundStatement));
 
                 boundStatement = insertOverallErrorCount.bind();
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         true);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(statementScheduler.executeAsync(boundStatement));
 
                 boundStatement = insertTransactionErrorCount.bind();
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         false);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(statementScheduler.executeAsync(boundStatement));
+
+                // insert into trace_error_message_needs_rollup_0
+                //
+                // the uniqueness is derived from the rollup interval and the transaction, so that
+                // all error traces for the same transaction in the same rollup interval write the
+                // same "needs rollup" row, instead of one row per error trace
+                long intervalMillis = rollupConfigs.get(0).intervalMillis();
+                long rollupCaptureTime =
+                        Utils.getRollupCaptureTime(header.getCaptureTime(), intervalMillis);
+                String needsRollupKey = toNeedsRollupKey(header.getTransactionType(),
+                        header.getTransactionName());
+                boundStatement = insertErrorMessageNeedsRollup.get(0).bind();
+                int i = 0;
+                boundStatement.setString(i++, agentRollupId);
+                boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
+                boundStatement.setUUID(i++,
+                        getNeedsRollupUniqueness(rollupCaptureTime, needsRollupKey));
+                boundStatement.setSet(i++, ImmutableSet.of(needsRollupKey));
+                boundStatement.setInt(i++, needsRollupAdjustedTTL);
+                futures.add(statementScheduler.executeAsync(boundStatement));
             }
             for (Trace.Attribute attributeName : header.getAttributeList()) {
                 traceAttributeNameDao.store(agentRollupId,
@@ -514,7 +672,7 @@ public class TraceDao implements TraceRepository {
         boundStatement.setString(i++, traceId);
         boundStatement.setBytes(i++, ByteBuffer.wrap(header.toByteArray()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(statementScheduler.executeAsync(boundStatement));
 
         int index = 0;
         for (Trace.Entry entry : trace.getEntryList()) {
@@ -559,7 +717,7 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setToNull(i++);
             }
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
 
         index = 0;
@@ -580,21 +738,21 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setToNull(i++);
             }
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
 
         if (trace.hasMainThreadProfile()) {
             boundStatement = insertMainThreadProfile.bind();
             bindThreadProfile(boundStatement, agentId, traceId, trace.getMainThreadProfile(),
                     adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
 
         if (trace.hasAuxThreadProfile()) {
             boundStatement = insertAuxThreadProfile.bind();
             bindThreadProfile(boundStatement, agentId, traceId, trace.getAuxThreadProfile(),
                     adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(statementScheduler.executeAsync(boundStatement));
         }
         futures.addAll(transactionTypeDao.store(agentRollupIds, header.getTransactionType()));
         MoreFutures.waitForAll(futures);
@@ -674,32 +832,26 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    @Instrumentation.Transaction(transactionType = "Background",
+            transactionName = "Rollup error messages",
+            traceHeadline = "Rollup error messages: {{0}}", timer = "rollup error messages")
+    public void rollup(String agentRollupId) throws Exception {
+        int ttl = getTTL();
+        int rollupLevel = 0;
+        while (rollupLevel < configRepository.getRollupConfigs().size()) {
+            rollup(agentRollupId, rollupLevel, ttl);
+            rollupLevel++;
+        }
+    }
+
     @Override
     public ErrorMessageResult readErrorMessages(String agentRollupId, TraceQuery query,
             ErrorMessageFilter filter, long resolutionMillis, int limit) throws Exception {
-        BoundStatement boundStatement;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallErrorMessage.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
-        } else {
-            boundStatement = readTransactionErrorMessage.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
-        }
-        ResultSet results = session.execute(boundStatement);
-        // rows are already in order by captureTime, so saving sort step by using linked hash map
-        Map<Long, MutableLong> pointCounts = Maps.newLinkedHashMap();
-        Map<String, MutableLong> messageCounts = Maps.newHashMap();
-        for (Row row : results) {
-            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
-            String errorMessage = checkNotNull(row.getString(1));
-            if (!matches(filter, errorMessage)) {
-                continue;
-            }
-            long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, resolutionMillis);
-            pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong()).increment();
-            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).increment();
-        }
+        ErrorMessageCollector collector = new ErrorMessageCollector(filter, resolutionMillis);
+        readErrorMessages(agentRollupId, query, query.from(), query.to(),
+                getErrorMessageRollupLevel(resolutionMillis), collector);
+        Map<Long, MutableLong> pointCounts = collector.pointCounts;
+        Map<String, MutableLong> messageCounts = collector.messageCounts;
         List<ErrorMessagePoint> points = pointCounts.entrySet().stream()
                 .map(e -> ImmutableErrorMessagePoint.of(e.getKey(), e.getValue().value))
                 .sorted(Comparator.comparingLong(ErrorMessagePoint::captureTime))
@@ -708,7 +860,6 @@ public class TraceDao implements TraceRepository {
                 .collect(Collectors.<ErrorMessagePoint>toList());
         List<ErrorMessageCount> counts = messageCounts.entrySet().stream()
                 .map(e -> ImmutableErrorMessageCount.of(e.getKey(), e.getValue().value))
-                // points above are already ordered by cassandra, but need to reverse sort counts
                 .sorted(Comparator.comparing(ErrorMessageCount::count).reversed())
                 // explicit type on this line is needed for Checker Framework
                 // see https://github.com/typetools/checker-framework/issues/531
@@ -727,6 +878,274 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    private void rollup(String agentRollupId, int rollupLevel, int ttl) throws Exception {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        long rollupIntervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
+        long readTimeMicros = MILLISECONDS.toMicros(clock.currentTimeMillis());
+        List<NeedsRollup> needsRollupList = AggregateDao.getNeedsRollupList(agentRollupId,
+                rollupIntervalMillis, readErrorMessageNeedsRollup.get(rollupLevel), session,
+                clock);
+        Long nextRollupIntervalMillis = null;
+        if (rollupLevel + 1 < rollupConfigs.size()) {
+            nextRollupIntervalMillis = rollupConfigs.get(rollupLevel + 1).intervalMillis();
+        }
+        for (NeedsRollup needsRollup : needsRollupList) {
+            long captureTime = needsRollup.getCaptureTime();
+            long from = captureTime - rollupIntervalMillis;
+            int adjustedTTL = AggregateDao.getAdjustedTTL(ttl, captureTime, clock);
+            Set<String> keys = needsRollup.getKeys();
+            Set<String> transactionTypes = Sets.newHashSet();
+            List<ListenableFuture<List<ResultSet>>> futures = Lists.newArrayList();
+            for (String key : keys) {
+                int index = key.indexOf(NEEDS_ROLLUP_KEY_SEPARATOR);
+                String transactionType = key.substring(0, index);
+                String transactionName = key.substring(index + 1);
+                transactionTypes.add(transactionType);
+                futures.add(rollupOne(rollupLevel, agentRollupId, transactionType,
+                        transactionName, from, captureTime, adjustedTTL));
+            }
+            for (String transactionType : transactionTypes) {
+                futures.add(rollupOne(rollupLevel, agentRollupId, transactionType, null, from,
+                        captureTime, adjustedTTL));
+            }
+            // wait for above async work to ensure rollup complete before proceeding
+            MoreFutures.waitForAll(futures);
+
+            int needsRollupAdjustedTTL =
+                    AggregateDao.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
+            if (nextRollupIntervalMillis != null) {
+                // same as AggregateDao.postRollup(), except for the delete below
+                BoundStatement boundStatement =
+                        insertErrorMessageNeedsRollup.get(rollupLevel + 1).bind();
+                int i = 0;
+                boundStatement.setString(i++, agentRollupId);
+                boundStatement.setTimestamp(i++, new Date(
+                        Utils.getRollupCaptureTime(captureTime, nextRollupIntervalMillis)));
+                boundStatement.setUUID(i++, UUIDs.timeBased());
+                boundStatement.setSet(i++, keys);
+                boundStatement.setInt(i++, needsRollupAdjustedTTL);
+                // intentionally not async, the next level "needs rollup" must be written before
+                // this level "needs rollup" is deleted
+                session.execute(boundStatement);
+            }
+            List<ResultSetFuture> deleteFutures = Lists.newArrayList();
+            for (UUID uniqueness : needsRollup.getUniquenessKeysForDeletion()) {
+                BoundStatement boundStatement =
+                        deleteErrorMessageNeedsRollup.get(rollupLevel).bind();
+                int i = 0;
+                boundStatement.setLong(i++, readTimeMicros);
+                boundStatement.setString(i++, agentRollupId);
+                boundStatement.setTimestamp(i++, new Date(captureTime));
+                boundStatement.setUUID(i++, uniqueness);
+                deleteFutures.add(statementScheduler.executeAsync(boundStatement));
+            }
+            MoreFutures.waitForAll(deleteFutures);
+        }
+    }
+
+    // the "needs rollup" uniqueness column is a timeuuid, so this is a version 1 uuid based on the
+    // rollup capture time, with the clock sequence and node replaced by a hash of the transaction
+    private static UUID getNeedsRollupUniqueness(long rollupCaptureTime, String needsRollupKey) {
+        long hash = Hashing.sha1().hashString(needsRollupKey, Charsets.UTF_8).asLong();
+        // variant bits 10 (IETF)
+        return new UUID(UUIDs.startOf(rollupCaptureTime).getMostSignificantBits(),
+                (hash & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L);
+    }
+
+    // from is non-inclusive
+    //
+    // rollup level 0 is computed from the raw error messages, and higher rollup levels are
+    // computed from the rollup level below
+    private ListenableFuture<List<ResultSet>> rollupOne(int rollupLevel, String agentRollupId,
+            String transactionType, @Nullable String transactionName, long from, long to,
+            int adjustedTTL) {
+        BoundStatement boundStatement;
+        if (rollupLevel == 0 && transactionName == null) {
+            boundStatement = readOverallErrorMessage.bind();
+        } else if (rollupLevel == 0) {
+            boundStatement = readTransactionErrorMessage.bind();
+        } else if (transactionName == null) {
+            boundStatement = readOverallErrorMessageCount.get(rollupLevel - 1).bind();
+        } else {
+            boundStatement = readTransactionErrorMessageCount.get(rollupLevel - 1).bind();
+        }
+        bindErrorMessageQuery(boundStatement, agentRollupId, transactionType, transactionName,
+                from, to);
+        return Futures.transformAsync(
+                statementScheduler.executeAsync(boundStatement),
+                new AsyncFunction<ResultSet, List<ResultSet>>() {
+                    @Override
+                    public ListenableFuture<List<ResultSet>> apply(@Nullable ResultSet results)
+                            throws Exception {
+                        checkNotNull(results);
+                        Map<String, MutableLong> messageCounts = Maps.newHashMap();
+                        for (Row row : results) {
+                            String errorMessage = checkNotNull(row.getString(1));
+                            long count = rollupLevel == 0 ? 1 : row.getLong(2);
+                            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong())
+                                    .add(count);
+                        }
+                        List<ResultSetFuture> futures = Lists.newArrayList();
+                        for (Map.Entry<String, MutableLong> entry : messageCounts.entrySet()) {
+                            futures.add(insertErrorMessageCount(rollupLevel, agentRollupId,
+                                    transactionType, transactionName, to, entry.getKey(),
+                                    entry.getValue().value, adjustedTTL));
+                        }
+                        return Futures.allAsList(futures);
+                    }
+                });
+    }
+
+    private ResultSetFuture insertErrorMessageCount(int rollupLevel, String agentRollupId,
+            String transactionType, @Nullable String transactionName, long captureTime,
+            String errorMessage, long count, int adjustedTTL) {
+        BoundStatement boundStatement;
+        if (transactionName == null) {
+            boundStatement = insertOverallErrorMessageCount.get(rollupLevel).bind();
+        } else {
+            boundStatement = insertTransactionErrorMessageCount.get(rollupLevel).bind();
+        }
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, transactionType);
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(captureTime));
+        boundStatement.setString(i++, errorMessage);
+        boundStatement.setLong(i++, count);
+        boundStatement.setInt(i++, adjustedTTL);
+        return statementScheduler.executeAsync(boundStatement);
+    }
+
+    // from is non-inclusive
+    //
+    // reads pre-aggregated error message counts from the given rollup level, and falls back to
+    // the next finer rollup level (and ultimately to the raw error messages) for the head and tail
+    // of the range that are not aligned to this rollup level's interval, and for every interval
+    // that is not rolled up, either because it precedes errorMessageRollupStartTime, or because it
+    // still has a pending "needs rollup" (see getIntervalsNotRolledUp())
+    //
+    // an interval that is rolled up and has no rows simply had no error messages
+    private void readErrorMessages(String agentRollupId, TraceQuery query, long from, long to,
+            int rollupLevel, ErrorMessageCollector collector) {
+        if (from >= to) {
+            return;
+        }
+        String transactionName = query.transactionName();
+        if (rollupLevel < 0) {
+            BoundStatement boundStatement = transactionName == null
+                    ? readOverallErrorMessage.bind() : readTransactionErrorMessage.bind();
+            bindErrorMessageQuery(boundStatement, agentRollupId, query.transactionType(),
+                    transactionName, from, to);
+            ResultSet results = session.execute(boundStatement);
+            for (Row row : results) {
+                long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+                String errorMessage = checkNotNull(row.getString(1));
+                collector.add(captureTime, errorMessage, 1);
+            }
+            return;
+        }
+        long intervalMillis =
+                configRepository.getRollupConfigs().get(rollupLevel).intervalMillis();
+        // the interval containing errorMessageRollupStartTime is also excluded, since it may
+        // contain error messages from before that time
+        long alignedFrom = Utils.getRollupCaptureTime(Math.max(from, errorMessageRollupStartTime),
+                intervalMillis);
+        long alignedTo = (to / intervalMillis) * intervalMillis;
+        if (alignedFrom >= alignedTo) {
+            readErrorMessages(agentRollupId, query, from, to, rollupLevel - 1, collector);
+            return;
+        }
+        SortedSet<Long> intervalsNotRolledUp = getIntervalsNotRolledUp(agentRollupId, query,
+                alignedFrom, alignedTo, rollupLevel);
+        BoundStatement boundStatement = transactionName == null
+                ? readOverallErrorMessageCount.get(rollupLevel).bind()
+                : readTransactionErrorMessageCount.get(rollupLevel).bind();
+        bindErrorMessageQuery(boundStatement, agentRollupId, query.transactionType(),
+                transactionName, alignedFrom, alignedTo);
+        ResultSet results = session.execute(boundStatement);
+        for (Row row : results) {
+            int i = 0;
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            if (intervalsNotRolledUp.contains(captureTime)) {
+                // possibly stale, read from finer rollup level below instead
+                continue;
+            }
+            String errorMessage = checkNotNull(row.getString(i++));
+            long count = row.getLong(i++);
+            collector.add(captureTime, errorMessage, count);
+        }
+        readErrorMessages(agentRollupId, query, from, alignedFrom, rollupLevel - 1, collector);
+        // consecutive intervals that are not rolled up are read together
+        long notRolledUpFrom = -1;
+        long notRolledUpTo = -1;
+        for (long captureTime : intervalsNotRolledUp) {
+            if (captureTime - intervalMillis != notRolledUpTo) {
+                readErrorMessages(agentRollupId, query, notRolledUpFrom, notRolledUpTo,
+                        rollupLevel - 1, collector);
+                notRolledUpFrom = captureTime - intervalMillis;
+            }
+            notRolledUpTo = captureTime;
+        }
+        readErrorMessages(agentRollupId, query, notRolledUpFrom, notRolledUpTo, rollupLevel - 1,
+                collector);
+        readErrorMessages(agentRollupId, query, alignedTo, to, rollupLevel - 1, collector);
+    }
+
+    // from is non-inclusive
+    //
+    // returns the capture times of the intervals at the given rollup level that have a pending
+    // "needs rollup" for the queried transaction(s) at the given rollup level or at any finer
+    // rollup level, which covers intervals that are not rolled up yet, and intervals whose rollup
+    // failed (since the "needs rollup" at each rollup level is only deleted after the rollup, and
+    // after writing the "needs rollup" for the next rollup level, see rollup())
+    private SortedSet<Long> getIntervalsNotRolledUp(String agentRollupId, TraceQuery query,
+            long from, long to, int rollupLevel) {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        long intervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
+        String transactionName = query.transactionName();
+        String overallKeyPrefix = query.transactionType() + NEEDS_ROLLUP_KEY_SEPARATOR;
+        SortedSet<Long> intervalsNotRolledUp = Sets.newTreeSet();
+        for (int level = 0; level <= rollupLevel; level++) {
+            BoundStatement boundStatement = readErrorMessageNeedsRollupForRange.get(level).bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setTimestamp(i++, new Date(from));
+            boundStatement.setTimestamp(i++, new Date(to));
+            ResultSet results = session.execute(boundStatement);
+            for (Row row : results) {
+                long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+                Set<String> keys = checkNotNull(row.getSet(1, String.class));
+                boolean matches;
+                if (transactionName == null) {
+                    matches = keys.stream().anyMatch(key -> key.startsWith(overallKeyPrefix));
+                } else {
+                    matches = keys.contains(
+                            toNeedsRollupKey(query.transactionType(), transactionName));
+                }
+                if (matches) {
+                    // finer rollup level intervals are nested inside this rollup level's intervals
+                    intervalsNotRolledUp.add(Utils.getRollupCaptureTime(captureTime,
+                            intervalMillis));
+                }
+            }
+        }
+        return intervalsNotRolledUp;
+    }
+
+    // returns -1 if no rollup level interval evenly divides the resolution, in which case the raw
+    // error messages are read
+    private int getErrorMessageRollupLevel(long resolutionMillis) {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        for (int i = rollupConfigs.size() - 1; i >= 0; i--) {
+            if (resolutionMillis % rollupConfigs.get(i).intervalMillis() == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     @Override
     public @Nullable HeaderPlus readHeaderPlus(String agentRollupId, String agentId, String traceId)
             throws InvalidProtocolBufferException {
@@ -1070,6 +1489,23 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    private static void bindErrorMessageQuery(BoundStatement boundStatement,
+            String agentRollupId, String transactionType, @Nullable String transactionName,
+            long from, long to) {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, transactionType);
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(from));
+        boundStatement.setTimestamp(i++, new Date(to));
+    }
+
+    private static String toNeedsRollupKey(String transactionType, String transactionName) {
+        return transactionType + NEEDS_ROLLUP_KEY_SEPARATOR + transactionName;
+    }
+
     private static boolean matches(ErrorMessageFilter filter, String errorMessage) {
         String upper = errorMessage.toUpperCase(Locale.ENGLISH);
         for (String include : filter.includes()) {
@@ -1092,10 +1528,33 @@ public class TraceDao implements TraceRepository {
         String traceId();
     }
 
+    private static class ErrorMessageCollector {
+
+        private final ErrorMessageFilter filter;
+        private final long resolutionMillis;
+
+        private final Map<Long, MutableLong> pointCounts = Maps.newHashMap();
+        private final Map<String, MutableLong> messageCounts = Maps.newHashMap();
+
+        private ErrorMessageCollector(ErrorMessageFilter filter, long resolutionMillis) {
+            this.filter = filter;
+            this.resolutionMillis = resolutionMillis;
+        }
+
+        private void add(long captureTime, String errorMessage, long count) {
+            if (!matches(filter, errorMessage)) {
+                return;
+            }
+            long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, resolutionMillis);
+            pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong()).add(count);
+            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).add(count);
+        }
+    }
+
     private static class MutableLong {
         private long value;
-        private void increment() {
-            value++;
+        private void add(long delta) {
+            value += delta;
         }
     }
 }
@@ -31,11 +31,11 @@ import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.MoreExecutors;
 import org.immutables.value.Value;
 
-import org.glowroot.central.util.Cache;
 import org.glowroot.central.util.Cache.CacheLoader;
+import org.glowroot.central.util.Cache;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.RateLimiter;
-import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.TransactionTypeRepository;
 import org.glowroot.common.util.Styles;
@@ -51,6 +51,7 @@ public class TransactionTypeDao implements TransactionTypeRepository {
     private static final String SINGLE_CACHE_KEY = "x";
 
     private final Session session;
+    private final StatementScheduler statementScheduler;
     private final ConfigRepository configRepository;
 
     private final PreparedStatement insertPS;
@@ -60,9 +61,10 @@ public class TransactionTypeDao implements TransactionTypeRepository {
 
     private final Cache<String, Map<String, List<String>>> transactionTypesCache;
 
-    public TransactionTypeDao(Session session, ConfigRepository configRepository,
-            ClusterManager clusterManager) {
+    public TransactionTypeDao(Session session, StatementScheduler statementScheduler,
+            ConfigRepository configRepository, ClusterManager clusterManager) {
         this.session = session;
+        this.statementScheduler = statementScheduler;
         this.configRepository = configRepository;
 
         session.execute("create table if not exists transaction_type (one int,"
@@ -97,7 +99,7 @@ public class TransactionTypeDao implements TransactionTypeRepository {
             boundStatement.setString(i++, agentRollupId);
             boundStatement.setString(i++, transactionType);
             boundStatement.setInt(i++, getMaxTTL());
-            ResultSetFuture future = Sessions.executeAsyncWithOnFailure(session, boundStatement,
+            ResultSetFuture future = statementScheduler.executeAsyncWithOnFailure(boundStatement,
                     () -> rateLimiter.invalidate(rateLimiterKey));
             future.addListener(() -> transactionTypesCache.invalidate(SINGLE_CACHE_KEY),
                     MoreExecutors.directExecutor());
@@ -22,8 +22,12 @@ import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
+import org.glowroot.central.util.Cache;
+import org.glowroot.central.util.Cache.CacheLoader;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.common.repo.ImmutableTriggeredAlert;
 import org.glowroot.common.repo.TriggeredAlertRepository;
 
@@ -37,13 +41,16 @@ public class TriggeredAlertDao implements TriggeredAlertRepository {
     private final Session session;
 
     private final PreparedStatement insertPS;
-    private final PreparedStatement existsPS;
     private final PreparedStatement deletePS;
     private final PreparedStatement readPS;
 
     private final PreparedStatement readAllPS;
 
-    public TriggeredAlertDao(Session session) {
+    // triggered alerts are checked for every alert config on every rollup pass, so they are cached
+    // per agent rollup, and the cache is invalidated (across the cluster) on insert and delete
+    private final Cache<String, List<String>> triggeredAlertIdsCache;
+
+    public TriggeredAlertDao(Session session, ClusterManager clusterManager) {
         this.session = session;
 
         session.execute("create table if not exists triggered_alert (agent_rollup_id varchar,"
@@ -52,9 +59,6 @@ public class TriggeredAlertDao implements TriggeredAlertRepository {
         insertPS = session.prepare("insert into triggered_alert (agent_rollup_id, alert_id) values"
                 + " (?, ?)");
 
-        existsPS = session.prepare("select agent_rollup_id from triggered_alert where"
-                + " agent_rollup_id = ? and alert_id = ?");
-
         deletePS = session.prepare("delete from triggered_alert where agent_rollup_id = ?"
                 + " and alert_id = ?");
 
@@ -62,14 +66,13 @@ public class TriggeredAlertDao implements TriggeredAlertRepository {
                 .prepare("select alert_id from triggered_alert where agent_rollup_id = ?");
 
         readAllPS = session.prepare("select agent_rollup_id, alert_id from triggered_alert");
+
+        triggeredAlertIdsCache = clusterManager.createCache("triggeredAlertIdsCache",
+                new TriggeredAlertIdsCacheLoader());
     }
 
     public boolean exists(String agentRollupId, String alertId) throws Exception {
-        BoundStatement boundStatement = existsPS.bind();
-        boundStatement.setString(0, agentRollupId);
-        boundStatement.setString(1, alertId);
-        ResultSet results = session.execute(boundStatement);
-        return !results.isExhausted();
+        return triggeredAlertIdsCache.get(agentRollupId).contains(alertId);
     }
 
     public void delete(String agentRollupId, String alertId) throws Exception {
@@ -77,6 +80,7 @@ public class TriggeredAlertDao implements TriggeredAlertRepository {
         boundStatement.setString(0, agentRollupId);
         boundStatement.setString(1, alertId);
         session.execute(boundStatement);
+        triggeredAlertIdsCache.invalidate(agentRollupId);
     }
 
     public void insert(String agentRollupId, String alertId) throws Exception {
@@ -85,17 +89,11 @@ public class TriggeredAlertDao implements TriggeredAlertRepository {
         boundStatement.setString(i++, agentRollupId);
         boundStatement.setString(i++, alertId);
         session.execute(boundStatement);
+        triggeredAlertIdsCache.invalidate(agentRollupId);
     }
 
     public List<String> read(String agentRollupId) throws Exception {
-        BoundStatement boundStatement = readPS.bind();
-        boundStatement.setString(0, agentRollupId);
-        ResultSet results = session.execute(boundStatement);
-        List<String> alertIds = Lists.newArrayList();
-        for (Row row : results) {
-            alertIds.add(checkNotNull(row.getString(0)));
-        }
-        return alertIds;
+        return triggeredAlertIdsCache.get(agentRollupId);
     }
 
     @Override
@@ -111,4 +109,18 @@ public class TriggeredAlertDao implements TriggeredAlertRepository {
         }
         return triggeredAlerts;
     }
+
+    private class TriggeredAlertIdsCacheLoader implements CacheLoader<String, List<String>> {
+        @Override
+        public List<String> load(String agentRollupId) {
+            BoundStatement boundStatement = readPS.bind();
+            boundStatement.setString(0, agentRollupId);
+            ResultSet results = session.execute(boundStatement);
+            List<String> alertIds = Lists.newArrayList();
+            for (Row row : results) {
+                alertIds.add(checkNotNull(row.getString(0)));
+            }
+            return ImmutableList.copyOf(alertIds);
+        }
+    }
 }
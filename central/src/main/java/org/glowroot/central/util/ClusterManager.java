@@ -69,6 +69,8 @@ public abstract class ClusterManager {
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> DistributedExecutionMap<K, V> createDistributedExecutionMap(
             String cacheName);
 
+    public abstract DistributedOwnership createDistributedOwnership(String cacheName);
+
     public abstract void close();
 
     private static class ClusterManagerImpl extends ClusterManager {
@@ -118,6 +120,18 @@ public abstract class ClusterManager {
             return new DistributedExecutionMapImpl<K, V>(cacheManager.getCache(cacheName));
         }
 
+        @Override
+        public DistributedOwnership createDistributedOwnership(String cacheName) {
+            // no data is stored in this cache, it is only used for its consistent hash, which
+            // infinispan rebalances across the central nodes that have started this cache
+            ConfigurationBuilder configurationBuilder = new ConfigurationBuilder();
+            configurationBuilder.clustering()
+                    .cacheMode(CacheMode.DIST_SYNC)
+                    .hash().numOwners(1);
+            cacheManager.defineConfiguration(cacheName, configurationBuilder.build());
+            return new DistributedOwnershipImpl(cacheManager.getCache(cacheName));
+        }
+
         @Override
         public void close() {
             cacheManager.stop();
@@ -162,6 +176,11 @@ public abstract class ClusterManager {
             return Maps.newConcurrentMap();
         }
 
+        @Override
+        public DistributedOwnership createDistributedOwnership(String cacheName) {
+            return key -> true;
+        }
+
         @Override
         public void close() {}
     }
@@ -329,6 +348,22 @@ public abstract class ClusterManager {
         }
     }
 
+    private static class DistributedOwnershipImpl implements DistributedOwnership {
+
+        private final org.infinispan.Cache<String, String> cache;
+
+        private DistributedOwnershipImpl(org.infinispan.Cache<String, String> cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public boolean isLocallyOwned(String key) {
+            Address primaryOwner =
+                    cache.getAdvancedCache().getDistributionManager().getPrimaryLocation(key);
+            return cache.getCacheManager().getAddress().equals(primaryOwner);
+        }
+    }
+
     @SuppressWarnings("serial")
     private static class AdapterFunction<K, V, R extends /*@NonNull*/ Object>
             implements SerializableFunction<EmbeddedCacheManager, Optional<R>> {
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+// assigns each key to exactly one central node in the cluster (by consistent hash), ownership is
+// rebalanced when central nodes join or leave the cluster
+//
+// while rebalancing, a key can briefly be owned by zero or two central nodes, so work partitioned
+// this way must be idempotent and must tolerate being skipped for a round
+public interface DistributedOwnership {
+
+    boolean isLocallyOwned(String key);
+}
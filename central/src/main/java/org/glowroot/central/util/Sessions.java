@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,15 +15,11 @@
  */
 package org.glowroot.central.util;
 
-import com.datastax.driver.core.BoundStatement;
-import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.exceptions.InvalidConfigurationInQueryException;
-import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.DAYS;
 
 public class Sessions {
@@ -64,22 +60,4 @@ public class Sessions {
                     + " and gc_grace_seconds = " + gcGraceSeconds);
         }
     }
-
-    public static ResultSetFuture executeAsyncWithOnFailure(Session session,
-            BoundStatement boundStatement, Runnable onFailure) {
-        ResultSetFuture future = session.executeAsync(boundStatement);
-        future.addListener(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    // TODO report checker framework issue that occurs without checkNotNull
-                    checkNotNull(future).getUninterruptibly();
-                } catch (Exception e) {
-                    logger.debug(e.getMessage(), e);
-                    onFailure.run();
-                }
-            }
-        }, MoreExecutors.directExecutor());
-        return future;
-    }
 }
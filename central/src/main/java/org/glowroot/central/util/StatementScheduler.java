@@ -0,0 +1,398 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.BusyPoolException;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.DriverInternalError;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.QueryConsistencyException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// all asynchronous statements are executed through this scheduler, which limits the number of
+// statements that are in flight at the same time, as opposed to relying on the driver's
+// connection pool queue, which under a burst of writes (e.g. many agents reconnecting and sending
+// their backlog at the same time) overflows and fails the writes with BusyPoolException
+//
+// the in-flight limit is adjusted using AIMD (additive increase, multiplicative decrease), the
+// limit is increased by one per round trip's worth of statements that complete successfully under
+// the latency threshold, and is halved when a statement fails due to overload or exceeds the
+// latency threshold (at most once per round trip)
+//
+// statements that exceed the in-flight limit are queued here, and executeAsync() never blocks,
+// since it is also called from driver callbacks (e.g. rollups that read and then write), instead
+// the gRPC handlers call awaitCapacity() before storing data, which blocks while the queue is full
+public class StatementScheduler implements StatementSchedulerMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatementScheduler.class);
+
+    private static final String MBEAN_NAME = "org.glowroot.central:type=StatementScheduler";
+
+    private static final int MIN_LIMIT = 8;
+    private static final int INITIAL_LIMIT = 64;
+    private static final long LATENCY_THRESHOLD_MILLIS = 1000;
+    private static final int MAX_QUEUE_SIZE = 10000;
+    private static final long MAX_AWAIT_CAPACITY_SECONDS = 60;
+
+    private final Session session;
+    private final int maxLimit;
+    private final int maxQueueSize;
+    private final long latencyThresholdNanos;
+    private final Ticker ticker;
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private final Queue<ScheduledStatement> queue = Queues.newArrayDeque();
+    @GuardedBy("lock")
+    private int inFlightCount;
+    // fractional so that the additive increase can be spread across a round trip's worth of
+    // successful statements
+    @GuardedBy("lock")
+    private double limit;
+    @GuardedBy("lock")
+    private long lastDecreaseTick;
+    @GuardedBy("lock")
+    private double averageLatencyNanos;
+    @GuardedBy("lock")
+    private long overloadCount;
+
+    // statements to execute on the current thread, this is used to avoid deep recursion when the
+    // driver completes futures synchronously (e.g. after the session is closed)
+    private final ThreadLocal</*@Nullable*/ Queue<ScheduledStatement>> dispatchQueue =
+            new ThreadLocal</*@Nullable*/ Queue<ScheduledStatement>>();
+
+    private final boolean mbeanRegistered;
+
+    public StatementScheduler(Session session, int maxLimit) {
+        this(session, maxLimit, MAX_QUEUE_SIZE, LATENCY_THRESHOLD_MILLIS, Ticker.systemTicker(),
+                true);
+    }
+
+    @VisibleForTesting
+    StatementScheduler(Session session, int maxLimit, int maxQueueSize,
+            long latencyThresholdMillis, Ticker ticker, boolean registerMBean) {
+        this.session = session;
+        this.maxLimit = Math.max(maxLimit, MIN_LIMIT);
+        this.maxQueueSize = maxQueueSize;
+        latencyThresholdNanos = MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.ticker = ticker;
+        limit = Math.min(INITIAL_LIMIT, this.maxLimit);
+        lastDecreaseTick = ticker.read();
+        mbeanRegistered = registerMBean && registerMBean(this);
+    }
+
+    public ResultSetFuture executeAsync(Statement statement) {
+        ScheduledStatement scheduledStatement = new ScheduledStatement(statement);
+        synchronized (lock) {
+            if (inFlightCount >= (int) limit) {
+                queue.add(scheduledStatement);
+                return scheduledStatement;
+            }
+            inFlightCount++;
+        }
+        dispatch(ImmutableList.of(scheduledStatement));
+        return scheduledStatement;
+    }
+
+    public ResultSetFuture executeAsyncWithOnFailure(Statement statement, Runnable onFailure) {
+        ResultSetFuture future = executeAsync(statement);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // TODO report checker framework issue that occurs without checkNotNull
+                    checkNotNull(future).getUninterruptibly();
+                } catch (Exception e) {
+                    logger.debug(e.getMessage(), e);
+                    onFailure.run();
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    // blocks while the queue is full, this is used to apply backpressure to the gRPC handlers
+    // (which in turn applies backpressure to the agents, which retry and spool)
+    public void awaitCapacity() throws Exception {
+        long deadline = ticker.read() + SECONDS.toNanos(MAX_AWAIT_CAPACITY_SECONDS);
+        synchronized (lock) {
+            while (queue.size() >= maxQueueSize) {
+                long remainingNanos = deadline - ticker.read();
+                if (remainingNanos <= 0) {
+                    throw new TimeoutException("Timed out waiting for cassandra write capacity"
+                            + " (queue depth: " + queue.size() + ")");
+                }
+                NANOSECONDS.timedWait(lock, remainingNanos);
+            }
+        }
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        synchronized (lock) {
+            return (int) limit;
+        }
+    }
+
+    @Override
+    public int getInFlightCount() {
+        synchronized (lock) {
+            return inFlightCount;
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return queue.size();
+        }
+    }
+
+    @Override
+    public double getAverageLatencyMillis() {
+        synchronized (lock) {
+            return averageLatencyNanos / MILLISECONDS.toNanos(1);
+        }
+    }
+
+    @Override
+    public long getOverloadCount() {
+        synchronized (lock) {
+            return overloadCount;
+        }
+    }
+
+    public void close() {
+        if (mbeanRegistered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                        .unregisterMBean(new ObjectName(MBEAN_NAME));
+            } catch (Exception e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    private void execute(ScheduledStatement scheduledStatement) {
+        long startTick = ticker.read();
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(scheduledStatement.statement);
+        } catch (Throwable t) {
+            onComplete(startTick, false, false);
+            scheduledStatement.setException(t);
+            return;
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                boolean overload = false;
+                try {
+                    Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException e) {
+                    overload = isOverload(e.getCause());
+                } catch (Throwable t) {
+                    // e.g. CancellationException
+                    logger.debug(t.getMessage(), t);
+                }
+                onComplete(startTick, true, overload);
+            }
+        }, MoreExecutors.directExecutor());
+        scheduledStatement.setFuture(future);
+    }
+
+    private void onComplete(long startTick, boolean measureLatency, boolean overload) {
+        List<ScheduledStatement> nextStatements = Lists.newArrayList();
+        synchronized (lock) {
+            inFlightCount--;
+            long tick = ticker.read();
+            if (measureLatency) {
+                long latencyNanos = tick - startTick;
+                averageLatencyNanos = averageLatencyNanos == 0 ? latencyNanos
+                        : 0.9 * averageLatencyNanos + 0.1 * latencyNanos;
+                if (overload || latencyNanos > latencyThresholdNanos) {
+                    if (overload) {
+                        overloadCount++;
+                    }
+                    // only decrease once per round trip, since all statements that were already
+                    // in flight at the time of the last decrease are likely to be slow as well
+                    if (startTick - lastDecreaseTick > 0) {
+                        limit = Math.max(limit / 2, MIN_LIMIT);
+                        lastDecreaseTick = tick;
+                    }
+                } else {
+                    limit = Math.min(limit + 1 / limit, maxLimit);
+                }
+            }
+            ScheduledStatement next;
+            while ((next = pollNext()) != null) {
+                nextStatements.add(next);
+                inFlightCount++;
+            }
+            if (queue.size() < maxQueueSize) {
+                lock.notifyAll();
+            }
+        }
+        dispatch(nextStatements);
+    }
+
+    private void dispatch(List<ScheduledStatement> scheduledStatements) {
+        Queue<ScheduledStatement> pending = dispatchQueue.get();
+        if (pending != null) {
+            // already dispatching further up the stack on this thread
+            pending.addAll(scheduledStatements);
+            return;
+        }
+        pending = Queues.newArrayDeque(scheduledStatements);
+        dispatchQueue.set(pending);
+        try {
+            ScheduledStatement scheduledStatement;
+            while ((scheduledStatement = pending.poll()) != null) {
+                execute(scheduledStatement);
+            }
+        } finally {
+            dispatchQueue.remove();
+        }
+    }
+
+    @GuardedBy("lock")
+    private @Nullable ScheduledStatement pollNext() {
+        if (inFlightCount >= (int) limit) {
+            return null;
+        }
+        ScheduledStatement next;
+        while ((next = queue.poll()) != null) {
+            if (!next.isCancelled()) {
+                return next;
+            }
+        }
+        return null;
+    }
+
+    @VisibleForTesting
+    static boolean isOverload(@Nullable Throwable t) {
+        if (t instanceof NoHostAvailableException) {
+            for (Throwable error : ((NoHostAvailableException) t).getErrors().values()) {
+                if (isOverload(error)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return t instanceof BusyPoolException || t instanceof OperationTimedOutException
+                || t instanceof OverloadedException || t instanceof QueryConsistencyException;
+    }
+
+    private static boolean registerMBean(StatementScheduler statementScheduler) {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbeanServer.registerMBean(statementScheduler, new ObjectName(MBEAN_NAME));
+            return true;
+        } catch (InstanceAlreadyExistsException e) {
+            // e.g. multiple central modules in the same jvm during tests
+            logger.debug(e.getMessage(), e);
+        } catch (Exception e) {
+            logger.warn(e.getMessage(), e);
+        }
+        return false;
+    }
+
+    private static class ScheduledStatement extends AbstractFuture<ResultSet>
+            implements ResultSetFuture {
+
+        private final Statement statement;
+
+        private ScheduledStatement(Statement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public ResultSet getUninterruptibly() {
+            try {
+                return Uninterruptibles.getUninterruptibly(this);
+            } catch (ExecutionException e) {
+                throw propagateCause(e);
+            }
+        }
+
+        @Override
+        public ResultSet getUninterruptibly(long timeout, TimeUnit unit) throws TimeoutException {
+            try {
+                return Uninterruptibles.getUninterruptibly(this, timeout, unit);
+            } catch (ExecutionException e) {
+                throw propagateCause(e);
+            }
+        }
+
+        @Override
+        protected boolean setFuture(ListenableFuture<? extends ResultSet> future) {
+            return super.setFuture(future);
+        }
+
+        @Override
+        protected boolean setException(Throwable throwable) {
+            return super.setException(throwable);
+        }
+
+        // same as the driver's DefaultResultSetFuture
+        private static RuntimeException propagateCause(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DriverException) {
+                // copy so that the stack trace includes the caller
+                return ((DriverException) cause).copy();
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            return new DriverInternalError("Unexpected exception thrown", cause);
+        }
+    }
+}
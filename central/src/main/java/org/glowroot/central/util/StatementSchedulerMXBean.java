@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+public interface StatementSchedulerMXBean {
+
+    // current (adaptive) limit on the number of statements in flight
+    int getConcurrencyLimit();
+
+    int getInFlightCount();
+
+    // number of statements waiting for the number of statements in flight to drop below the limit
+    int getQueueDepth();
+
+    // exponentially weighted moving average
+    double getAverageLatencyMillis();
+
+    // number of statements that failed due to overload (e.g. BusyPoolException, timeouts)
+    long getOverloadCount();
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// compresses a block of gauge values using the encoding from the Gorilla paper (Facebook's
+// in-memory time series database), see http://www.vldb.org/pvldb/vol8/p1816-teller.pdf
+//
+// capture times are stored as delta-of-deltas, which is usually a single bit per value since
+// rolled-up capture times are evenly spaced, and values are stored as the XOR with the prior
+// value, which is also usually a few bits since gauge values change slowly
+//
+// weights are stored as a single bit when unchanged from the prior weight, which is the common
+// case for rolled-up values
+//
+// gauge names are not part of the encoding
+public class TimeSeriesCodec {
+
+    private TimeSeriesCodec() {}
+
+    // capture times must be in ascending order
+    public static ByteBuffer encode(List<GaugeValue> gaugeValues) {
+        checkArgument(!gaugeValues.isEmpty());
+        BitWriter out = new BitWriter();
+        GaugeValue first = gaugeValues.get(0);
+        out.writeBits(gaugeValues.size(), 32);
+        out.writeBits(first.getCaptureTime(), 64);
+        out.writeBits(Double.doubleToRawLongBits(first.getValue()), 64);
+        out.writeBits(first.getWeight(), 64);
+        long priorCaptureTime = first.getCaptureTime();
+        long priorDelta = 0;
+        long priorValueBits = Double.doubleToRawLongBits(first.getValue());
+        int priorLeadingZeros = Integer.MAX_VALUE;
+        int priorTrailingZeros = 0;
+        long priorWeight = first.getWeight();
+        for (int i = 1; i < gaugeValues.size(); i++) {
+            GaugeValue gaugeValue = gaugeValues.get(i);
+
+            long delta = gaugeValue.getCaptureTime() - priorCaptureTime;
+            writeDeltaOfDelta(out, delta - priorDelta);
+            priorCaptureTime = gaugeValue.getCaptureTime();
+            priorDelta = delta;
+
+            long valueBits = Double.doubleToRawLongBits(gaugeValue.getValue());
+            long xor = valueBits ^ priorValueBits;
+            if (xor == 0) {
+                out.writeBit(false);
+            } else {
+                out.writeBit(true);
+                // leading zeros are capped so that they fit in 5 bits
+                int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trailingZeros = Long.numberOfTrailingZeros(xor);
+                if (leadingZeros >= priorLeadingZeros && trailingZeros >= priorTrailingZeros) {
+                    // meaningful bits fall within the prior meaningful bits
+                    out.writeBit(false);
+                    out.writeBits(xor >>> priorTrailingZeros,
+                            64 - priorLeadingZeros - priorTrailingZeros);
+                } else {
+                    int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                    out.writeBit(true);
+                    out.writeBits(leadingZeros, 5);
+                    // meaningful bits is between 1 and 64, so store it minus 1 to fit in 6 bits
+                    out.writeBits(meaningfulBits - 1, 6);
+                    out.writeBits(xor >>> trailingZeros, meaningfulBits);
+                    priorLeadingZeros = leadingZeros;
+                    priorTrailingZeros = trailingZeros;
+                }
+            }
+            priorValueBits = valueBits;
+
+            if (gaugeValue.getWeight() == priorWeight) {
+                out.writeBit(false);
+            } else {
+                out.writeBit(true);
+                out.writeBits(gaugeValue.getWeight(), 64);
+                priorWeight = gaugeValue.getWeight();
+            }
+        }
+        return out.toByteBuffer();
+    }
+
+    public static List<GaugeValue> decode(ByteBuffer buffer) {
+        BitReader in = new BitReader(buffer.duplicate());
+        int count = (int) in.readBits(32);
+        List<GaugeValue> gaugeValues = Lists.newArrayListWithCapacity(count);
+        long captureTime = in.readBits(64);
+        long valueBits = in.readBits(64);
+        long weight = in.readBits(64);
+        gaugeValues.add(newGaugeValue(captureTime, valueBits, weight));
+        long delta = 0;
+        int leadingZeros = 0;
+        int trailingZeros = 0;
+        for (int i = 1; i < count; i++) {
+            delta += readDeltaOfDelta(in);
+            captureTime += delta;
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    leadingZeros = (int) in.readBits(5);
+                    int meaningfulBits = (int) in.readBits(6) + 1;
+                    trailingZeros = 64 - leadingZeros - meaningfulBits;
+                }
+                int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                valueBits ^= in.readBits(meaningfulBits) << trailingZeros;
+            }
+            if (in.readBit()) {
+                weight = in.readBits(64);
+            }
+            gaugeValues.add(newGaugeValue(captureTime, valueBits, weight));
+        }
+        return gaugeValues;
+    }
+
+    private static void writeDeltaOfDelta(BitWriter out, long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            out.writeBit(false);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            out.writeBits(0b10, 2);
+            out.writeBits(deltaOfDelta, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            out.writeBits(0b110, 3);
+            out.writeBits(deltaOfDelta, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            out.writeBits(0b1110, 4);
+            out.writeBits(deltaOfDelta, 12);
+        } else {
+            // capture times are in milliseconds, so unlike the paper (which uses seconds) this
+            // cannot assume that the delta-of-delta fits in 32 bits
+            out.writeBits(0b1111, 4);
+            out.writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    private static long readDeltaOfDelta(BitReader in) {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (!in.readBit()) {
+            return readSigned(in, 7);
+        }
+        if (!in.readBit()) {
+            return readSigned(in, 9);
+        }
+        if (!in.readBit()) {
+            return readSigned(in, 12);
+        }
+        return in.readBits(64);
+    }
+
+    // the ranges above are asymmetric (e.g. -63 to 64 in 7 bits), so values that read back as
+    // less than or equal to the negative minimum must have been the positive maximum
+    private static long readSigned(BitReader in, int numBits) {
+        long bits = in.readBits(numBits);
+        long value = (bits << (64 - numBits)) >> (64 - numBits);
+        long min = -(1L << (numBits - 1)) + 1;
+        if (value < min) {
+            value += 1L << numBits;
+        }
+        return value;
+    }
+
+    private static GaugeValue newGaugeValue(long captureTime, long valueBits, long weight) {
+        return GaugeValue.newBuilder()
+                .setCaptureTime(captureTime)
+                .setValue(Double.longBitsToDouble(valueBits))
+                .setWeight(weight)
+                .build();
+    }
+
+    private static class BitWriter {
+
+        private long[] words = new long[16];
+        private int numBits;
+
+        private void writeBit(boolean bit) {
+            writeBits(bit ? 1 : 0, 1);
+        }
+
+        // writes the low numBits of value, most significant bit first
+        private void writeBits(long value, int numBits) {
+            for (int i = numBits - 1; i >= 0; i--) {
+                if (((value >>> i) & 1) != 0) {
+                    int wordIndex = this.numBits >>> 6;
+                    ensureCapacity(wordIndex);
+                    words[wordIndex] |= 1L << (63 - (this.numBits & 63));
+                }
+                this.numBits++;
+            }
+        }
+
+        private void ensureCapacity(int wordIndex) {
+            if (wordIndex >= words.length) {
+                long[] newWords = new long[words.length * 2];
+                System.arraycopy(words, 0, newWords, 0, words.length);
+                words = newWords;
+            }
+        }
+
+        private ByteBuffer toByteBuffer() {
+            int numBytes = (numBits + 7) >>> 3;
+            ByteBuffer buffer = ByteBuffer.allocate(numBytes);
+            for (int i = 0; i < numBytes; i++) {
+                buffer.put((byte) (words[i >>> 3] >>> (56 - ((i & 7) << 3))));
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static class BitReader {
+
+        private final ByteBuffer buffer;
+        private int currentByte;
+        private int remainingBitsInCurrentByte;
+
+        private BitReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private boolean readBit() {
+            if (remainingBitsInCurrentByte == 0) {
+                currentByte = buffer.get() & 0xff;
+                remainingBitsInCurrentByte = 8;
+            }
+            remainingBitsInCurrentByte--;
+            return ((currentByte >>> remainingBitsInCurrentByte) & 1) != 0;
+        }
+
+        private long readBits(int numBits) {
+            long value = 0;
+            for (int i = 0; i < numBits; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateDictionaryDecoderTest {
+
+    @Test
+    public void shouldDecode() {
+        // given
+        AggregateDictionaryDecoder decoder = new AggregateDictionaryDecoder();
+        decoder.addEntry("http request");
+        decoder.addEntry("jdbc query");
+        decoder.addEntry("GET http://example.org");
+        Aggregate encoded = Aggregate.newBuilder()
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setNameIndex(0)
+                        .setTotalNanos(100)
+                        .setCount(1)
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setNameIndex(1)
+                                .setTotalNanos(50)
+                                .setCount(2)))
+                .addServiceCallsByType(Aggregate.ServiceCallsByType.newBuilder()
+                        .setType("HTTP")
+                        .addServiceCall(Aggregate.ServiceCall.newBuilder()
+                                .setTextIndex(2)
+                                .setTotalDurationNanos(30)
+                                .setExecutionCount(1)))
+                .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                        .addOrderedRawValueDelta(1000)
+                        .addOrderedRawValueDelta(500)
+                        .addOrderedRawValueDelta(100))
+                .build();
+
+        // when
+        Aggregate aggregate = decoder.decode(encoded);
+
+        // then
+        assertThat(aggregate).isEqualTo(Aggregate.newBuilder()
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("http request")
+                        .setTotalNanos(100)
+                        .setCount(1)
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setName("jdbc query")
+                                .setTotalNanos(50)
+                                .setCount(2)))
+                .addServiceCallsByType(Aggregate.ServiceCallsByType.newBuilder()
+                        .setType("HTTP")
+                        .addServiceCall(Aggregate.ServiceCall.newBuilder()
+                                .setText("GET http://example.org")
+                                .setTotalDurationNanos(30)
+                                .setExecutionCount(1)))
+                .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                        .addOrderedRawValue(1000)
+                        .addOrderedRawValue(1500)
+                        .addOrderedRawValue(1600))
+                .build());
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,12 +15,53 @@
  */
 package org.glowroot.central;
 
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
+import org.glowroot.central.repo.AgentDao;
+import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.ConfigRepositoryImpl;
+import org.glowroot.central.repo.GaugeValueDao;
+import org.glowroot.central.repo.HeartbeatDao;
+import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.repo.TraceDao;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.DistributedOwnership;
+import org.glowroot.common.repo.AgentRepository.AgentRollup;
+import org.glowroot.common.repo.ImmutableAgentRollup;
+import org.glowroot.common.util.Clock;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class RollupServiceTest {
 
+    private static ClusterManager clusterManager;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        clusterManager = ClusterManager.create();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        clusterManager.close();
+    }
+
     @Test
     public void test() {
         assertThat(RollupService.millisUntilNextRollup(15000)).isEqualTo(55000);
@@ -28,4 +69,164 @@ public class RollupServiceTest {
         assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
         assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
     }
+
+    @Test
+    public void shouldRollupChildrenBeforeParent() throws Exception {
+        // given
+        AgentDao agentDao = mock(AgentDao.class);
+        when(agentDao.readAgentRollups()).thenReturn(ImmutableList.of(
+                agentRollup("p1", agentRollup("p1/c1", agent("p1/c1/a1"), agent("p1/c1/a2")),
+                        agent("p1/a3")),
+                agent("a4")));
+        AggregateDao aggregateDao = mock(AggregateDao.class);
+        List<String> aggregateRollups = Lists.newCopyOnWriteArrayList();
+        doAnswer(invocation -> aggregateRollups.add((String) invocation.getArguments()[0]))
+                .when(aggregateDao).rollup(anyString(), anyString(), anyBoolean());
+        doAnswer(invocation -> aggregateRollups.add((String) invocation.getArguments()[0]))
+                .when(aggregateDao).rollup(anyString(), eq(null), anyBoolean());
+        RollupService rollupService = createRollupService(agentDao, aggregateDao,
+                mock(GaugeValueDao.class));
+
+        // when
+        rollupService.runInternal();
+        rollupService.close();
+
+        // then
+        assertThat(aggregateRollups).containsOnly("p1/c1/a1", "p1/c1/a2", "p1/c1", "p1/a3", "p1",
+                "a4");
+        assertThat(aggregateRollups.indexOf("p1/c1"))
+                .isGreaterThan(aggregateRollups.indexOf("p1/c1/a1"))
+                .isGreaterThan(aggregateRollups.indexOf("p1/c1/a2"));
+        assertThat(aggregateRollups.indexOf("p1"))
+                .isGreaterThan(aggregateRollups.indexOf("p1/c1"))
+                .isGreaterThan(aggregateRollups.indexOf("p1/a3"));
+        assertThat(rollupService.getRollupStats().getLastPassLevelCompletionMillis()).hasSize(3);
+    }
+
+    @Test
+    public void shouldNotRollupParentGaugesAfterChildFailure() throws Exception {
+        // given
+        AgentDao agentDao = mock(AgentDao.class);
+        when(agentDao.readAgentRollups()).thenReturn(ImmutableList.of(
+                agentRollup("p1", agentRollup("p1/c1", agent("p1/c1/a1")), agent("p1/a2"))));
+        GaugeValueDao gaugeValueDao = mock(GaugeValueDao.class);
+        doThrow(new RuntimeException("A test")).when(gaugeValueDao).rollup("p1/c1/a1", "p1/c1",
+                true);
+        RollupService rollupService =
+                createRollupService(agentDao, mock(AggregateDao.class), gaugeValueDao);
+
+        // when
+        rollupService.runInternal();
+        rollupService.close();
+
+        // then
+        verify(gaugeValueDao).rollup("p1/a2", "p1", true);
+        verify(gaugeValueDao, never()).rollup("p1/c1", "p1", false);
+        verify(gaugeValueDao, never()).rollup("p1", null, false);
+    }
+
+    @Test
+    public void shouldOnlyRollupLocallyOwnedAgentRollups() throws Exception {
+        // given
+        AgentDao agentDao = mock(AgentDao.class);
+        when(agentDao.readAgentRollups()).thenReturn(ImmutableList.of(
+                agentRollup("p1", agent("p1/a1")), agentRollup("p2", agent("p2/a2"))));
+        when(agentDao.isAgent(anyString())).thenReturn(true);
+        AggregateDao aggregateDao = mock(AggregateDao.class);
+        DownstreamServiceImpl downstreamService = mock(DownstreamServiceImpl.class);
+        ConfigChangeIndex configChangeIndex = new ConfigChangeIndex(agentDao, downstreamService,
+                mock(AlertingService.class), clusterManager);
+        RollupService rollupService = createRollupService(agentDao, aggregateDao,
+                mock(GaugeValueDao.class), downstreamService, configChangeIndex,
+                key -> key.equals("p2"));
+        // agents are not connected, so the config updates are left pending
+        configChangeIndex.onChange("p1/a1");
+        configChangeIndex.onChange("p2/a2");
+
+        // when
+        rollupService.runInternal();
+        rollupService.close();
+
+        // then
+        verify(aggregateDao).rollup("p2/a2", "p2", true);
+        verify(aggregateDao).rollup("p2", null, false);
+        verify(aggregateDao, never()).rollup("p1/a1", "p1", true);
+        verify(aggregateDao, never()).rollup("p1", null, false);
+        // agent config updates are not partitioned
+        verify(downstreamService, times(2)).updateAgentConfigIfConnectedAndNeeded("p1/a1");
+        verify(downstreamService, times(2)).updateAgentConfigIfConnectedAndNeeded("p2/a2");
+        assertThat(rollupService.getRollupStats().getLastPassOwnedAgentRollupCount())
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void shouldOnlyProcessPendingConfigChanges() throws Exception {
+        // given
+        AgentDao agentDao = mock(AgentDao.class);
+        when(agentDao.readAgentRollups()).thenReturn(ImmutableList.of(
+                agentRollup("p1", agent("p1/a1"), agent("p1/a2"), agent("p1/a3"))));
+        when(agentDao.isAgent(anyString())).thenReturn(true);
+        DownstreamServiceImpl downstreamService = mock(DownstreamServiceImpl.class);
+        when(downstreamService.updateAgentConfigIfConnectedAndNeeded("p1/a1")).thenReturn(true);
+        AlertingService alertingService = mock(AlertingService.class);
+        ConfigChangeIndex configChangeIndex = new ConfigChangeIndex(agentDao, downstreamService,
+                alertingService, clusterManager);
+        RollupService rollupService = createRollupService(agentDao, mock(AggregateDao.class),
+                mock(GaugeValueDao.class), downstreamService, configChangeIndex, key -> true);
+        // p1/a1 is connected, so its config update is delivered right away
+        configChangeIndex.onChange("p1/a1");
+        // p1/a2 is not connected, so its config update is left pending
+        configChangeIndex.onChange("p1/a2");
+
+        // when
+        rollupService.runInternal();
+        rollupService.runInternal();
+        rollupService.close();
+
+        // then
+        verify(downstreamService).updateAgentConfigIfConnectedAndNeeded("p1/a1");
+        verify(downstreamService, times(3)).updateAgentConfigIfConnectedAndNeeded("p1/a2");
+        verify(downstreamService, never()).updateAgentConfigIfConnectedAndNeeded("p1/a3");
+        verify(alertingService).checkForDeletedAlerts("p1/a1");
+        verify(alertingService).checkForDeletedAlerts("p1/a2");
+        verify(alertingService, never()).checkForDeletedAlerts("p1/a3");
+        verify(alertingService, never()).checkForDeletedAlerts("p1");
+    }
+
+    private static RollupService createRollupService(AgentDao agentDao,
+            AggregateDao aggregateDao, GaugeValueDao gaugeValueDao) {
+        DownstreamServiceImpl downstreamService = mock(DownstreamServiceImpl.class);
+        return createRollupService(agentDao, aggregateDao, gaugeValueDao, downstreamService,
+                new ConfigChangeIndex(agentDao, downstreamService, mock(AlertingService.class),
+                        clusterManager),
+                key -> true);
+    }
+
+    private static RollupService createRollupService(AgentDao agentDao,
+            AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
+            DownstreamServiceImpl downstreamService, ConfigChangeIndex configChangeIndex,
+            DistributedOwnership rollupOwnership) {
+        Clock clock = mock(Clock.class);
+        return new RollupService(agentDao, aggregateDao, gaugeValueDao,
+                mock(SyntheticResultDao.class), mock(TraceDao.class), mock(HeartbeatDao.class),
+                mock(ConfigRepositoryImpl.class), mock(AlertingService.class), downstreamService,
+                configChangeIndex, rollupOwnership, clock, 4, false);
+    }
+
+    private static AgentRollup agentRollup(String id, AgentRollup... children) {
+        return ImmutableAgentRollup.builder()
+                .id(id)
+                .display(id)
+                .agent(false)
+                .addChildren(children)
+                .build();
+    }
+
+    private static AgentRollup agent(String id) {
+        return ImmutableAgentRollup.builder()
+                .id(id)
+                .display(id)
+                .agent(true)
+                .build();
+    }
 }
@@ -26,6 +26,7 @@ import org.junit.Test;
 
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.repo.AgentRepository.AgentRollup;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -35,6 +36,7 @@ public class AgentDaoIT {
     private static Cluster cluster;
     private static Session session;
     private static ClusterManager clusterManager;
+    private static StatementScheduler statementScheduler;
     private static AgentDao agentDao;
 
     @BeforeClass
@@ -45,12 +47,14 @@ public class AgentDaoIT {
         Sessions.createKeyspaceIfNotExists(session, "glowroot_unit_tests");
         session.execute("use glowroot_unit_tests");
         clusterManager = ClusterManager.create();
+        statementScheduler = new StatementScheduler(session, 1024);
 
-        agentDao = new AgentDao(session, clusterManager);
+        agentDao = new AgentDao(session, statementScheduler, clusterManager);
     }
 
     @AfterClass
     public static void tearDown() throws Exception {
+        statementScheduler.close();
         clusterManager.close();
         session.close();
         cluster.close();
@@ -30,6 +30,7 @@ import org.junit.Test;
 
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.config.CentralStorageConfig;
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.config.ImmutableCentralStorageConfig;
@@ -77,6 +78,7 @@ public class AggregateDaoIT {
     private static Cluster cluster;
     private static Session session;
     private static ClusterManager clusterManager;
+    private static StatementScheduler statementScheduler;
     private static AgentDao agentDao;
     private static ConfigDao configDao;
     private static AggregateDao aggregateDao;
@@ -90,8 +92,9 @@ public class AggregateDaoIT {
         session.execute("use glowroot_unit_tests");
         KeyspaceMetadata keyspace = cluster.getMetadata().getKeyspace("glowroot_unit_tests");
         clusterManager = ClusterManager.create();
+        statementScheduler = new StatementScheduler(session, 1024);
 
-        agentDao = new AgentDao(session, clusterManager);
+        agentDao = new AgentDao(session, statementScheduler, clusterManager);
         configDao = new ConfigDao(session, clusterManager);
         CentralConfigDao centralConfigDao = new CentralConfigDao(session, clusterManager);
         UserDao userDao = new UserDao(session, keyspace, clusterManager);
@@ -104,15 +107,17 @@ public class AggregateDaoIT {
                         .copyOf(storageConfig)
                         .withRollupExpirationHours(0, 0, 0, 0),
                 storageConfig.version());
-        TransactionTypeDao transactionTypeDao =
-                new TransactionTypeDao(session, configRepository, clusterManager);
-        FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
-        aggregateDao = new AggregateDao(session, agentDao, transactionTypeDao, fullQueryTextDao,
-                configRepository, Clock.systemClock());
+        TransactionTypeDao transactionTypeDao = new TransactionTypeDao(session,
+                statementScheduler, configRepository, clusterManager);
+        FullQueryTextDao fullQueryTextDao =
+                new FullQueryTextDao(session, statementScheduler, configRepository);
+        aggregateDao = new AggregateDao(session, statementScheduler, agentDao, transactionTypeDao,
+                fullQueryTextDao, configRepository, Clock.systemClock());
     }
 
     @AfterClass
     public static void tearDown() throws Exception {
+        statementScheduler.close();
         clusterManager.close();
         session.close();
         cluster.close();
@@ -28,6 +28,7 @@ import org.junit.Test;
 
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.config.CentralStorageConfig;
 import org.glowroot.common.config.ImmutableCentralStorageConfig;
 import org.glowroot.common.config.ImmutableLdapConfig;
@@ -64,6 +65,7 @@ public class ConfigRepositoryIT {
     private static Cluster cluster;
     private static Session session;
     private static ClusterManager clusterManager;
+    private static StatementScheduler statementScheduler;
     private static ConfigRepository configRepository;
     private static ConfigDao configDao;
 
@@ -82,9 +84,10 @@ public class ConfigRepositoryIT {
         session.execute("drop table if exists role");
         session.execute("drop table if exists central_config");
         clusterManager = ClusterManager.create();
+        statementScheduler = new StatementScheduler(session, 1024);
 
         configDao = new ConfigDao(session, clusterManager);
-        AgentDao agentDao = new AgentDao(session, clusterManager);
+        AgentDao agentDao = new AgentDao(session, statementScheduler, clusterManager);
         CentralConfigDao centralConfigDao = new CentralConfigDao(session, clusterManager);
         UserDao userDao = new UserDao(session, keyspace, clusterManager);
         RoleDao roleDao = new RoleDao(session, keyspace, clusterManager);
@@ -94,6 +97,7 @@ public class ConfigRepositoryIT {
 
     @AfterClass
     public static void tearDown() throws Exception {
+        statementScheduler.close();
         clusterManager.close();
         // remove bad data so other tests don't have issue
         session.execute("drop table agent_rollup");
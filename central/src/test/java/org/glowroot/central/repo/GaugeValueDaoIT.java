@@ -15,10 +15,15 @@
  */
 package org.glowroot.central.repo;
 
+import java.util.Date;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.google.common.collect.Lists;
 import org.junit.AfterClass;
@@ -27,20 +32,28 @@ import org.junit.Test;
 
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
+import org.glowroot.central.util.TimeSeriesCodec;
 import org.glowroot.common.config.CentralStorageConfig;
 import org.glowroot.common.config.ImmutableCentralStorageConfig;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class GaugeValueDaoIT {
 
     private static Cluster cluster;
     private static Session session;
     private static ClusterManager clusterManager;
+    private static StatementScheduler statementScheduler;
     private static AgentDao agentDao;
     private static GaugeValueDao gaugeValueDao;
+    private static GaugeValueDao gaugeValueBlocksDao;
+    private static ConfigRepositoryImpl configRepository;
 
     @BeforeClass
     public static void setUp() throws Exception {
@@ -51,13 +64,14 @@ public class GaugeValueDaoIT {
         session.execute("use glowroot_unit_tests");
         KeyspaceMetadata keyspace = cluster.getMetadata().getKeyspace("glowroot_unit_tests");
         clusterManager = ClusterManager.create();
+        statementScheduler = new StatementScheduler(session, 1024);
 
         CentralConfigDao centralConfigDao = new CentralConfigDao(session, clusterManager);
-        agentDao = new AgentDao(session, clusterManager);
+        agentDao = new AgentDao(session, statementScheduler, clusterManager);
         ConfigDao configDao = new ConfigDao(session, clusterManager);
         UserDao userDao = new UserDao(session, keyspace, clusterManager);
         RoleDao roleDao = new RoleDao(session, keyspace, clusterManager);
-        ConfigRepositoryImpl configRepository = new ConfigRepositoryImpl(agentDao, configDao,
+        configRepository = new ConfigRepositoryImpl(agentDao, configDao,
                 centralConfigDao, userDao, roleDao);
         CentralStorageConfig storageConfig = configRepository.getCentralStorageConfig();
         configRepository.updateCentralStorageConfig(
@@ -65,12 +79,15 @@ public class GaugeValueDaoIT {
                         .copyOf(storageConfig)
                         .withRollupExpirationHours(0, 0, 0, 0),
                 storageConfig.version());
-        gaugeValueDao = new GaugeValueDao(session, agentDao, configRepository, clusterManager,
-                Clock.systemClock());
+        gaugeValueDao = new GaugeValueDao(session, statementScheduler, agentDao,
+                configRepository, clusterManager, false, Clock.systemClock());
+        gaugeValueBlocksDao = new GaugeValueDao(session, statementScheduler, agentDao,
+                configRepository, clusterManager, true, Clock.systemClock());
     }
 
     @AfterClass
     public static void tearDown() throws Exception {
+        statementScheduler.close();
         clusterManager.close();
         session.close();
         cluster.close();
@@ -153,6 +170,76 @@ public class GaugeValueDaoIT {
         assertThat(gaugeValues.get(0).getWeight()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldReadFromBlocksAfterRollup() throws Exception {
+        gaugeValueBlocksDao.truncateAll();
+        gaugeValueBlocksDao.store("one", createData(60013));
+        gaugeValueBlocksDao.store("one", createData(65009));
+        gaugeValueBlocksDao.store("one", createData(360000));
+        gaugeValueBlocksDao.store("one", createData(7200000));
+
+        // rollup
+        gaugeValueBlocksDao.rollup("one", null, true);
+
+        // check rolled-up data after rollup (range is long enough to read from blocks)
+        List<GaugeValue> gaugeValues = gaugeValueBlocksDao.readGaugeValues("one",
+                "the gauge:attr1", 0, 7200000, 1);
+        assertThat(gaugeValues).hasSize(3);
+        assertThat(gaugeValues.get(0).getCaptureTime()).isEqualTo(120000);
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(500);
+        assertThat(gaugeValues.get(0).getWeight()).isEqualTo(2);
+        assertThat(gaugeValues.get(1).getCaptureTime()).isEqualTo(360000);
+        assertThat(gaugeValues.get(1).getWeight()).isEqualTo(1);
+        assertThat(gaugeValues.get(2).getCaptureTime()).isEqualTo(7200000);
+
+        // partial range within the blocks
+        gaugeValues = gaugeValueBlocksDao.readGaugeValues("one", "the gauge:attr1", 300000,
+                7200000, 1);
+        assertThat(gaugeValues).hasSize(2);
+        assertThat(gaugeValues.get(0).getCaptureTime()).isEqualTo(360000);
+    }
+
+    @Test
+    public void shouldWriteBlockWhenLastIntervalIsMissing() throws Exception {
+        // given
+        Clock clock = mock(Clock.class);
+        GaugeValueDao gaugeValueDao = new GaugeValueDao(session, statementScheduler, agentDao,
+                configRepository, clusterManager, true, clock);
+        gaugeValueDao.truncateAll();
+        gaugeValueDao.store("one", createData(60013));
+        gaugeValueDao.store("one", createData(65009));
+        gaugeValueDao.store("one", createData(360000));
+        // block (0, 3600000] is still in-flight during this rollup
+        when(clock.currentTimeMillis()).thenReturn(600000L);
+        gaugeValueDao.rollup("one", null, true);
+        assertThat(readBlock("one", "the gauge:attr1", 3600000)).isNull();
+
+        // when
+        // no values are ever stored for the last interval of the block
+        when(clock.currentTimeMillis()).thenReturn(3700000L);
+        gaugeValueDao.rollup("one", null, true);
+
+        // then
+        List<GaugeValue> gaugeValues = readBlock("one", "the gauge:attr1", 3600000);
+        assertThat(gaugeValues).hasSize(2);
+        assertThat(gaugeValues.get(0).getCaptureTime()).isEqualTo(120000);
+        assertThat(gaugeValues.get(0).getWeight()).isEqualTo(2);
+        assertThat(gaugeValues.get(1).getCaptureTime()).isEqualTo(360000);
+        assertThat(gaugeValues.get(1).getWeight()).isEqualTo(1);
+    }
+
+    private static @Nullable List<GaugeValue> readBlock(String agentRollupId, String gaugeName,
+            long blockEnd) throws Exception {
+        ResultSet results = session.execute("select gauge_values from gauge_value_block_rollup_1"
+                + " where agent_rollup = ? and gauge_name = ? and block_end = ?", agentRollupId,
+                gaugeName, new Date(blockEnd));
+        Row row = results.one();
+        if (row == null) {
+            return null;
+        }
+        return TimeSeriesCodec.decode(checkNotNull(row.getBytes(0)));
+    }
+
     private static List<GaugeValue> createData(int captureTime) {
         List<GaugeValue> gaugeValues = Lists.newArrayList();
         gaugeValues.add(GaugeValue.newBuilder()
@@ -27,6 +27,7 @@ import org.junit.Test;
 
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.config.CentralStorageConfig;
 import org.glowroot.common.config.ImmutableCentralStorageConfig;
 import org.glowroot.common.repo.SyntheticResultRepository.SyntheticResult;
@@ -40,6 +41,7 @@ public class SyntheticResultDaoIT {
     private static Cluster cluster;
     private static Session session;
     private static ClusterManager clusterManager;
+    private static StatementScheduler statementScheduler;
     private static AgentDao agentDao;
     private static SyntheticResultDao syntheticResultDao;
 
@@ -53,8 +55,9 @@ public class SyntheticResultDaoIT {
         KeyspaceMetadata keyspace = cluster.getMetadata().getKeyspace("glowroot_unit_tests");
 
         clusterManager = ClusterManager.create();
+        statementScheduler = new StatementScheduler(session, 1024);
         CentralConfigDao centralConfigDao = new CentralConfigDao(session, clusterManager);
-        agentDao = new AgentDao(session, clusterManager);
+        agentDao = new AgentDao(session, statementScheduler, clusterManager);
         ConfigDao configDao = new ConfigDao(session, clusterManager);
         UserDao userDao = new UserDao(session, keyspace, clusterManager);
         RoleDao roleDao = new RoleDao(session, keyspace, clusterManager);
@@ -66,11 +69,13 @@ public class SyntheticResultDaoIT {
                         .copyOf(storageConfig)
                         .withRollupExpirationHours(0, 0, 0, 0),
                 storageConfig.version());
-        syntheticResultDao = new SyntheticResultDao(session, configRepository, Clock.systemClock());
+        syntheticResultDao = new SyntheticResultDao(session, statementScheduler, configRepository,
+                Clock.systemClock());
     }
 
     @AfterClass
     public static void tearDown() throws Exception {
+        statementScheduler.close();
         clusterManager.close();
         session.close();
         cluster.close();
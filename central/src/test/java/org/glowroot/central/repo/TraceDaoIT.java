@@ -16,6 +16,7 @@
 package org.glowroot.central.repo;
 
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Session;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -23,6 +24,7 @@ import org.junit.Test;
 
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.StatementScheduler;
 import org.glowroot.common.config.ImmutableCentralStorageConfig;
 import org.glowroot.common.live.ImmutableTracePointFilter;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
@@ -30,7 +32,11 @@ import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.repo.ImmutableErrorMessageFilter;
 import org.glowroot.common.repo.ImmutableTraceQuery;
+import org.glowroot.common.repo.TraceRepository.ErrorMessageFilter;
+import org.glowroot.common.repo.TraceRepository.ErrorMessageResult;
 import org.glowroot.common.repo.TraceRepository.TraceQuery;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
@@ -48,6 +54,7 @@ public class TraceDaoIT {
     private static Cluster cluster;
     private static Session session;
     private static ClusterManager clusterManager;
+    private static StatementScheduler statementScheduler;
     private static TraceDao traceDao;
 
     @BeforeClass
@@ -59,16 +66,20 @@ public class TraceDaoIT {
         session.execute("use glowroot_unit_tests");
 
         clusterManager = ClusterManager.create();
+        statementScheduler = new StatementScheduler(session, 1024);
         ConfigRepository configRepository = mock(ConfigRepository.class);
         when(configRepository.getStorageConfig())
                 .thenReturn(ImmutableCentralStorageConfig.builder().build());
-        traceDao = new TraceDao(session, new AgentDao(session, clusterManager),
+        when(configRepository.getRollupConfigs()).thenReturn(RollupConfig.buildRollupConfigs());
+        traceDao = new TraceDao(session, statementScheduler,
+                new AgentDao(session, statementScheduler, clusterManager),
                 mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
                 mock(TraceAttributeNameDao.class), configRepository, Clock.systemClock());
     }
 
     @AfterClass
     public static void tearDown() throws Exception {
+        statementScheduler.close();
         clusterManager.close();
         session.close();
         cluster.close();
@@ -216,4 +227,96 @@ public class TraceDaoIT {
         // then
         assertThat(queryResult.records()).isEmpty();
     }
+
+    @Test
+    public void shouldReadErrorMessagesAfterRollup() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        trace = trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setError(Trace.Error.newBuilder()
+                                .setMessage("test error message")))
+                .build();
+        traceDao.store(AGENT_ID, trace);
+        traceDao.rollup(AGENT_ROLLUP);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(300000)
+                .build();
+        ErrorMessageFilter filter = ImmutableErrorMessageFilter.builder()
+                .addIncludes("error")
+                .build();
+
+        // when
+        ErrorMessageResult result =
+                traceDao.readErrorMessages(AGENT_ROLLUP, query, filter, 60000, 10);
+
+        // then
+        assertThat(result.points()).hasSize(1);
+        assertThat(result.points().get(0).captureTime()).isEqualTo(60000);
+        assertThat(result.points().get(0).errorCount()).isEqualTo(1);
+        assertThat(result.counts().records()).hasSize(1);
+        assertThat(result.counts().records().get(0).message()).isEqualTo("test error message");
+        assertThat(result.counts().records().get(0).count()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReadErrorMessagesBeforeRollup() throws Exception {
+        // given
+        String agentId = "before-rollup";
+        long captureTime = System.currentTimeMillis();
+        Trace trace = TraceTestData.createTrace();
+        trace = trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setCaptureTime(captureTime)
+                        .setError(Trace.Error.newBuilder()
+                                .setMessage("test error message")))
+                .build();
+        traceDao.store(agentId, trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(captureTime - 3600000)
+                .to(captureTime + 3600000)
+                .build();
+        ErrorMessageFilter filter = ImmutableErrorMessageFilter.builder()
+                .addIncludes("error")
+                .build();
+
+        // when
+        ErrorMessageResult result =
+                traceDao.readErrorMessages(agentId, query, filter, 3600000, 10);
+
+        // then
+        assertThat(result.points()).hasSize(1);
+        assertThat(result.points().get(0).errorCount()).isEqualTo(1);
+        assertThat(result.counts().records()).hasSize(1);
+        assertThat(result.counts().records().get(0).message()).isEqualTo("test error message");
+    }
+
+    @Test
+    public void shouldWriteOneNeedsRollupPerIntervalAndTransaction() throws Exception {
+        // given
+        String agentId = "needs-rollup";
+        Trace trace = TraceTestData.createTrace();
+        Trace.Header header = trace.getHeader().toBuilder()
+                .setError(Trace.Error.newBuilder()
+                        .setMessage("test error message"))
+                .build();
+
+        // when
+        traceDao.store(agentId, trace.toBuilder()
+                .setId("abc1")
+                .setHeader(header)
+                .build());
+        traceDao.store(agentId, trace.toBuilder()
+                .setId("abc2")
+                .setHeader(header)
+                .build());
+
+        // then
+        ResultSet results = session.execute("select uniqueness from"
+                + " trace_error_message_needs_rollup_0 where agent_rollup = ?", agentId);
+        assertThat(results.all()).hasSize(1);
+    }
 }
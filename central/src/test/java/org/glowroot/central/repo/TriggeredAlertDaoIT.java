@@ -24,6 +24,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Sessions;
 import org.glowroot.common.repo.TriggeredAlertRepository.TriggeredAlert;
 
@@ -35,6 +36,7 @@ public class TriggeredAlertDaoIT {
 
     private static Cluster cluster;
     private static Session session;
+    private static ClusterManager clusterManager;
     private static TriggeredAlertDao triggeredAlertDao;
 
     @BeforeClass
@@ -45,11 +47,12 @@ public class TriggeredAlertDaoIT {
         Sessions.createKeyspaceIfNotExists(session, "glowroot_unit_tests");
         session.execute("use glowroot_unit_tests");
 
-        triggeredAlertDao = new TriggeredAlertDao(session);
+        clusterManager = ClusterManager.create();
     }
 
     @AfterClass
     public static void tearDown() throws Exception {
+        clusterManager.close();
         session.close();
         cluster.close();
         SharedSetupRunListener.stopCassandra();
@@ -58,6 +61,8 @@ public class TriggeredAlertDaoIT {
     @Before
     public void beforeEach() {
         session.execute("truncate triggered_alert");
+        // new instance so that the triggered alert cache doesn't carry over between tests
+        triggeredAlertDao = new TriggeredAlertDao(session, clusterManager);
     }
 
     @Test
@@ -72,6 +77,14 @@ public class TriggeredAlertDaoIT {
         assertThat(triggeredAlertDao.exists(AGENT_ID, "2222")).isTrue();
     }
 
+    @Test
+    public void shouldExistAfterInsertWhenAlreadyRead() throws Exception {
+        assertThat(triggeredAlertDao.exists(AGENT_ID, "2222")).isFalse();
+        triggeredAlertDao.insert(AGENT_ID, "2222");
+        assertThat(triggeredAlertDao.exists(AGENT_ID, "2222")).isTrue();
+        assertThat(triggeredAlertDao.read(AGENT_ID)).containsExactly("2222");
+    }
+
     @Test
     public void shouldNotExistAfterDelete() throws Exception {
         triggeredAlertDao.insert(AGENT_ID, "3333");
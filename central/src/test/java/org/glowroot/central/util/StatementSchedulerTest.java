@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.BusyPoolException;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AbstractFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class StatementSchedulerTest {
+
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("localhost", 9042);
+
+    private Session session;
+    private List<TestResultSetFuture> driverFutures;
+    private long tick;
+    private Ticker ticker;
+
+    @Before
+    public void beforeEach() {
+        session = mock(Session.class);
+        driverFutures = Lists.newArrayList();
+        when(session.executeAsync(any(Statement.class))).thenAnswer(invocation -> {
+            TestResultSetFuture future = new TestResultSetFuture();
+            driverFutures.add(future);
+            return future;
+        });
+        ticker = new Ticker() {
+            @Override
+            public long read() {
+                return tick;
+            }
+        };
+    }
+
+    @Test
+    public void shouldQueueStatementsOverLimit() {
+        // given
+        StatementScheduler statementScheduler =
+                new StatementScheduler(session, 8, 100, 1000, ticker, false);
+
+        // when
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            futures.add(statementScheduler.executeAsync(mock(Statement.class)));
+        }
+
+        // then
+        assertThat(driverFutures).hasSize(8);
+        assertThat(statementScheduler.getInFlightCount()).isEqualTo(8);
+        assertThat(statementScheduler.getQueueDepth()).isEqualTo(2);
+
+        // and when
+        ResultSet resultSet = mock(ResultSet.class);
+        driverFutures.get(0).set(resultSet);
+
+        // then
+        assertThat(futures.get(0).getUninterruptibly()).isSameAs(resultSet);
+        assertThat(driverFutures).hasSize(9);
+        assertThat(statementScheduler.getInFlightCount()).isEqualTo(8);
+        assertThat(statementScheduler.getQueueDepth()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldHalveLimitOnOverloadOncePerRoundTrip() {
+        // given
+        StatementScheduler statementScheduler =
+                new StatementScheduler(session, 1024, 100, 1000, ticker, false);
+        tick = 1;
+        statementScheduler.executeAsync(mock(Statement.class));
+        statementScheduler.executeAsync(mock(Statement.class));
+
+        // when
+        tick = 2;
+        driverFutures.get(0).setException(new BusyPoolException(ADDRESS, 4096));
+        driverFutures.get(1).setException(new BusyPoolException(ADDRESS, 4096));
+
+        // then
+        assertThat(statementScheduler.getConcurrencyLimit()).isEqualTo(32);
+        assertThat(statementScheduler.getOverloadCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldHalveLimitOnHighLatency() {
+        // given
+        StatementScheduler statementScheduler =
+                new StatementScheduler(session, 1024, 100, 1000, ticker, false);
+        tick = 1;
+        statementScheduler.executeAsync(mock(Statement.class));
+
+        // when
+        tick += TimeUnit.SECONDS.toNanos(2);
+        driverFutures.get(0).set(mock(ResultSet.class));
+
+        // then
+        assertThat(statementScheduler.getConcurrencyLimit()).isEqualTo(32);
+        assertThat(statementScheduler.getOverloadCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotHalveLimitOnNonOverloadFailure() {
+        // given
+        StatementScheduler statementScheduler =
+                new StatementScheduler(session, 1024, 100, 1000, ticker, false);
+        tick = 1;
+        ResultSetFuture future = statementScheduler.executeAsync(mock(Statement.class));
+
+        // when
+        driverFutures.get(0).setException(new InvalidQueryException("A test"));
+
+        // then
+        assertThat(statementScheduler.getConcurrencyLimit()).isEqualTo(64);
+        Exception exception = null;
+        try {
+            future.getUninterruptibly();
+        } catch (InvalidQueryException e) {
+            exception = e;
+        }
+        assertThat(exception).hasMessage("A test");
+    }
+
+    @Test
+    public void shouldIncreaseLimitAfterRoundTrip() {
+        // given
+        StatementScheduler statementScheduler =
+                new StatementScheduler(session, 1024, 100, 1000, ticker, false);
+        for (int i = 0; i < 64; i++) {
+            statementScheduler.executeAsync(mock(Statement.class));
+        }
+
+        // when
+        for (int i = 0; i < 64; i++) {
+            driverFutures.get(i).set(mock(ResultSet.class));
+        }
+
+        // then
+        assertThat(statementScheduler.getConcurrencyLimit()).isEqualTo(64);
+        assertThat(statementScheduler.getInFlightCount()).isEqualTo(0);
+
+        // and when
+        for (int i = 0; i < 2; i++) {
+            statementScheduler.executeAsync(mock(Statement.class));
+        }
+        driverFutures.get(64).set(mock(ResultSet.class));
+        driverFutures.get(65).set(mock(ResultSet.class));
+
+        // then
+        assertThat(statementScheduler.getConcurrencyLimit()).isEqualTo(65);
+    }
+
+    @Test
+    public void shouldNotExecuteCancelledQueuedStatement() {
+        // given
+        StatementScheduler statementScheduler =
+                new StatementScheduler(session, 8, 100, 1000, ticker, false);
+        for (int i = 0; i < 8; i++) {
+            statementScheduler.executeAsync(mock(Statement.class));
+        }
+        ResultSetFuture queued = statementScheduler.executeAsync(mock(Statement.class));
+
+        // when
+        queued.cancel(true);
+        driverFutures.get(0).set(mock(ResultSet.class));
+
+        // then
+        assertThat(driverFutures).hasSize(8);
+        assertThat(statementScheduler.getInFlightCount()).isEqualTo(7);
+        assertThat(statementScheduler.getQueueDepth()).isEqualTo(0);
+    }
+
+    private static class TestResultSetFuture extends AbstractFuture<ResultSet>
+            implements ResultSetFuture {
+
+        @Override
+        public boolean set(ResultSet value) {
+            return super.set(value);
+        }
+
+        @Override
+        public boolean setException(Throwable throwable) {
+            return super.setException(throwable);
+        }
+
+        @Override
+        public ResultSet getUninterruptibly() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ResultSet getUninterruptibly(long timeout, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimeSeriesCodecTest {
+
+    @Test
+    public void shouldRoundTripSingleValue() {
+        // given
+        List<GaugeValue> gaugeValues = ImmutableList.of(createGaugeValue(60000, 1.5, 12));
+
+        // when
+        List<GaugeValue> decoded = TimeSeriesCodec.decode(TimeSeriesCodec.encode(gaugeValues));
+
+        // then
+        assertThat(decoded).isEqualTo(gaugeValues);
+    }
+
+    @Test
+    public void shouldCompressEvenlySpacedSlowlyChangingValues() {
+        // given
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        for (int i = 0; i < 60; i++) {
+            gaugeValues.add(createGaugeValue(1500000000000L + i * 60000, 1000 + i % 3, 12));
+        }
+
+        // when
+        ByteBuffer encoded = TimeSeriesCodec.encode(gaugeValues);
+        List<GaugeValue> decoded = TimeSeriesCodec.decode(encoded);
+
+        // then
+        assertThat(decoded).isEqualTo(gaugeValues);
+        // raw is 24 bytes per value (capture time, value and weight)
+        assertThat(encoded.remaining()).isLessThan(60 * 24 / 4);
+    }
+
+    @Test
+    public void shouldRoundTripIrregularValues() {
+        // given
+        Random random = new Random(0);
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        long captureTime = 0;
+        long[] gaps = {1, 64, 65, 256, 257, 2048, 2049, 100000, 60000, 60000};
+        for (int i = 0; i < 500; i++) {
+            captureTime += gaps[random.nextInt(gaps.length)];
+            double value;
+            switch (random.nextInt(5)) {
+                case 0:
+                    value = 0;
+                    break;
+                case 1:
+                    value = -random.nextDouble();
+                    break;
+                case 2:
+                    value = Double.NaN;
+                    break;
+                case 3:
+                    value = Double.MAX_VALUE;
+                    break;
+                default:
+                    value = random.nextLong();
+            }
+            long weight = random.nextBoolean() ? 1 : random.nextLong();
+            gaugeValues.add(createGaugeValue(captureTime, value, weight));
+        }
+
+        // when
+        List<GaugeValue> decoded = TimeSeriesCodec.decode(TimeSeriesCodec.encode(gaugeValues));
+
+        // then
+        assertThat(decoded).isEqualTo(gaugeValues);
+    }
+
+    private static GaugeValue createGaugeValue(long captureTime, double value, long weight) {
+        return GaugeValue.newBuilder()
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(weight)
+                .build();
+    }
+}
@@ -26,4 +26,6 @@ public interface ConfigDefaults {
     int MAX_AGGREGATE_TRANSACTIONS_PER_TYPE = 500;
     int MAX_AGGREGATE_QUERIES_PER_TYPE = 500;
     int MAX_AGGREGATE_SERVICE_CALLS_PER_TYPE = 500;
+
+    int AGGREGATION_THREADS = 1;
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,6 +20,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.zip.DataFormatException;
 
+import javax.annotation.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
 import org.HdrHistogram.Histogram;
@@ -33,18 +35,38 @@ public class LazyHistogram {
     private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
     private static final int MAX_VALUES = 1024;
 
+    // when non-zero (e.g. 0.01), larger numbers of values are tracked using LogBucketHistogram with
+    // this relative accuracy instead of using HdrHistogram, which has a much smaller (and fixed)
+    // footprint and is cheaper to record into and to merge, at the cost of precision
+    //
+    // HdrHistogram and LogBucketHistogram encoded histograms can be merged together (in which case
+    // the result is a LogBucketHistogram), so this can be changed at any time
+    private final double relativeAccuracy;
+
     private long[] values = new long[8];
     private int size;
     private boolean sorted;
 
-    private @MonotonicNonNull Histogram histogram;
+    private @Nullable Histogram histogram;
+    private @MonotonicNonNull LogBucketHistogram logBucketHistogram;
 
-    public LazyHistogram() {}
+    public LazyHistogram() {
+        this(0);
+    }
+
+    // relative accuracy outside of (0, 1) uses HdrHistogram
+    public LazyHistogram(double relativeAccuracy) {
+        this.relativeAccuracy =
+                relativeAccuracy > 0 && relativeAccuracy < 1 ? relativeAccuracy : 0;
+    }
 
     // special constructor, histogram created this way cannot be further mutated
     public LazyHistogram(Aggregate.Histogram hist) {
+        relativeAccuracy = 0;
         ByteString encodedBytes = hist.getEncodedBytes();
-        if (encodedBytes.isEmpty()) {
+        if (hist.hasLogBuckets()) {
+            logBucketHistogram = new LogBucketHistogram(hist.getLogBuckets());
+        } else if (encodedBytes.isEmpty()) {
             List<Long> orderedRawValues = hist.getOrderedRawValueList();
             values = new long[orderedRawValues.size()];
             for (int i = 0; i < values.length; i++) {
@@ -58,7 +80,9 @@ public class LazyHistogram {
 
     public Aggregate.Histogram toProto(ScratchBuffer scratchBuffer) {
         Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
-        if (histogram == null) {
+        if (logBucketHistogram != null) {
+            builder.setLogBuckets(logBucketHistogram.toProto());
+        } else if (histogram == null) {
             if (!sorted) {
                 // sort values before storing so don't have to sort each time later when calculating
                 // percentiles
@@ -80,32 +104,52 @@ public class LazyHistogram {
 
     public void merge(Aggregate.Histogram toBeMergedHistogram) throws DataFormatException {
         ByteString encodedBytes = toBeMergedHistogram.getEncodedBytes();
-        if (encodedBytes.isEmpty()) {
+        if (toBeMergedHistogram.hasLogBuckets()) {
+            Aggregate.Histogram.LogBuckets logBuckets = toBeMergedHistogram.getLogBuckets();
+            convertToLogBucketHistogram(logBuckets.getRelativeAccuracy())
+                    .merge(logBuckets);
+        } else if (encodedBytes.isEmpty()) {
             for (long rawValue : toBeMergedHistogram.getOrderedRawValueList()) {
                 add(rawValue);
             }
         } else {
-            if (histogram == null) {
-                convertValuesToHistogram();
+            Histogram toBeMergedHdrHistogram =
+                    Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
+            if (logBucketHistogram != null) {
+                logBucketHistogram.add(toBeMergedHdrHistogram);
+            } else {
+                if (histogram == null) {
+                    convertValuesToHistogram();
+                }
+                histogram.add(toBeMergedHdrHistogram);
             }
-            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
         }
     }
 
     public void merge(LazyHistogram toBeMergedHistogram) {
-        if (toBeMergedHistogram.histogram == null) {
+        LogBucketHistogram toBeMergedLogBucketHistogram = toBeMergedHistogram.logBucketHistogram;
+        Histogram toBeMergedHdrHistogram = toBeMergedHistogram.histogram;
+        if (toBeMergedLogBucketHistogram != null) {
+            convertToLogBucketHistogram(toBeMergedLogBucketHistogram.getRelativeAccuracy())
+                    .merge(toBeMergedLogBucketHistogram);
+        } else if (toBeMergedHdrHistogram == null) {
             for (int i = 0; i < toBeMergedHistogram.size; i++) {
                 add(toBeMergedHistogram.values[i]);
             }
+        } else if (logBucketHistogram != null) {
+            logBucketHistogram.add(toBeMergedHdrHistogram);
         } else {
             if (histogram == null) {
                 convertValuesToHistogram();
             }
-            histogram.add(toBeMergedHistogram.histogram);
+            histogram.add(toBeMergedHdrHistogram);
         }
     }
 
     public long getValueAtPercentile(double percentile) {
+        if (logBucketHistogram != null) {
+            return logBucketHistogram.getValueAtPercentile(percentile);
+        }
         if (histogram == null) {
             if (size == 0) {
                 // this is consistent with HdrHistogram behavior
@@ -126,7 +170,9 @@ public class LazyHistogram {
     @VisibleForTesting
     public void add(long value) {
         ensureCapacity(size + 1);
-        if (histogram != null) {
+        if (logBucketHistogram != null) {
+            logBucketHistogram.add(value);
+        } else if (histogram != null) {
             histogram.recordValue(value);
         } else {
             values[size++] = value;
@@ -135,11 +181,15 @@ public class LazyHistogram {
     }
 
     private void ensureCapacity(int capacity) {
-        if (histogram != null) {
+        if (histogram != null || logBucketHistogram != null) {
             return;
         }
         if (capacity > MAX_VALUES) {
-            convertValuesToHistogram();
+            if (relativeAccuracy > 0) {
+                convertToLogBucketHistogram(relativeAccuracy);
+            } else {
+                convertValuesToHistogram();
+            }
             return;
         }
         if (capacity > values.length) {
@@ -161,6 +211,27 @@ public class LazyHistogram {
         values = new long[0];
     }
 
+    // the configured relative accuracy takes precedence, and otherwise the relative accuracy of
+    // the log bucket histogram being merged is used
+    @EnsuresNonNull("logBucketHistogram")
+    private LogBucketHistogram convertToLogBucketHistogram(double defaultRelativeAccuracy) {
+        if (logBucketHistogram != null) {
+            return logBucketHistogram;
+        }
+        logBucketHistogram = new LogBucketHistogram(
+                relativeAccuracy > 0 ? relativeAccuracy : defaultRelativeAccuracy);
+        if (histogram == null) {
+            for (int i = 0; i < size; i++) {
+                logBucketHistogram.add(values[i]);
+            }
+            values = new long[0];
+        } else {
+            logBucketHistogram.add(histogram);
+            histogram = null;
+        }
+        return logBucketHistogram;
+    }
+
     private void sortValues() {
         Arrays.sort(values, 0, size);
         sorted = true;
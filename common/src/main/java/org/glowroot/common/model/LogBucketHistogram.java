@@ -0,0 +1,295 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// histogram with fixed relative accuracy, using logarithmically sized buckets (same approach as
+// DDSketch), so that recording a value does not allocate (except when the range of recorded values
+// grows) and merging is bucket-wise addition
+//
+// the number of buckets is capped, after which each pair of adjacent buckets is merged together,
+// which roughly doubles the relative error across all percentiles (with 1% relative accuracy, the
+// cap covers more than 17 orders of magnitude, so this is not expected to happen in practice)
+class LogBucketHistogram {
+
+    @VisibleForTesting
+    static final int MAX_BUCKETS = 2048;
+
+    private static final int INITIAL_BUCKETS = 64;
+
+    // these change when adjacent buckets are merged (see collapse())
+    private double relativeAccuracy;
+    private double gamma;
+    private double multiplier;
+    private int collapseCount;
+
+    private long[] counts;
+    // bucket index of counts[0]
+    private int offset;
+
+    // count of values less than 1
+    private long zeroCount;
+    private long totalCount;
+
+    LogBucketHistogram(double relativeAccuracy) {
+        this.relativeAccuracy = relativeAccuracy;
+        gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        multiplier = 1 / Math.log(gamma);
+        counts = new long[0];
+    }
+
+    // special constructor, to avoid re-indexing when decoding
+    LogBucketHistogram(Aggregate.Histogram.LogBuckets logBuckets) {
+        this(logBuckets.getRelativeAccuracy());
+        List<Long> bucketCounts = logBuckets.getBucketCountList();
+        counts = new long[Math.max(bucketCounts.size(), INITIAL_BUCKETS)];
+        offset = logBuckets.getFirstBucketIndex();
+        for (int i = 0; i < bucketCounts.size(); i++) {
+            long count = bucketCounts.get(i);
+            counts[i] = count;
+            totalCount += count;
+        }
+        zeroCount = logBuckets.getZeroCount();
+        totalCount += zeroCount;
+    }
+
+    double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    long getTotalCount() {
+        return totalCount;
+    }
+
+    void add(long value) {
+        add(value, 1);
+    }
+
+    void add(Histogram histogram) {
+        for (HistogramIterationValue value : histogram.recordedValues()) {
+            add(value.getValueIteratedTo(), value.getCountAtValueIteratedTo());
+        }
+    }
+
+    void merge(LogBucketHistogram histogram) {
+        if (histogram.relativeAccuracy == relativeAccuracy) {
+            int initialCollapseCount = collapseCount;
+            for (int i = 0; i < histogram.counts.length; i++) {
+                long count = histogram.counts[i];
+                if (count != 0) {
+                    // position needs to be computed first, since it can replace counts
+                    int position = getPosition(getCollapsedIndex(histogram.offset + i,
+                            collapseCount - initialCollapseCount));
+                    counts[position] += count;
+                }
+            }
+            zeroCount += histogram.zeroCount;
+            totalCount += histogram.totalCount;
+        } else {
+            for (int i = 0; i < histogram.counts.length; i++) {
+                long count = histogram.counts[i];
+                if (count != 0) {
+                    add(histogram.getValue(histogram.offset + i), count);
+                }
+            }
+            add(0, histogram.zeroCount);
+        }
+    }
+
+    void merge(Aggregate.Histogram.LogBuckets logBuckets) {
+        if (logBuckets.getRelativeAccuracy() == relativeAccuracy) {
+            int firstBucketIndex = logBuckets.getFirstBucketIndex();
+            List<Long> bucketCounts = logBuckets.getBucketCountList();
+            int initialCollapseCount = collapseCount;
+            for (int i = 0; i < bucketCounts.size(); i++) {
+                long count = bucketCounts.get(i);
+                if (count != 0) {
+                    // position needs to be computed first, since it can replace counts
+                    int position = getPosition(getCollapsedIndex(firstBucketIndex + i,
+                            collapseCount - initialCollapseCount));
+                    counts[position] += count;
+                    totalCount += count;
+                }
+            }
+            zeroCount += logBuckets.getZeroCount();
+            totalCount += logBuckets.getZeroCount();
+        } else {
+            merge(new LogBucketHistogram(logBuckets));
+        }
+    }
+
+    long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            // this is consistent with HdrHistogram behavior
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(percentile * totalCount / 100));
+        long cumulativeCount = zeroCount;
+        if (cumulativeCount >= countAtPercentile) {
+            return 0;
+        }
+        int lastNonZeroPosition = 0;
+        for (int i = 0; i < counts.length; i++) {
+            long count = counts[i];
+            if (count == 0) {
+                continue;
+            }
+            cumulativeCount += count;
+            if (cumulativeCount >= countAtPercentile) {
+                return getValue(offset + i);
+            }
+            lastNonZeroPosition = i;
+        }
+        // only reached due to floating point rounding of countAtPercentile
+        return getValue(offset + lastNonZeroPosition);
+    }
+
+    Aggregate.Histogram.LogBuckets toProto() {
+        Aggregate.Histogram.LogBuckets.Builder builder = Aggregate.Histogram.LogBuckets.newBuilder()
+                .setRelativeAccuracy(relativeAccuracy)
+                .setZeroCount(zeroCount);
+        int firstNonZeroPosition = getFirstNonZeroPosition();
+        if (firstNonZeroPosition != -1) {
+            int lastNonZeroPosition = getLastNonZeroPosition();
+            builder.setFirstBucketIndex(offset + firstNonZeroPosition);
+            for (int i = firstNonZeroPosition; i <= lastNonZeroPosition; i++) {
+                builder.addBucketCount(counts[i]);
+            }
+        }
+        return builder.build();
+    }
+
+    private void add(long value, long count) {
+        if (value < 1) {
+            zeroCount += count;
+        } else {
+            // position needs to be computed first, since it can replace counts
+            int position = getPosition(getIndex(value));
+            counts[position] += count;
+        }
+        totalCount += count;
+    }
+
+    private int getIndex(long value) {
+        return (int) Math.ceil(Math.log(value) * multiplier);
+    }
+
+    // bucket index i covers values in (gamma^(i-1), gamma^i], and this value is within relative
+    // accuracy of both ends
+    private long getValue(int index) {
+        return Math.round(2 * Math.pow(gamma, index) / (gamma + 1));
+    }
+
+    // returns the position in counts for the bucket index, growing counts if necessary
+    private int getPosition(int index) {
+        if (counts.length == 0) {
+            counts = new long[INITIAL_BUCKETS];
+            offset = index - INITIAL_BUCKETS / 2;
+            return index - offset;
+        }
+        while (index < offset || index >= offset + counts.length) {
+            if (!grow(index)) {
+                collapse();
+                index = getCollapsedIndex(index, 1);
+            }
+        }
+        return index - offset;
+    }
+
+    // returns false if the non-empty buckets together with the bucket index would span more than
+    // MAX_BUCKETS
+    private boolean grow(int index) {
+        int low = index;
+        int high = index;
+        int firstNonZeroPosition = getFirstNonZeroPosition();
+        if (firstNonZeroPosition != -1) {
+            low = Math.min(low, offset + firstNonZeroPosition);
+            high = Math.max(high, offset + getLastNonZeroPosition());
+        }
+        int neededLength = high - low + 1;
+        if (neededLength > MAX_BUCKETS) {
+            return false;
+        }
+        int newLength = Math.min(MAX_BUCKETS, Math.max(counts.length * 2, neededLength));
+        resize(index < offset ? high - newLength + 1 : low, newLength);
+        return true;
+    }
+
+    private void resize(int newOffset, int newLength) {
+        long[] newCounts = new long[newLength];
+        for (int i = 0; i < counts.length; i++) {
+            long count = counts[i];
+            if (count != 0) {
+                newCounts[offset + i - newOffset] = count;
+            }
+        }
+        counts = newCounts;
+        offset = newOffset;
+    }
+
+    // merges each pair of adjacent buckets, so that the same range of values needs half as many
+    // buckets, by squaring gamma (bucket index i covers (gamma^(i-1), gamma^i], so buckets 2j - 1
+    // and 2j together cover exactly bucket j after squaring gamma)
+    private void collapse() {
+        int newOffset = getCollapsedIndex(offset, 1);
+        long[] newCounts = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            long count = counts[i];
+            if (count != 0) {
+                newCounts[getCollapsedIndex(offset + i, 1) - newOffset] += count;
+            }
+        }
+        counts = newCounts;
+        offset = newOffset;
+        gamma = gamma * gamma;
+        multiplier = 1 / Math.log(gamma);
+        relativeAccuracy = (gamma - 1) / (gamma + 1);
+        collapseCount++;
+    }
+
+    // ceil(index / 2) applied the given number of times
+    private static int getCollapsedIndex(int index, int times) {
+        for (int i = 0; i < times; i++) {
+            index = (index + 1) >> 1;
+        }
+        return index;
+    }
+
+    private int getFirstNonZeroPosition() {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int getLastNonZeroPosition() {
+        for (int i = counts.length - 1; i >= 0; i--) {
+            if (counts[i] != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
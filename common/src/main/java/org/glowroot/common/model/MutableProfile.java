@@ -16,9 +16,7 @@
 package org.glowroot.common.model;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -29,25 +27,51 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.PeekingIterator;
-import com.google.common.collect.Queues;
 import com.google.common.io.CharStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.ObjectMappers;
-import org.glowroot.common.util.Traverser;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
+// profile tree nodes are stored in a single int array (fixed number of ints per node, indexed by
+// node id) as opposed to a node object with a child list per node, and child nodes are found using
+// a single hash index keyed by parent node id and frame, which keeps merging of large profiles
+// (e.g. hundreds of aggregate profiles for a single chart) fast and compact
+//
+// the fields of a node are packed together (as opposed to a separate array per field), since
+// matching a child node reads all of its fields
 public class MutableProfile {
 
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
+    private static final Profile.LeafThreadState[] leafThreadStates =
+            Profile.LeafThreadState.values();
+
+    // synthetic root node, whose child nodes are the profile's root nodes
+    private static final int ROOT = 0;
+    // the synthetic root node is never a child or sibling, so its id can be used as the absence of
+    // a child or sibling node
+    private static final int NO_NODE = 0;
+
+    // node fields
+    private static final int PACKAGE_NAME_INDEX = 0;
+    private static final int CLASS_NAME_INDEX = 1;
+    private static final int METHOD_NAME_INDEX = 2;
+    private static final int FILE_NAME_INDEX = 3;
+    private static final int LINE_NUMBER = 4;
+    private static final int LEAF_THREAD_STATE = 5;
+    private static final int PARENT = 6;
+    private static final int FIRST_CHILD = 7;
+    private static final int LAST_CHILD = 8;
+    private static final int NEXT_SIBLING = 9;
+    private static final int NODE_SIZE = 10;
+
+    private static final int INITIAL_NODE_CAPACITY = 16;
+
     // TODO use primitive maps, e.g. from GS collections
     private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
     private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
@@ -59,31 +83,148 @@ public class MutableProfile {
     private final List<String> methodNames = Lists.newArrayList();
     private final List<String> fileNames = Lists.newArrayList();
 
-    private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    // nodes are never removed from these arrays, filtering and truncating branches only unlink
+    // nodes from the tree
+    private int nodeCount = 1;
+    private int[] nodes = new int[INITIAL_NODE_CAPACITY * NODE_SIZE];
+    private long[] nodeSampleCounts = new long[INITIAL_NODE_CAPACITY];
+    private long[] nodeEllipsedSampleCounts = new long[INITIAL_NODE_CAPACITY];
+
+    // open addressing hash table of node ids (NO_NODE for empty slots)
+    private int[] childNodeIndex = new int[INITIAL_NODE_CAPACITY * 2];
+    // set when nodes are unlinked, index is then rebuilt from the tree on next lookup
+    private boolean childNodeIndexStale;
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
 
-    // this method is not used that often (only for traces with > 20 stack trace samples) so ok
-    // that it does not have most optimal implementation (converts unnecessarily to profile tree)
     public void merge(MutableProfile profile) {
-        merge(profile.toProto());
+        int[] packageNameIndexMapping =
+                makeIndexMapping(profile.packageNames, packageNameIndexes, packageNames);
+        int[] classNameIndexMapping =
+                makeIndexMapping(profile.classNames, classNameIndexes, classNames);
+        int[] methodNameIndexMapping =
+                makeIndexMapping(profile.methodNames, methodNameIndexes, methodNames);
+        int[] fileNameIndexMapping =
+                makeIndexMapping(profile.fileNames, fileNameIndexes, fileNames);
+        // destination node ids by depth
+        int[] destinationNodes = new int[INITIAL_NODE_CAPACITY];
+        for (int rootNode = profile.get(ROOT, FIRST_CHILD); rootNode != NO_NODE;
+                rootNode = profile.get(rootNode, NEXT_SIBLING)) {
+            int node = rootNode;
+            int depth = 0;
+            while (true) {
+                int parentNode = depth == 0 ? ROOT : destinationNodes[depth - 1];
+                int destinationNode = getOrAddChildNode(parentNode,
+                        packageNameIndexMapping[profile.get(node, PACKAGE_NAME_INDEX)],
+                        classNameIndexMapping[profile.get(node, CLASS_NAME_INDEX)],
+                        methodNameIndexMapping[profile.get(node, METHOD_NAME_INDEX)],
+                        fileNameIndexMapping[profile.get(node, FILE_NAME_INDEX)],
+                        profile.get(node, LINE_NUMBER), profile.get(node, LEAF_THREAD_STATE));
+                nodeSampleCounts[destinationNode] += profile.nodeSampleCounts[node];
+                if (depth == destinationNodes.length) {
+                    destinationNodes = Arrays.copyOf(destinationNodes, depth * 2);
+                }
+                destinationNodes[depth] = destinationNode;
+                // move to next node in pre-order, staying within the root node's subtree
+                if (profile.get(node, FIRST_CHILD) != NO_NODE) {
+                    node = profile.get(node, FIRST_CHILD);
+                    depth++;
+                    continue;
+                }
+                while (node != rootNode && profile.get(node, NEXT_SIBLING) == NO_NODE) {
+                    node = profile.get(node, PARENT);
+                    depth--;
+                }
+                if (node == rootNode) {
+                    break;
+                }
+                node = profile.get(node, NEXT_SIBLING);
+            }
+        }
     }
 
     public void merge(Profile profile) {
-        Merger merger = new Merger(profile);
-        merger.merge(profile.getNodeList(), rootNodes);
+        int[] packageNameIndexMapping =
+                makeIndexMapping(profile.getPackageNameList(), packageNameIndexes, packageNames);
+        int[] classNameIndexMapping =
+                makeIndexMapping(profile.getClassNameList(), classNameIndexes, classNames);
+        int[] methodNameIndexMapping =
+                makeIndexMapping(profile.getMethodNameList(), methodNameIndexes, methodNames);
+        int[] fileNameIndexMapping =
+                makeIndexMapping(profile.getFileNameList(), fileNameIndexes, fileNames);
+        // destination node ids by depth
+        int[] destinationNodes = new int[INITIAL_NODE_CAPACITY];
+        for (Profile.ProfileNode flatNode : profile.getNodeList()) {
+            int depth = flatNode.getDepth();
+            int parentNode = depth == 0 ? ROOT : destinationNodes[depth - 1];
+            int destinationNode = getOrAddChildNode(parentNode,
+                    packageNameIndexMapping[flatNode.getPackageNameIndex()],
+                    classNameIndexMapping[flatNode.getClassNameIndex()],
+                    methodNameIndexMapping[flatNode.getMethodNameIndex()],
+                    fileNameIndexMapping[flatNode.getFileNameIndex()],
+                    flatNode.getLineNumber(), flatNode.getLeafThreadState().ordinal());
+            nodeSampleCounts[destinationNode] += flatNode.getSampleCount();
+            if (depth == destinationNodes.length) {
+                destinationNodes = Arrays.copyOf(destinationNodes, depth * 2);
+            }
+            destinationNodes[depth] = destinationNode;
+        }
     }
 
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
-        PeekingIterator<StackTraceElement> i =
-                Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
-        ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
-
-        boolean lookingForMatch = true;
-        while (i.hasNext()) {
-            StackTraceElement stackTraceElement = i.next();
+        merge(stackTraceElements.toArray(new StackTraceElement[stackTraceElements.size()]),
+                threadState, null);
+    }
+
+    // stack trace array is retained by the cache (if provided), so must not be modified afterwards
+    public void merge(StackTraceElement[] stackTrace, @Nullable Thread.State threadState,
+            @Nullable StackTraceCache cache) {
+        if (cache == null) {
+            mergeFrom(stackTrace, threadState, 0, ROOT, null);
+            return;
+        }
+        if (cache.profile != this) {
+            cache.reset(this);
+        }
+        int depth = stackTrace.length;
+        int reusableDepth = getReusableDepth(stackTrace, threadState, cache);
+        int[] path = cache.ensurePathCapacity(depth);
+        for (int i = 0; i < reusableDepth; i++) {
+            nodeSampleCounts[path[i]]++;
+        }
+        mergeFrom(stackTrace, threadState, reusableDepth,
+                reusableDepth == 0 ? ROOT : path[reusableDepth - 1], path);
+        cache.stackTrace = stackTrace;
+        cache.threadState = threadState;
+    }
+
+    // returns the number of frames (from the root) whose nodes can be re-used from the previously
+    // merged stack trace
+    private static int getReusableDepth(StackTraceElement[] stackTrace,
+            @Nullable Thread.State threadState, StackTraceCache cache) {
+        StackTraceElement[] prevStackTrace = cache.stackTrace;
+        int depth = stackTrace.length;
+        int prevDepth = prevStackTrace.length;
+        int commonDepth = 0;
+        int maxCommonDepth = Math.min(depth, prevDepth);
+        while (commonDepth < maxCommonDepth && stackTrace[depth - 1 - commonDepth]
+                .equals(prevStackTrace[prevDepth - 1 - commonDepth])) {
+            commonDepth++;
+        }
+        if (commonDepth == depth && depth == prevDepth && threadState == cache.threadState) {
+            return depth;
+        }
+        // leaf nodes are distinct from non-leaf nodes (since leaf nodes capture thread state), so
+        // the leaf node of either stack trace cannot be re-used
+        return Math.max(Math.min(commonDepth, maxCommonDepth - 1), 0);
+    }
+
+    private void mergeFrom(StackTraceElement[] stackTrace, @Nullable Thread.State threadState,
+            int startDepth, int startParentNode, int /*@Nullable*/ [] path) {
+        int parentNode = startParentNode;
+        for (int depth = startDepth; depth < stackTrace.length; depth++) {
+            StackTraceElement stackTraceElement = stackTrace[stackTrace.length - 1 - depth];
             String fullClassName = stackTraceElement.getClassName();
             int index = fullClassName.lastIndexOf('.');
             String packageName;
@@ -103,81 +244,88 @@ public class MutableProfile {
             int fileNameIndex = getNameIndex(Strings.nullToEmpty(stackTraceElement.getFileName()),
                     fileNameIndexes, fileNames);
             int lineNumber = stackTraceElement.getLineNumber();
-            Profile.LeafThreadState leafThreadState =
-                    i.hasNext() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
-
-            ProfileNode node = null;
-            if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
-                }
-            }
-            if (node == null) {
-                lookingForMatch = false;
-                node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
-                        fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
+            Profile.LeafThreadState leafThreadState = depth == stackTrace.length - 1
+                    ? getThreadState(threadState) : Profile.LeafThreadState.NONE;
+
+            int node = getOrAddChildNode(parentNode, packageNameIndex, classNameIndex,
+                    methodNameIndex, fileNameIndex, lineNumber, leafThreadState.ordinal());
+            nodeSampleCounts[node]++;
+            if (path != null) {
+                path[depth] = node;
             }
-            node.sampleCount++;
-            lastMatchedNode = node;
-            mergeIntoNodes = lastMatchedNode.childNodes;
+            parentNode = node;
         }
     }
 
     public void filter(List<String> includes, List<String> excludes) {
         unfilteredSampleCount = getSampleCount();
+        // shared across filter texts, since text only depends on the node
+        String[] textUppers = new String[nodeCount];
+        boolean[] matched = new boolean[nodeCount];
         for (String include : includes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, include, false).traverse();
-                if (rootNode.matched) {
-                    new ProfileResetMatches(rootNode).traverse();
+            ProfileFilterer filterer = new ProfileFilterer(include, false, textUppers, matched);
+            int prevRootNode = NO_NODE;
+            for (int rootNode = get(ROOT, FIRST_CHILD); rootNode != NO_NODE;) {
+                int nextRootNode = get(rootNode, NEXT_SIBLING);
+                filterer.traverse(rootNode);
+                if (matched[rootNode]) {
+                    resetMatches(rootNode, matched);
+                    prevRootNode = rootNode;
                 } else {
-                    i.remove();
+                    unlinkChildNode(ROOT, prevRootNode, rootNode);
                 }
+                rootNode = nextRootNode;
             }
         }
         for (String exclude : excludes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, exclude, true).traverse();
-                if (rootNode.matched) {
-                    i.remove();
+            ProfileFilterer filterer = new ProfileFilterer(exclude, true, textUppers, matched);
+            int prevRootNode = NO_NODE;
+            for (int rootNode = get(ROOT, FIRST_CHILD); rootNode != NO_NODE;) {
+                int nextRootNode = get(rootNode, NEXT_SIBLING);
+                filterer.traverse(rootNode);
+                if (matched[rootNode]) {
+                    unlinkChildNode(ROOT, prevRootNode, rootNode);
+                } else {
+                    prevRootNode = rootNode;
                 }
+                rootNode = nextRootNode;
             }
         }
     }
 
     public void truncateBranches(int minSamples) {
-        Deque<ProfileNode> toBeVisited = new ArrayDeque<ProfileNode>();
-        for (ProfileNode rootNode : rootNodes) {
-            toBeVisited.add(rootNode);
-        }
-        ProfileNode node;
-        while ((node = toBeVisited.poll()) != null) {
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (childNode.sampleCount < minSamples) {
-                    i.remove();
+        int[] toBeVisited = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        for (int rootNode = get(ROOT, FIRST_CHILD); rootNode != NO_NODE;
+                rootNode = get(rootNode, NEXT_SIBLING)) {
+            toBeVisited[tail++] = rootNode;
+        }
+        while (head < tail) {
+            int node = toBeVisited[head++];
+            int prevChildNode = NO_NODE;
+            for (int childNode = get(node, FIRST_CHILD); childNode != NO_NODE;) {
+                int nextChildNode = get(childNode, NEXT_SIBLING);
+                if (nodeSampleCounts[childNode] < minSamples) {
+                    unlinkChildNode(node, prevChildNode, childNode);
                     // TODO capture sampleCount per timerName of non-ellipsed structure
                     // and use this in UI dropdown filter of timer names
                     // (currently sampleCount per timerName of ellipsed structure is used)
-                    node.ellipsedSampleCount += childNode.sampleCount;
+                    nodeEllipsedSampleCounts[node] += nodeSampleCounts[childNode];
                 } else {
-                    toBeVisited.add(childNode);
+                    toBeVisited[tail++] = childNode;
+                    prevChildNode = childNode;
                 }
+                childNode = nextChildNode;
             }
         }
     }
 
     public long getSampleCount() {
         long sampleCount = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            sampleCount += rootNode.sampleCount;
+        for (int rootNode = get(ROOT, FIRST_CHILD); rootNode != NO_NODE;
+                rootNode = get(rootNode, NEXT_SIBLING)) {
+            sampleCount += nodeSampleCounts[rootNode];
         }
         return sampleCount;
     }
@@ -191,16 +339,33 @@ public class MutableProfile {
     }
 
     public Profile toProto() {
-        List<Profile.ProfileNode> nodes = Lists.newArrayList();
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileNodeCollector(rootNode, nodes).traverse();
+        final List<Profile.ProfileNode> protoNodes = Lists.newArrayList();
+        NodeTraverser<RuntimeException> collector = new NodeTraverser<RuntimeException>() {
+            @Override
+            boolean visit(int node, int depth) {
+                protoNodes.add(Profile.ProfileNode.newBuilder()
+                        .setDepth(depth)
+                        .setPackageNameIndex(get(node, PACKAGE_NAME_INDEX))
+                        .setClassNameIndex(get(node, CLASS_NAME_INDEX))
+                        .setMethodNameIndex(get(node, METHOD_NAME_INDEX))
+                        .setFileNameIndex(get(node, FILE_NAME_INDEX))
+                        .setLineNumber(get(node, LINE_NUMBER))
+                        .setLeafThreadState(getLeafThreadState(node))
+                        .setSampleCount(nodeSampleCounts[node])
+                        .build());
+                return true;
+            }
+        };
+        for (int rootNode = get(ROOT, FIRST_CHILD); rootNode != NO_NODE;
+                rootNode = get(rootNode, NEXT_SIBLING)) {
+            collector.traverse(rootNode);
         }
         return Profile.newBuilder()
                 .addAllPackageName(packageNames)
                 .addAllClassName(classNames)
                 .addAllMethodName(methodNames)
                 .addAllFileName(fileNames)
-                .addAllNode(nodes)
+                .addAllNode(protoNodes)
                 .build();
     }
 
@@ -216,8 +381,10 @@ public class MutableProfile {
         jg.writeStartObject();
         jg.writeNumberField("unfilteredSampleCount", getUnfilteredSampleCount());
         jg.writeArrayFieldStart("rootNodes");
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileWriter(rootNode, jg).traverse();
+        ProfileWriter profileWriter = new ProfileWriter(jg);
+        for (int rootNode = get(ROOT, FIRST_CHILD); rootNode != NO_NODE;
+                rootNode = get(rootNode, NEXT_SIBLING)) {
+            profileWriter.traverse(rootNode);
         }
         jg.writeEndArray();
         jg.writeEndObject();
@@ -229,21 +396,195 @@ public class MutableProfile {
         jg.writeStartObject();
         jg.writeNumberField("totalSampleCount", getSampleCount());
         jg.writeArrayFieldStart("rootNodes");
-        int height = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            if (rootNode.sampleCount > rootNode.ellipsedSampleCount) {
-                FlameGraphWriter flameGraphWriter = new FlameGraphWriter(rootNode, jg);
-                flameGraphWriter.traverse();
-                height = Math.max(height, flameGraphWriter.height);
+        FlameGraphWriter flameGraphWriter = new FlameGraphWriter(jg);
+        for (int rootNode = get(ROOT, FIRST_CHILD); rootNode != NO_NODE;
+                rootNode = get(rootNode, NEXT_SIBLING)) {
+            if (nodeSampleCounts[rootNode] > nodeEllipsedSampleCounts[rootNode]) {
+                flameGraphWriter.traverse(rootNode);
             }
         }
         jg.writeEndArray();
-        jg.writeNumberField("height", height);
+        jg.writeNumberField("height", flameGraphWriter.height);
         jg.writeEndObject();
         jg.close();
         return sb.toString();
     }
 
+    private int getOrAddChildNode(int parentNode, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+        int firstChildNode = get(parentNode, FIRST_CHILD);
+        if (firstChildNode == NO_NODE) {
+            // no need to look up when there are no child nodes (e.g. when merging a new branch)
+            return addChildNode(parentNode, packageNameIndex, classNameIndex, methodNameIndex,
+                    fileNameIndex, lineNumber, leafThreadState);
+        }
+        if (firstChildNode == get(parentNode, LAST_CHILD)) {
+            // no need to look up when there is a single child node (which is the case for most
+            // nodes, since stack traces mostly share their frames closer to the root)
+            if (matches(firstChildNode, packageNameIndex, classNameIndex, methodNameIndex,
+                    fileNameIndex, lineNumber, leafThreadState)) {
+                return firstChildNode;
+            }
+            return addChildNode(parentNode, packageNameIndex, classNameIndex, methodNameIndex,
+                    fileNameIndex, lineNumber, leafThreadState);
+        }
+        if (childNodeIndexStale) {
+            rebuildChildNodeIndex(childNodeIndex.length);
+        }
+        int hash = hash(parentNode, packageNameIndex, classNameIndex, methodNameIndex,
+                fileNameIndex, lineNumber, leafThreadState);
+        int mask = childNodeIndex.length - 1;
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            int node = childNodeIndex[i];
+            if (node == NO_NODE) {
+                return addChildNode(parentNode, packageNameIndex, classNameIndex,
+                        methodNameIndex, fileNameIndex, lineNumber, leafThreadState);
+            }
+            if (get(node, PARENT) == parentNode && matches(node, packageNameIndex,
+                    classNameIndex, methodNameIndex, fileNameIndex, lineNumber, leafThreadState)) {
+                return node;
+            }
+        }
+    }
+
+    private boolean matches(int node, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+        int offset = node * NODE_SIZE;
+        // checking line number first since most likely to be different
+        return nodes[offset + LINE_NUMBER] == lineNumber
+                && nodes[offset + METHOD_NAME_INDEX] == methodNameIndex
+                && nodes[offset + CLASS_NAME_INDEX] == classNameIndex
+                && nodes[offset + PACKAGE_NAME_INDEX] == packageNameIndex
+                && nodes[offset + FILE_NAME_INDEX] == fileNameIndex
+                && nodes[offset + LEAF_THREAD_STATE] == leafThreadState;
+    }
+
+    private int addChildNode(int parentNode, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+        if (nodeCount == nodeSampleCounts.length) {
+            growNodeCapacity();
+        }
+        int node = nodeCount++;
+        set(node, PACKAGE_NAME_INDEX, packageNameIndex);
+        set(node, CLASS_NAME_INDEX, classNameIndex);
+        set(node, METHOD_NAME_INDEX, methodNameIndex);
+        set(node, FILE_NAME_INDEX, fileNameIndex);
+        set(node, LINE_NUMBER, lineNumber);
+        set(node, LEAF_THREAD_STATE, leafThreadState);
+        set(node, PARENT, parentNode);
+        if (get(parentNode, FIRST_CHILD) == NO_NODE) {
+            set(parentNode, FIRST_CHILD, node);
+        } else {
+            set(get(parentNode, LAST_CHILD), NEXT_SIBLING, node);
+        }
+        set(parentNode, LAST_CHILD, node);
+        // keep load factor at or below 0.5
+        if (nodeCount * 2 > childNodeIndex.length) {
+            rebuildChildNodeIndex(childNodeIndex.length * 2);
+        } else if (!childNodeIndexStale) {
+            insertIntoChildNodeIndex(childNodeIndex, node);
+        }
+        return node;
+    }
+
+    private void unlinkChildNode(int parentNode, int prevChildNode, int childNode) {
+        int nextChildNode = get(childNode, NEXT_SIBLING);
+        if (prevChildNode == NO_NODE) {
+            set(parentNode, FIRST_CHILD, nextChildNode);
+        } else {
+            set(prevChildNode, NEXT_SIBLING, nextChildNode);
+        }
+        if (get(parentNode, LAST_CHILD) == childNode) {
+            set(parentNode, LAST_CHILD, prevChildNode);
+        }
+        set(childNode, NEXT_SIBLING, NO_NODE);
+        childNodeIndexStale = true;
+    }
+
+    private void growNodeCapacity() {
+        int newCapacity = nodeSampleCounts.length * 2;
+        nodes = Arrays.copyOf(nodes, newCapacity * NODE_SIZE);
+        nodeSampleCounts = Arrays.copyOf(nodeSampleCounts, newCapacity);
+        nodeEllipsedSampleCounts = Arrays.copyOf(nodeEllipsedSampleCounts, newCapacity);
+    }
+
+    // only nodes that are still linked into the tree are indexed
+    private void rebuildChildNodeIndex(int capacity) {
+        final int[] index = new int[capacity];
+        NodeTraverser<RuntimeException> indexer = new NodeTraverser<RuntimeException>() {
+            @Override
+            boolean visit(int node, int depth) {
+                insertIntoChildNodeIndex(index, node);
+                return true;
+            }
+        };
+        for (int rootNode = get(ROOT, FIRST_CHILD); rootNode != NO_NODE;
+                rootNode = get(rootNode, NEXT_SIBLING)) {
+            indexer.traverse(rootNode);
+        }
+        childNodeIndex = index;
+        childNodeIndexStale = false;
+    }
+
+    private void insertIntoChildNodeIndex(int[] index, int node) {
+        int mask = index.length - 1;
+        int i = hash(get(node, PARENT), get(node, PACKAGE_NAME_INDEX), get(node, CLASS_NAME_INDEX),
+                get(node, METHOD_NAME_INDEX), get(node, FILE_NAME_INDEX), get(node, LINE_NUMBER),
+                get(node, LEAF_THREAD_STATE)) & mask;
+        while (index[i] != NO_NODE) {
+            i = (i + 1) & mask;
+        }
+        index[i] = node;
+    }
+
+    private void resetMatches(int node, final boolean[] matched) {
+        new NodeTraverser<RuntimeException>() {
+            @Override
+            boolean visit(int node, int depth) {
+                matched[node] = false;
+                return true;
+            }
+        }.traverse(node);
+    }
+
+    private Profile.LeafThreadState getLeafThreadState(int node) {
+        return leafThreadStates[get(node, LEAF_THREAD_STATE)];
+    }
+
+    private String getText(int node) {
+        String packageName = packageNames.get(get(node, PACKAGE_NAME_INDEX));
+        String className = classNames.get(get(node, CLASS_NAME_INDEX));
+        String fullClassName;
+        if (packageName.isEmpty()) {
+            fullClassName = className;
+        } else {
+            fullClassName = packageName + '.' + className;
+        }
+        return new StackTraceElement(fullClassName, methodNames.get(get(node, METHOD_NAME_INDEX)),
+                fileNames.get(get(node, FILE_NAME_INDEX)), get(node, LINE_NUMBER)).toString();
+    }
+
+    private int get(int node, int field) {
+        return nodes[node * NODE_SIZE + field];
+    }
+
+    private void set(int node, int field, int value) {
+        nodes[node * NODE_SIZE + field] = value;
+    }
+
+    private static int hash(int parentNode, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+        int hash = parentNode;
+        hash = 31 * hash + lineNumber;
+        hash = 31 * hash + methodNameIndex;
+        hash = 31 * hash + classNameIndex;
+        hash = 31 * hash + packageNameIndex;
+        hash = 31 * hash + fileNameIndex;
+        hash = 31 * hash + leafThreadState;
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
     private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
             List<String> names) {
         Integer index = nameIndexes.get(name);
@@ -278,18 +619,6 @@ public class MutableProfile {
         }
     }
 
-    private static boolean isMatch(ProfileNode profileNode, int packageNameIndex,
-            int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
-            Profile.LeafThreadState leafThreadState) {
-        // checking line number first since most likely to be different
-        return lineNumber == profileNode.lineNumber
-                && fileNameIndex == profileNode.fileNameIndex
-                && leafThreadState == profileNode.leafThreadState
-                && methodNameIndex == profileNode.methodNameIndex
-                && classNameIndex == profileNode.classNameIndex
-                && packageNameIndex == profileNode.packageNameIndex;
-    }
-
     private static int[] makeIndexMapping(List<String> toBeMergedNames,
             Map<String, Integer> existingIndexes, List<String> existingNames) {
         int[] indexMapping = new int[toBeMergedNames.size()];
@@ -308,227 +637,149 @@ public class MutableProfile {
         return indexMapping;
     }
 
-    private class ProfileNode {
-
-        private final int packageNameIndex;
-        private final int classNameIndex;
-        private final int methodNameIndex;
-        private final int fileNameIndex;
-        private final int lineNumber;
-        private final Profile.LeafThreadState leafThreadState;
-
-        private long sampleCount;
-
-        private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
-
-        // these fields are only used for filtering
-        private @Nullable String text;
-        private @Nullable String textUpper;
-        private boolean matched;
-        private long ellipsedSampleCount;
-
-        private ProfileNode(int packageNameIndex, int classNameIndex, int methodNameIndex,
-                int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
-            this.packageNameIndex = packageNameIndex;
-            this.classNameIndex = classNameIndex;
-            this.methodNameIndex = methodNameIndex;
-            this.fileNameIndex = fileNameIndex;
-            this.lineNumber = lineNumber;
-            this.leafThreadState = leafThreadState;
-        }
-
-        private String getText() {
-            if (text == null) {
-                String packageName = packageNames.get(packageNameIndex);
-                String className = classNames.get(classNameIndex);
-                String fullClassName;
-                if (packageName.isEmpty()) {
-                    fullClassName = className;
-                } else {
-                    fullClassName = packageName + '.' + className;
-                }
-                text = new StackTraceElement(fullClassName, methodNames.get(methodNameIndex),
-                        fileNames.get(fileNameIndex), lineNumber).toString();
-            }
-            return text;
-        }
-
-        private String getTextUpper() {
-            if (textUpper == null) {
-                textUpper = getText().toUpperCase(Locale.ENGLISH);
+    // retains the path of nodes for the previously merged stack trace of a single thread, so that
+    // only the frames that have changed since then need to be looked up and merged (the frames
+    // closer to the root, e.g. servlet container and framework frames, rarely change between
+    // samples)
+    //
+    // this is only intended for profiles that are being captured, since filtering and truncating
+    // branches would leave stale nodes in the path
+    public static class StackTraceCache {
+
+        private @Nullable MutableProfile profile;
+        private StackTraceElement[] stackTrace = new StackTraceElement[0];
+        private @Nullable Thread.State threadState;
+        private int[] path = new int[0];
+
+        private void reset(MutableProfile profile) {
+            this.profile = profile;
+            stackTrace = new StackTraceElement[0];
+            threadState = null;
+        }
+
+        private int[] ensurePathCapacity(int depth) {
+            if (path.length < depth) {
+                path = Arrays.copyOf(path, Math.max(depth, path.length * 2));
             }
-            return textUpper;
+            return path;
         }
     }
 
-    private class Merger {
-
-        private final int[] packageNameIndexMapping;
-        private final int[] classNameIndexMapping;
-        private final int[] methodNameIndexMapping;
-        private final int[] fileNameIndexMapping;
-
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
-
-        private Merger(Profile toBeMergedProfile) {
-            packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
-                    packageNameIndexes, packageNames);
-            classNameIndexMapping = makeIndexMapping(toBeMergedProfile.getClassNameList(),
-                    classNameIndexes, classNames);
-            methodNameIndexMapping = makeIndexMapping(toBeMergedProfile.getMethodNameList(),
-                    methodNameIndexes, methodNames);
-            fileNameIndexMapping = makeIndexMapping(toBeMergedProfile.getFileNameList(),
-                    fileNameIndexes, fileNames);
-        }
-
-        private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
-            destinationStack.push(destinationRootNodes);
-            PeekingIterator<Profile.ProfileNode> i =
-                    Iterators.peekingIterator(flatNodes.iterator());
-            while (i.hasNext()) {
-                Profile.ProfileNode flatNode = i.next();
-                int destinationDepth = destinationStack.size() - 1;
-                for (int j = 0; j < destinationDepth - flatNode.getDepth(); j++) {
-                    // TODO optimize: faster way to pop multiple elements at once
-                    destinationStack.pop();
-                }
-                ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
-                if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
-                    destinationStack.push(destinationNode.childNodes);
+    // iterative (pre-order and post-order) traversal, to avoid StackOverflowError on deep profiles
+    private abstract class NodeTraverser<E extends Exception> {
+
+        // returns false to skip the node's child nodes
+        abstract boolean visit(int node, int depth) throws E;
+
+        void revisitAfterChildren(@SuppressWarnings("unused") int node) throws E {}
+
+        void traverse(int startNode) throws E {
+            int node = startNode;
+            int depth = 0;
+            boolean visitChildren = visit(node, depth);
+            while (true) {
+                int firstChildNode = get(node, FIRST_CHILD);
+                if (visitChildren && firstChildNode != NO_NODE) {
+                    node = firstChildNode;
+                    depth++;
+                    visitChildren = visit(node, depth);
+                    continue;
                 }
-            }
-        }
-
-        private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
+                // done with node (and its child nodes), move on to next sibling or back up
+                while (true) {
+                    revisitAfterChildren(node);
+                    if (node == startNode) {
+                        return;
+                    }
+                    int nextSiblingNode = get(node, NEXT_SIBLING);
+                    if (nextSiblingNode != NO_NODE) {
+                        node = nextSiblingNode;
+                        visitChildren = visit(node, depth);
+                        break;
+                    }
+                    node = get(node, PARENT);
+                    depth--;
                 }
             }
-            // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
-            merge(toBeMergedNode, destinationNode);
-            return destinationNode;
-        }
-
-        private void merge(Profile.ProfileNode toBeMergedNode, ProfileNode destinationNode) {
-            destinationNode.sampleCount += toBeMergedNode.getSampleCount();
-        }
-    }
-
-    // using Traverser to avoid StackOverflowError caused by a recursive algorithm
-    private static class ProfileNodeCollector extends Traverser<ProfileNode, RuntimeException> {
-
-        private final List<Profile.ProfileNode> nodes;
-
-        public ProfileNodeCollector(ProfileNode rootNode, List<Profile.ProfileNode> nodes) {
-            super(rootNode);
-            this.nodes = nodes;
-        }
-
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            nodes.add(Profile.ProfileNode.newBuilder()
-                    .setDepth(depth)
-                    .setPackageNameIndex(node.packageNameIndex)
-                    .setClassNameIndex(node.classNameIndex)
-                    .setMethodNameIndex(node.methodNameIndex)
-                    .setFileNameIndex(node.fileNameIndex)
-                    .setLineNumber(node.lineNumber)
-                    .setLeafThreadState(node.leafThreadState)
-                    .setSampleCount(node.sampleCount)
-                    .build());
-            return node.childNodes;
         }
     }
 
-    private static class ProfileFilterer extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileFilterer extends NodeTraverser<RuntimeException> {
 
         private final String filterTextUpper;
         private final boolean exclusion;
+        private final String[] textUppers;
+        private final boolean[] matched;
 
-        private ProfileFilterer(ProfileNode rootNode, String filterText, boolean exclusion) {
-            super(rootNode);
+        private ProfileFilterer(String filterText, boolean exclusion, String[] textUppers,
+                boolean[] matched) {
             this.filterTextUpper = filterText.toUpperCase(Locale.ENGLISH);
             this.exclusion = exclusion;
+            this.textUppers = textUppers;
+            this.matched = matched;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
+        boolean visit(int node, int depth) {
             if (isMatch(node)) {
-                node.matched = true;
+                matched[node] = true;
                 // no need to visit children
-                return ImmutableList.of();
+                return false;
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) {
-            if (node.matched) {
+        void revisitAfterChildren(int node) {
+            if (matched[node]) {
                 // if exclusion then node will be removed by parent
                 // if not exclusion then keep node and all children
                 return;
             }
-            if (node.childNodes.isEmpty()) {
+            if (get(node, FIRST_CHILD) == NO_NODE) {
                 return;
             }
             if (removeNode(node)) {
                 // node will be removed by parent
                 if (exclusion) {
-                    node.matched = true;
+                    matched[node] = true;
                 }
                 return;
             }
             if (!exclusion) {
-                node.matched = true;
+                matched[node] = true;
             }
             // node is a partial match, need to filter it out
             long filteredSampleCount = 0;
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (exclusion == !childNode.matched) {
-                    filteredSampleCount += childNode.sampleCount;
+            int prevChildNode = NO_NODE;
+            for (int childNode = get(node, FIRST_CHILD); childNode != NO_NODE;) {
+                int nextChildNode = get(childNode, NEXT_SIBLING);
+                if (exclusion == !matched[childNode]) {
+                    filteredSampleCount += nodeSampleCounts[childNode];
+                    prevChildNode = childNode;
                 } else {
-                    i.remove();
+                    unlinkChildNode(node, prevChildNode, childNode);
                 }
+                childNode = nextChildNode;
             }
-            node.sampleCount = filteredSampleCount;
+            nodeSampleCounts[node] = filteredSampleCount;
         }
 
-        private boolean isMatch(ProfileNode node) {
-            String textUpper = node.getTextUpper();
+        private boolean isMatch(int node) {
+            String textUpper = textUppers[node];
+            if (textUpper == null) {
+                textUpper = getText(node).toUpperCase(Locale.ENGLISH);
+                textUppers[node] = textUpper;
+            }
             if (textUpper.contains(filterTextUpper)) {
                 return true;
             }
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
-            if (leafThreadState != null) {
-                String leafThreadStateUpper = leafThreadState.name().toUpperCase(Locale.ENGLISH);
-                if (leafThreadStateUpper.contains(filterTextUpper)) {
-                    return true;
-                }
-            }
-            return false;
+            String leafThreadStateUpper =
+                    getLeafThreadState(node).name().toUpperCase(Locale.ENGLISH);
+            return leafThreadStateUpper.contains(filterTextUpper);
         }
 
-        private boolean removeNode(ProfileNode node) {
+        private boolean removeNode(int node) {
             if (exclusion) {
                 return hasOnlyMatchedChildren(node);
             } else {
@@ -536,18 +787,20 @@ public class MutableProfile {
             }
         }
 
-        private boolean hasOnlyMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (!childNode.matched) {
+        private boolean hasOnlyMatchedChildren(int node) {
+            for (int childNode = get(node, FIRST_CHILD); childNode != NO_NODE;
+                    childNode = get(childNode, NEXT_SIBLING)) {
+                if (!matched[childNode]) {
                     return false;
                 }
             }
             return true;
         }
 
-        private boolean hasNoMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (childNode.matched) {
+        private boolean hasNoMatchedChildren(int node) {
+            for (int childNode = get(node, FIRST_CHILD); childNode != NO_NODE;
+                    childNode = get(childNode, NEXT_SIBLING)) {
+                if (matched[childNode]) {
                     return false;
                 }
             }
@@ -555,82 +808,66 @@ public class MutableProfile {
         }
     }
 
-    private static class ProfileResetMatches extends Traverser<ProfileNode, RuntimeException> {
-
-        private ProfileResetMatches(ProfileNode rootNode) {
-            super(rootNode);
-        }
-
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            node.matched = false;
-            return node.childNodes;
-        }
-    }
-
-    private class ProfileWriter extends Traverser<ProfileNode, IOException> {
+    private class ProfileWriter extends NodeTraverser<IOException> {
 
         private final JsonGenerator jg;
 
-        private ProfileWriter(ProfileNode rootNode, JsonGenerator jg) throws IOException {
-            super(rootNode);
+        private ProfileWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        boolean visit(int node, int depth) throws IOException {
             jg.writeStartObject();
-            jg.writeStringField("stackTraceElement", node.getText());
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
+            jg.writeStringField("stackTraceElement", getText(node));
+            Profile.LeafThreadState leafThreadState = getLeafThreadState(node);
             if (leafThreadState != Profile.LeafThreadState.NONE) {
                 jg.writeStringField("leafThreadState", leafThreadState.name());
             }
-            jg.writeNumberField("sampleCount", node.sampleCount);
-            long ellipsedSampleCount = node.ellipsedSampleCount;
+            jg.writeNumberField("sampleCount", nodeSampleCounts[node]);
+            long ellipsedSampleCount = nodeEllipsedSampleCounts[node];
             if (ellipsedSampleCount > 0) {
                 jg.writeNumberField("ellipsedSampleCount", ellipsedSampleCount);
             }
-            List<ProfileNode> childNodes = node.childNodes;
-            if (!childNodes.isEmpty()) {
+            if (get(node, FIRST_CHILD) != NO_NODE) {
                 jg.writeArrayFieldStart("childNodes");
             }
-            return childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        void revisitAfterChildren(int node) throws IOException {
+            if (get(node, FIRST_CHILD) != NO_NODE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
         }
     }
 
-    private class FlameGraphWriter extends Traverser<ProfileNode, IOException> {
+    private class FlameGraphWriter extends NodeTraverser<IOException> {
 
         private final JsonGenerator jg;
         private int height;
 
-        private FlameGraphWriter(ProfileNode rootNode, JsonGenerator jg) throws IOException {
-            super(rootNode);
+        private FlameGraphWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        boolean visit(int node, int depth) throws IOException {
             height = Math.max(height, depth + 1);
             jg.writeStartObject();
-            jg.writeStringField("name", node.getText());
-            jg.writeNumberField("value", node.sampleCount);
-            if (!node.childNodes.isEmpty()) {
+            jg.writeStringField("name", getText(node));
+            jg.writeNumberField("value", nodeSampleCounts[node]);
+            if (get(node, FIRST_CHILD) != NO_NODE) {
                 jg.writeArrayFieldStart("children");
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        void revisitAfterChildren(int node) throws IOException {
+            if (get(node, FIRST_CHILD) != NO_NODE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
@@ -47,6 +47,7 @@ public interface AggregateRepository {
     // sortOrder and limit are only used by embedded H2 repository, while the central cassandra
     // repository which currently has to pull in all records anyways just delegates ordering and
     // limit to TransactionSummaryCollector
+    // limit of Integer.MAX_VALUE means no limit
     void mergeTransactionSummariesInto(String agentRollupId, OverallQuery query,
             SummarySortOrder sortOrder, int limit, TransactionSummaryCollector collector)
             throws Exception;
@@ -153,6 +153,107 @@ public class LazyHistogramTest {
         assertPercentile(lazyHistogram, encodedSize + nonEncodedSize, 99.99);
     }
 
+    @Test
+    public void shouldTestPercentilesWithLogBuckets() {
+        // given
+        int num = 10000000;
+        LazyHistogram lazyHistogram = new LazyHistogram(0.005);
+        // when
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        // then
+        assertPercentile(lazyHistogram, num, 50);
+        assertPercentile(lazyHistogram, num, 95);
+        assertPercentile(lazyHistogram, num, 99);
+        assertPercentile(lazyHistogram, num, 99.9);
+        assertPercentile(lazyHistogram, num, 99.99);
+    }
+
+    @Test
+    public void shouldTestEncodeDecodeWithLogBuckets() throws Exception {
+        // given
+        int num = 10000000;
+        LazyHistogram lazyHistogram = new LazyHistogram(0.005);
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        lazyHistogram = new LazyHistogram(0.005);
+        // when
+        lazyHistogram.merge(histogram);
+        // then
+        assertThat(histogram.hasLogBuckets()).isTrue();
+        assertPercentile(lazyHistogram, num, 50);
+        assertPercentile(lazyHistogram, num, 95);
+        assertPercentile(lazyHistogram, num, 99);
+        assertPercentile(lazyHistogram, num, 99.9);
+        assertPercentile(lazyHistogram, num, 99.99);
+    }
+
+    @Test
+    public void shouldMergeHdrHistogramIntoLogBuckets() throws Exception {
+        // given
+        int num = 10000000;
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        lazyHistogram = new LazyHistogram(0.005);
+        for (int i = 2 * num; i > num; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        // when
+        lazyHistogram.merge(histogram);
+        // then
+        assertThat(lazyHistogram.toProto(new ScratchBuffer()).hasLogBuckets()).isTrue();
+        assertPercentile(lazyHistogram, num * 2, 50);
+        assertPercentile(lazyHistogram, num * 2, 95);
+        assertPercentile(lazyHistogram, num * 2, 99);
+        assertPercentile(lazyHistogram, num * 2, 99.9);
+    }
+
+    @Test
+    public void shouldMergeLogBucketsIntoHdrHistogram() throws Exception {
+        // given
+        int num = 10000000;
+        LazyHistogram lazyHistogram = new LazyHistogram(0.005);
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        lazyHistogram = new LazyHistogram();
+        for (int i = 2 * num; i > num; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        // when
+        lazyHistogram.merge(histogram);
+        // then
+        assertThat(lazyHistogram.toProto(new ScratchBuffer()).hasLogBuckets()).isTrue();
+        assertPercentile(lazyHistogram, num * 2, 50);
+        assertPercentile(lazyHistogram, num * 2, 95);
+        assertPercentile(lazyHistogram, num * 2, 99);
+        assertPercentile(lazyHistogram, num * 2, 99.9);
+    }
+
+    @Test
+    public void shouldEncodeLogBucketsCompactly() {
+        // given
+        LazyHistogram hdrHistogram = new LazyHistogram();
+        LazyHistogram logBucketHistogram = new LazyHistogram(0.01);
+        // when
+        for (int i = 10000000; i > 0; i -= 1000) {
+            hdrHistogram.add(i);
+            logBucketHistogram.add(i);
+        }
+        // then
+        int hdrHistogramSize = hdrHistogram.toProto(new ScratchBuffer()).getSerializedSize();
+        int logBucketHistogramSize =
+                logBucketHistogram.toProto(new ScratchBuffer()).getSerializedSize();
+        assertThat(logBucketHistogramSize).isLessThan(hdrHistogramSize);
+    }
+
     private void assertPercentile(LazyHistogram lazyHistogram, int num, double percentile) {
         long low = (long) Math.floor(num * percentile * 0.99 / (100 * 1000)) * 1000;
         long high = (long) Math.ceil(num * percentile * 1.01 / (100 * 1000)) * 1000;
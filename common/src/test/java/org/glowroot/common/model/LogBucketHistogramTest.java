@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogBucketHistogramTest {
+
+    @Test
+    public void shouldBeWithinRelativeAccuracy() {
+        // given
+        LogBucketHistogram histogram = new LogBucketHistogram(0.01);
+        // when
+        histogram.add(123456789);
+        // then
+        assertThat(histogram.getValueAtPercentile(50)).isBetween(122222221L, 124691357L);
+    }
+
+    @Test
+    public void shouldTrackZeroValues() {
+        // given
+        LogBucketHistogram histogram = new LogBucketHistogram(0.01);
+        // when
+        histogram.add(0);
+        histogram.add(0);
+        histogram.add(1000);
+        // then
+        assertThat(histogram.getTotalCount()).isEqualTo(3);
+        assertThat(histogram.getValueAtPercentile(50)).isZero();
+        assertThat(histogram.getValueAtPercentile(100)).isBetween(990L, 1010L);
+    }
+
+    @Test
+    public void shouldEncodeDecode() {
+        // given
+        LogBucketHistogram histogram = new LogBucketHistogram(0.01);
+        for (int i = 1; i <= 10000; i++) {
+            histogram.add(i * 1000L);
+        }
+        // when
+        Aggregate.Histogram.LogBuckets logBuckets = histogram.toProto();
+        LogBucketHistogram decoded = new LogBucketHistogram(logBuckets);
+        // then
+        assertThat(decoded.getTotalCount()).isEqualTo(10000);
+        assertThat(decoded.getValueAtPercentile(50))
+                .isEqualTo(histogram.getValueAtPercentile(50));
+        assertThat(decoded.getValueAtPercentile(99))
+                .isEqualTo(histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void shouldMergeDifferentRelativeAccuracy() {
+        // given
+        LogBucketHistogram histogram = new LogBucketHistogram(0.01);
+        LogBucketHistogram other = new LogBucketHistogram(0.02);
+        for (int i = 1; i <= 1000; i++) {
+            histogram.add(i * 1000L);
+            other.add((1000 + i) * 1000L);
+        }
+        // when
+        histogram.merge(other.toProto());
+        // then
+        assertThat(histogram.getTotalCount()).isEqualTo(2000);
+        assertThat(histogram.getValueAtPercentile(50)).isBetween(970000L, 1030000L);
+        assertThat(histogram.getValueAtPercentile(100)).isBetween(1940000L, 2060000L);
+    }
+
+    @Test
+    public void shouldMergeAdjacentBucketsWhenFull() {
+        // given
+        LogBucketHistogram histogram = new LogBucketHistogram(0.0001);
+        // when
+        for (long value = 1; value < Long.MAX_VALUE / 2; value *= 2) {
+            histogram.add(value);
+        }
+        // then
+        assertThat(histogram.toProto().getBucketCountCount())
+                .isLessThanOrEqualTo(LogBucketHistogram.MAX_BUCKETS);
+        double relativeAccuracy = histogram.getRelativeAccuracy();
+        assertThat(relativeAccuracy).isGreaterThan(0.0001).isLessThan(0.05);
+        assertThat(histogram.getTotalCount()).isEqualTo(62);
+        // the lowest values are not collapsed into a single bucket
+        assertThat(histogram.getValueAtPercentile(0)).isBetween(0L, 2L);
+        long median = 1L << 30;
+        assertThat(histogram.getValueAtPercentile(50)).isBetween(
+                (long) (median * (1 - relativeAccuracy)), (long) (median * (1 + relativeAccuracy)));
+        long max = 1L << 61;
+        assertThat(histogram.getValueAtPercentile(100)).isBetween(
+                (long) (max * (1 - relativeAccuracy)), (long) (max * (1 + relativeAccuracy)));
+    }
+
+    @Test
+    public void shouldMergeAdjacentBucketsWhileMerging() {
+        // given
+        LogBucketHistogram histogram = new LogBucketHistogram(0.0001);
+        LogBucketHistogram other = new LogBucketHistogram(0.0001);
+        for (int i = 0; i < 100; i++) {
+            histogram.add(1000 + i);
+            other.add(1000000000000L + i * 1000000L);
+        }
+        // when
+        histogram.merge(other);
+        // then
+        double relativeAccuracy = histogram.getRelativeAccuracy();
+        assertThat(relativeAccuracy).isGreaterThan(0.0001).isLessThan(0.05);
+        assertThat(histogram.getTotalCount()).isEqualTo(200);
+        assertThat(histogram.toProto().getBucketCountCount())
+                .isLessThanOrEqualTo(LogBucketHistogram.MAX_BUCKETS);
+        assertThat(histogram.getValueAtPercentile(25)).isBetween(
+                (long) (1050 * (1 - relativeAccuracy)), (long) (1050 * (1 + relativeAccuracy)));
+        assertThat(histogram.getValueAtPercentile(75)).isBetween(
+                (long) (1000050000000L * (1 - relativeAccuracy)),
+                (long) (1000050000000L * (1 + relativeAccuracy)));
+    }
+}
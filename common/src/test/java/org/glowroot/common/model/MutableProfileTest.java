@@ -17,12 +17,14 @@ package org.glowroot.common.model;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Random;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import org.junit.Test;
@@ -164,6 +166,144 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void shouldMergeIncrementallySameAsFull() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        MutableProfile incrementalProfile = new MutableProfile();
+        MutableProfile.StackTraceCache cache = new MutableProfile.StackTraceCache();
+        Random random = new Random(0);
+        // when
+        for (int i = 0; i < 1000; i++) {
+            StackTraceElement[] stackTrace = createStackTrace(random);
+            Thread.State threadState =
+                    random.nextBoolean() ? Thread.State.RUNNABLE : Thread.State.WAITING;
+            profile.merge(stackTrace, threadState, null);
+            incrementalProfile.merge(stackTrace, threadState, cache);
+        }
+        // then
+        assertThat(incrementalProfile.toJson()).isEqualTo(profile.toJson());
+        assertThat(incrementalProfile.getSampleCount()).isEqualTo(1000);
+    }
+
+    @Test
+    public void shouldMergeManyChildNodes() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        // when
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 100; j++) {
+                StackTraceElement[] stackTrace = new StackTraceElement[] {
+                        new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", j),
+                        new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789)};
+                profile.merge(stackTrace, Thread.State.RUNNABLE, null);
+            }
+        }
+        // then
+        org.glowroot.wire.api.model.ProfileOuterClass.Profile proto = profile.toProto();
+        assertThat(proto.getNodeCount()).isEqualTo(101);
+        for (int i = 1; i < proto.getNodeCount(); i++) {
+            assertThat(proto.getNode(i).getSampleCount()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void shouldMergeProfilesSameAsProtos() throws IOException {
+        // given
+        MutableProfile profile1 = new MutableProfile();
+        MutableProfile profile2 = new MutableProfile();
+        Random random = new Random(0);
+        for (int i = 0; i < 100; i++) {
+            profile1.merge(createStackTrace(random), Thread.State.RUNNABLE, null);
+            profile2.merge(createStackTrace(random), Thread.State.BLOCKED, null);
+        }
+        MutableProfile profile = new MutableProfile();
+        MutableProfile protoProfile = new MutableProfile();
+        // when
+        profile.merge(profile1);
+        profile.merge(profile2);
+        protoProfile.merge(profile1.toProto());
+        protoProfile.merge(profile2.toProto());
+        // then
+        assertThat(profile.toJson()).isEqualTo(protoProfile.toJson());
+        assertThat(profile.getSampleCount()).isEqualTo(200);
+    }
+
+    @Test
+    public void shouldFilter() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        profile.merge(new StackTraceElement[] {
+                new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123),
+                new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789)},
+                Thread.State.RUNNABLE, null);
+        profile.merge(new StackTraceElement[] {
+                new StackTraceElement("aa.bb.cc.Jkl", "mno", "Jkl.java", 456),
+                new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789)},
+                Thread.State.RUNNABLE, null);
+        // when
+        profile.filter(ImmutableList.of("def"), ImmutableList.<String>of());
+        // then
+        assertThat(profile.getSampleCount()).isEqualTo(1);
+        assertThat(profile.getUnfilteredSampleCount()).isEqualTo(2);
+        assertThat(profile.toJson()).doesNotContain("Jkl");
+        // and merging after filtering
+        profile.merge(new StackTraceElement[] {
+                new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123),
+                new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789)},
+                Thread.State.RUNNABLE, null);
+        assertThat(profile.toProto().getNodeCount()).isEqualTo(2);
+        assertThat(profile.getSampleCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldTruncateBranches() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 3; i++) {
+            profile.merge(new StackTraceElement[] {
+                    new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123),
+                    new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789)},
+                    Thread.State.RUNNABLE, null);
+        }
+        profile.merge(new StackTraceElement[] {
+                new StackTraceElement("aa.bb.cc.Jkl", "mno", "Jkl.java", 456),
+                new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789)},
+                Thread.State.RUNNABLE, null);
+        // when
+        profile.truncateBranches(2);
+        // then
+        assertThat(profile.toJson()).isEqualTo(("{"
+                + "  \"unfilteredSampleCount\": 4,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"stackTraceElement\": \"xx.yy.zz.Main.main(Main.java:789)\","
+                + "      \"sampleCount\": 4,"
+                + "      \"ellipsedSampleCount\": 1,"
+                + "      \"childNodes\": ["
+                + "        {"
+                + "          \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:123)\","
+                + "          \"leafThreadState\": \"RUNNABLE\","
+                + "          \"sampleCount\": 3"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ]"
+                + "}").replace(" ", ""));
+    }
+
+    private static StackTraceElement[] createStackTrace(Random random) {
+        // common root frames, followed by a random number of frames that vary between samples
+        int depth = 5 + random.nextInt(10);
+        StackTraceElement[] stackTrace = new StackTraceElement[depth];
+        for (int i = 0; i < depth; i++) {
+            int lineNumber = depth - i <= 5 ? 0 : random.nextInt(3);
+            stackTrace[i] = new StackTraceElement("aa.bb.cc.Def" + (depth - i), "ghi",
+                    "Def.java", lineNumber);
+        }
+        return stackTrace;
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {
@@ -26,6 +26,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import org.immutables.value.Value;
 
+import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.repo.AgentRepository;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.ConfigRepository.OptimisticLockException;
@@ -376,6 +377,8 @@ class ConfigJsonService {
         abstract @Nullable Integer maxTraceEntriesPerTransaction(); // null for rollup config
         abstract @Nullable Integer maxStackTraceSamplesPerTransaction(); // null for rollup config
         abstract @Nullable Integer mbeanGaugeNotFoundDelaySeconds(); // null for rollup config
+        abstract @Nullable Integer aggregationThreads(); // null for rollup config
+        abstract @Nullable Double histogramRelativeAccuracy(); // null for rollup config
         abstract String version();
 
         private AdvancedConfig convert(boolean agent) {
@@ -394,6 +397,8 @@ class ConfigJsonService {
                                 of(checkNotNull(maxStackTraceSamplesPerTransaction())))
                         .setMbeanGaugeNotFoundDelaySeconds(
                                 of(checkNotNull(mbeanGaugeNotFoundDelaySeconds())))
+                        .setAggregationThreads(of(checkNotNull(aggregationThreads())))
+                        .setHistogramRelativeAccuracy(checkNotNull(histogramRelativeAccuracy()))
                         .build();
             } else {
                 return AdvancedConfig.newBuilder()
@@ -421,6 +426,10 @@ class ConfigJsonService {
                                 config.getMaxStackTraceSamplesPerTransaction().getValue())
                         .mbeanGaugeNotFoundDelaySeconds(
                                 config.getMbeanGaugeNotFoundDelaySeconds().getValue())
+                        .aggregationThreads(config.hasAggregationThreads()
+                                ? config.getAggregationThreads().getValue()
+                                : ConfigDefaults.AGGREGATION_THREADS)
+                        .histogramRelativeAccuracy(config.getHistogramRelativeAccuracy())
                         .version(Versions.getVersion(config))
                         .build();
             } else {
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.immutables.value.Value;
+
+import org.glowroot.common.model.OverallSummaryCollector.OverallSummary;
+import org.glowroot.common.model.TransactionSummaryCollector.TransactionSummary;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// caches merged summaries for interval-aligned historical buckets, so that repeated requests for
+// the same (e.g. auto-refreshing 24 hour) range only need to merge the non-aligned edges and the
+// live tail
+//
+// a bucket is only cached once it is settled, meaning all rollups that it can be read from have
+// completed, and it is invalidated when aggregates arrive late for it (e.g. replayed by an agent
+// after a collector outage)
+class SummaryCache {
+
+    // weight is number of summaries
+    private static final long MAX_WEIGHT = 100000;
+
+    // extra time after a rollup interval ends before its rollup is expected to be complete
+    private static final long SETTLE_MARGIN_MILLIS = MINUTES.toMillis(10);
+
+    private final Clock clock;
+
+    private final Cache<SummaryCacheKey, OverallSummary> overallSummaries;
+    private final Cache<SummaryCacheKey, ImmutableList<TransactionSummary>> transactionSummaries;
+
+    // the last time late aggregates were received for each agent rollup, buckets are not cached
+    // again for an agent rollup until re-rollup of the late aggregates has settled
+    private final ConcurrentMap<String, Long> lastInvalidationTimes = Maps.newConcurrentMap();
+
+    SummaryCache(Clock clock) {
+        this.clock = clock;
+        // expiration is only a backstop for central collector clusters, where aggregates can be
+        // received by a different central collector than the one that cached the bucket
+        overallSummaries = CacheBuilder.newBuilder()
+                .maximumSize(MAX_WEIGHT)
+                .expireAfterWrite(1, HOURS)
+                .build();
+        transactionSummaries = CacheBuilder.newBuilder()
+                .maximumWeight(MAX_WEIGHT)
+                .weigher(new Weigher<SummaryCacheKey, ImmutableList<TransactionSummary>>() {
+                    @Override
+                    public int weigh(SummaryCacheKey key, ImmutableList<TransactionSummary> value) {
+                        return Math.max(value.size(), 1);
+                    }
+                })
+                .expireAfterWrite(1, HOURS)
+                .build();
+    }
+
+    // returns the upper bound of the range that can be cached, buckets that end after this are not
+    // settled yet
+    long getSettledTo(String agentRollupId, long rollupIntervalMillis) {
+        long currentTime = clock.currentTimeMillis();
+        long settleMillis = rollupIntervalMillis + SETTLE_MARGIN_MILLIS;
+        Long lastInvalidationTime = lastInvalidationTimes.get(agentRollupId);
+        if (lastInvalidationTime != null && currentTime - lastInvalidationTime < settleMillis) {
+            return 0;
+        }
+        return currentTime - settleMillis;
+    }
+
+    OverallSummary getOverallSummary(SummaryCacheKey key, Callable<OverallSummary> loader)
+            throws Exception {
+        return overallSummaries.get(key, loader);
+    }
+
+    List<TransactionSummary> getTransactionSummaries(SummaryCacheKey key,
+            Callable<ImmutableList<TransactionSummary>> loader) throws Exception {
+        return transactionSummaries.get(key, loader);
+    }
+
+    void invalidate(String agentRollupId, long captureTime) {
+        long currentTime = clock.currentTimeMillis();
+        if (captureTime > currentTime - SETTLE_MARGIN_MILLIS) {
+            // not late, so cannot be part of a settled bucket
+            return;
+        }
+        lastInvalidationTimes.put(agentRollupId, currentTime);
+        invalidate(overallSummaries, agentRollupId, captureTime);
+        invalidate(transactionSummaries, agentRollupId, captureTime);
+    }
+
+    // called when aggregates are deleted (embedded collector only), invalidates all buckets that
+    // start before captureTime, for all agent rollups
+    void invalidateBefore(long captureTime) {
+        invalidateBefore(overallSummaries, captureTime);
+        invalidateBefore(transactionSummaries, captureTime);
+    }
+
+    private static void invalidate(Cache<SummaryCacheKey, ?> cache, String agentRollupId,
+            long captureTime) {
+        for (SummaryCacheKey key : cache.asMap().keySet()) {
+            if (key.agentRollupId().equals(agentRollupId) && key.from() < captureTime
+                    && captureTime <= key.to()) {
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    private static void invalidateBefore(Cache<SummaryCacheKey, ?> cache, long captureTime) {
+        for (SummaryCacheKey key : cache.asMap().keySet()) {
+            if (key.from() < captureTime) {
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    @Value.Immutable
+    interface SummaryCacheKey {
+        String agentRollupId();
+        String transactionType();
+        int rollupLevel();
+        long from(); // non-inclusive
+        long to();
+    }
+}
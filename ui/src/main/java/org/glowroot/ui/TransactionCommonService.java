@@ -17,10 +17,12 @@ package org.glowroot.ui;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
 import org.glowroot.common.config.ConfigDefaults;
@@ -47,9 +49,11 @@ import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
 import org.glowroot.common.model.TransactionSummaryCollector.TransactionSummary;
 import org.glowroot.common.repo.AggregateRepository;
 import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.MutableAggregate;
 import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Clock;
+import org.glowroot.ui.SummaryCache.SummaryCacheKey;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
@@ -58,20 +62,22 @@ class TransactionCommonService {
     private final AggregateRepository aggregateRepository;
     private final LiveAggregateRepository liveAggregateRepository;
     private final ConfigRepository configRepository;
+    private final SummaryCache summaryCache;
     private final Clock clock;
 
     TransactionCommonService(AggregateRepository aggregateRepository,
             LiveAggregateRepository liveAggregateRepository, ConfigRepository configRepository,
-            Clock clock) {
+            SummaryCache summaryCache, Clock clock) {
         this.aggregateRepository = aggregateRepository;
         this.liveAggregateRepository = liveAggregateRepository;
         this.configRepository = configRepository;
+        this.summaryCache = summaryCache;
         this.clock = clock;
     }
 
     // query.from() is non-inclusive
-    OverallSummary readOverallSummary(String agentRollupId, OverallQuery query, boolean autoRefresh)
-            throws Exception {
+    OverallSummary readOverallSummary(final String agentRollupId, final OverallQuery query,
+            boolean autoRefresh) throws Exception {
         OverallSummaryCollector collector = new OverallSummaryCollector();
         long revisedFrom = query.from();
         long revisedTo;
@@ -81,26 +87,39 @@ class TransactionCommonService {
             revisedTo =
                     liveAggregateRepository.mergeInOverallSummary(agentRollupId, query, collector);
         }
-        for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
-            OverallQuery revisedQuery = ImmutableOverallQuery.builder()
-                    .copyFrom(query)
-                    .from(revisedFrom)
-                    .to(revisedTo)
-                    .rollupLevel(rollupLevel)
-                    .build();
-            aggregateRepository.mergeOverallSummaryInto(agentRollupId, revisedQuery, collector);
-            long lastRolledUpTime = collector.getLastCaptureTime();
-            revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
-            if (revisedFrom > revisedTo) {
-                break;
+        long bucketMillis = getSummaryBucketMillis(query.rollupLevel());
+        long cachedFrom = Utils.getRollupCaptureTime(revisedFrom, bucketMillis);
+        long cachedTo = getCachedTo(agentRollupId, query.rollupLevel(), revisedTo, bucketMillis);
+        if (cachedFrom < cachedTo) {
+            mergeOverallSummary(agentRollupId, query, revisedFrom, cachedFrom, collector);
+            for (long from = cachedFrom; from < cachedTo; from += bucketMillis) {
+                final long bucketFrom = from;
+                final long bucketTo = from + bucketMillis;
+                OverallSummary overallSummary = summaryCache.getOverallSummary(
+                        getSummaryCacheKey(agentRollupId, query, bucketFrom, bucketTo),
+                        new Callable<OverallSummary>() {
+                            @Override
+                            public OverallSummary call() throws Exception {
+                                OverallSummaryCollector bucketCollector =
+                                        new OverallSummaryCollector();
+                                mergeOverallSummary(agentRollupId, query, bucketFrom, bucketTo,
+                                        bucketCollector);
+                                return bucketCollector.getOverallSummary();
+                            }
+                        });
+                collector.mergeSummary(overallSummary.totalDurationNanos(),
+                        overallSummary.transactionCount(), bucketTo);
             }
+            revisedFrom = cachedTo;
         }
+        mergeOverallSummary(agentRollupId, query, revisedFrom, revisedTo, collector);
         return collector.getOverallSummary();
     }
 
     // query.from() is non-inclusive
-    Result<TransactionSummary> readTransactionSummaries(String agentRollupId, OverallQuery query,
-            SummarySortOrder sortOrder, int limit, boolean autoRefresh) throws Exception {
+    Result<TransactionSummary> readTransactionSummaries(final String agentRollupId,
+            final OverallQuery query, final SummarySortOrder sortOrder, final int limit,
+            boolean autoRefresh) throws Exception {
         TransactionSummaryCollector collector = new TransactionSummaryCollector();
         long revisedFrom = query.from();
         long revisedTo;
@@ -110,21 +129,45 @@ class TransactionCommonService {
             revisedTo = liveAggregateRepository.mergeInTransactionSummaries(agentRollupId, query,
                     collector);
         }
-        for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
-            OverallQuery revisedQuery = ImmutableOverallQuery.builder()
-                    .copyFrom(query)
-                    .from(revisedFrom)
-                    .to(revisedTo)
-                    .rollupLevel(rollupLevel)
-                    .build();
-            aggregateRepository.mergeTransactionSummariesInto(agentRollupId, revisedQuery,
-                    sortOrder, limit, collector);
-            long lastRolledUpTime = collector.getLastCaptureTime();
-            revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
-            if (revisedFrom > revisedTo) {
-                break;
+        long bucketMillis = getSummaryBucketMillis(query.rollupLevel());
+        long cachedFrom = Utils.getRollupCaptureTime(revisedFrom, bucketMillis);
+        long cachedTo = getCachedTo(agentRollupId, query.rollupLevel(), revisedTo, bucketMillis);
+        if (cachedFrom < cachedTo) {
+            mergeTransactionSummaries(agentRollupId, query, sortOrder, limit, revisedFrom,
+                    cachedFrom, collector);
+            for (long from = cachedFrom; from < cachedTo; from += bucketMillis) {
+                final long bucketFrom = from;
+                final long bucketTo = from + bucketMillis;
+                List<TransactionSummary> transactionSummaries =
+                        summaryCache.getTransactionSummaries(
+                                getSummaryCacheKey(agentRollupId, query, bucketFrom, bucketTo),
+                                new Callable<ImmutableList<TransactionSummary>>() {
+                                    @Override
+                                    public ImmutableList<TransactionSummary> call()
+                                            throws Exception {
+                                        // buckets are cached untruncated, since truncating each
+                                        // bucket prior to merging them would under-count
+                                        // transactions that are near the limit in each bucket
+                                        TransactionSummaryCollector bucketCollector =
+                                                new TransactionSummaryCollector();
+                                        mergeTransactionSummaries(agentRollupId, query, sortOrder,
+                                                Integer.MAX_VALUE, bucketFrom, bucketTo,
+                                                bucketCollector);
+                                        return ImmutableList.copyOf(bucketCollector
+                                                .getResult(sortOrder, Integer.MAX_VALUE)
+                                                .records());
+                                    }
+                                });
+                for (TransactionSummary transactionSummary : transactionSummaries) {
+                    collector.collect(transactionSummary.transactionName(),
+                            transactionSummary.totalDurationNanos(),
+                            transactionSummary.transactionCount(), bucketTo);
+                }
             }
+            revisedFrom = cachedTo;
         }
+        mergeTransactionSummaries(agentRollupId, query, sortOrder, limit, revisedFrom, revisedTo,
+                collector);
         return collector.getResult(sortOrder, limit);
     }
 
@@ -506,6 +549,75 @@ class TransactionCommonService {
         return rolledUpThroughputAggregates;
     }
 
+    // from is non-inclusive
+    private void mergeOverallSummary(String agentRollupId, OverallQuery query, long from, long to,
+            OverallSummaryCollector collector) throws Exception {
+        long revisedFrom = from;
+        for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
+            if (revisedFrom >= to) {
+                break;
+            }
+            OverallQuery revisedQuery = ImmutableOverallQuery.builder()
+                    .copyFrom(query)
+                    .from(revisedFrom)
+                    .to(to)
+                    .rollupLevel(rollupLevel)
+                    .build();
+            aggregateRepository.mergeOverallSummaryInto(agentRollupId, revisedQuery, collector);
+            long lastRolledUpTime = collector.getLastCaptureTime();
+            revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
+        }
+    }
+
+    // from is non-inclusive
+    private void mergeTransactionSummaries(String agentRollupId, OverallQuery query,
+            SummarySortOrder sortOrder, int limit, long from, long to,
+            TransactionSummaryCollector collector) throws Exception {
+        long revisedFrom = from;
+        for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
+            if (revisedFrom >= to) {
+                break;
+            }
+            OverallQuery revisedQuery = ImmutableOverallQuery.builder()
+                    .copyFrom(query)
+                    .from(revisedFrom)
+                    .to(to)
+                    .rollupLevel(rollupLevel)
+                    .build();
+            aggregateRepository.mergeTransactionSummariesInto(agentRollupId, revisedQuery,
+                    sortOrder, limit, collector);
+            long lastRolledUpTime = collector.getLastCaptureTime();
+            revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
+        }
+    }
+
+    // summaries are cached in buckets of the next rollup level's interval, which keeps the number
+    // of buckets per request similar to the number of data points per chart
+    private long getSummaryBucketMillis(int rollupLevel) {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        return rollupConfigs.get(Math.min(rollupLevel + 1, rollupConfigs.size() - 1))
+                .intervalMillis();
+    }
+
+    private long getCachedTo(String agentRollupId, int rollupLevel, long to, long bucketMillis) {
+        long rollupIntervalMillis =
+                configRepository.getRollupConfigs().get(rollupLevel).intervalMillis();
+        long settledTo =
+                Math.min(to, summaryCache.getSettledTo(agentRollupId, rollupIntervalMillis));
+        return (long) Math.floor(settledTo / (double) bucketMillis) * bucketMillis;
+    }
+
+    private static SummaryCacheKey getSummaryCacheKey(String agentRollupId, OverallQuery query,
+            long from, long to) {
+        return ImmutableSummaryCacheKey.builder()
+                .agentRollupId(agentRollupId)
+                .transactionType(query.transactionType())
+                .rollupLevel(query.rollupLevel())
+                .from(from)
+                .to(to)
+                .build();
+    }
+
     private MutableProfile getMergedProfile(String agentRollupId, TransactionQuery query,
             boolean auxiliary) throws Exception {
         ProfileCollector collector = new ProfileCollector();
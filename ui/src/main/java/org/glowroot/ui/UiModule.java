@@ -55,6 +55,8 @@ public class UiModule {
     // CommonHandler is non-null when using servlet container (applies to central only)
     private final @Nullable CommonHandler commonHandler;
 
+    private final SummaryCache summaryCache;
+
     @Builder.Factory
     public static UiModule createUiModule(
             boolean central,
@@ -90,8 +92,10 @@ public class UiModule {
         HttpSessionManager httpSessionManager = new HttpSessionManager(central, offline,
                 configRepository, clock, layoutService, sessionMapFactory);
         IndexHtmlHttpService indexHtmlHttpService = new IndexHtmlHttpService(layoutService);
+        SummaryCache summaryCache = new SummaryCache(clock);
         TransactionCommonService transactionCommonService = new TransactionCommonService(
-                aggregateRepository, liveAggregateRepository, configRepository, clock);
+                aggregateRepository, liveAggregateRepository, configRepository, summaryCache,
+                clock);
         TraceCommonService traceCommonService =
                 new TraceCommonService(traceRepository, liveTraceRepository, agentRepository);
         TransactionJsonService transactionJsonService =
@@ -175,7 +179,7 @@ public class UiModule {
                 httpSessionManager, jsonServices, clock);
 
         if (servlet) {
-            return new UiModule(commonHandler);
+            return new UiModule(commonHandler, summaryCache);
         } else {
             String bindAddress = configRepository.getWebConfig().bindAddress();
             int port = configRepository.getWebConfig().port();
@@ -183,18 +187,20 @@ public class UiModule {
                     commonHandler, certificateDir, numWorkerThreads);
 
             lazyHttpServer.init(adminJsonService);
-            return new UiModule(lazyHttpServer);
+            return new UiModule(lazyHttpServer, summaryCache);
         }
     }
 
-    private UiModule(LazyHttpServer lazyHttpServer) {
+    private UiModule(LazyHttpServer lazyHttpServer, SummaryCache summaryCache) {
         this.lazyHttpServer = lazyHttpServer;
         commonHandler = null;
+        this.summaryCache = summaryCache;
     }
 
-    private UiModule(CommonHandler commonHandler) {
+    private UiModule(CommonHandler commonHandler, SummaryCache summaryCache) {
         this.commonHandler = commonHandler;
         lazyHttpServer = null;
+        this.summaryCache = summaryCache;
     }
 
     public int getPort() throws InterruptedException {
@@ -206,6 +212,18 @@ public class UiModule {
         return checkNotNull(commonHandler);
     }
 
+    // called by central when aggregates are stored, so that cached summaries for the interval are
+    // invalidated if the aggregates arrived late
+    public void invalidateSummaries(String agentRollupId, long captureTime) {
+        summaryCache.invalidate(agentRollupId, captureTime);
+    }
+
+    // called by the embedded collector when aggregates are deleted (expired, all data deleted, or
+    // database defragged), so that cached summaries are not served for the deleted aggregates
+    public void invalidateSummariesBefore(long captureTime) {
+        summaryCache.invalidateBefore(captureTime);
+    }
+
     // used by tests and by central ui
     public void close(boolean waitForChannelClose) throws InterruptedException {
         if (lazyHttpServer != null) {
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.common.live.ImmutableOverallQuery;
+import org.glowroot.common.live.LiveAggregateRepository;
+import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
+import org.glowroot.common.model.OverallSummaryCollector;
+import org.glowroot.common.model.OverallSummaryCollector.OverallSummary;
+import org.glowroot.common.model.Result;
+import org.glowroot.common.model.TransactionSummaryCollector;
+import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
+import org.glowroot.common.model.TransactionSummaryCollector.TransactionSummary;
+import org.glowroot.common.repo.AggregateRepository;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TransactionCommonServiceTest {
+
+    private AggregateRepository aggregateRepository;
+    private SummaryCache summaryCache;
+    private TransactionCommonService transactionCommonService;
+
+    @Before
+    public void beforeEach() {
+        aggregateRepository = mock(AggregateRepository.class);
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getRollupConfigs()).thenReturn(RollupConfig.buildRollupConfigs());
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(HOURS.toMillis(10));
+        summaryCache = new SummaryCache(clock);
+        transactionCommonService = new TransactionCommonService(aggregateRepository,
+                mock(LiveAggregateRepository.class), configRepository, summaryCache, clock);
+    }
+
+    @Test
+    public void shouldReadSettledBucketsFromCache() throws Exception {
+        // given
+        mockOverallSummaryAggregates();
+        OverallQuery query = createOverallQuery(0, HOURS.toMillis(5));
+
+        // when
+        OverallSummary overallSummary1 =
+                transactionCommonService.readOverallSummary("a", query, true);
+        OverallSummary overallSummary2 =
+                transactionCommonService.readOverallSummary("a", query, true);
+
+        // then
+        // 5 hours is 10 buckets of 30 minutes
+        verify(aggregateRepository, times(10)).mergeOverallSummaryInto(anyString(),
+                any(OverallQuery.class), any(OverallSummaryCollector.class));
+        assertThat(overallSummary1.transactionCount()).isEqualTo(10);
+        assertThat(overallSummary2.transactionCount()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldNotCacheUnsettledBuckets() throws Exception {
+        // given
+        mockOverallSummaryAggregates();
+        // last 30 minute bucket is not settled yet since it ends less than 15 minutes (5 minute
+        // rollup interval + 10 minute settle margin) ago
+        OverallQuery query = createOverallQuery(HOURS.toMillis(9), HOURS.toMillis(10));
+
+        // when
+        transactionCommonService.readOverallSummary("a", query, true);
+        transactionCommonService.readOverallSummary("a", query, true);
+
+        // then
+        // one cached bucket plus the uncached remainder (read twice)
+        verify(aggregateRepository, times(3)).mergeOverallSummaryInto(anyString(),
+                any(OverallQuery.class), any(OverallSummaryCollector.class));
+    }
+
+    @Test
+    public void shouldReloadBucketAfterLateAggregates() throws Exception {
+        // given
+        mockOverallSummaryAggregates();
+        OverallQuery query = createOverallQuery(0, HOURS.toMillis(5));
+        transactionCommonService.readOverallSummary("a", query, true);
+        reset(aggregateRepository);
+        mockOverallSummaryAggregates();
+
+        // when
+        summaryCache.invalidate("a", MINUTES.toMillis(45));
+        transactionCommonService.readOverallSummary("a", query, true);
+
+        // then
+        // the whole range is read without the cache until re-rollup of the late aggregates has
+        // settled
+        verify(aggregateRepository, times(1)).mergeOverallSummaryInto(anyString(),
+                any(OverallQuery.class), any(OverallSummaryCollector.class));
+    }
+
+    @Test
+    public void shouldReloadBucketsAfterDeletingAggregates() throws Exception {
+        // given
+        mockOverallSummaryAggregates();
+        OverallQuery query = createOverallQuery(0, HOURS.toMillis(5));
+        transactionCommonService.readOverallSummary("a", query, true);
+        reset(aggregateRepository);
+        mockOverallSummaryAggregates();
+
+        // when
+        summaryCache.invalidateBefore(HOURS.toMillis(1));
+        transactionCommonService.readOverallSummary("a", query, true);
+
+        // then
+        // the 2 buckets that start before the deleted capture time are reloaded
+        verify(aggregateRepository, times(2)).mergeOverallSummaryInto(anyString(),
+                any(OverallQuery.class), any(OverallSummaryCollector.class));
+    }
+
+    @Test
+    public void shouldMergeUntruncatedTransactionSummaryBuckets() throws Exception {
+        // given
+        // the repository truncates to limit (same as the embedded H2 repository, which truncates
+        // to limit + 100)
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                OverallQuery query = (OverallQuery) invocation.getArguments()[1];
+                int limit = (Integer) invocation.getArguments()[3];
+                TransactionSummaryCollector collector =
+                        (TransactionSummaryCollector) invocation.getArguments()[4];
+                // ordered by transaction count
+                List<String> transactionNames;
+                List<Long> transactionCounts = ImmutableList.of(3L, 2L);
+                if (query.from() == 0) {
+                    transactionNames = ImmutableList.of("x", "y");
+                } else {
+                    transactionNames = ImmutableList.of("z", "y");
+                }
+                for (int i = 0; i < Math.min(transactionNames.size(), limit); i++) {
+                    collector.collect(transactionNames.get(i), 1000, transactionCounts.get(i),
+                            query.to());
+                }
+                return null;
+            }
+        }).when(aggregateRepository).mergeTransactionSummariesInto(anyString(),
+                any(OverallQuery.class), any(SummarySortOrder.class), anyInt(),
+                any(TransactionSummaryCollector.class));
+        // two 30 minute buckets
+        OverallQuery query = createOverallQuery(0, HOURS.toMillis(1));
+
+        // when
+        Result<TransactionSummary> result = transactionCommonService
+                .readTransactionSummaries("a", query, SummarySortOrder.THROUGHPUT, 1, true);
+
+        // then
+        assertThat(result.records()).hasSize(1);
+        assertThat(result.records().get(0).transactionName()).isEqualTo("y");
+        assertThat(result.records().get(0).transactionCount()).isEqualTo(4);
+    }
+
+    private void mockOverallSummaryAggregates() throws Exception {
+        // each (rolled up) read returns a single aggregate at the end of the requested range
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                OverallQuery query = (OverallQuery) invocation.getArguments()[1];
+                OverallSummaryCollector collector =
+                        (OverallSummaryCollector) invocation.getArguments()[2];
+                collector.mergeSummary(1000, 1, query.to());
+                return null;
+            }
+        }).when(aggregateRepository).mergeOverallSummaryInto(anyString(),
+                any(OverallQuery.class), any(OverallSummaryCollector.class));
+    }
+
+    private static OverallQuery createOverallQuery(long from, long to) {
+        return ImmutableOverallQuery.builder()
+                .transactionType("Web")
+                .from(from)
+                .to(to)
+                .rollupLevel(1)
+                .build();
+    }
+}